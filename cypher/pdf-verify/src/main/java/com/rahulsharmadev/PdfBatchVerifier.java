@@ -0,0 +1,438 @@
+package com.rahulsharmadev;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.math.BigInteger;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.security.Provider;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Calendar;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.Date;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.Semaphore;
+import java.util.function.Consumer;
+import java.util.stream.Stream;
+
+import org.apache.pdfbox.Loader;
+import org.apache.pdfbox.cos.COSBase;
+import org.apache.pdfbox.cos.COSName;
+import org.apache.pdfbox.cos.COSString;
+import org.apache.pdfbox.pdmodel.PDDocument;
+import org.apache.pdfbox.pdmodel.interactive.digitalsignature.PDSignature;
+import org.bouncycastle.asn1.ASN1ObjectIdentifier;
+import org.bouncycastle.asn1.cms.CMSObjectIdentifiers;
+import org.bouncycastle.cert.X509CertificateHolder;
+import org.bouncycastle.cms.CMSSignedData;
+import org.bouncycastle.cms.CMSTypedData;
+import org.bouncycastle.cms.SignerInformation;
+import org.bouncycastle.cms.SignerInformationVerifier;
+import org.bouncycastle.cms.jcajce.JcaSimpleSignerInfoVerifierBuilder;
+import org.bouncycastle.jce.provider.BouncyCastleProvider;
+
+/**
+ * Verifies the signatures of many signed PDFs at once.
+ *
+ * Unlike PdfUtility.main2, every document is read into memory once and parsed
+ * once: the signed byte ranges are taken from those bytes instead of a new
+ * FileInputStream per signature, and the document is closed before its
+ * signatures are checked. The CMS signatures of a document are verified as
+ * tasks of the same work-stealing pool the documents run on, so a document
+ * with many signatures spreads over idle workers. Signer certificates are read
+ * from the CMS certificate holders directly, without CertificateFactory, and
+ * one verifier is built per certificate and shared by every signature it
+ * made, which is most of them for a batch of invoices from one issuer.
+ *
+ * Only a bounded number of documents are read ahead, so a directory of tens
+ * of thousands of files never sits in memory at once.
+ *
+ * A valid signature is an integrity check, not a trust decision: it means the
+ * signed bytes match the CMS signature under the certificate embedded in it.
+ * Nothing checks that certificate against trusted roots, its chain or its
+ * revocation, so a self-signed certificate made by anyone verifies as well.
+ *
+ * Usage: PdfBatchVerifier &lt;directory&gt; [workers], one JSON report per
+ * document on standard output and a summary on standard error.
+ */
+public class PdfBatchVerifier implements AutoCloseable {
+
+    // One provider instance for every verifier, registering is not needed
+    private static final Provider BC = new BouncyCastleProvider();
+
+    // Verifiers kept per signer certificate, cleared when full
+    private static final int VERIFIER_CACHE_SIZE = 1024;
+
+    // Documents read ahead per worker
+    private static final int DOCUMENTS_PER_WORKER = 2;
+
+    private final ForkJoinPool pool;
+    private final Map<X509CertificateHolder, SignerInformationVerifier> verifiers = new ConcurrentHashMap<>();
+
+    // Outcome of one signer of a CMS signature. valid: the signature matches the signed bytes under the
+    // embedded certificate, which is not checked for trust. certificateValidAtSigning: that certificate's
+    // validity period covers the /M date, which the signer wrote itself, so a claim rather than a timestamp
+    public static record SignerReport(
+            String subject,
+            String issuer,
+            BigInteger serialNumber,
+            boolean valid,
+            boolean certificateValidAtSigning,
+            String error) {
+    }
+
+    // Outcome of one signature dictionary, valid when every signer is: intact, not trusted
+    public static record SignatureReport(
+            String name,
+            String subFilter,
+            Calendar signDate,
+            int[] byteRange,
+            boolean coversWholeDocument,
+            List<SignerReport> signers,
+            String error) {
+
+        public boolean isValid() {
+            return error == null && !signers.isEmpty() && signers.stream().allMatch(SignerReport::valid);
+        }
+    }
+
+    // Outcome of one document, error is set when it could not be read at all
+    public static record DocumentReport(
+            Path file,
+            long size,
+            List<SignatureReport> signatures,
+            long nanos,
+            String error) {
+
+        public boolean isSigned() {
+            return signatures != null && !signatures.isEmpty();
+        }
+
+        public boolean isValid() {
+            return error == null && isSigned() && signatures.stream().allMatch(SignatureReport::isValid);
+        }
+
+        public String toJson() {
+            StringBuilder json = new StringBuilder("{\"file\":").append(quote(file.toString()))
+                    .append(",\"size\":").append(size)
+                    .append(",\"valid\":").append(isValid())
+                    .append(",\"millis\":").append(nanos / 1_000_000);
+            if (error != null) {
+                json.append(",\"error\":").append(quote(error));
+            }
+            json.append(",\"signatures\":[");
+            for (int i = 0; signatures != null && i < signatures.size(); i++) {
+                SignatureReport sig = signatures.get(i);
+                json.append(i > 0 ? "," : "").append("{\"name\":").append(quote(sig.name()))
+                        .append(",\"subFilter\":").append(quote(sig.subFilter()))
+                        .append(",\"signDate\":").append(sig.signDate() != null
+                                ? quote(sig.signDate().toInstant().toString())
+                                : "null")
+                        .append(",\"byteRange\":").append(Arrays.toString(sig.byteRange()).replace(" ", ""))
+                        .append(",\"coversWholeDocument\":").append(sig.coversWholeDocument())
+                        .append(",\"valid\":").append(sig.isValid());
+                if (sig.error() != null) {
+                    json.append(",\"error\":").append(quote(sig.error()));
+                }
+                json.append(",\"signers\":[");
+                for (int j = 0; j < sig.signers().size(); j++) {
+                    SignerReport signer = sig.signers().get(j);
+                    json.append(j > 0 ? "," : "").append("{\"subject\":").append(quote(signer.subject()))
+                            .append(",\"issuer\":").append(quote(signer.issuer()))
+                            .append(",\"serialNumber\":").append(quote(String.valueOf(signer.serialNumber())))
+                            .append(",\"valid\":").append(signer.valid())
+                            .append(",\"certificateValidAtSigning\":").append(signer.certificateValidAtSigning());
+                    if (signer.error() != null) {
+                        json.append(",\"error\":").append(quote(signer.error()));
+                    }
+                    json.append('}');
+                }
+                json.append("]}");
+            }
+            return json.append("]}").toString();
+        }
+    }
+
+    // A signature taken out of its document: where it sits and what it signs
+    private static record SignedRange(
+            String name,
+            String subFilter,
+            Calendar signDate,
+            int[] byteRange,
+            byte[] contents) {
+    }
+
+    public PdfBatchVerifier(int workers) {
+        this.pool = new ForkJoinPool(Math.max(1, workers));
+    }
+
+    public static void main(String[] args) throws Exception {
+        if (args.length < 1) {
+            System.err.println("Usage: PdfBatchVerifier <directory> [workers]");
+            return;
+        }
+        Path dir = Path.of(args[0]);
+        int workers = args.length > 1 ? Integer.parseInt(args[1]) : Runtime.getRuntime().availableProcessors();
+
+        long start = System.nanoTime();
+        int[] counts = new int[4]; // documents, valid documents, signatures, valid signatures
+        try (PdfBatchVerifier verifier = new PdfBatchVerifier(workers)) {
+            verifier.verifyDirectory(dir, report -> {
+                System.out.println(report.toJson());
+                counts[0]++;
+                counts[1] += report.isValid() ? 1 : 0;
+                if (report.isSigned()) {
+                    counts[2] += report.signatures().size();
+                    counts[3] += (int) report.signatures().stream().filter(SignatureReport::isValid).count();
+                }
+            });
+        }
+        double seconds = (System.nanoTime() - start) / 1e9;
+        System.err.println(String.format(Locale.ROOT,
+                "Verified %d document(s), %d valid; %d signature(s), %d valid; in %.2f s (%.0f documents/hour)",
+                counts[0], counts[1], counts[2], counts[3], seconds, seconds > 0 ? counts[0] * 3600 / seconds : 0));
+    }
+
+    /**
+     * Verify every .pdf file of a directory, reports go to the listener as
+     * documents finish, on the calling thread
+     *
+     * @return the reports in file name order
+     */
+    public List<DocumentReport> verifyDirectory(Path dir, Consumer<DocumentReport> listener)
+            throws IOException, InterruptedException {
+        List<Path> files;
+        try (Stream<Path> list = Files.list(dir)) {
+            files = list.filter(Files::isRegularFile)
+                    .filter(file -> file.getFileName().toString().toLowerCase(Locale.ROOT).endsWith(".pdf"))
+                    .sorted()
+                    .toList();
+        }
+        return verifyAll(files, listener);
+    }
+
+    /**
+     * Verify documents in parallel, at most a few per worker read ahead
+     */
+    public List<DocumentReport> verifyAll(Collection<Path> files, Consumer<DocumentReport> listener)
+            throws InterruptedException {
+        Semaphore readAhead = new Semaphore(pool.getParallelism() * DOCUMENTS_PER_WORKER);
+        BlockingQueue<DocumentReport> done = new LinkedBlockingQueue<>();
+        List<DocumentReport> reports = new ArrayList<>(files.size());
+
+        for (Path file : files) {
+            // Report what finished while waiting for room
+            while (!readAhead.tryAcquire()) {
+                report(done.take(), reports, listener);
+            }
+            pool.execute(() -> {
+                DocumentReport report;
+                try {
+                    report = verifyDocument(file);
+                } catch (RuntimeException | Error e) {
+                    // A report for every file, or the loop below waits for ever
+                    report = new DocumentReport(file, 0, List.of(), 0, String.valueOf(e));
+                }
+                readAhead.release();
+                done.add(report);
+            });
+        }
+        while (reports.size() < files.size()) {
+            report(done.take(), reports, listener);
+        }
+        reports.sort(Comparator.comparing(DocumentReport::file));
+        return reports;
+    }
+
+    private static void report(DocumentReport report, List<DocumentReport> reports,
+            Consumer<DocumentReport> listener) {
+        reports.add(report);
+        if (listener != null) {
+            listener.accept(report);
+        }
+    }
+
+    /**
+     * Verify one document, its signatures in parallel
+     */
+    public DocumentReport verify(Path file) throws InterruptedException {
+        try {
+            return pool.submit(() -> verifyDocument(file)).get();
+        } catch (ExecutionException e) {
+            throw new IllegalStateException("Verification failed unexpectedly", e.getCause());
+        }
+    }
+
+    // Runs on a pool worker, so the signature tasks it forks are stolen by idle ones
+    private DocumentReport verifyDocument(Path file) {
+        long start = System.nanoTime();
+        byte[] bytes;
+        List<SignedRange> ranges;
+        try {
+            bytes = Files.readAllBytes(file);
+            ranges = extract(bytes);
+        } catch (Exception e) {
+            return new DocumentReport(file, 0, List.of(), System.nanoTime() - start, message(e));
+        }
+
+        List<ForkJoinTask<SignatureReport>> tasks = new ArrayList<>(ranges.size());
+        for (SignedRange range : ranges) {
+            tasks.add(ForkJoinTask.adapt(() -> verifySignature(bytes, range)));
+        }
+        ForkJoinTask.invokeAll(tasks);
+
+        List<SignatureReport> signatures = new ArrayList<>(tasks.size());
+        for (ForkJoinTask<SignatureReport> task : tasks) {
+            signatures.add(task.join());
+        }
+        return new DocumentReport(file, bytes.length, List.copyOf(signatures), System.nanoTime() - start, null);
+    }
+
+    // Parse the document once and keep only what verification needs
+    private static List<SignedRange> extract(byte[] bytes) throws IOException {
+        try (PDDocument pdf = Loader.loadPDF(bytes)) {
+            List<SignedRange> ranges = new ArrayList<>();
+            for (PDSignature sig : pdf.getSignatureDictionaries()) {
+                // Raw /Contents string, hex decoded as it is stored
+                COSBase contents = sig.getCOSObject().getItem(COSName.CONTENTS);
+                ranges.add(new SignedRange(sig.getName(), sig.getSubFilter(), sig.getSignDate(), sig.getByteRange(),
+                        contents instanceof COSString string ? string.getBytes() : null));
+            }
+            return ranges;
+        }
+    }
+
+    private SignatureReport verifySignature(byte[] document, SignedRange range) {
+        int[] byteRange = range.byteRange();
+        boolean wholeDocument = false;
+        try {
+            if (range.contents() == null) {
+                throw new IOException("Signature dictionary is missing the /Contents entry.");
+            }
+            if (byteRange == null || byteRange.length != 4 || byteRange[0] != 0 || byteRange[1] < 0
+                    || byteRange[2] < byteRange[1] || byteRange[3] < 0
+                    || (long) byteRange[2] + byteRange[3] > document.length) {
+                throw new IOException("Invalid ByteRange: " + Arrays.toString(byteRange));
+            }
+            // Anything after the range was appended later, by another revision
+            wholeDocument = (long) byteRange[2] + byteRange[3] == document.length;
+
+            CMSSignedData cms = new CMSSignedData(new ByteRangeContent(document, byteRange), range.contents());
+            Date signedAt = range.signDate() != null ? range.signDate().getTime() : null;
+            List<SignerReport> signers = new ArrayList<>();
+            for (SignerInformation signer : cms.getSignerInfos().getSigners()) {
+                signers.add(verifySigner(cms, signer, signedAt));
+            }
+            return new SignatureReport(range.name(), range.subFilter(), range.signDate(), byteRange, wholeDocument,
+                    List.copyOf(signers), signers.isEmpty() ? "No signer in the CMS signature" : null);
+        } catch (Exception e) {
+            return new SignatureReport(range.name(), range.subFilter(), range.signDate(), byteRange, wholeDocument,
+                    List.of(), message(e));
+        }
+    }
+
+    private SignerReport verifySigner(CMSSignedData cms, SignerInformation signer, Date signedAt) {
+        String issuer = String.valueOf(signer.getSID().getIssuer());
+        BigInteger serial = signer.getSID().getSerialNumber();
+        Collection<X509CertificateHolder> matches = cms.getCertificates().getMatches(signer.getSID());
+        if (matches.isEmpty()) {
+            return new SignerReport(null, issuer, serial, false, false, "Signer certificate not in the signature");
+        }
+        X509CertificateHolder cert = matches.iterator().next();
+        try {
+            boolean valid = signer.verify(verifier(cert));
+            return new SignerReport(cert.getSubject().toString(), cert.getIssuer().toString(), cert.getSerialNumber(),
+                    valid, signedAt != null && cert.isValidOn(signedAt), null);
+        } catch (Exception e) {
+            return new SignerReport(cert.getSubject().toString(), cert.getIssuer().toString(), cert.getSerialNumber(),
+                    false, signedAt != null && cert.isValidOn(signedAt), message(e));
+        }
+    }
+
+    // Built once per certificate, invoices of one issuer share it
+    private SignerInformationVerifier verifier(X509CertificateHolder cert) throws Exception {
+        SignerInformationVerifier verifier = verifiers.get(cert);
+        if (verifier == null) {
+            verifier = new JcaSimpleSignerInfoVerifierBuilder().setProvider(BC).build(cert);
+            if (verifiers.size() >= VERIFIER_CACHE_SIZE) {
+                verifiers.clear();
+            }
+            verifiers.put(cert, verifier);
+        }
+        return verifier;
+    }
+
+    private static String message(Exception e) {
+        return e.getMessage() != null ? e.getMessage() : e.getClass().getSimpleName();
+    }
+
+    private static String quote(String value) {
+        if (value == null) {
+            return "null";
+        }
+        StringBuilder quoted = new StringBuilder(value.length() + 2).append('"');
+        for (char c : value.toCharArray()) {
+            switch (c) {
+                case '"' -> quoted.append("\\\"");
+                case '\\' -> quoted.append("\\\\");
+                case '\n' -> quoted.append("\\n");
+                case '\r' -> quoted.append("\\r");
+                case '\t' -> quoted.append("\\t");
+                default -> {
+                    if (c < 0x20) {
+                        quoted.append(String.format("\\u%04x", (int) c));
+                    } else {
+                        quoted.append(c);
+                    }
+                }
+            }
+        }
+        return quoted.append('"').toString();
+    }
+
+    @Override
+    public void close() {
+        pool.shutdown();
+    }
+
+    // Signed content written straight from the document bytes, the two ranges are never copied
+    private static class ByteRangeContent implements CMSTypedData {
+
+        private final byte[] document;
+        private final int[] byteRange;
+
+        ByteRangeContent(byte[] document, int[] byteRange) {
+            this.document = document;
+            this.byteRange = byteRange;
+        }
+
+        @Override
+        public ASN1ObjectIdentifier getContentType() {
+            return CMSObjectIdentifiers.data;
+        }
+
+        @Override
+        public Object getContent() {
+            byte[] content = new byte[byteRange[1] + byteRange[3]];
+            System.arraycopy(document, byteRange[0], content, 0, byteRange[1]);
+            System.arraycopy(document, byteRange[2], content, byteRange[1], byteRange[3]);
+            return content;
+        }
+
+        @Override
+        public void write(OutputStream out) throws IOException {
+            out.write(document, byteRange[0], byteRange[1]);
+            out.write(document, byteRange[2], byteRange[3]);
+        }
+    }
+}
@@ -40,10 +40,10 @@ public class PdfUtility {
             return;
         }
 
-        try (PdfMaster pdfCert = new PdfMaster(pdfFile)) {
+        try (PdfCert pdfCert = new PdfCert(pdfFile)) {
             dumpSignatures(pdfFile);
 
-            Certificate certificate = pdfCert.attachSignature("Rahul Sharma", "ImageInfo", "IN",
+            PdfCert.Certificate certificate = PdfCert.createCertificate("Rahul Sharma", "ImageInfo", "IN",
                     new java.sql.Date(System.currentTimeMillis() + 365L * 24 * 3600 * 1000L));
 
             pdfCert.attachCertificateWithNewSignature(certificate);
@@ -0,0 +1,106 @@
+package com.rahulsharmadev;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.apache.pdfbox.Loader;
+import org.apache.pdfbox.pdmodel.PDDocument;
+import org.apache.pdfbox.pdmodel.PDPage;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+class PdfBatchVerifierTest {
+
+    @TempDir
+    Path dir;
+
+    @Test
+    void reportsSignedTamperedUnsignedAndBrokenDocuments() throws Exception {
+        Path unsigned = dir.resolve("c-unsigned.pdf");
+        try (PDDocument pdf = new PDDocument()) {
+            pdf.addPage(new PDPage());
+            pdf.save(unsigned.toFile());
+        }
+        Path signed = dir.resolve("a-signed.pdf");
+        sign(unsigned, signed);
+        byte[] bytes = Files.readAllBytes(signed);
+
+        // Flip a byte of the binary comment under the header: still a PDF, no longer the signed bytes
+        Path tampered = dir.resolve("b-tampered.pdf");
+        byte[] changed = bytes.clone();
+        int comment = indexOf(changed, (byte) '\n') + 2;
+        changed[comment] ^= 1;
+        Files.write(tampered, changed);
+
+        Files.writeString(dir.resolve("d-broken.pdf"), "not a pdf");
+        Files.writeString(dir.resolve("ignored.txt"), "skipped, not a .pdf");
+
+        List<PdfBatchVerifier.DocumentReport> listened = new ArrayList<>();
+        List<PdfBatchVerifier.DocumentReport> reports;
+        try (PdfBatchVerifier verifier = new PdfBatchVerifier(2)) {
+            reports = verifier.verifyDirectory(dir, listened::add);
+        }
+        assertEquals(4, reports.size());
+        assertEquals(4, listened.size());
+
+        PdfBatchVerifier.DocumentReport good = reports.get(0);
+        assertEquals(signed, good.file());
+        assertNull(good.error());
+        assertTrue(good.isValid());
+        assertEquals(1, good.signatures().size());
+        PdfBatchVerifier.SignatureReport signature = good.signatures().get(0);
+        assertTrue(signature.coversWholeDocument());
+        assertTrue(comment < signature.byteRange()[1], "the flipped byte is signed");
+        assertEquals(1, signature.signers().size());
+        PdfBatchVerifier.SignerReport signer = signature.signers().get(0);
+        assertTrue(signer.valid());
+        assertTrue(signer.certificateValidAtSigning());
+        assertTrue(signer.subject().contains("CN=Invoice Signer"), signer.subject());
+        assertTrue(good.toJson().contains("\"valid\":true"));
+
+        PdfBatchVerifier.DocumentReport bad = reports.get(1);
+        assertNull(bad.error());
+        assertTrue(bad.isSigned());
+        assertFalse(bad.isValid());
+        assertFalse(bad.signatures().get(0).isValid());
+        assertFalse(bad.toJson().contains("\"valid\":true"));
+
+        PdfBatchVerifier.DocumentReport none = reports.get(2);
+        assertNull(none.error());
+        assertFalse(none.isSigned());
+        assertFalse(none.isValid());
+
+        PdfBatchVerifier.DocumentReport broken = reports.get(3);
+        assertNotNull(broken.error());
+        assertFalse(broken.isValid());
+    }
+
+    // Sign a copy with a fresh self-signed certificate, saved as an incremental update like signers do
+    private static void sign(Path source, Path target) throws Exception {
+        PdfCert.Certificate certificate = PdfCert.createCertificate("Invoice Signer", "Billing", "IN",
+                new java.sql.Date(System.currentTimeMillis() + 365L * 24 * 3600 * 1000L));
+        PDDocument pdf = Loader.loadPDF(source.toFile());
+        try (PdfCert cert = new PdfCert(pdf); OutputStream out = Files.newOutputStream(target)) {
+            cert.attachCertificateWithNewSignature(certificate);
+            pdf.saveIncremental(out);
+        }
+    }
+
+    private static int indexOf(byte[] bytes, byte value) {
+        for (int i = 0; i < bytes.length; i++) {
+            if (bytes[i] == value) {
+                return i;
+            }
+        }
+        return -1;
+    }
+}
@@ -4,6 +4,7 @@ import javax.crypto.Cipher;
 import javax.crypto.CipherInputStream;
 import javax.crypto.CipherOutputStream;
 import javax.crypto.KeyGenerator;
+import javax.crypto.Mac;
 import javax.crypto.SecretKey;
 import javax.crypto.spec.IvParameterSpec;
 import javax.crypto.spec.SecretKeySpec;
@@ -17,67 +18,129 @@ import java.security.cert.Certificate;
 
 public final class CypherUtility {
 
-	static {
-		// Try to register Bouncy Castle provider if available
-		try {
-			Class<?> bcProvider = Class.forName("org.bouncycastle.jce.provider.BouncyCastleProvider");
-			Security.addProvider((Provider) bcProvider.getDeclaredConstructor().newInstance());
-		} catch (Exception e) {
-			// BC not available, will use default providers
-			System.err.println("Warning: Bouncy Castle provider not available, using default JCA providers");
-		}
-	}
+	private static final SecureRandom RANDOM = new SecureRandom();
+
+	// Provider lookups are costly on the per-file path, so each thread keeps its own instances
+	private static final ThreadLocal<Cipher> RSA_CIPHER = threadLocal(
+			() -> RsProviders.cipher(RsConstraints.RSA_TRANSFORMATION));
+	private static final ThreadLocal<KeyGenerator> AES_KEY_GENERATOR = threadLocal(() -> {
+		KeyGenerator keyGenerator = KeyGenerator.getInstance(RsConstraints.AES_ALGORITHM);
+		keyGenerator.init(RsConstraints.AES_KEY_SIZE, RANDOM);
+		return keyGenerator;
+	});
+	private static final ThreadLocal<Mac> HMAC = threadLocal(() -> RsProviders.mac(RsConstraints.HMAC_ALGORITHM));
 
 	private CypherUtility() {
 		throw new UnsupportedOperationException("This is a utility class and cannot be instantiated");
 	}
 
+	@FunctionalInterface
+	private interface Factory<T> {
+		T create() throws GeneralSecurityException;
+	}
+
+	private static <T> ThreadLocal<T> threadLocal(Factory<T> factory) {
+		return ThreadLocal.withInitial(() -> {
+			try {
+				return factory.create();
+			} catch (GeneralSecurityException e) {
+				throw new IllegalStateException("Crypto algorithm not available", e);
+			}
+		});
+	}
+
 	/**
 	 * Generate a new AES key with the specified key size
 	 */
 	public static SecretKey generateAESKey() throws NoSuchAlgorithmException {
-		KeyGenerator keyGenerator = KeyGenerator.getInstance(RsConstraints.AES_ALGORITHM);
-		keyGenerator.init(RsConstraints.AES_KEY_SIZE);
-		return keyGenerator.generateKey();
+		return AES_KEY_GENERATOR.get().generateKey();
 	}
 
 	/**
 	 * Generate a random Initialization Vector (IV) for AES CBC mode
 	 */
 	public static IvParameterSpec generateIV() {
-		byte[] ivBytes = new byte[RsConstraints.IV_SIZE];
-		SecureRandom random = new SecureRandom();
-		random.nextBytes(ivBytes);
-		return new IvParameterSpec(ivBytes);
+		return new IvParameterSpec(randomBytes(RsConstraints.IV_SIZE));
+	}
+
+	public static byte[] randomBytes(int length) {
+		byte[] bytes = new byte[length];
+		RANDOM.nextBytes(bytes);
+		return bytes;
 	}
 
 	/**
 	 * Encrypt AES key using RSA public key
 	 */
 	public static byte[] encryptAESKeyWithRSA(SecretKey aesKey, PublicKey publicKey) throws Exception {
-		Cipher cipher = Cipher.getInstance(RsConstraints.RSA_TRANSFORMATION);
+		long start = System.nanoTime();
+		Cipher cipher = RSA_CIPHER.get();
 		cipher.init(Cipher.ENCRYPT_MODE, publicKey);
-		return cipher.doFinal(aesKey.getEncoded());
+		byte[] wrapped = cipher.doFinal(aesKey.getEncoded());
+		RsMetrics.RSA_WRAP.stop(start);
+		return wrapped;
 	}
 
 	/**
 	 * Decrypt AES key using RSA private key
 	 */
 	public static SecretKey decryptAESKeyWithRSA(byte[] encryptedKey, PrivateKey privateKey) throws Exception {
-		Cipher cipher = Cipher.getInstance(RsConstraints.RSA_TRANSFORMATION);
+		long start = System.nanoTime();
+		Cipher cipher = RSA_CIPHER.get();
 		cipher.init(Cipher.DECRYPT_MODE, privateKey);
 		byte[] decryptedKey = cipher.doFinal(encryptedKey);
+		RsMetrics.RSA_UNWRAP.stop(start);
 		return new SecretKeySpec(decryptedKey, RsConstraints.AES_ALGORITHM);
 	}
 
+	/**
+	 * HMAC-SHA256 of {@code data}, using a per-thread Mac instance
+	 */
+	public static byte[] hmac(SecretKey key, byte[]... data) throws GeneralSecurityException {
+		Mac mac = HMAC.get();
+		mac.init(key);
+		for (byte[] part : data) {
+			mac.update(part);
+		}
+		return mac.doFinal();
+	}
+
+	/**
+	 * Derive an AES key with HKDF-SHA256 (RFC 5869) from a key, a salt and a
+	 * context label
+	 */
+	public static SecretKey deriveKey(SecretKey inputKey, byte[] salt, byte[] info) throws GeneralSecurityException {
+		// Extract: PRK = HMAC(salt, IKM)
+		byte[] prk = hmac(new SecretKeySpec(salt, RsConstraints.HMAC_ALGORITHM), inputKey.getEncoded());
+		// Expand: one HMAC block covers a 256 bit key, T(1) = HMAC(PRK, info | 0x01)
+		byte[] okm = hmac(new SecretKeySpec(prk, RsConstraints.HMAC_ALGORITHM), info, new byte[] { 1 });
+		return new SecretKeySpec(okm, 0, RsConstraints.AES_KEY_SIZE / 8, RsConstraints.AES_ALGORITHM);
+	}
+
+	/**
+	 * Create AES cipher initialized for encryption
+	 */
+	public static Cipher createEncryptCipher(SecretKey aesKey, IvParameterSpec iv) throws Exception {
+		Cipher cipher = RsProviders.cipher(RsConstraints.AES_TRANSFORMATION);
+		cipher.init(Cipher.ENCRYPT_MODE, aesKey, iv);
+		return cipher;
+	}
+
+	/**
+	 * Create AES cipher initialized for decryption
+	 */
+	public static Cipher createDecryptCipher(SecretKey aesKey, IvParameterSpec iv) throws Exception {
+		Cipher cipher = RsProviders.cipher(RsConstraints.AES_TRANSFORMATION);
+		cipher.init(Cipher.DECRYPT_MODE, aesKey, iv);
+		return cipher;
+	}
+
 	/**
 	 * Create cipher output stream for AES encryption
 	 */
 	public static CipherOutputStream createEncryptStream(OutputStream out, SecretKey aesKey, IvParameterSpec iv)
 			throws Exception {
-		Cipher cipher = Cipher.getInstance(RsConstraints.AES_TRANSFORMATION);
-		cipher.init(Cipher.ENCRYPT_MODE, aesKey, iv);
-		return new CipherOutputStream(out, cipher);
+		return new CipherOutputStream(out, createEncryptCipher(aesKey, iv));
 	}
 
 	/**
@@ -85,9 +148,7 @@ public final class CypherUtility {
 	 */
 	public static CipherInputStream createDecryptStream(InputStream in, SecretKey aesKey, IvParameterSpec iv)
 			throws Exception {
-		Cipher cipher = Cipher.getInstance(RsConstraints.AES_TRANSFORMATION);
-		cipher.init(Cipher.DECRYPT_MODE, aesKey, iv);
-		return new CipherInputStream(in, cipher);
+		return new CipherInputStream(in, createDecryptCipher(aesKey, iv));
 	}
 
 	/**
@@ -169,7 +230,9 @@ public final class CypherUtility {
 	}
 
 	/**
-	 * Generate a new PKCS12 keystore with RSA key pair using keytool command
+	 * Generate a new PKCS12 keystore with an RSA key pair and a self-signed
+	 * certificate, in process rather than through keytool. The keystore is
+	 * written to a temporary file first, so a crash never leaves a truncated one.
 	 * 
 	 * @param keystorePath Path where keystore will be saved
 	 * @param password     Password for the keystore
@@ -178,42 +241,26 @@ public final class CypherUtility {
 	 */
 	public static boolean generateKeyStore(java.nio.file.Path keystorePath, char[] password, String alias) {
 		try {
-			String javaHome = System.getProperty("java.home");
-			java.nio.file.Path keytoolPath = java.nio.file.Path.of(javaHome, "bin", "keytool");
-
-			java.util.List<String> command = java.util.List.of(
-					keytoolPath.toString(),
-					"-genkeypair",
-					"-alias", alias,
-					"-keyalg", "RSA",
-					"-keysize", "2048",
-					"-keystore", keystorePath.toAbsolutePath().toString(),
-					"-storetype", "PKCS12",
-					"-storepass", new String(password),
-					"-keypass", new String(password),
-					"-dname", "CN=" + alias + ", O=RSLock, C=US",
-					"-validity", "3650");
-
-			ProcessBuilder pb = new ProcessBuilder(command);
-			pb.redirectErrorStream(true);
-
-			Process process = pb.start();
-
-			// Read output from keytool
-			try (java.io.BufferedReader reader = new java.io.BufferedReader(
-					new java.io.InputStreamReader(process.getInputStream()))) {
-				String line;
-				while ((line = reader.readLine()) != null) {
-					System.out.println("[keytool] " + line);
+			KeyPairGenerator generator = KeyPairGenerator.getInstance(RsConstraints.RSA_ALGORITHM);
+			generator.initialize(RsConstraints.RSA_KEY_SIZE, RANDOM);
+			KeyPair keyPair = generator.generateKeyPair();
+			Certificate certificate = RsCertificates.selfSigned(keyPair, alias, RsConstraints.CERTIFICATE_VALIDITY_DAYS);
+
+			KeyStore keyStore = KeyStore.getInstance(RsConstraints.KEYSTORE_TYPE);
+			keyStore.load(null, null);
+			keyStore.setKeyEntry(alias, keyPair.getPrivate(), password, new Certificate[] { certificate });
+
+			java.nio.file.Path target = keystorePath.toAbsolutePath();
+			java.nio.file.Path temp = target.resolveSibling(target.getFileName() + ".tmp");
+			try {
+				try (OutputStream out = java.nio.file.Files.newOutputStream(temp)) {
+					keyStore.store(out, password);
 				}
+				java.nio.file.Files.move(temp, target, java.nio.file.StandardCopyOption.ATOMIC_MOVE);
+			} finally {
+				// Gone after a successful move, only a failed store or move leaves it
+				java.nio.file.Files.deleteIfExists(temp);
 			}
-
-			int exitCode = process.waitFor();
-			if (exitCode != 0) {
-				System.err.println("Keytool failed with exit code " + exitCode);
-				return false;
-			}
-
 			return true;
 		} catch (Exception e) {
 			System.err.println("Failed to generate keystore: " + e.getMessage());
@@ -222,4 +269,30 @@ public final class CypherUtility {
 		}
 	}
 
+	/**
+	 * Register the Bouncy Castle provider if it is on the module or class path.
+	 * Nothing needs it by default, so this runs on first call rather than on
+	 * startup.
+	 *
+	 * @return whether the provider is registered
+	 */
+	public static boolean registerBouncyCastle() {
+		return BouncyCastle.REGISTERED;
+	}
+
+	private static final class BouncyCastle {
+		static final boolean REGISTERED = register();
+
+		private static boolean register() {
+			try {
+				Class<?> bcProvider = Class.forName("org.bouncycastle.jce.provider.BouncyCastleProvider");
+				Security.addProvider((Provider) bcProvider.getDeclaredConstructor().newInstance());
+				return true;
+			} catch (Exception e) {
+				// BC not available, will use default providers
+				return false;
+			}
+		}
+	}
+
 }
@@ -0,0 +1,168 @@
+package com.rslock.common;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.logging.ErrorManager;
+import java.util.logging.Handler;
+import java.util.logging.Level;
+import java.util.logging.LogRecord;
+
+/**
+ * Handler that queues records into a bounded ring buffer and hands them to
+ * the real handlers from a single writer thread.
+ *
+ * Workers only pay for an offer into the buffer, formatting and I/O happen on
+ * the writer, which drains the buffer in batches and flushes once per batch.
+ * When the buffer is full the {@link OverflowPolicy} decides: records below
+ * {@link Level#WARNING} are dropped and counted by default, warnings and
+ * errors always wait for room. The number of dropped records is logged as soon
+ * as the writer catches up.
+ *
+ * The delegates are only ever called from the writer thread, so they should
+ * not flush on every record themselves (plain {@link java.util.logging.StreamHandler}s
+ * rather than {@code FileHandler} or {@code ConsoleHandler}).
+ */
+public final class RsAsyncHandler extends Handler {
+
+	/** What a worker does when the buffer is full */
+	public enum OverflowPolicy {
+		DROP, // drop records below WARNING, never blocks a worker on routine logs
+		BLOCK // back pressure, every record waits for room
+	}
+
+	private static final LogRecord CLOSE = new LogRecord(Level.OFF, "close");
+
+	private final List<Handler> delegates;
+	private final OverflowPolicy policy;
+	private final BlockingQueue<LogRecord> buffer;
+	private final LongAdder dropped = new LongAdder();
+	private final LongAdder queued = new LongAdder();
+	private volatile long written;
+	private final Thread writer;
+	private volatile boolean closed;
+
+	public RsAsyncHandler(List<Handler> delegates, int capacity, OverflowPolicy policy) {
+		this.delegates = List.copyOf(delegates);
+		this.policy = policy;
+		this.buffer = new ArrayBlockingQueue<>(capacity);
+		this.writer = RsBatch.threadFactory("rslock-log").newThread(this::drain);
+		writer.start();
+	}
+
+	@Override
+	public void publish(LogRecord record) {
+		if (closed || !isLoggable(record)) {
+			return;
+		}
+		// The writer thread cannot find the calling method, name the logger instead of walking the stack
+		record.setSourceClassName(record.getLoggerName());
+
+		if (buffer.offer(record)) {
+			queued.increment();
+			return;
+		}
+		if (policy == OverflowPolicy.DROP && record.getLevel().intValue() < Level.WARNING.intValue()) {
+			dropped.increment();
+			return;
+		}
+		try {
+			buffer.put(record);
+			queued.increment();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			dropped.increment();
+		}
+	}
+
+	/**
+	 * Records dropped so far because the buffer was full
+	 */
+	public long getDropped() {
+		return dropped.sum();
+	}
+
+	/**
+	 * Wait until the records queued so far were written and flushed
+	 */
+	@Override
+	public void flush() {
+		long target = queued.sum();
+		long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(5);
+		while (written < target && writer.isAlive() && System.nanoTime() < deadline) {
+			Thread.yield();
+		}
+	}
+
+	/**
+	 * Write what is still queued, then close the delegates
+	 */
+	@Override
+	public void close() {
+		if (closed) {
+			return;
+		}
+		closed = true;
+		try {
+			buffer.put(CLOSE);
+			writer.join(TimeUnit.SECONDS.toMillis(5));
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+		for (Handler handler : delegates) {
+			handler.close();
+		}
+	}
+
+	private void drain() {
+		List<LogRecord> batch = new ArrayList<>(RsConstraints.LOG_BATCH_SIZE);
+		long reported = 0;
+		try {
+			while (true) {
+				batch.add(buffer.take());
+				buffer.drainTo(batch, RsConstraints.LOG_BATCH_SIZE - 1);
+
+				boolean closing = false;
+				int count = 0;
+				for (LogRecord record : batch) {
+					if (record == CLOSE) {
+						closing = true;
+						continue;
+					}
+					write(record);
+					count++;
+				}
+				batch.clear();
+
+				long lost = dropped.sum();
+				if (lost > reported) {
+					write(new LogRecord(Level.WARNING, (lost - reported) + " log record(s) dropped, logging fell behind"));
+					reported = lost;
+				}
+				for (Handler handler : delegates) {
+					handler.flush();
+				}
+				written += count;
+				if (closing) {
+					return;
+				}
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	private void write(LogRecord record) {
+		for (Handler handler : delegates) {
+			try {
+				handler.publish(record);
+			} catch (RuntimeException e) {
+				reportError("Log handler failed", e, ErrorManager.WRITE_FAILURE);
+			}
+		}
+	}
+
+}
@@ -0,0 +1,275 @@
+package com.rslock.common;
+
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinWorkerThread;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.ToLongFunction;
+import java.util.stream.Stream;
+
+/**
+ * Runs a streamed source tree on a work-stealing pool.
+ *
+ * Small files are grouped into one task each, and big files fork their
+ * segments into the same pool, where idle workers steal them. At most
+ * {@code parallelism * 4} tasks are in flight at once, so very large batches
+ * do not queue every task up front. Given the cost of each file, the files in
+ * flight are also kept within the {@link RsMemoryBudget}, walking no further
+ * while they do not fit.
+ *
+ * A failing file never stops the batch: its error, or the error walking to
+ * it, is captured in the {@link Result} and the remaining files keep going.
+ */
+public final class RsBatch {
+
+	private RsBatch() {
+		throw new UnsupportedOperationException("This is a utility class and cannot be instantiated");
+	}
+
+	/** Returned by a task that had nothing to do for its file */
+	public static final long SKIPPED = -1;
+
+	/**
+	 * Work done for a single file of a walked source tree, returns the number
+	 * of source bytes processed or {@link #SKIPPED}
+	 */
+	@FunctionalInterface
+	public interface SourceTask {
+		long process(RsFileWalker.Source source) throws Exception;
+	}
+
+	/**
+	 * Called on the submitting thread every time a file finishes
+	 */
+	@FunctionalInterface
+	public interface Listener {
+		void onComplete(Result result, int completed, int total);
+	}
+
+	/**
+	 * Outcome of one file
+	 */
+	public record Result(Path file, long bytes, long nanos, Exception error) {
+		public boolean isSuccess() {
+			return error == null;
+		}
+
+		public boolean isSkipped() {
+			return error == null && bytes == SKIPPED;
+		}
+	}
+
+	/**
+	 * Aggregated outcome of a whole batch
+	 */
+	public record Summary(List<Result> results, long elapsedNanos) {
+
+		public int total() {
+			return results.size();
+		}
+
+		public int succeeded() {
+			return (int) results.stream().filter(Result::isSuccess).count();
+		}
+
+		public int skipped() {
+			return (int) results.stream().filter(Result::isSkipped).count();
+		}
+
+		public List<Result> failures() {
+			return results.stream().filter(r -> !r.isSuccess()).toList();
+		}
+
+		public long totalBytes() {
+			return results.stream().filter(r -> r.isSuccess() && !r.isSkipped()).mapToLong(Result::bytes).sum();
+		}
+
+		public double throughputMBps() {
+			return elapsedNanos <= 0 ? 0 : (totalBytes() / (1024.0 * 1024.0)) / (elapsedNanos / 1e9);
+		}
+	}
+
+	/**
+	 * Pool for {@link #schedule}, pass it on to the file task so the segments
+	 * it forks are stolen by idle workers
+	 */
+	public static ForkJoinPool workStealingPool(int parallelism) {
+		AtomicInteger counter = new AtomicInteger();
+		return new ForkJoinPool(Math.max(1, parallelism), pool -> {
+			ForkJoinWorkerThread thread = ForkJoinPool.defaultForkJoinWorkerThreadFactory.newThread(pool);
+			thread.setName("rslock-worker-" + counter.incrementAndGet());
+			return thread;
+		}, null, false);
+	}
+
+	/**
+	 * Process files as the walker finds them. Files up to
+	 * {@link RsConstraints#SMALL_FILE_SIZE} are grouped into tasks of
+	 * {@link RsConstraints#SMALL_BATCH_FILES} files or
+	 * {@link RsConstraints#SMALL_BATCH_BYTES}, every bigger file is a task of
+	 * its own. Since the walk is streamed, the total handed to the listener is
+	 * the number of files found so far.
+	 */
+	public static Summary schedule(Stream<RsFileWalker.Source> sources, ForkJoinPool pool, SourceTask task,
+			Listener listener) throws InterruptedException {
+		return schedule(sources, pool, task, null, listener);
+	}
+
+	/**
+	 * Process files as the walker finds them, each task starting only once
+	 * the {@link RsMemoryBudget} admits the memory its files cost
+	 *
+	 * @param cost memory a file needs while it is processed, null to admit
+	 *             every file
+	 */
+	public static Summary schedule(Stream<RsFileWalker.Source> sources, ForkJoinPool pool, SourceTask task,
+			ToLongFunction<RsFileWalker.Source> cost, Listener listener) throws InterruptedException {
+		long start = System.nanoTime();
+		Semaphore slots = new Semaphore(pool.getParallelism() * 4);
+		BlockingQueue<Result> done = new LinkedBlockingQueue<>();
+		List<Result> results = new ArrayList<>();
+
+		int found = 0;
+		List<RsFileWalker.Source> group = new ArrayList<>();
+		long groupBytes = 0;
+
+		Iterator<RsFileWalker.Source> walker = sources.iterator();
+		while (walker.hasNext()) {
+			RsFileWalker.Source source = walker.next();
+			found++;
+			if (source.error() != null) {
+				// The walk could not reach this file, it fails without a task
+				RsMetrics.FILES_FAILED.increment();
+				report(new Result(source.file(), 0, 0, source.error()), results, found, listener);
+			} else if (source.size() > RsConstraints.SMALL_FILE_SIZE) {
+				submit(List.of(source), pool, task, cost, slots, done, results, found, listener);
+			} else {
+				group.add(source);
+				groupBytes += source.size();
+				if (group.size() >= RsConstraints.SMALL_BATCH_FILES || groupBytes >= RsConstraints.SMALL_BATCH_BYTES) {
+					submit(group, pool, task, cost, slots, done, results, found, listener);
+					group = new ArrayList<>();
+					groupBytes = 0;
+				}
+			}
+			// Report what finished meanwhile, without waiting
+			for (Result result = done.poll(); result != null; result = done.poll()) {
+				report(result, results, found, listener);
+			}
+		}
+		if (!group.isEmpty()) {
+			submit(group, pool, task, cost, slots, done, results, found, listener);
+		}
+
+		while (results.size() < found) {
+			report(done.take(), results, found, listener);
+		}
+		return new Summary(List.copyOf(results), System.nanoTime() - start);
+	}
+
+	private static void submit(List<RsFileWalker.Source> group, ForkJoinPool pool, SourceTask task,
+			ToLongFunction<RsFileWalker.Source> cost, Semaphore slots, BlockingQueue<Result> done, List<Result> results,
+			int found, Listener listener) throws InterruptedException {
+		// Wait for a free slot, reporting finished files meanwhile
+		while (!slots.tryAcquire()) {
+			report(done.take(), results, found, listener);
+		}
+		RsMemoryBudget.Permit permit = cost != null ? admit(group, cost, pool, slots, done, results, found, listener)
+				: null;
+		pool.execute(() -> {
+			List<Result> groupResults = new ArrayList<>(group.size());
+			try {
+				for (RsFileWalker.Source source : group) {
+					groupResults.add(execute(source, task));
+				}
+			} catch (Throwable t) {
+				// An Error such as running out of direct buffer memory fails the files left in the group
+				ExecutionException error = new ExecutionException(t);
+				for (int i = groupResults.size(); i < group.size(); i++) {
+					RsMetrics.FILES_FAILED.increment();
+					groupResults.add(new Result(group.get(i).file(), 0, 0, error));
+				}
+			} finally {
+				// Free the budget and the slot first, a submitter blocked on results then always wakes up
+				if (permit != null)
+					permit.close();
+				slots.release();
+				done.addAll(groupResults);
+			}
+		});
+	}
+
+	/**
+	 * Wait until the budget admits a group holding one slot. While groups of
+	 * this batch run, one of them finishing is what frees the room, so
+	 * finished files are reported meanwhile; otherwise only other batches of
+	 * the process hold the budget.
+	 */
+	private static RsMemoryBudget.Permit admit(List<RsFileWalker.Source> group,
+			ToLongFunction<RsFileWalker.Source> cost, ForkJoinPool pool, Semaphore slots, BlockingQueue<Result> done,
+			List<Result> results, int found, Listener listener) throws InterruptedException {
+		long bytes = group.stream().mapToLong(cost).sum();
+		RsMemoryBudget.Permit permit = RsMemoryBudget.tryAdmit(bytes, group.size());
+		if (permit != null) {
+			return permit;
+		}
+		long start = System.nanoTime();
+		// Slots left free when this group is the only one of the batch
+		int alone = pool.getParallelism() * 4 - 1;
+		while (permit == null) {
+			if (slots.availablePermits() < alone) {
+				report(done.take(), results, found, listener);
+				permit = RsMemoryBudget.tryAdmit(bytes, group.size());
+			} else {
+				permit = RsMemoryBudget.admit(bytes, group.size());
+			}
+		}
+		RsMetrics.MEMORY_WAIT.stop(start);
+		return permit;
+	}
+
+	private static void report(Result result, List<Result> results, int found, Listener listener) {
+		results.add(result);
+		if (listener != null)
+			listener.onComplete(result, results.size(), found);
+	}
+
+	private static Result execute(RsFileWalker.Source source, SourceTask task) {
+		Path file = source.file();
+		long begin = System.nanoTime();
+		try {
+			long bytes = task.process(source);
+			if (bytes != SKIPPED) {
+				RsMetrics.FILE.stop(begin);
+				RsMetrics.FILES.increment();
+				RsMetrics.FILE_SIZE.record(bytes);
+			}
+			return new Result(file, bytes, System.nanoTime() - begin, null);
+		} catch (Exception e) {
+			RsMetrics.FILES_FAILED.increment();
+			return new Result(file, 0, System.nanoTime() - begin, e);
+		}
+	}
+
+	/**
+	 * Daemon threads with a readable name, so a stuck worker never keeps the JVM
+	 * alive and shows up clearly in thread dumps
+	 */
+	public static ThreadFactory threadFactory(String prefix) {
+		AtomicInteger counter = new AtomicInteger();
+		return runnable -> {
+			Thread thread = new Thread(runnable, prefix + "-" + counter.incrementAndGet());
+			thread.setDaemon(true);
+			return thread;
+		};
+	}
+
+}
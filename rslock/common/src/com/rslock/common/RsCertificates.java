@@ -0,0 +1,186 @@
+package com.rslock.common;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.math.BigInteger;
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.security.KeyPair;
+import java.security.MessageDigest;
+import java.security.Signature;
+import java.security.cert.CertificateFactory;
+import java.security.cert.X509Certificate;
+import java.time.ZoneOffset;
+import java.time.ZonedDateTime;
+import java.time.format.DateTimeFormatter;
+import java.util.Arrays;
+
+/**
+ * Self-signed X.509 certificates built in process, so a new keystore does not
+ * need a keytool child process.
+ *
+ * The JDK has no public API to create certificates, the DER encoding of a
+ * version 3 certificate is small enough to write by hand: serial, issuer and
+ * subject names, validity, the public key and the subject key identifier
+ * extension keytool adds, signed with SHA256withRSA. The result is parsed back
+ * through {@link CertificateFactory}, which rejects any encoding mistake.
+ */
+final class RsCertificates {
+
+	private static final String SIGNATURE_ALGORITHM = "SHA256withRSA";
+
+	// DER tags
+	private static final int INTEGER = 0x02;
+	private static final int BIT_STRING = 0x03;
+	private static final int NULL = 0x05;
+	private static final int OCTET_STRING = 0x04;
+	private static final int OID = 0x06;
+	private static final int UTF8_STRING = 0x0C;
+	private static final int PRINTABLE_STRING = 0x13;
+	private static final int UTC_TIME = 0x17;
+	private static final int GENERALIZED_TIME = 0x18;
+	private static final int SEQUENCE = 0x30;
+	private static final int SET = 0x31;
+	private static final int VERSION = 0xA0; // [0] EXPLICIT
+	private static final int EXTENSIONS = 0xA3; // [3] EXPLICIT
+
+	// Version field value of a version 3 certificate
+	private static final byte V3 = 2;
+
+	// Encoded object identifier contents
+	private static final byte[] SHA256_WITH_RSA = { 0x2A, (byte) 0x86, 0x48, (byte) 0x86, (byte) 0xF7, 0x0D, 0x01, 0x01,
+			0x0B }; // 1.2.840.113549.1.1.11
+	private static final byte[] COMMON_NAME = { 0x55, 0x04, 0x03 }; // 2.5.4.3
+	private static final byte[] ORGANIZATION = { 0x55, 0x04, 0x0A }; // 2.5.4.10
+	private static final byte[] COUNTRY = { 0x55, 0x04, 0x06 }; // 2.5.4.6
+	private static final byte[] SUBJECT_KEY_IDENTIFIER = { 0x55, 0x1D, 0x0E }; // 2.5.29.14
+
+	private static final DateTimeFormatter UTC_FORMAT = DateTimeFormatter.ofPattern("yyMMddHHmmss'Z'");
+	private static final DateTimeFormatter GENERALIZED_FORMAT = DateTimeFormatter.ofPattern("yyyyMMddHHmmss'Z'");
+
+	private RsCertificates() {
+		throw new UnsupportedOperationException("This is a utility class and cannot be instantiated");
+	}
+
+	/**
+	 * Certificate for {@code keyPair} with the same name keytool is given by
+	 * the encryptor: {@code CN=<commonName>, O=RSLock, C=US}
+	 */
+	static X509Certificate selfSigned(KeyPair keyPair, String commonName, int validityDays)
+			throws GeneralSecurityException {
+		byte[] algorithm = tlv(SEQUENCE, tlv(OID, SHA256_WITH_RSA), tlv(NULL));
+		byte[] name = tlv(SEQUENCE,
+				tlv(SET, tlv(SEQUENCE, tlv(OID, COUNTRY), tlv(PRINTABLE_STRING, ascii("US")))),
+				tlv(SET, tlv(SEQUENCE, tlv(OID, ORGANIZATION), tlv(UTF8_STRING, utf8("RSLock")))),
+				tlv(SET, tlv(SEQUENCE, tlv(OID, COMMON_NAME), tlv(UTF8_STRING, utf8(commonName)))));
+
+		ZonedDateTime notBefore = ZonedDateTime.now(ZoneOffset.UTC).withNano(0);
+		byte[] validity = tlv(SEQUENCE, time(notBefore), time(notBefore.plusDays(validityDays)));
+
+		// Positive serial of 63 random bits, like keytool
+		BigInteger serial = new BigInteger(1, CypherUtility.randomBytes(8)).shiftRight(1);
+
+		byte[] publicKey = keyPair.getPublic().getEncoded();
+		byte[] extensions = tlv(EXTENSIONS, tlv(SEQUENCE,
+				tlv(SEQUENCE, tlv(OID, SUBJECT_KEY_IDENTIFIER),
+						tlv(OCTET_STRING, tlv(OCTET_STRING, keyIdentifier(publicKey))))));
+
+		byte[] tbs = tlv(SEQUENCE,
+				tlv(VERSION, tlv(INTEGER, new byte[] { V3 })),
+				tlv(INTEGER, serial.toByteArray()),
+				algorithm,
+				name,
+				validity,
+				name,
+				publicKey,
+				extensions);
+
+		Signature signer = Signature.getInstance(SIGNATURE_ALGORITHM);
+		signer.initSign(keyPair.getPrivate());
+		signer.update(tbs);
+		byte[] signature = signer.sign();
+
+		// Bit strings start with the number of unused bits
+		byte[] signatureBits = new byte[signature.length + 1];
+		System.arraycopy(signature, 0, signatureBits, 1, signature.length);
+
+		byte[] certificate = tlv(SEQUENCE, tbs, algorithm, tlv(BIT_STRING, signatureBits));
+		return (X509Certificate) CertificateFactory.getInstance("X.509")
+				.generateCertificate(new ByteArrayInputStream(certificate));
+	}
+
+	/**
+	 * SHA-1 of the subject public key bits, the key identifier of RFC 5280
+	 * 4.2.1.2 method (1) that keytool uses too. The bits are the BIT STRING
+	 * following the algorithm in the SubjectPublicKeyInfo sequence.
+	 */
+	private static byte[] keyIdentifier(byte[] subjectPublicKeyInfo) throws GeneralSecurityException {
+		int algorithm = contentOffset(subjectPublicKeyInfo, 0);
+		int bits = contentOffset(subjectPublicKeyInfo, algorithm) + contentLength(subjectPublicKeyInfo, algorithm);
+		int start = contentOffset(subjectPublicKeyInfo, bits);
+		// Skip the unused bits count
+		return MessageDigest.getInstance("SHA-1").digest(
+				Arrays.copyOfRange(subjectPublicKeyInfo, start + 1, start + contentLength(subjectPublicKeyInfo, bits)));
+	}
+
+	// Offset of the contents of the DER element starting at offset
+	private static int contentOffset(byte[] der, int offset) {
+		int length = der[offset + 1] & 0xFF;
+		return offset + 2 + (length < 0x80 ? 0 : length & 0x7F);
+	}
+
+	// Length of the contents of the DER element starting at offset
+	private static int contentLength(byte[] der, int offset) {
+		int length = der[offset + 1] & 0xFF;
+		if (length < 0x80) {
+			return length;
+		}
+		int value = 0;
+		for (int i = 0; i < (length & 0x7F); i++) {
+			value = (value << 8) | (der[offset + 2 + i] & 0xFF);
+		}
+		return value;
+	}
+
+	// UTCTime up to 2049, GeneralizedTime after that (RFC 5280 4.1.2.5)
+	private static byte[] time(ZonedDateTime time) {
+		if (time.getYear() < 2050) {
+			return tlv(UTC_TIME, ascii(UTC_FORMAT.format(time)));
+		}
+		return tlv(GENERALIZED_TIME, ascii(GENERALIZED_FORMAT.format(time)));
+	}
+
+	/**
+	 * Tag, definite length and the concatenated contents
+	 */
+	private static byte[] tlv(int tag, byte[]... contents) {
+		int length = 0;
+		for (byte[] content : contents) {
+			length += content.length;
+		}
+		ByteArrayOutputStream out = new ByteArrayOutputStream(length + 6);
+		out.write(tag);
+		if (length < 0x80) {
+			out.write(length);
+		} else {
+			int bytes = (32 - Integer.numberOfLeadingZeros(length) + 7) / 8;
+			out.write(0x80 | bytes);
+			for (int i = bytes - 1; i >= 0; i--) {
+				out.write(length >>> (8 * i));
+			}
+		}
+		for (byte[] content : contents) {
+			out.writeBytes(content);
+		}
+		return out.toByteArray();
+	}
+
+	private static byte[] ascii(String value) {
+		return value.getBytes(StandardCharsets.US_ASCII);
+	}
+
+	private static byte[] utf8(String value) {
+		return value.getBytes(StandardCharsets.UTF_8);
+	}
+
+}
@@ -0,0 +1,169 @@
+package com.rslock.common;
+
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.function.LongConsumer;
+
+import javax.crypto.Cipher;
+
+/**
+ * NIO engine that streams a region of one file channel through a cipher into
+ * another channel.
+ *
+ * Data moves through direct buffers with {@link Cipher#update(ByteBuffer, ByteBuffer)},
+ * so there is no stream layering and no per-chunk heap allocation. Each thread
+ * keeps its own pair of buffers and reuses them across files. Inputs of
+ * {@link RsConstraints#PIPELINE_THRESHOLD} and more go through an
+ * {@link RsPipeline}, so reads and writes overlap the cipher. Without it,
+ * inputs larger than {@link RsConstraints#MAP_THRESHOLD} are memory mapped in
+ * windows and fed to the cipher straight from the page cache.
+ */
+public final class RsChannelCipher {
+
+	// Room for the padding block a CBC cipher may add or hold back
+	private static final int CIPHER_SLACK = 32;
+
+	// Input of the final cipher call, never consumed so it is safely shared between threads
+	private static final ByteBuffer EMPTY = ByteBuffer.allocate(0).asReadOnlyBuffer();
+
+	private static final ThreadLocal<ByteBuffer[]> BUFFERS = ThreadLocal.withInitial(() -> new ByteBuffer[3]);
+
+	private RsChannelCipher() {
+		throw new UnsupportedOperationException("This is a utility class and cannot be instantiated");
+	}
+
+	/**
+	 * Pick a buffer size that fits the file: small files do not pay for a large
+	 * buffer, large files get fewer system calls
+	 */
+	public static int bufferSizeFor(long fileSize) {
+		if (fileSize <= 64 * 1024) {
+			return RsConstraints.DEFAULT_BUFFER_SIZE;
+		}
+		if (fileSize <= 16 * 1024 * 1024) {
+			return 256 * 1024;
+		}
+		return RsConstraints.MAX_BUFFER_SIZE;
+	}
+
+	/**
+	 * Pass {@code length} bytes starting at {@code position} through the cipher
+	 * and write the result at {@code outPosition}. The cipher must already be
+	 * initialized, {@code doFinal} is applied at the end.
+	 *
+	 * @param out null to discard the result, when only the cipher's checks matter
+	 * @param progress optional, receives the number of input bytes consumed so far
+	 * @return number of bytes written to {@code out}
+	 */
+	public static long transform(FileChannel in, long position, long length, Cipher cipher, FileChannel out,
+			long outPosition, LongConsumer progress) throws Exception {
+		if (RsConstraints.PIPELINE_ENABLED && length >= RsConstraints.PIPELINE_THRESHOLD) {
+			return pipelined(in, position, length, cipher, out, outPosition, progress);
+		}
+		int bufferSize = bufferSizeFor(length);
+		ByteBuffer output = threadBuffer(1, bufferSize + CIPHER_SLACK);
+		long written = 0;
+		long consumed = 0;
+
+		if (length >= RsConstraints.MAP_THRESHOLD) {
+			// Large input: let the cipher read straight from mapped windows
+			while (consumed < length) {
+				long windowSize = Math.min(RsConstraints.MAP_WINDOW_SIZE, length - consumed);
+				MappedByteBuffer window = in.map(FileChannel.MapMode.READ_ONLY, position + consumed, windowSize);
+				// Page faults are taken inside the cipher, only the volume is known here
+				RsMetrics.BYTES_IN.add(windowSize);
+
+				while (window.position() < window.capacity()) {
+					window.limit(Math.min(window.capacity(), window.position() + bufferSize));
+					written += update(cipher, window, output, out, outPosition + written);
+					if (progress != null)
+						progress.accept(consumed + window.position());
+				}
+				consumed += windowSize;
+			}
+		} else {
+			ByteBuffer input = threadBuffer(0, bufferSize);
+			while (consumed < length) {
+				input.clear().limit((int) Math.min(bufferSize, length - consumed));
+				consumed += Utility.readFully(in, position + consumed, input);
+				input.flip();
+				written += update(cipher, input, output, out, outPosition + written);
+				if (progress != null)
+					progress.accept(consumed);
+			}
+		}
+
+		output.clear();
+		long start = System.nanoTime();
+		cipher.doFinal(EMPTY, output);
+		RsMetrics.CIPHER.stop(start);
+		output.flip();
+		int tail = output.remaining();
+		if (out != null)
+			Utility.writeFully(out, output, outPosition + written);
+		return written + tail;
+	}
+
+	/**
+	 * Reader thread, cipher on the calling thread in order, writer thread
+	 */
+	private static long pipelined(FileChannel in, long position, long length, Cipher cipher, FileChannel out,
+			long outPosition, LongConsumer progress) throws Exception {
+		int bufferSize = RsConstraints.MAX_BUFFER_SIZE;
+		int chunks = (int) ((length + bufferSize - 1) / bufferSize);
+		long[] written = { 0 }; // only touched by the cipher stage
+
+		RsPipeline.run(chunks, bufferSize, bufferSize + CIPHER_SLACK, RsConstraints.PIPELINE_DEPTH,
+				(chunk, buffer) -> {
+					long offset = (long) chunk * bufferSize;
+					buffer.limit((int) Math.min(bufferSize, length - offset));
+					Utility.readFully(in, position + offset, buffer);
+				},
+				(chunk, input, output) -> {
+					long start = System.nanoTime();
+					RsMetrics.CIPHER_BYTES.add(input.remaining());
+					if (chunk == chunks - 1) {
+						cipher.doFinal(input, output);
+					} else {
+						cipher.update(input, output);
+					}
+					RsMetrics.CIPHER.stop(start);
+					if (progress != null)
+						progress.accept(Math.min(length, (long) (chunk + 1) * bufferSize));
+					long at = outPosition + written[0];
+					written[0] += output.position();
+					return at;
+				},
+				out, null);
+		return written[0];
+	}
+
+	private static int update(Cipher cipher, ByteBuffer input, ByteBuffer output, FileChannel out, long outPosition)
+			throws Exception {
+		output.clear();
+		long start = System.nanoTime();
+		RsMetrics.CIPHER_BYTES.add(input.remaining());
+		cipher.update(input, output);
+		RsMetrics.CIPHER.stop(start);
+		output.flip();
+		int produced = output.remaining();
+		if (out != null)
+			Utility.writeFully(out, output, outPosition);
+		return produced;
+	}
+
+	/**
+	 * Direct buffer owned by the calling thread, grown on demand and reused
+	 * afterwards. Slot 0 is used for input, slot 1 for output, slot 2 for
+	 * compressed segments.
+	 */
+	static ByteBuffer threadBuffer(int slot, int capacity) {
+		ByteBuffer[] buffers = BUFFERS.get();
+		if (buffers[slot] == null || buffers[slot].capacity() < capacity) {
+			buffers[slot] = ByteBuffer.allocateDirect(capacity);
+		}
+		return buffers[slot].clear().limit(capacity);
+	}
+
+}
@@ -0,0 +1,39 @@
+package com.rslock.common;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * Compression applied to every segment of a container before it is
+ * encrypted. Encrypted data does not compress, so this is the only point
+ * where compression can help.
+ *
+ * The codec id is stored in the container header flags, which makes the
+ * decryptor pick the matching codec on its own. Segments are compressed
+ * independently, so they still run in parallel and can still be read at
+ * random. Implementations must be thread-safe, see {@link RsCodecs} for the
+ * built-in codecs and for registering new ones.
+ */
+public interface RsCodec {
+
+	/** Identifier stored in the container header, 1 to 255 */
+	int id();
+
+	/** Name used on the command line */
+	String name();
+
+	/**
+	 * Compress the remaining bytes of {@code src} into {@code dst}
+	 *
+	 * @return false when the compressed data does not fit in {@code dst}, the
+	 *         segment is then stored uncompressed
+	 */
+	boolean compress(ByteBuffer src, ByteBuffer dst) throws IOException;
+
+	/**
+	 * Decompress the remaining bytes of {@code src} into {@code dst}, which
+	 * has exactly the original size remaining
+	 */
+	void decompress(ByteBuffer src, ByteBuffer dst) throws IOException;
+
+}
@@ -0,0 +1,198 @@
+package com.rslock.common;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.zip.CRC32;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * Registry of the {@link RsCodec} implementations known to this build.
+ *
+ * Built in are the JDK Deflater based codecs:
+ * <ul>
+ * <li>{@code deflate}: raw deflate at the default level</li>
+ * <li>{@code gzip}: the same stream with a GZIP header and CRC32 trailer</li>
+ * <li>{@code fast}: raw deflate at {@link Deflater#BEST_SPEED}, for when
+ * compression must keep up with the cipher</li>
+ * </ul>
+ */
+public final class RsCodecs {
+
+	/** Name accepted on the command line for no compression */
+	public static final String NONE = "none";
+
+	public static final RsCodec DEFLATE = new DeflateCodec(1, "deflate", Deflater.DEFAULT_COMPRESSION, false);
+	public static final RsCodec GZIP = new DeflateCodec(2, "gzip", Deflater.DEFAULT_COMPRESSION, true);
+	public static final RsCodec FAST = new DeflateCodec(3, "fast", Deflater.BEST_SPEED, false);
+
+	private static final Map<Integer, RsCodec> BY_ID = new ConcurrentHashMap<>();
+
+	static {
+		register(DEFLATE);
+		register(GZIP);
+		register(FAST);
+	}
+
+	private RsCodecs() {
+		throw new UnsupportedOperationException("This is a utility class and cannot be instantiated");
+	}
+
+	/**
+	 * Make a codec available to the encryptor and decryptor, its id must not be
+	 * taken yet
+	 */
+	public static void register(RsCodec codec) {
+		if (codec.id() < 1 || codec.id() > 0xFF) {
+			throw new IllegalArgumentException("Codec id must be between 1 and 255: " + codec.id());
+		}
+		if (BY_ID.putIfAbsent(codec.id(), codec) != null) {
+			throw new IllegalArgumentException("Codec id already registered: " + codec.id());
+		}
+	}
+
+	/**
+	 * Codec stored under {@code id} in a container header, null for id 0 (no
+	 * compression)
+	 */
+	public static RsCodec byId(int id) {
+		if (id == 0) {
+			return null;
+		}
+		RsCodec codec = BY_ID.get(id);
+		if (codec == null) {
+			throw new IllegalArgumentException("Unsupported compression codec: " + id);
+		}
+		return codec;
+	}
+
+	/**
+	 * Codec with the given command line name, null for {@value #NONE}
+	 */
+	public static RsCodec byName(String name) {
+		if (NONE.equalsIgnoreCase(name.trim())) {
+			return null;
+		}
+		for (RsCodec codec : BY_ID.values())
+			if (codec.name().equalsIgnoreCase(name.trim()))
+				return codec;
+		throw new IllegalArgumentException("Unknown compression: " + name + " (expected none, deflate, gzip or fast)");
+	}
+
+	/**
+	 * Deflate with per-thread Deflater and Inflater instances, optionally
+	 * framed as a GZIP member
+	 */
+	private static final class DeflateCodec implements RsCodec {
+		// ID1 ID2 CM=deflate FLG=0 MTIME=0 XFL=0 OS=unknown
+		private static final byte[] GZIP_HEADER = { 0x1f, (byte) 0x8b, 8, 0, 0, 0, 0, 0, 0, (byte) 0xff };
+		private static final int GZIP_TRAILER = 8;
+
+		private final int id;
+		private final String name;
+		private final boolean gzip;
+		private final ThreadLocal<Deflater> deflater;
+		private final ThreadLocal<Inflater> inflater = ThreadLocal.withInitial(() -> new Inflater(true));
+
+		DeflateCodec(int id, String name, int level, boolean gzip) {
+			this.id = id;
+			this.name = name;
+			this.gzip = gzip;
+			this.deflater = ThreadLocal.withInitial(() -> new Deflater(level, true));
+		}
+
+		@Override
+		public int id() {
+			return id;
+		}
+
+		@Override
+		public String name() {
+			return name;
+		}
+
+		@Override
+		public boolean compress(ByteBuffer src, ByteBuffer dst) {
+			int length = src.remaining();
+			long crc = gzip ? crc(src) : 0;
+			if (gzip) {
+				if (dst.remaining() < GZIP_HEADER.length + GZIP_TRAILER)
+					return false;
+				dst.put(GZIP_HEADER);
+			}
+
+			Deflater d = deflater.get();
+			d.reset();
+			d.setInput(src);
+			d.finish();
+			while (!d.finished()) {
+				if (!dst.hasRemaining())
+					return false;
+				d.deflate(dst);
+			}
+
+			if (gzip) {
+				if (dst.remaining() < GZIP_TRAILER)
+					return false;
+				dst.order(ByteOrder.LITTLE_ENDIAN).putInt((int) crc).putInt(length).order(ByteOrder.BIG_ENDIAN);
+			}
+			return true;
+		}
+
+		@Override
+		public void decompress(ByteBuffer src, ByteBuffer dst) throws IOException {
+			int expected = dst.remaining();
+			ByteBuffer body = src;
+			ByteBuffer trailer = null;
+			if (gzip) {
+				if (src.remaining() < GZIP_HEADER.length + GZIP_TRAILER) {
+					throw new IOException("Truncated gzip segment");
+				}
+				for (int i = 0; i < 4; i++) {
+					// Only the members written above are accepted: magic, deflate, no optional fields
+					if (src.get(src.position() + i) != GZIP_HEADER[i])
+						throw new IOException("Invalid gzip header in segment");
+				}
+				body = src.duplicate().position(src.position() + GZIP_HEADER.length).limit(src.limit() - GZIP_TRAILER);
+				trailer = src.duplicate().position(src.limit() - GZIP_TRAILER).order(ByteOrder.LITTLE_ENDIAN);
+			}
+
+			ByteBuffer output = dst.duplicate();
+			Inflater i = inflater.get();
+			i.reset();
+			i.setInput(body);
+			try {
+				while (!i.finished()) {
+					if (!output.hasRemaining())
+						throw new IOException("Decompressed segment is larger than expected");
+					if (i.inflate(output) == 0 && (i.needsInput() || i.needsDictionary()))
+						throw new IOException("Truncated compressed segment");
+				}
+			} catch (DataFormatException e) {
+				throw new IOException("Corrupt compressed segment", e);
+			}
+			if (output.position() - dst.position() != expected) {
+				throw new IOException("Decompressed segment is smaller than expected");
+			}
+
+			if (trailer != null) {
+				long crc = crc(dst.duplicate());
+				if (trailer.getInt() != (int) crc || trailer.getInt() != expected) {
+					throw new IOException("Gzip checksum mismatch in segment");
+				}
+			}
+			dst.position(output.position());
+		}
+
+		private static long crc(ByteBuffer data) {
+			CRC32 crc = new CRC32();
+			crc.update(data.duplicate());
+			return crc.getValue();
+		}
+	}
+
+}
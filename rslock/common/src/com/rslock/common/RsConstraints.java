@@ -1,5 +1,7 @@
 package com.rslock.common;
 
+import java.util.List;
+
 public final class RsConstraints {
 
 	// Prevent instantiation
@@ -11,6 +13,13 @@ public final class RsConstraints {
 	public static final String AES_ALGORITHM = "AES";
 	public static final String AES_TRANSFORMATION = "AES/CBC/PKCS5Padding";
 	public static final int AES_KEY_SIZE = 256; // bits
+	public static final String AES_CBC_NO_PADDING = "AES/CBC/NoPadding"; // random access into CBC files
+	public static final int CBC_BLOCK_RUN = 4096; // AES blocks decrypted together on random access
+	public static final int BLOCK_CACHE_SIZE = 4; // decrypted blocks cached per open file
+	public static final String GCM_TRANSFORMATION = "AES/GCM/NoPadding";
+	public static final int GCM_TAG_BITS = 128;
+	public static final int GCM_NONCE_SIZE = 12; // bytes
+	public static final String HMAC_ALGORITHM = "HmacSHA256";
 
 	// RSA Constraints
 	public static final String RSA_ALGORITHM = "RSA";
@@ -19,17 +28,78 @@ public final class RsConstraints {
 
 	// KeyStore Constraints
 	public static final String KEYSTORE_TYPE = "PKCS12";
-	public static final String KEYSTORE_PROVIDER = "BC"; // Bouncy Castle
 	public static final String DEFAULT_KEYSTORE_ALIAS = "rslock-key";
 	public static final String DEFAULT_KEYSTORE_FILENAME = "rskeystore.p12";
 	public static final char[] DEFAULT_KEYSTORE_PASSWORD = "rslock-password".toCharArray();
+	public static final int CERTIFICATE_VALIDITY_DAYS = 3650; // self-signed certificate of a generated keystore
+
+	// Provider Constraints, see RsProviders
+	public static final String PROVIDER_POLICY = "fastest"; // fastest, default or a provider name
+	public static final List<String> PROVIDER_CANDIDATES = List.of("SunJCE", "BC"); // benchmarked by "fastest"
+	public static final int PROVIDER_BENCHMARK_BYTES = 256 * 1024; // input per timed round
+	public static final int PROVIDER_BENCHMARK_ROUNDS = 8; // best round counts
+	public static final String PROVIDER_CACHE_FILENAME = "providers.properties"; // under ~/.rslock
 
 	// Buffer size for file streams operations
 	public static final int DEFAULT_BUFFER_SIZE = 8192;
+	public static final int MAX_BUFFER_SIZE = 1024 * 1024;
+
+	// Inputs at least this large are memory mapped, one window at a time
+	public static final long MAP_THRESHOLD = 64L * 1024 * 1024;
+	public static final long MAP_WINDOW_SIZE = 64L * 1024 * 1024;
+
+	// Inputs at least this large are read, encrypted and written by overlapping stages, see RsPipeline.
+	// A single core gains nothing from the extra copy and hand-offs when the data is cached, so it keeps
+	// the direct path
+	public static final boolean PIPELINE_ENABLED = Runtime.getRuntime().availableProcessors() > 1;
+	public static final long PIPELINE_THRESHOLD = 8L * 1024 * 1024;
+	public static final int PIPELINE_DEPTH = 4; // chunks read ahead of the cipher
+	public static final int PIPELINE_POOLED_BUFFERS = 32; // free direct buffers kept per size, see RsMemoryBudget
+
+	// Output Constraints
+	public static final String FSYNC_POLICY = "batch"; // file, batch or none, see RsOutputFile
+	public static final int FSYNC_BATCH_FILES = 256; // complete files waiting for one batch sync
+	public static final long FSYNC_BATCH_BYTES = 256L * 1024 * 1024; // bytes waiting for one batch sync
+
+	// Resume Constraints
+	public static final int JOURNAL_MAGIC = 0x52534A4E; // "RSJN"
+	public static final long JOURNAL_INTERVAL = 64L * 1024 * 1024; // plaintext bytes between two checkpoints
+	public static final long JOURNAL_THRESHOLD = JOURNAL_INTERVAL; // smaller files are simply redone
 
 	// Encryption Constraints
 	public static final int IV_SIZE = 16; // bytes (128 bits for AES)
 
-	
+	// Segmented container (version 2) Constraints
+	public static final int CONTAINER_MAGIC = 0x52534C4B; // "RSLK"
+	public static final int CONTAINER_VERSION = 2;
+	public static final int SEGMENT_SIZE = 1024 * 1024; // bytes of plaintext per segment
+	public static final int MIN_SEGMENT_SIZE = 4096;
+	public static final int MAX_SEGMENT_SIZE = 64 * 1024 * 1024;
+	public static final int CONTAINER_KEY_AREA_SIZE = 1024; // reserved bytes for wrapped keys
+	public static final int MAX_KEY_AREA_SIZE = 1024 * 1024;
+
+	// Key session Constraints
+	public static final int KEY_SALT_SIZE = 16; // bytes, per-file salt in envelope per batch mode
+	public static final int KEY_CACHE_SIZE = 1024; // unwrapped keys kept per session
+
+	// Concurrency Constraints
+	public static final int DEFAULT_PARALLELISM = Runtime.getRuntime().availableProcessors();
+	public static final long SMALL_FILE_SIZE = SEGMENT_SIZE; // files up to one segment are batched
+	public static final int SMALL_BATCH_FILES = 64; // small files per scheduled task
+	public static final long SMALL_BATCH_BYTES = 8 * 1024 * 1024; // 8 MiB of small files per scheduled task
+
+	// Memory Constraints, see RsMemoryBudget. Direct memory defaults to the heap size, half of it is the budget
+	public static final long MEMORY_BUDGET = Runtime.getRuntime().maxMemory() / 2;
+	public static final int MEMORY_MAX_FILES = 1024; // files in flight at once, whatever their size
+	public static final long MEMORY_FILE_OVERHEAD = 64 * 1024; // header, index, channels and buffers of any file
+
+	// Daemon Constraints
+	public static final int DAEMON_JOB_RUNNERS = 2; // jobs running at once, their files share one worker pool
+	public static final int DAEMON_MAX_QUEUED_JOBS = 4096; // submissions beyond this are refused
+
+	// Logging Constraints
+	public static final int LOG_BUFFER_SIZE = 8192; // records queued for the log writer thread
+	public static final int LOG_BATCH_SIZE = 256; // records written between two flushes
+	public static final long PROGRESS_INTERVAL_NANOS = 1_000_000_000L; // at most one progress line per file per second
 
 }
@@ -0,0 +1,400 @@
+package com.rslock.common;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Header of the segmented (version 2) .rslocked container.
+ *
+ * <pre>
+ * [MAGIC:4][VERSION:2][FLAGS:2][SEGMENT_SIZE:4][PLAIN_SIZE:8][SEGMENT_COUNT:4][KEY_AREA_SIZE:4]
+ * [KEY_AREA:KEY_AREA_SIZE]
+ * [SEGMENT_INDEX:SEGMENT_COUNT x 4]
+ * [SEGMENT_0][SEGMENT_1]...
+ * </pre>
+ *
+ * The key area holds {@code [RECIPIENT_COUNT:2]} followed by one
+ * {@code [ALIAS_SIZE:2][ALIAS][KEY_SIZE:4][ENCRYPTED_AES_KEY]} entry per
+ * recipient, then an optional {@code [KEY_SALT_SIZE:2][KEY_SALT]} when the file
+ * key is derived from the wrapped key (envelope per batch), padded with zeros.
+ * The segment index stores the ciphertext length
+ * of every segment, so any segment can be located without reading the others.
+ *
+ * When the low byte of FLAGS names a codec, every segment plaintext is
+ * {@code [MODE:1][DATA]} before encryption, MODE 1 for data compressed with
+ * that codec and MODE 0 for data stored as is because it did not shrink.
+ * With {@link #FLAG_PACK} set the plaintext is a pack of files, laid out as
+ * described in {@link RsPack}.
+ *
+ * With {@link #FLAG_STREAM} set the plaintext size was unknown when the header
+ * was written, for input from a pipe: PLAIN_SIZE and SEGMENT_COUNT are 0 and
+ * there is no index. Every segment is preceded by
+ * {@code [LENGTH:4][PLAIN_LENGTH:4]} instead, the top bit of LENGTH set on the
+ * last segment, and PLAIN_LENGTH is authenticated with the segment. Such a
+ * container is read from start to end only.
+ *
+ * Legacy CBC files start with the IV length (16), which can never collide with
+ * the magic number, so both formats are told apart from the first 4 bytes.
+ */
+public final class RsContainerHeader {
+
+	/** Size of the fixed part, everything before the key area */
+	public static final int FIXED_SIZE = 28;
+
+	/** Low byte of FLAGS: id of the {@link RsCodec} segments are compressed with, 0 for none */
+	public static final int FLAG_CODEC_MASK = 0xFF;
+
+	/** FLAGS bit of a pack, many files in one container, see {@link RsPack} */
+	public static final int FLAG_PACK = 0x100;
+
+	/** FLAGS bit of a stream container, segments framed one by one without an index */
+	public static final int FLAG_STREAM = 0x200;
+
+	/** Bytes of the fixed part bound to every segment as additional authenticated data */
+	static final int AAD_SIZE = 24;
+
+	public record Recipient(String alias, byte[] encryptedKey) {
+	}
+
+	private final int flags;
+	private final int segmentSize;
+	private final long plainSize;
+	private final int segmentCount;
+	private final int keyAreaSize;
+	private final List<Recipient> recipients;
+	private final byte[] keySalt;
+	private final int[] segmentLengths;
+
+	public RsContainerHeader(int flags, int segmentSize, long plainSize, List<Recipient> recipients) {
+		this(flags, segmentSize, plainSize, recipients, new byte[0]);
+	}
+
+	public RsContainerHeader(int flags, int segmentSize, long plainSize, List<Recipient> recipients,
+			byte[] keySalt) {
+		this(flags, segmentSize, plainSize, segmentCount(plainSize, segmentSize), recipients, keySalt,
+				keyAreaSizeFor(recipients, keySalt), null);
+	}
+
+	private RsContainerHeader(int flags, int segmentSize, long plainSize, int segmentCount,
+			List<Recipient> recipients, byte[] keySalt, int keyAreaSize, int[] segmentLengths) {
+		this.flags = flags;
+		this.segmentSize = segmentSize;
+		this.plainSize = plainSize;
+		this.segmentCount = segmentCount;
+		this.recipients = List.copyOf(recipients);
+		this.keySalt = keySalt;
+		this.keyAreaSize = keyAreaSize;
+		this.segmentLengths = segmentLengths != null ? segmentLengths : new int[segmentCount];
+	}
+
+	/**
+	 * Header of a stream container, whose size is only known once it is
+	 * written
+	 */
+	public static RsContainerHeader stream(int flags, int segmentSize, List<Recipient> recipients, byte[] keySalt) {
+		return new RsContainerHeader(flags | FLAG_STREAM, segmentSize, 0, 0, recipients, keySalt,
+				keyAreaSizeFor(recipients, keySalt), null);
+	}
+
+	/**
+	 * Number of segments for a plaintext, an empty file still gets one (empty)
+	 * segment so its emptiness is authenticated
+	 */
+	public static int segmentCount(long plainSize, int segmentSize) {
+		long count = Math.max(1, (plainSize + segmentSize - 1) / segmentSize);
+		if (count > Integer.MAX_VALUE) {
+			throw new IllegalArgumentException("File too large for segment size " + segmentSize);
+		}
+		return (int) count;
+	}
+
+	private static int keyAreaSizeFor(List<Recipient> recipients, byte[] keySalt) {
+		int needed = 2 + 2 + keySalt.length;
+		for (Recipient r : recipients) {
+			needed += 2 + r.alias().getBytes(StandardCharsets.UTF_8).length + 4 + r.encryptedKey().length;
+		}
+		// Keep spare room so recipients can be added later without moving the payload
+		return Math.max(RsConstraints.CONTAINER_KEY_AREA_SIZE, needed);
+	}
+
+	/**
+	 * Same header with another recipient list. The key area keeps its size when
+	 * the recipients fit in it, so only the key area needs rewriting, and grows
+	 * otherwise, which moves the index and the payload.
+	 */
+	public RsContainerHeader withRecipients(List<Recipient> recipients) {
+		int size = Math.max(keyAreaSize, keyAreaSizeFor(recipients, keySalt));
+		return new RsContainerHeader(flags, segmentSize, plainSize, segmentCount, recipients, keySalt, size,
+				segmentLengths.clone());
+	}
+
+	public int getFlags() {
+		return flags;
+	}
+
+	public int getCodecId() {
+		return flags & FLAG_CODEC_MASK;
+	}
+
+	/** Whether segments are framed one by one, see {@link #FLAG_STREAM} */
+	public boolean isStream() {
+		return (flags & FLAG_STREAM) != 0;
+	}
+
+	public int getSegmentSize() {
+		return segmentSize;
+	}
+
+	public long getPlainSize() {
+		return plainSize;
+	}
+
+	public int getSegmentCount() {
+		return segmentCount;
+	}
+
+	public List<Recipient> getRecipients() {
+		return recipients;
+	}
+
+	/** Salt the file key is derived with, empty when the wrapped key is the file key */
+	public byte[] getKeySalt() {
+		return keySalt;
+	}
+
+	/** Plaintext length of the given segment */
+	public int plainLength(int segment) {
+		if (segment == segmentCount - 1) {
+			return (int) (plainSize - (long) segment * segmentSize);
+		}
+		return segmentSize;
+	}
+
+	/** Ciphertext length of the given segment, as recorded in the index */
+	public int segmentLength(int segment) {
+		return segmentLengths[segment];
+	}
+
+	public void setSegmentLength(int segment, int length) {
+		segmentLengths[segment] = length;
+	}
+
+	public long indexOffset() {
+		return FIXED_SIZE + keyAreaSize;
+	}
+
+	/** File offset of the first segment */
+	public long payloadOffset() {
+		return indexOffset() + 4L * segmentCount;
+	}
+
+	/** File offset of every segment, plus the end of the payload as last entry */
+	public long[] segmentOffsets() {
+		long[] offsets = new long[segmentCount + 1];
+		offsets[0] = payloadOffset();
+		for (int i = 0; i < segmentCount; i++) {
+			offsets[i + 1] = offsets[i] + segmentLengths[i];
+		}
+		return offsets;
+	}
+
+	/**
+	 * Fixed header fields authenticated with each segment. The key area is left
+	 * out so recipients can be re-wrapped without touching the payload.
+	 */
+	byte[] aad() {
+		return Arrays.copyOf(fixedPart().array(), AAD_SIZE);
+	}
+
+	private ByteBuffer fixedPart() {
+		ByteBuffer buffer = ByteBuffer.allocate(FIXED_SIZE);
+		buffer.putInt(RsConstraints.CONTAINER_MAGIC);
+		buffer.putShort((short) RsConstraints.CONTAINER_VERSION);
+		buffer.putShort((short) flags);
+		buffer.putInt(segmentSize);
+		buffer.putLong(plainSize);
+		buffer.putInt(segmentCount);
+		buffer.putInt(keyAreaSize);
+		return buffer.flip();
+	}
+
+	private ByteBuffer keyArea() {
+		ByteBuffer buffer = ByteBuffer.allocate(keyAreaSize);
+		buffer.putShort((short) recipients.size());
+		for (Recipient r : recipients) {
+			byte[] alias = r.alias().getBytes(StandardCharsets.UTF_8);
+			buffer.putShort((short) alias.length);
+			buffer.put(alias);
+			buffer.putInt(r.encryptedKey().length);
+			buffer.put(r.encryptedKey());
+		}
+		buffer.putShort((short) keySalt.length);
+		buffer.put(keySalt);
+		return buffer.clear();
+	}
+
+	private ByteBuffer index() {
+		ByteBuffer buffer = ByteBuffer.allocate(4 * segmentCount);
+		for (int length : segmentLengths) {
+			buffer.putInt(length);
+		}
+		return buffer.flip();
+	}
+
+	/**
+	 * Write the complete header (fixed part, key area and index) at the start of
+	 * the channel
+	 */
+	public void write(FileChannel channel) throws IOException {
+		Utility.writeFully(channel, fixedPart(), 0);
+		Utility.writeFully(channel, keyArea(), FIXED_SIZE);
+		writeIndex(channel);
+	}
+
+	/**
+	 * Write the complete header to a stream such as a pipe
+	 */
+	public void write(WritableByteChannel channel) throws IOException {
+		Utility.writeFully(channel, fixedPart());
+		Utility.writeFully(channel, keyArea());
+		Utility.writeFully(channel, index());
+	}
+
+	/** Rewrite only the key area, the index and payload stay where they are */
+	public void writeKeyArea(FileChannel channel) throws IOException {
+		Utility.writeFully(channel, keyArea(), FIXED_SIZE);
+	}
+
+	/** Rewrite only the segment index, once all segment lengths are known */
+	public void writeIndex(FileChannel channel) throws IOException {
+		Utility.writeFully(channel, index(), indexOffset());
+	}
+
+	// Reads the next length bytes of a header
+	@FunctionalInterface
+	private interface Reader {
+		ByteBuffer read(long position, int length) throws IOException;
+	}
+
+	/** Read the header from the start of the channel */
+	public static RsContainerHeader read(FileChannel channel) throws IOException {
+		return read((position, length) -> Utility.readFully(channel, position, length));
+	}
+
+	/**
+	 * Read the header from a stream such as a pipe, which is left at the
+	 * first segment
+	 */
+	public static RsContainerHeader read(ReadableByteChannel channel) throws IOException {
+		return read((position, length) -> {
+			ByteBuffer buffer = ByteBuffer.allocate(length);
+			if (!Utility.readFully(channel, buffer)) {
+				throw new IllegalArgumentException("Stream ended within the container header");
+			}
+			return buffer.flip();
+		});
+	}
+
+	private static RsContainerHeader read(Reader channel) throws IOException {
+		ByteBuffer fixed = channel.read(0, FIXED_SIZE);
+
+		if (fixed.getInt() != RsConstraints.CONTAINER_MAGIC) {
+			throw new IllegalArgumentException("Not an rslock container");
+		}
+		int version = fixed.getShort();
+		if (version != RsConstraints.CONTAINER_VERSION) {
+			throw new IllegalArgumentException("Unsupported container version: " + version);
+		}
+		int flags = Short.toUnsignedInt(fixed.getShort());
+		int segmentSize = fixed.getInt();
+		long plainSize = fixed.getLong();
+		int segmentCount = fixed.getInt();
+		int keyAreaSize = fixed.getInt();
+
+		if (segmentSize < RsConstraints.MIN_SEGMENT_SIZE || segmentSize > RsConstraints.MAX_SEGMENT_SIZE) {
+			throw new IllegalArgumentException("Invalid segment size: " + segmentSize);
+		}
+		if ((flags & FLAG_STREAM) != 0) {
+			if (plainSize != 0 || segmentCount != 0) {
+				throw new IllegalArgumentException("Invalid stream header");
+			}
+		} else if (plainSize < 0 || segmentCount != segmentCount(plainSize, segmentSize)) {
+			throw new IllegalArgumentException("Invalid plaintext size: " + plainSize);
+		}
+		if (keyAreaSize < 2 || keyAreaSize > RsConstraints.MAX_KEY_AREA_SIZE) {
+			throw new IllegalArgumentException("Invalid key area size: " + keyAreaSize);
+		}
+
+		ByteBuffer keyArea = channel.read(FIXED_SIZE, keyAreaSize);
+		int recipientCount = keyArea.getShort();
+		if (recipientCount <= 0) {
+			throw new IllegalArgumentException("Invalid recipient count: " + recipientCount);
+		}
+		List<Recipient> recipients = new ArrayList<>(recipientCount);
+		for (int i = 0; i < recipientCount; i++) {
+			byte[] alias = readField(keyArea);
+			if (keyArea.remaining() < 4) {
+				throw new IllegalArgumentException("Invalid key area");
+			}
+			int keyLength = keyArea.getInt();
+			if (keyLength <= 0 || keyLength > 8192) {
+				throw new IllegalArgumentException("Invalid encrypted AES key size: " + keyLength);
+			}
+			byte[] encryptedKey = readBytes(keyArea, keyLength);
+			recipients.add(new Recipient(new String(alias, StandardCharsets.UTF_8), encryptedKey));
+		}
+		byte[] keySalt = keyArea.remaining() >= 2 ? readField(keyArea) : new byte[0];
+
+		ByteBuffer index = channel.read(FIXED_SIZE + keyAreaSize, 4 * segmentCount);
+		int[] segmentLengths = new int[segmentCount];
+		for (int i = 0; i < segmentCount; i++) {
+			segmentLengths[i] = index.getInt();
+			if (segmentLengths[i] < 0) {
+				throw new IllegalArgumentException("Invalid length for segment " + i);
+			}
+		}
+
+		return new RsContainerHeader(flags, segmentSize, plainSize, segmentCount, recipients, keySalt, keyAreaSize,
+				segmentLengths);
+	}
+
+	// Reads a field of the key area prefixed with its unsigned 16-bit length
+	private static byte[] readField(ByteBuffer keyArea) {
+		if (keyArea.remaining() < 2) {
+			throw new IllegalArgumentException("Invalid key area");
+		}
+		return readBytes(keyArea, Short.toUnsignedInt(keyArea.getShort()));
+	}
+
+	// Reads length bytes of the key area, which must still hold them
+	private static byte[] readBytes(ByteBuffer keyArea, int length) {
+		if (length > keyArea.remaining()) {
+			throw new IllegalArgumentException("Invalid key area");
+		}
+		byte[] bytes = new byte[length];
+		keyArea.get(bytes);
+		return bytes;
+	}
+
+	/**
+	 * Check the first bytes of a file for the container magic number
+	 */
+	public static boolean isContainer(Path file) throws IOException {
+		try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+			if (channel.size() < FIXED_SIZE) {
+				return false;
+			}
+			return Utility.readFully(channel, 0, 4).getInt() == RsConstraints.CONTAINER_MAGIC;
+		}
+	}
+
+}
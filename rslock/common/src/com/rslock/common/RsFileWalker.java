@@ -0,0 +1,237 @@
+package com.rslock.common;
+
+import java.io.IOException;
+import java.nio.file.DirectoryIteratorException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.FileSystems;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.Path;
+import java.nio.file.PathMatcher;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.Spliterator;
+import java.util.Spliterators;
+import java.util.function.Predicate;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
+
+/**
+ * Expands the sources given with -s into the files to process.
+ *
+ * A source can be:
+ * <ul>
+ * <li>a regular file, processed as is</li>
+ * <li>a directory, walked recursively</li>
+ * <li>a glob such as {@code photos/**}{@code /*.jpg}, matched against the
+ * files below its longest literal parent directory</li>
+ * </ul>
+ * Directories are walked lazily, so a tree with hundreds of thousands of
+ * files streams into the scheduler instead of being listed up front. Every
+ * file keeps its path relative to the directory it was found in, which is
+ * used to mirror the tree under the destination.
+ *
+ * A directory that cannot be read or a file that cannot be stat'ed does not
+ * end the walk: it is returned as a {@link Source} carrying the error, which
+ * fails only that path, and the walk goes on with the next entry.
+ */
+public final class RsFileWalker {
+
+	private static final String GLOB_CHARS = "*?[{";
+
+	private RsFileWalker() {
+		throw new UnsupportedOperationException("This is a utility class and cannot be instantiated");
+	}
+
+	/**
+	 * One file to process
+	 *
+	 * @param file     path of the file
+	 * @param relative path below the walked directory, the file name for
+	 *                 sources given explicitly
+	 * @param size     file size in bytes
+	 * @param error    why the path could not be walked or stat'ed, null for a
+	 *                 file to process
+	 */
+	public record Source(Path file, Path relative, long size, IOException error) {
+
+		public Source(Path file, Path relative, long size) {
+			this(file, relative, size, null);
+		}
+
+		/**
+		 * Directory the output of this file goes to, the destination with the
+		 * source tree mirrored below it, or the directory of the file itself when
+		 * no destination is given
+		 */
+		public Path outputDir(Path destinationDir) {
+			if (destinationDir == null) {
+				return file.toAbsolutePath().getParent();
+			}
+			Path parent = relative.getParent();
+			return parent == null ? destinationDir : destinationDir.resolve(parent.toString());
+		}
+	}
+
+	/**
+	 * Whether the source is a glob pattern rather than a path
+	 */
+	public static boolean isGlob(Path source) {
+		String value = source.toString();
+		for (int i = 0; i < GLOB_CHARS.length(); i++) {
+			if (value.indexOf(GLOB_CHARS.charAt(i)) >= 0)
+				return true;
+		}
+		return false;
+	}
+
+	/**
+	 * Longest leading part of a glob without wildcards, the directory it is
+	 * matched in
+	 */
+	public static Path globBase(Path pattern) {
+		Path base = pattern.isAbsolute() ? pattern.getRoot() : Path.of("");
+		for (Path part : pattern) {
+			if (isGlob(part))
+				break;
+			base = base.resolve(part);
+		}
+		return base;
+	}
+
+	/**
+	 * Lazily expand all sources. Only regular files accepted by {@code filter}
+	 * are returned from directories and globs, never the temporary files of
+	 * outputs being written or left to resume, files given explicitly are
+	 * always returned. The stream must be closed to release directory handles.
+	 */
+	public static Stream<Source> walk(List<Path> sources, Predicate<Path> filter) {
+		return sources.stream().flatMap(source -> expand(source, filter));
+	}
+
+	private static Stream<Source> expand(Path source, Predicate<Path> filter) {
+		if (isGlob(source)) {
+			Path base = globBase(source);
+			Path root = base.toString().isEmpty() ? Path.of(".") : base;
+			String pattern = base.toString().isEmpty() ? source.toString() : base.relativize(source).toString();
+			PathMatcher matcher = FileSystems.getDefault().getPathMatcher("glob:" + pattern);
+			return find(root,
+					path -> matcher.matches(root.relativize(path)) && !RsOutputFile.isTemporary(path) && filter.test(path));
+		}
+		if (Files.isDirectory(source)) {
+			return find(source, path -> !RsOutputFile.isTemporary(path) && filter.test(path));
+		}
+		try {
+			return Stream.of(new Source(source, source.getFileName(), Files.size(source)));
+		} catch (IOException e) {
+			return Stream.of(new Source(source, source.getFileName(), 0, e));
+		}
+	}
+
+	private static Stream<Source> find(Path root, Predicate<Path> accept) {
+		Walk walk = new Walk(root, accept);
+		return StreamSupport.stream(Spliterators.spliteratorUnknownSize(walk, Spliterator.ORDERED | Spliterator.NONNULL),
+				false).onClose(walk::close);
+	}
+
+	/**
+	 * Depth first walk of the regular files below a directory, symbolic links
+	 * are not followed. Unlike {@link Files#find}, an error reading a
+	 * directory or the attributes of an entry is returned as a failed source
+	 * instead of thrown, so the rest of the tree is still walked.
+	 */
+	private static final class Walk implements Iterator<Source> {
+
+		private final Path root;
+		private final Predicate<Path> accept;
+		private final Deque<Path> directories = new ArrayDeque<>();
+		private final Deque<DirectoryStream<Path>> streams = new ArrayDeque<>();
+		private final Deque<Iterator<Path>> entries = new ArrayDeque<>();
+		private Source next;
+
+		Walk(Path root, Predicate<Path> accept) {
+			this.root = root;
+			this.accept = accept;
+			enter(root);
+		}
+
+		@Override
+		public boolean hasNext() {
+			while (next == null && !entries.isEmpty()) {
+				Path path;
+				try {
+					if (!entries.peek().hasNext()) {
+						leave();
+						continue;
+					}
+					path = entries.peek().next();
+				} catch (DirectoryIteratorException e) {
+					next = failed(directories.peek(), e.getCause());
+					leave();
+					continue;
+				}
+				try {
+					BasicFileAttributes attrs = Files.readAttributes(path, BasicFileAttributes.class,
+							LinkOption.NOFOLLOW_LINKS);
+					if (attrs.isDirectory()) {
+						enter(path);
+					} else if (attrs.isRegularFile() && accept.test(path)) {
+						next = new Source(path, root.relativize(path), attrs.size());
+					}
+				} catch (IOException e) {
+					next = failed(path, e);
+				}
+			}
+			return next != null;
+		}
+
+		@Override
+		public Source next() {
+			if (!hasNext())
+				throw new NoSuchElementException();
+			Source source = next;
+			next = null;
+			return source;
+		}
+
+		private void enter(Path directory) {
+			try {
+				DirectoryStream<Path> stream = Files.newDirectoryStream(directory);
+				directories.push(directory);
+				streams.push(stream);
+				entries.push(stream.iterator());
+			} catch (IOException e) {
+				next = failed(directory, e);
+			}
+		}
+
+		private void leave() {
+			directories.pop();
+			entries.pop();
+			closeQuietly(streams.pop());
+		}
+
+		private Source failed(Path path, IOException error) {
+			return new Source(path, root.relativize(path), 0, error);
+		}
+
+		void close() {
+			while (!streams.isEmpty()) {
+				leave();
+			}
+		}
+
+		private static void closeQuietly(DirectoryStream<Path> stream) {
+			try {
+				stream.close();
+			} catch (IOException e) {
+				// Nothing left to read from it
+			}
+		}
+	}
+
+}
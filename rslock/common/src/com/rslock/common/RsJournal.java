@@ -0,0 +1,256 @@
+package com.rslock.common;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.nio.file.attribute.FileTime;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Logger;
+import java.util.zip.CRC32;
+
+/**
+ * Sidecar journal of a container encryption or decryption, so a run that was
+ * interrupted continues from its last checkpoint instead of starting over.
+ *
+ * The output is written to a {@link RsOutputFile#resumable} temporary file
+ * and the journal sits next to it:
+ * <pre>
+ * [JOURNAL_MAGIC:4][KIND:1][FLAGS:2][SOURCE_SIZE:8][SOURCE_MODIFIED:8][SOURCE_CHANGED:8][SOURCE_HEAD_CRC32:4]
+ * [SEGMENT_COUNT:4][CRC32:4]
+ * then per checkpoint [FIRST:4][COUNT:4][SEGMENT_LENGTH:4 x COUNT][CRC32:4]
+ * </pre>
+ * A checkpoint is appended every {@link RsConstraints#JOURNAL_INTERVAL}
+ * plaintext bytes, once the output was forced to disk, so every segment it
+ * names is on disk whatever the fsync policy. A record torn by a crash fails
+ * its checksum and is dropped along with anything after it.
+ *
+ * Segments are independent, the state to resume is the number of segments
+ * done, their ciphertext lengths and the container header, which the partial
+ * output of an encryption holds with the wrapped key. Segments past the last
+ * checkpoint are sealed again with the same key and nonces, so they must get
+ * the same plaintext: sealing other data under a nonce already used breaks
+ * GCM. The source is matched first on its size, its modification and inode
+ * change times in full precision, and a checksum of its first segment. The
+ * change time moves on any write, even one that sets the modification time
+ * back, and the checksum still catches an edit of the head where there is no
+ * change time. A changed source starts over with a new key. Journals are
+ * single use, the journal is deleted once its output is committed.
+ */
+final class RsJournal implements AutoCloseable {
+
+	private static final Logger LOG = Logger.getLogger(RsJournal.class.getName());
+
+	static final byte ENCRYPT = 1;
+	static final byte DECRYPT = 2;
+
+	private static final int HEADER_SIZE = 43;
+
+	// Checkpoints read back from a journal, up to the first invalid record
+	private record Replay(int completed, long end) {
+	}
+
+	private final Path file;
+	private final ByteBuffer identity;
+	private final int[] lengths;
+	private final boolean resumed;
+	private final long validEnd;
+	private FileChannel channel;
+	private int completed;
+	private int checkpointed;
+	private long pendingBytes;
+
+	private RsJournal(Path file, ByteBuffer identity, int[] lengths, Replay replay) {
+		this.file = file;
+		this.identity = identity;
+		this.lengths = lengths;
+		this.resumed = replay != null;
+		this.validEnd = replay != null ? replay.end() : 0;
+		this.completed = replay != null ? replay.completed() : 0;
+		this.checkpointed = completed;
+	}
+
+	/**
+	 * Journal of the output {@code target}, resumed when an earlier run left
+	 * one for the same source and a partial output next to it
+	 *
+	 * @param flags container FLAGS, a run with another codec starts over
+	 */
+	static RsJournal open(Path target, byte kind, Path source, int flags, int segmentCount) throws IOException {
+		Path file = journalFile(target);
+		ByteBuffer identity = ByteBuffer.allocate(HEADER_SIZE);
+		identity.putInt(RsConstraints.JOURNAL_MAGIC).put(kind).putShort((short) flags);
+		BasicFileAttributes attributes = Files.readAttributes(source, BasicFileAttributes.class);
+		identity.putLong(attributes.size()).putLong(attributes.lastModifiedTime().to(TimeUnit.NANOSECONDS));
+		identity.putLong(changeTime(source)).putInt(headCrc(source, attributes.size()));
+		identity.putInt(segmentCount).putInt(crc(identity.array(), 0, HEADER_SIZE - 4)).flip();
+
+		int[] lengths = new int[segmentCount];
+		Replay replay = null;
+		if (Files.isRegularFile(file) && Files.isRegularFile(RsOutputFile.resumeFile(target))) {
+			replay = read(file, identity, lengths);
+		}
+		RsJournal journal = new RsJournal(file, identity, lengths, replay);
+		if (journal.resumed) {
+			LOG.info(() -> "Resuming " + target.getFileName() + " at segment " + journal.completed + "/"
+					+ segmentCount);
+		}
+		return journal;
+	}
+
+	/**
+	 * Journal next to the partial output of {@code target}, with it skipped by
+	 * the file walker
+	 */
+	static Path journalFile(Path target) {
+		Path partial = RsOutputFile.resumeFile(target);
+		return partial.resolveSibling(partial.getFileName() + ".rsjournal");
+	}
+
+	// Segments done according to a journal, null when it belongs to another run
+	private static Replay read(Path file, ByteBuffer identity, int[] lengths) throws IOException {
+		ByteBuffer journal = ByteBuffer.wrap(Files.readAllBytes(file));
+		if (journal.remaining() < HEADER_SIZE || !journal.slice(0, HEADER_SIZE).equals(identity)) {
+			return null;
+		}
+		journal.position(HEADER_SIZE);
+
+		int completed = 0;
+		while (journal.remaining() >= 12) {
+			int start = journal.position();
+			int first = journal.getInt();
+			int count = journal.getInt();
+			if (first != completed || count <= 0 || count > lengths.length - first
+					|| journal.remaining() < 4L * count + 4
+					|| journal.getInt(start + 8 + 4 * count) != crc(journal.array(), start, 8 + 4 * count)) {
+				journal.position(start);
+				break;
+			}
+			for (int i = 0; i < count; i++) {
+				lengths[first + i] = journal.getInt();
+			}
+			journal.getInt();
+			completed += count;
+		}
+		return new Replay(completed, journal.position());
+	}
+
+	// Inode change time where the file system has one, 0 elsewhere
+	private static long changeTime(Path source) throws IOException {
+		try {
+			return ((FileTime) Files.getAttribute(source, "unix:ctime")).to(TimeUnit.NANOSECONDS);
+		} catch (UnsupportedOperationException | IllegalArgumentException e) {
+			return 0;
+		}
+	}
+
+	// Checksum of the first segment of the source
+	private static int headCrc(Path source, long size) throws IOException {
+		try (FileChannel channel = FileChannel.open(source, StandardOpenOption.READ)) {
+			ByteBuffer head = Utility.readFully(channel, 0, (int) Math.min(size, RsConstraints.SEGMENT_SIZE));
+			CRC32 crc = new CRC32();
+			crc.update(head);
+			return (int) crc.getValue();
+		}
+	}
+
+	private static int crc(byte[] bytes, int offset, int length) {
+		CRC32 crc = new CRC32();
+		crc.update(bytes, offset, length);
+		return (int) crc.getValue();
+	}
+
+	/**
+	 * Whether an earlier run left segments to skip
+	 */
+	boolean isResumed() {
+		return resumed;
+	}
+
+	/**
+	 * Number of leading segments already in the output
+	 */
+	int completed() {
+		return completed;
+	}
+
+	/**
+	 * Ciphertext length recorded for a segment already in the output
+	 */
+	int length(int segment) {
+		return lengths[segment];
+	}
+
+	/**
+	 * Start the journal of a new run, once {@code out} holds the container
+	 * header or whatever a resumed run needs to find again
+	 */
+	void start(FileChannel out) throws IOException {
+		out.force(false);
+		channel = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING,
+				StandardOpenOption.WRITE);
+		Utility.writeFully(channel, identity.duplicate(), 0);
+		channel.force(false);
+		completed = 0;
+		checkpointed = 0;
+	}
+
+	/**
+	 * Record that every segment before {@code end} is in {@code out}, a
+	 * checkpoint is written once enough of them are pending
+	 */
+	void completed(FileChannel out, int end, RsContainerHeader header) throws IOException {
+		for (int i = completed; i < end; i++) {
+			lengths[i] = header.segmentLength(i);
+			pendingBytes += header.plainLength(i);
+		}
+		completed = end;
+		if (pendingBytes >= RsConstraints.JOURNAL_INTERVAL && end < lengths.length) {
+			checkpoint(out);
+		}
+	}
+
+	private void checkpoint(FileChannel out) throws IOException {
+		long start = System.nanoTime();
+		out.force(false);
+
+		int count = completed - checkpointed;
+		ByteBuffer record = ByteBuffer.allocate(12 + 4 * count);
+		record.putInt(checkpointed).putInt(count);
+		for (int i = checkpointed; i < completed; i++) {
+			record.putInt(lengths[i]);
+		}
+		record.putInt(crc(record.array(), 0, 8 + 4 * count)).flip();
+		if (channel == null) {
+			// A resumed run appends after the checkpoints it was read from
+			channel = FileChannel.open(file, StandardOpenOption.WRITE);
+			channel.truncate(validEnd);
+		}
+		Utility.writeFully(channel, record, channel.size());
+		channel.force(false);
+
+		checkpointed = completed;
+		pendingBytes = 0;
+		RsMetrics.FSYNC.stop(start);
+	}
+
+	/**
+	 * Remove the journal once its output was committed
+	 */
+	void delete() throws IOException {
+		close();
+		Files.deleteIfExists(file);
+	}
+
+	@Override
+	public void close() throws IOException {
+		if (channel != null) {
+			channel.close();
+			channel = null;
+		}
+	}
+
+}
@@ -0,0 +1,286 @@
+package com.rslock.common;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.UnixDomainSocketAddress;
+import java.nio.channels.Channels;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.security.GeneralSecurityException;
+import java.security.KeyFactory;
+import java.security.KeyStore;
+import java.security.PrivateKey;
+import java.security.PublicKey;
+import java.security.spec.X509EncodedKeySpec;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import javax.crypto.SecretKey;
+import javax.crypto.spec.SecretKeySpec;
+
+/**
+ * Resident process that keeps a keystore unlocked, so repeated encryptor and
+ * decryptor runs skip loading the PKCS12 file and its key derivation.
+ *
+ * The agent listens on a Unix domain socket readable by its owner only, like
+ * ssh-agent. The private key never leaves the agent: clients ask for the
+ * public key of an alias, or send a wrapped AES key and get the unwrapped one
+ * back. Start it with
+ * <pre>
+ * java -m rslock.common/com.rslock.common.RsKeyAgent [-k keystore] [-a alias]
+ * </pre>
+ * and run the encryptor or decryptor with {@code --agent}. The socket is
+ * {@code $RSLOCK_AGENT_SOCK}, or {@code ~/.rslock/agent.sock} when unset.
+ *
+ * Protocol, one request after the other on a connection:
+ * {@code [OP:1][ALIAS:UTF][LEN:4][DATA]} answered by
+ * {@code [STATUS:1][LEN:4][DATA]}, where an error status carries its message
+ * as UTF-8 data.
+ */
+public final class RsKeyAgent implements AutoCloseable {
+
+	private static final Logger LOG = Logger.getLogger(RsKeyAgent.class.getName());
+
+	private static final String LOG_FILENAME = "rslock-agent.log";
+	private static final String SOCKET_ENV = "RSLOCK_AGENT_SOCK";
+
+	static final int OP_PUBLIC_KEY = 1;
+	static final int OP_UNWRAP = 2;
+
+	static final int STATUS_OK = 0;
+	static final int STATUS_KEY_ERROR = 1; // the key does not match, reported as GeneralSecurityException
+	static final int STATUS_ERROR = 2;
+
+	private final KeyStore keyStore;
+	private final char[] password;
+	private final Map<String, PrivateKey> privateKeys = new ConcurrentHashMap<>();
+	private final Map<String, PublicKey> publicKeys = new ConcurrentHashMap<>();
+	private final ServerSocketChannel server;
+	private final ExecutorService connections = Executors.newCachedThreadPool(RsBatch.threadFactory("rslock-agent"));
+
+	private RsKeyAgent(KeyStore keyStore, char[] password, Path socket) throws IOException {
+		this.keyStore = keyStore;
+		this.password = password;
+
+		this.server = Utility.bindOwnerOnly(socket);
+	}
+
+	/**
+	 * Load the keystore and start listening on {@code socket}
+	 */
+	public static RsKeyAgent start(Path keystorePath, char[] password, Path socket) throws Exception {
+		KeyStore keyStore = KeyStore.getInstance(RsConstraints.KEYSTORE_TYPE);
+		try (InputStream in = Files.newInputStream(keystorePath)) {
+			keyStore.load(in, password);
+		}
+		return new RsKeyAgent(keyStore, password, socket);
+	}
+
+	/**
+	 * Socket the agent listens on and clients connect to
+	 */
+	public static Path defaultSocket() {
+		String configured = System.getenv(SOCKET_ENV);
+		if (configured != null && !configured.isBlank()) {
+			return Path.of(configured);
+		}
+		return Path.of(System.getProperty("user.home"), ".rslock", "agent.sock");
+	}
+
+	public static void main(String[] args) throws Exception {
+		RsLogger.init(LOG_FILENAME, Level.INFO, Level.FINE);
+		RsLockConfig config = RsLockConfig.fromArgs(args);
+		if (!config.isKeystoreExists()) {
+			throw new IllegalArgumentException("Keystore file does not exist: " + config.getKeystorePath());
+		}
+
+		Path socket = defaultSocket();
+		try (RsKeyAgent agent = start(config.getKeystorePath(), RsConstraints.DEFAULT_KEYSTORE_PASSWORD, socket)) {
+			// Fail now rather than on the first request if the alias is missing
+			agent.privateKey(config.getAlias());
+			LOG.info(() -> "✓ Key agent listening on " + socket + " for " + config.getKeystorePath());
+			agent.serve();
+		}
+	}
+
+	/**
+	 * Accept connections until the agent is closed
+	 */
+	public void serve() throws IOException {
+		while (server.isOpen()) {
+			SocketChannel channel;
+			try {
+				channel = server.accept();
+			} catch (IOException e) {
+				if (!server.isOpen())
+					return;
+				throw e;
+			}
+			connections.execute(() -> handle(channel));
+		}
+	}
+
+	private void handle(SocketChannel channel) {
+		try (channel;
+				DataInputStream in = new DataInputStream(new BufferedInputStream(Channels.newInputStream(channel)));
+				DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Channels.newOutputStream(channel)))) {
+			while (true) {
+				int op;
+				try {
+					op = in.readUnsignedByte();
+				} catch (EOFException e) {
+					return;
+				}
+				String alias = in.readUTF();
+				byte[] data = in.readNBytes(in.readInt());
+
+				byte[] reply;
+				int status = STATUS_OK;
+				try {
+					reply = switch (op) {
+						case OP_PUBLIC_KEY -> publicKey(alias).getEncoded();
+						case OP_UNWRAP -> CypherUtility.decryptAESKeyWithRSA(data, privateKey(alias)).getEncoded();
+						default -> throw new IOException("Unknown agent operation: " + op);
+					};
+				} catch (GeneralSecurityException e) {
+					status = STATUS_KEY_ERROR;
+					reply = String.valueOf(e.getMessage()).getBytes(StandardCharsets.UTF_8);
+				} catch (Exception e) {
+					status = STATUS_ERROR;
+					reply = String.valueOf(e.getMessage()).getBytes(StandardCharsets.UTF_8);
+				}
+				out.writeByte(status);
+				out.writeInt(reply.length);
+				out.write(reply);
+				out.flush();
+			}
+		} catch (IOException e) {
+			LOG.log(Level.FINE, "Agent connection closed", e);
+		}
+	}
+
+	private PrivateKey privateKey(String alias) throws Exception {
+		PrivateKey key = privateKeys.get(alias);
+		if (key == null) {
+			synchronized (keyStore) {
+				key = CypherUtility.loadPrivateKey(keyStore, alias, password);
+			}
+			privateKeys.put(alias, key);
+		}
+		return key;
+	}
+
+	private PublicKey publicKey(String alias) throws Exception {
+		PublicKey key = publicKeys.get(alias);
+		if (key == null) {
+			synchronized (keyStore) {
+				key = CypherUtility.loadPublicKey(keyStore, alias);
+			}
+			publicKeys.put(alias, key);
+		}
+		return key;
+	}
+
+	@Override
+	public void close() throws IOException {
+		server.close();
+		connections.shutdownNow();
+	}
+
+	/**
+	 * Connection to a running agent. Requests are serialized on the one
+	 * connection, callers cache what they get back ({@link RsKeySession} does).
+	 */
+	public static final class Client implements AutoCloseable {
+		private final SocketChannel channel;
+		private final DataInputStream in;
+		private final DataOutputStream out;
+
+		private Client(SocketChannel channel) {
+			this.channel = channel;
+			this.in = new DataInputStream(new BufferedInputStream(Channels.newInputStream(channel)));
+			this.out = new DataOutputStream(new BufferedOutputStream(Channels.newOutputStream(channel)));
+		}
+
+		/**
+		 * Connect to the agent on the {@link RsKeyAgent#defaultSocket() default
+		 * socket}, null when none answers
+		 */
+		public static Client connectIfRunning() {
+			Path socket = defaultSocket();
+			try {
+				Client client = connect(socket);
+				LOG.info(() -> "✓ Using key agent on " + socket);
+				return client;
+			} catch (IOException e) {
+				LOG.info(() -> "Key agent not reachable (" + e.getMessage() + "), loading the keystore");
+				return null;
+			}
+		}
+
+		/**
+		 * Connect to the agent listening on {@code socket}
+		 *
+		 * @throws IOException when no agent is running there
+		 */
+		public static Client connect(Path socket) throws IOException {
+			if (!Files.exists(socket)) {
+				throw new IOException("No key agent socket at " + socket);
+			}
+			return new Client(SocketChannel.open(UnixDomainSocketAddress.of(socket)));
+		}
+
+		public PublicKey publicKey(String alias) throws Exception {
+			byte[] encoded = request(OP_PUBLIC_KEY, alias, new byte[0]);
+			return KeyFactory.getInstance(RsConstraints.RSA_ALGORITHM).generatePublic(new X509EncodedKeySpec(encoded));
+		}
+
+		public SecretKey unwrap(String alias, byte[] wrappedKey) throws Exception {
+			return new SecretKeySpec(request(OP_UNWRAP, alias, wrappedKey), RsConstraints.AES_ALGORITHM);
+		}
+
+		/**
+		 * Unwrapper for a decryption session, see {@link RsKeySession#forDecryption(RsKeySession.Unwrapper, String)}
+		 */
+		public RsKeySession.Unwrapper unwrapper(String alias) {
+			return wrappedKey -> unwrap(alias, wrappedKey);
+		}
+
+		private synchronized byte[] request(int op, String alias, byte[] data) throws Exception {
+			out.writeByte(op);
+			out.writeUTF(alias);
+			out.writeInt(data.length);
+			out.write(data);
+			out.flush();
+
+			int status = in.readUnsignedByte();
+			byte[] reply = in.readNBytes(in.readInt());
+			if (status == STATUS_OK) {
+				return reply;
+			}
+			String message = "Key agent: " + new String(reply, StandardCharsets.UTF_8);
+			if (status == STATUS_KEY_ERROR) {
+				throw new GeneralSecurityException(message);
+			}
+			throw new IOException(message);
+		}
+
+		@Override
+		public void close() throws IOException {
+			channel.close();
+		}
+	}
+
+}
@@ -0,0 +1,212 @@
+package com.rslock.common;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.security.PrivateKey;
+import java.security.PublicKey;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import javax.crypto.SecretKey;
+
+/**
+ * Keys loaded once and shared by every file of a batch.
+ *
+ * On encryption the session hands out a {@link FileKey} per file. In the
+ * default mode every file gets its own random AES key wrapped with RSA. With
+ * envelope per batch, a single data key is wrapped once and each file uses a
+ * key derived from it with HKDF and a random per-file salt, which takes RSA
+ * off the per-file path. Every file still carries the wrapped data key and
+ * its salt, so it stays decryptable on its own.
+ *
+ * A session may encrypt for several recipients: the AES key is then wrapped
+ * once per recipient public key and every wrapped copy goes into the header,
+ * the payload is encrypted only once.
+ *
+ * On decryption the session caches unwrapped keys by their wrapped bytes, so
+ * a batch sharing one data key pays for a single RSA private-key operation.
+ * The private-key operation itself is an {@link Unwrapper}, which is either a
+ * key loaded from the keystore or a {@link RsKeyAgent} holding it.
+ * Sessions are thread-safe.
+ */
+public final class RsKeySession {
+
+	private static final byte[] FILE_KEY_INFO = "rslock-file-key".getBytes(StandardCharsets.US_ASCII);
+
+	/**
+	 * Key material for one file: the AES key that encrypts it, the key wrapped
+	 * for each recipient, and the derivation salt (empty unless envelope per batch)
+	 */
+	public record FileKey(SecretKey aesKey, List<RsContainerHeader.Recipient> recipients, byte[] keySalt) {
+	}
+
+	/**
+	 * RSA private-key operation that recovers a wrapped AES key
+	 */
+	@FunctionalInterface
+	public interface Unwrapper {
+		SecretKey unwrap(byte[] wrappedKey) throws Exception;
+	}
+
+	private final Map<String, PublicKey> publicKeys;
+	private final Unwrapper unwrapper;
+	private final String alias;
+
+	// Envelope per batch: data key and its wrapped forms, created once
+	private final SecretKey batchKey;
+	private final List<RsContainerHeader.Recipient> batchRecipients;
+
+	private final Map<ByteBuffer, SecretKey> unwrapped = new ConcurrentHashMap<>();
+
+	private RsKeySession(Map<String, PublicKey> publicKeys, Unwrapper unwrapper, String alias,
+			boolean envelopePerBatch) throws Exception {
+		this.publicKeys = publicKeys;
+		this.unwrapper = unwrapper;
+		this.alias = alias;
+		if (envelopePerBatch) {
+			this.batchKey = CypherUtility.generateAESKey();
+			this.batchRecipients = wrap(batchKey);
+		} else {
+			this.batchKey = null;
+			this.batchRecipients = null;
+		}
+	}
+
+	public static RsKeySession forEncryption(PublicKey publicKey, String alias, boolean envelopePerBatch)
+			throws Exception {
+		return forEncryption(Map.of(alias, publicKey), envelopePerBatch);
+	}
+
+	/**
+	 * Session encrypting for every recipient of {@code publicKeys}, by alias in
+	 * iteration order
+	 */
+	public static RsKeySession forEncryption(Map<String, PublicKey> publicKeys, boolean envelopePerBatch)
+			throws Exception {
+		return forEncryption(publicKeys, envelopePerBatch, null);
+	}
+
+	/**
+	 * Session encrypting for every recipient of {@code publicKeys} that can
+	 * also {@link #reopen} the containers it started, with {@code unwrapper}
+	 * holding the private key of the first recipient
+	 */
+	public static RsKeySession forEncryption(Map<String, PublicKey> publicKeys, boolean envelopePerBatch,
+			Unwrapper unwrapper) throws Exception {
+		if (publicKeys.isEmpty()) {
+			throw new IllegalArgumentException("At least one recipient is needed");
+		}
+		Map<String, PublicKey> recipients = new LinkedHashMap<>(publicKeys);
+		return new RsKeySession(recipients, unwrapper, recipients.keySet().iterator().next(), envelopePerBatch);
+	}
+
+	public static RsKeySession forDecryption(PrivateKey privateKey, String alias) throws Exception {
+		return forDecryption(wrappedKey -> CypherUtility.decryptAESKeyWithRSA(wrappedKey, privateKey), alias);
+	}
+
+	public static RsKeySession forDecryption(Unwrapper unwrapper, String alias) throws Exception {
+		return new RsKeySession(null, unwrapper, alias, false);
+	}
+
+	public String getAlias() {
+		return alias;
+	}
+
+	public boolean isEnvelopePerBatch() {
+		return batchKey != null;
+	}
+
+	/**
+	 * Key material for the next file to encrypt
+	 */
+	public FileKey newFileKey() throws Exception {
+		if (batchKey != null) {
+			byte[] salt = CypherUtility.randomBytes(RsConstraints.KEY_SALT_SIZE);
+			SecretKey fileKey = CypherUtility.deriveKey(batchKey, salt, FILE_KEY_INFO);
+			return new FileKey(fileKey, batchRecipients, salt);
+		}
+
+		SecretKey aesKey = CypherUtility.generateAESKey();
+		return new FileKey(aesKey, wrap(aesKey), new byte[0]);
+	}
+
+	/**
+	 * Key material of a container whose encryption is being resumed, taken
+	 * back from its header
+	 */
+	public FileKey reopen(RsContainerHeader header) throws Exception {
+		return new FileKey(fileKey(header), header.getRecipients(), header.getKeySalt());
+	}
+
+	// One wrapped copy of the key per recipient, a single RSA public-key operation each
+	private List<RsContainerHeader.Recipient> wrap(SecretKey key) throws Exception {
+		if (publicKeys == null) {
+			throw new IllegalStateException("Session was opened for decryption");
+		}
+		List<RsContainerHeader.Recipient> recipients = new ArrayList<>(publicKeys.size());
+		for (Map.Entry<String, PublicKey> recipient : publicKeys.entrySet()) {
+			recipients.add(new RsContainerHeader.Recipient(recipient.getKey(),
+					CypherUtility.encryptAESKeyWithRSA(key, recipient.getValue())));
+		}
+		return List.copyOf(recipients);
+	}
+
+	/**
+	 * Unwrap an RSA-encrypted AES key, reusing earlier results for the same
+	 * wrapped bytes
+	 */
+	public SecretKey unwrap(byte[] wrappedKey) throws Exception {
+		if (unwrapper == null) {
+			throw new IllegalStateException("Session was opened for encryption");
+		}
+		ByteBuffer cacheKey = ByteBuffer.wrap(wrappedKey.clone());
+		SecretKey cached = unwrapped.get(cacheKey);
+		if (cached != null) {
+			return cached;
+		}
+
+		SecretKey aesKey = unwrapper.unwrap(wrappedKey);
+		// Keys unique to one file would only grow the cache, start over once it is full
+		if (unwrapped.size() >= RsConstraints.KEY_CACHE_SIZE) {
+			unwrapped.clear();
+		}
+		unwrapped.put(cacheKey, aesKey);
+		return aesKey;
+	}
+
+	/**
+	 * Recover the key of a segmented container, trying the recipient stored
+	 * under this session's alias first and every other recipient after that
+	 */
+	public SecretKey fileKey(RsContainerHeader header) throws Exception {
+		SecretKey dataKey = dataKey(header);
+		if (header.getKeySalt().length == 0) {
+			return dataKey;
+		}
+		return CypherUtility.deriveKey(dataKey, header.getKeySalt(), FILE_KEY_INFO);
+	}
+
+	/**
+	 * Recover the wrapped key of a segmented container as it is, before any
+	 * per-file derivation, to wrap it again for other recipients
+	 */
+	public SecretKey dataKey(RsContainerHeader header) throws Exception {
+		List<RsContainerHeader.Recipient> candidates = new ArrayList<>(header.getRecipients());
+		candidates.sort((a, b) -> Boolean.compare(!a.alias().equals(alias), !b.alias().equals(alias)));
+
+		Exception last = null;
+		for (RsContainerHeader.Recipient recipient : candidates) {
+			try {
+				return unwrap(recipient.encryptedKey());
+			} catch (GeneralSecurityException e) {
+				last = e;
+			}
+		}
+		throw new GeneralSecurityException("No recipient in the header matches the private key of: " + alias, last);
+	}
+
+}
@@ -1,8 +1,11 @@
 package com.rslock.common;
 
+import java.nio.file.FileSystems;
 import java.nio.file.Files;
 import java.nio.file.Path;
+import java.nio.file.PathMatcher;
 import java.util.ArrayList;
+import java.util.EnumSet;
 import java.util.List;
 
 public class RsLockConfig {
@@ -10,22 +13,94 @@ public class RsLockConfig {
 	private final Path destinationDir;
 	private final Path keystorePath;
 	private final String alias;
+	private List<String> aliases;
+	private final int parallelism;
+	private final Format format;
+	private Range range;
+	private RsCodec codec;
+	private Path metricsFile;
+	private Path packFile;
+	private List<String> members = List.of();
+	private String providerPolicy = RsConstraints.PROVIDER_POLICY;
+	private RsOutputFile.Sync fsync = RsOutputFile.Sync.parse(RsConstraints.FSYNC_POLICY);
+	private long memoryBudget = RsConstraints.MEMORY_BUDGET;
+	private boolean memoryBudgetSet;
+	private final EnumSet<Flag> switches = EnumSet.noneOf(Flag.class);
+
+	/**
+	 * Plaintext byte range, a negative offset counts from the end of the file
+	 * and a negative length reads up to the end
+	 */
+	public record Range(long offset, long length) {
+
+		static Range parse(String value) {
+			String[] parts = value.split(":", -1);
+			try {
+				long offset = Long.parseLong(parts[0].trim());
+				long length = parts.length > 1 && !parts[1].isBlank() ? Long.parseLong(parts[1].trim()) : -1;
+				return new Range(offset, length);
+			} catch (NumberFormatException e) {
+				throw new IllegalArgumentException("Invalid range: " + value + " (expected offset:length)");
+			}
+		}
+
+		/** Resolve against the plaintext size, returns {start, end} */
+		public long[] resolve(long size) {
+			long start = offset < 0 ? Math.max(0, size + offset) : Math.min(offset, size);
+			long end = length < 0 ? size : Math.min(size, start + length);
+			return new long[] { start, end };
+		}
+	}
+
+	/**
+	 * Layout of the .rslocked files written by the encryptor, the decryptor
+	 * detects the format of each file on its own
+	 */
+	public enum Format {
+		CBC, // legacy single AES-CBC stream
+		GCM; // segmented AES-GCM container
+
+		static Format parse(String value) {
+			for (Format f : values())
+				if (f.name().equalsIgnoreCase(value.trim()))
+					return f;
+			throw new IllegalArgumentException("Unknown format: " + value + " (expected cbc or gcm)");
+		}
+	}
 
 	public RsLockConfig(List<Path> sourceFiles, Path destinationDir, Path keystorePath, String alias) {
+		this(sourceFiles, destinationDir, keystorePath, alias, RsConstraints.DEFAULT_PARALLELISM, Format.GCM);
+	}
+
+	public RsLockConfig(List<Path> sourceFiles, Path destinationDir, Path keystorePath, String alias,
+			int parallelism, Format format) {
 		this.sourceFiles = sourceFiles;
 		this.destinationDir = destinationDir;
 		this.keystorePath = keystorePath;
 		this.alias = alias;
+		this.aliases = alias != null ? List.of(alias) : List.of();
+		this.parallelism = parallelism;
+		this.format = format;
 	}
 
 	// Ensure all required parameters are present
 	public void validate() {
-		if (sourceFiles == null || sourceFiles.isEmpty()) {
+		if (isPipe()) {
+			validatePipe();
+		} else if (sourceFiles == null || sourceFiles.isEmpty()) {
 			throw new IllegalArgumentException("At least one source file must be specified.");
 		}
 
 		// Validate source files exist
 		for (Path source : sourceFiles) {
+			if (RsFileWalker.isGlob(source)) {
+				// A glob may match nothing, but the directory it is matched in must exist
+				Path base = RsFileWalker.globBase(source);
+				if (!base.toString().isEmpty() && !Files.isDirectory(base)) {
+					throw new IllegalArgumentException("Source directory does not exist: " + base);
+				}
+				continue;
+			}
 			Path normalized = source.toAbsolutePath().normalize();
 			if (!Files.exists(normalized)) {
 				throw new IllegalArgumentException(
@@ -42,12 +117,88 @@ public class RsLockConfig {
 			}
 		}
 
-		// Validate keystore path exists (if provided)
-		if (keystorePath != null && !Files.exists(keystorePath)) {
+		if (parallelism < 1) {
+			throw new IllegalArgumentException("Parallelism must be at least 1: " + parallelism);
+		}
+
+		if (codec != null && format == Format.CBC) {
+			throw new IllegalArgumentException("Compression needs the gcm format, the cbc header has no codec field");
+		}
+
+		if (isIncremental() && destinationDir == null) {
+			throw new IllegalArgumentException("Incremental mode needs a destination directory (-d) to keep its manifest");
+		}
+
+		if (isEnvelopePerBatch() && format == Format.CBC) {
+			throw new IllegalArgumentException("Envelope per batch needs the gcm format, the cbc header has no key salt");
+		}
+
+		if (isRotate() && (aliases.size() < 2 || isAddRecipient())) {
+			throw new IllegalArgumentException("--rotate needs the old alias then the new one(s): -a old,new");
+		}
+
+		if (aliases.size() > 1 && format == Format.CBC && !isRotate()) {
+			throw new IllegalArgumentException("Several recipients need the gcm format, the cbc header holds a single key");
+		}
+
+		if (packFile != null && (format == Format.CBC || isIncremental() || isAddRecipient() || isRotate())) {
+			throw new IllegalArgumentException(
+					"--pack writes one gcm container, it cannot be combined with -f cbc, --incremental or header rewrites");
+		}
+
+		if (isResume() && (format == Format.CBC || packFile != null || isAddRecipient() || isRotate())) {
+			throw new IllegalArgumentException("--resume checkpoints gcm segments, "
+					+ "it cannot be combined with -f cbc, --pack or header rewrites");
+		}
+
+		if (isResume() && (isVerify() || range != null || isList())) {
+			throw new IllegalArgumentException("--resume cannot be combined with --verify, --range or --list");
+		}
+
+		if (isList() && (isVerify() || range != null)) {
+			throw new IllegalArgumentException("--list cannot be combined with --verify or --range");
+		}
+
+		if ((isAddRecipient() || isRotate()) && (isVerify() || range != null)) {
+			throw new IllegalArgumentException("Header rewrites cannot be combined with --verify or --range");
+		}
+
+		if (isVerify() && range != null) {
+			throw new IllegalArgumentException("Verify mode checks whole files, it cannot be combined with --range");
+		}
+
+		if (memoryBudget <= 0) {
+			throw new IllegalArgumentException("Memory budget must be positive: " + memoryBudget);
+		}
+
+		if (metricsFile != null) {
+			Path parent = metricsFile.toAbsolutePath().getParent();
+			if (parent != null && !Files.isDirectory(parent)) {
+				throw new IllegalArgumentException("Metrics directory does not exist: " + parent);
+			}
+		}
+
+		// Validate keystore path exists (if provided), an agent may hold the keys instead
+		if (keystorePath != null && !isKeyAgent() && !Files.exists(keystorePath)) {
 			throw new IllegalArgumentException("Keystore file does not exist: " + keystorePath);
 		}
 	}
 
+	// Pipe mode reads standard input and writes standard output, files and rewrites have no place in it
+	private void validatePipe() {
+		if ((sourceFiles != null && !sourceFiles.isEmpty()) || destinationDir != null) {
+			throw new IllegalArgumentException("--pipe reads stdin and writes stdout, it takes no -s or -d");
+		}
+		if (format == Format.CBC || packFile != null || isIncremental() || isResume() || isAddRecipient()
+				|| isRotate()) {
+			throw new IllegalArgumentException(
+					"--pipe cannot be combined with -f cbc, --pack, --incremental, --resume or header rewrites");
+		}
+		if (isVerify() || range != null || isList()) {
+			throw new IllegalArgumentException("--pipe cannot be combined with --verify, --range or --list");
+		}
+	}
+
 	public int getSourceFileCount() {
 		return sourceFiles.size();
 	}
@@ -64,10 +215,129 @@ public class RsLockConfig {
 		return keystorePath;
 	}
 
+	// First recipient, the key a decryption tries first
 	public String getAlias() {
 		return alias;
 	}
 
+	// Every recipient given with -a, files are encrypted once and their key wrapped for each
+	public List<String> getAliases() {
+		return aliases;
+	}
+
+	// Number of files processed concurrently
+	public int getParallelism() {
+		return parallelism;
+	}
+
+	public Format getFormat() {
+		return format;
+	}
+
+	// Only decrypt this part of the plaintext, null for the whole file
+	public Range getRange() {
+		return range;
+	}
+
+	// Codec segments are compressed with before encryption, null for none
+	public RsCodec getCodec() {
+		return codec;
+	}
+
+	// Report file for the run metrics, .prom for Prometheus text and JSON otherwise, null for none
+	public Path getMetricsFile() {
+		return metricsFile;
+	}
+
+	// Pack every source into this one container instead of one .rslocked file each, null for none
+	public Path getPackFile() {
+		return packFile;
+	}
+
+	// Globs selecting the members extracted from packs, empty for all of them
+	public List<String> getMembers() {
+		return members;
+	}
+
+	/**
+	 * Matcher for the member names selected by {@link #getMembers()}, null
+	 * when every member is extracted
+	 */
+	public PathMatcher getMemberFilter() {
+		if (members.isEmpty())
+			return null;
+		List<PathMatcher> matchers = new ArrayList<>();
+		for (String glob : members) {
+			matchers.add(FileSystems.getDefault().getPathMatcher("glob:" + glob));
+		}
+		return name -> matchers.stream().anyMatch(matcher -> matcher.matches(name));
+	}
+
+	// Checkpoint large files to a journal and continue where an interrupted run stopped
+	public boolean isResume() {
+		return switches.contains(Flag.RESUME);
+	}
+
+	// Encrypt or decrypt standard input to standard output as a stream, in constant memory
+	public boolean isPipe() {
+		return switches.contains(Flag.PIPE);
+	}
+
+	// Print the members of packs instead of extracting them
+	public boolean isList() {
+		return switches.contains(Flag.LIST);
+	}
+
+	// How security providers are chosen: fastest, default or a provider name, see RsProviders
+	public String getProviderPolicy() {
+		return providerPolicy;
+	}
+
+	// When outputs are forced to disk: per file, per batch of files or never, see RsOutputFile
+	public RsOutputFile.Sync getFsync() {
+		return fsync;
+	}
+
+	// Ceiling on the buffers of the files decrypted at once, see RsMemoryBudget
+	public long getMemoryBudget() {
+		return memoryBudget;
+	}
+
+	// Whether --memory was given, rather than the default half of the heap
+	public boolean isMemoryBudgetSet() {
+		return memoryBudgetSet;
+	}
+
+	// Wrap one data key per batch and derive a key per file from it
+	public boolean isEnvelopePerBatch() {
+		return switches.contains(Flag.ENVELOPE);
+	}
+
+	// Skip files unchanged since the last run into the same destination
+	public boolean isIncremental() {
+		return switches.contains(Flag.INCREMENTAL);
+	}
+
+	// Take keys from a running RsKeyAgent, loading the keystore only if none answers
+	public boolean isKeyAgent() {
+		return switches.contains(Flag.AGENT);
+	}
+
+	// Wrap the key of existing containers for the recipients they lack, rewriting headers only
+	public boolean isAddRecipient() {
+		return switches.contains(Flag.ADD_RECIPIENT);
+	}
+
+	// Rewrap the keys of existing files from the first alias to the others, rewriting headers only
+	public boolean isRotate() {
+		return switches.contains(Flag.ROTATE);
+	}
+
+	// Authenticate and decrypt without writing any plaintext, reporting pass or fail per file
+	public boolean isVerify() {
+		return switches.contains(Flag.VERIFY);
+	}
+
 	// Generate destination directory for a given source file
 	// so, that if destinationDir is null, it returns the source file's parent directory
 	public Path generateDestinationDir(Path sourceFile) {
@@ -81,6 +351,18 @@ public class RsLockConfig {
 				", destinationDir=" + destinationDir +
 				", keystorePath=" + keystorePath +
 				", alias='" + alias + '\'' + // Added alias to toString
+				(aliases.size() > 1 ? ", recipients=" + aliases : "") +
+				", parallelism=" + parallelism +
+				", format=" + format +
+				(range != null ? ", range=" + range : "") +
+				(codec != null ? ", compression=" + codec.name() : "") +
+				(metricsFile != null ? ", metrics=" + metricsFile : "") +
+				(packFile != null ? ", pack=" + packFile : "") +
+				(!members.isEmpty() ? ", members=" + members : "") +
+				(!providerPolicy.equals(RsConstraints.PROVIDER_POLICY) ? ", provider=" + providerPolicy : "") +
+				(fsync != RsOutputFile.Sync.parse(RsConstraints.FSYNC_POLICY) ? ", fsync=" + fsync : "") +
+				(memoryBudgetSet ? ", memory=" + Utility.formatBytes(memoryBudget) : "") +
+				(!switches.isEmpty() ? ", switches=" + switches : "") +
 				'}';
 	}
 
@@ -91,12 +373,30 @@ public class RsLockConfig {
 		Path destination = null;
 		Path keystore = null;
 		Flag currentFlag = null;
-		String alias = null;
+		List<String> aliases = new ArrayList<>();
+		int parallelism = RsConstraints.DEFAULT_PARALLELISM;
+		Format format = Format.GCM;
+		Range range = null;
+		RsCodec codec = null;
+		Path metrics = null;
+		Path pack = null;
+		List<String> members = new ArrayList<>();
+		String provider = RsConstraints.PROVIDER_POLICY;
+		RsOutputFile.Sync fsync = RsOutputFile.Sync.parse(RsConstraints.FSYNC_POLICY);
+		long memory = RsConstraints.MEMORY_BUDGET;
+		boolean memorySet = false;
+		EnumSet<Flag> switches = EnumSet.noneOf(Flag.class);
 
 		for (String arg : args) {
 			Flag detected = Flag.parser(arg);
 			if (detected != null) {
-				currentFlag = detected;
+				// Switches take no value
+				if (detected.isSwitch) {
+					switches.add(detected);
+					currentFlag = null;
+				} else {
+					currentFlag = detected;
+				}
 				continue;
 			}
 
@@ -121,37 +421,136 @@ public class RsLockConfig {
 					currentFlag = null;
 				}
 				case alias -> {
-					alias = arg;
+					for (String part : arg.split(",")) {
+						String value = part.trim();
+						if (!value.isEmpty() && !aliases.contains(value))
+							aliases.add(value);
+					}
+				}
+				case PARALLELISM -> {
+					parallelism = parseInt(currentFlag, arg);
+					currentFlag = null;
+				}
+				case FORMAT -> {
+					format = Format.parse(arg);
+					currentFlag = null;
+				}
+				case RANGE -> {
+					range = Range.parse(arg);
+					currentFlag = null;
+				}
+				case COMPRESS -> {
+					codec = RsCodecs.byName(arg);
 					currentFlag = null;
 				}
+				case METRICS -> {
+					metrics = Path.of(arg);
+					currentFlag = null;
+				}
+				case PROVIDER -> {
+					provider = arg.trim();
+					currentFlag = null;
+				}
+				case PACK -> {
+					pack = Path.of(arg);
+					currentFlag = null;
+				}
+				case MEMBER -> {
+					for (String part : arg.split(",")) {
+						String value = part.trim();
+						if (!value.isEmpty())
+							members.add(value);
+					}
+				}
+				case FSYNC -> {
+					fsync = RsOutputFile.Sync.parse(arg);
+					currentFlag = null;
+				}
+				case MEMORY -> {
+					memory = parseSize(currentFlag, arg);
+					memorySet = true;
+					currentFlag = null;
+				}
+				default -> throw new IllegalStateException("Unhandled flag: " + currentFlag);
 			}
 
 		}
 
 		// Use Default parameter if not provided
-		if (alias == null || alias.isEmpty())
-			alias = RsConstraints.DEFAULT_KEYSTORE_ALIAS;
+		if (aliases.isEmpty())
+			aliases.add(RsConstraints.DEFAULT_KEYSTORE_ALIAS);
+		String alias = aliases.get(0);
 
 		if (keystore == null) {
 			keystore = Path.of(RsConstraints.DEFAULT_KEYSTORE_FILENAME);
 		}
-		RsLockConfig commandLineArgs = new RsLockConfig(sources, destination, keystore, alias);
+		RsLockConfig commandLineArgs = new RsLockConfig(sources, destination, keystore, alias, parallelism, format);
+		commandLineArgs.aliases = List.copyOf(aliases);
+		commandLineArgs.range = range;
+		commandLineArgs.codec = codec;
+		commandLineArgs.metricsFile = metrics;
+		commandLineArgs.packFile = pack;
+		commandLineArgs.members = List.copyOf(members);
+		commandLineArgs.providerPolicy = provider;
+		commandLineArgs.fsync = fsync;
+		commandLineArgs.memoryBudget = memory;
+		commandLineArgs.memoryBudgetSet = memorySet;
+		commandLineArgs.switches.addAll(switches);
 		return commandLineArgs;
 
 	}
 
+	private static int parseInt(Flag flag, String value) {
+		try {
+			return Integer.parseInt(value.trim());
+		} catch (NumberFormatException e) {
+			throw new IllegalArgumentException("Invalid number for " + flag.token + ": " + value);
+		}
+	}
+
+	// Bytes, or with a k, m or g suffix for KiB, MiB or GiB
+	private static long parseSize(Flag flag, String value) {
+		String size = value.trim().toLowerCase();
+		int shift = switch (size.isEmpty() ? ' ' : size.charAt(size.length() - 1)) {
+			case 'k' -> 10;
+			case 'm' -> 20;
+			case 'g' -> 30;
+			default -> 0;
+		};
+		try {
+			long number = Long.parseLong(shift > 0 ? size.substring(0, size.length() - 1) : size);
+			if (number > Long.MAX_VALUE >> shift) {
+				throw new NumberFormatException();
+			}
+			return number << shift;
+		} catch (NumberFormatException e) {
+			throw new IllegalArgumentException("Invalid size for " + flag.token + ": " + value + " (e.g. 512m or 2g)");
+		}
+	}
+
 	public boolean isKeystoreExists() {
 		return keystorePath != null && Files.exists(keystorePath);
 	}
 
 	/// --------
 	enum Flag {
-		SOURCE("-s"), DESTINATION("-d"), KEYSTORE("-k"), alias("-a");
+		SOURCE("-s"), DESTINATION("-d"), KEYSTORE("-k"), alias("-a"), PARALLELISM("-p"), FORMAT("-f"), RANGE("--range"),
+		COMPRESS("-c"), ENVELOPE("--envelope", true), INCREMENTAL("--incremental", true),
+		METRICS("--metrics"), AGENT("--agent", true), PROVIDER("--provider"),
+		VERIFY("--verify", true), FSYNC("--fsync"), ADD_RECIPIENT("--add-recipient", true),
+		ROTATE("--rotate", true), PACK("--pack"), LIST("--list", true), MEMBER("--member"),
+		RESUME("--resume", true), PIPE("--pipe", true), MEMORY("--memory");
 
 		final String token;
+		final boolean isSwitch;
 
 		Flag(String token) {
+			this(token, false);
+		}
+
+		Flag(String token, boolean isSwitch) {
 			this.token = token;
+			this.isSwitch = isSwitch;
 		}
 
 		static Flag parser(String str) {
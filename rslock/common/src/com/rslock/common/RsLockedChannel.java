@@ -0,0 +1,96 @@
+package com.rslock.common;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.NonWritableChannelException;
+import java.nio.channels.SeekableByteChannel;
+
+/**
+ * Read-only {@link SeekableByteChannel} over the plaintext of a .rslocked
+ * file. Data is decrypted on the fly through {@link RsLockedFile}, so zip
+ * readers, parsers and the like can consume encrypted files directly without
+ * a plaintext copy on disk.
+ *
+ * Use {@link RsLockedFile#openChannel} or {@link RsLockedFile#openInputStream}
+ * to create one.
+ */
+public final class RsLockedChannel implements SeekableByteChannel {
+
+	private final RsLockedFile file;
+	private long position;
+	private boolean open = true;
+
+	RsLockedChannel(RsLockedFile file) {
+		this.file = file;
+	}
+
+	@Override
+	public synchronized int read(ByteBuffer dst) throws IOException {
+		ensureOpen();
+		try {
+			int read = file.read(position, dst);
+			if (read > 0) {
+				position += read;
+			}
+			return read;
+		} catch (IOException e) {
+			throw e;
+		} catch (Exception e) {
+			// Authentication failures and the like surface as I/O errors to stream consumers
+			throw new IOException("Failed to decrypt at position " + position, e);
+		}
+	}
+
+	@Override
+	public int write(ByteBuffer src) {
+		throw new NonWritableChannelException();
+	}
+
+	@Override
+	public synchronized long position() throws IOException {
+		ensureOpen();
+		return position;
+	}
+
+	@Override
+	public synchronized SeekableByteChannel position(long newPosition) throws IOException {
+		ensureOpen();
+		if (newPosition < 0) {
+			throw new IllegalArgumentException("Negative position: " + newPosition);
+		}
+		position = newPosition;
+		return this;
+	}
+
+	@Override
+	public long size() throws IOException {
+		ensureOpen();
+		return file.size();
+	}
+
+	@Override
+	public SeekableByteChannel truncate(long size) {
+		throw new NonWritableChannelException();
+	}
+
+	@Override
+	public synchronized boolean isOpen() {
+		return open;
+	}
+
+	@Override
+	public synchronized void close() throws IOException {
+		if (open) {
+			open = false;
+			file.close();
+		}
+	}
+
+	private void ensureOpen() throws ClosedChannelException {
+		if (!open) {
+			throw new ClosedChannelException();
+		}
+	}
+
+}
@@ -0,0 +1,303 @@
+package com.rslock.common;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.security.PrivateKey;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+
+import javax.crypto.Cipher;
+import javax.crypto.SecretKey;
+import javax.crypto.spec.IvParameterSpec;
+
+/**
+ * Random access to the plaintext of a .rslocked file.
+ *
+ * The plaintext is split into blocks that can be decrypted on their own:
+ * <ul>
+ * <li>segmented GCM containers use their segments, located through the
+ * segment index</li>
+ * <li>legacy CBC files use runs of {@link RsConstraints#CBC_BLOCK_RUN} cipher
+ * blocks, the ciphertext block in front of a run is its IV</li>
+ * </ul>
+ * Reading a range therefore only decrypts the blocks it overlaps, whatever the
+ * size of the file. The most recently used blocks are kept decrypted in a
+ * small LRU cache, so parsers that seek back and forth do not decrypt the same
+ * block again. Instances are not thread-safe.
+ */
+public abstract class RsLockedFile implements Closeable {
+
+	protected final FileChannel channel;
+
+	private final LinkedHashMap<Long, ByteBuffer> cache = new LinkedHashMap<>(16, 0.75f, true);
+	private int cacheBlocks = RsConstraints.BLOCK_CACHE_SIZE;
+
+	protected RsLockedFile(FileChannel channel) {
+		this.channel = channel;
+	}
+
+	/**
+	 * Open an encrypted file as a read-only channel over its plaintext
+	 */
+	public static RsLockedChannel openChannel(Path file, PrivateKey privateKey, String alias) throws Exception {
+		return new RsLockedChannel(open(file, RsKeySession.forDecryption(privateKey, alias)));
+	}
+
+	/**
+	 * Open an encrypted file as a stream of its plaintext, no temporary file is
+	 * written
+	 */
+	public static InputStream openInputStream(Path file, PrivateKey privateKey, String alias) throws Exception {
+		return Channels.newInputStream(openChannel(file, privateKey, alias));
+	}
+
+	/**
+	 * Open an encrypted file of either format and unwrap its key
+	 */
+	public static RsLockedFile open(Path file, PrivateKey privateKey, String alias) throws Exception {
+		return open(file, RsKeySession.forDecryption(privateKey, alias));
+	}
+
+	/**
+	 * Open an encrypted file, unwrapping its key through a shared session
+	 */
+	public static RsLockedFile open(Path file, RsKeySession session) throws Exception {
+		FileChannel channel = FileChannel.open(file, StandardOpenOption.READ);
+		try {
+			if (RsContainerHeader.isContainer(file)) {
+				return new GcmFile(channel, session);
+			}
+			return new CbcFile(channel, session);
+		} catch (Exception e) {
+			channel.close();
+			throw e;
+		}
+	}
+
+	/** Plaintext size in bytes */
+	public abstract long size();
+
+	/** Plaintext bytes per block, every block but the last is full */
+	public abstract int blockSize();
+
+	/**
+	 * Decrypt one block into {@code dst}, which must have at least
+	 * {@link #blockSize()} bytes remaining
+	 *
+	 * @return number of plaintext bytes written
+	 */
+	public abstract int readBlock(long index, ByteBuffer dst) throws Exception;
+
+	/**
+	 * Number of decrypted blocks kept in memory, at least one
+	 */
+	public void setCacheBlocks(int cacheBlocks) {
+		this.cacheBlocks = Math.max(1, cacheBlocks);
+	}
+
+	/** Whether the plaintext is a pack of files, see {@link RsPack} */
+	public boolean isPack() {
+		return false;
+	}
+
+	public long blockCount() {
+		return Math.max(1, (size() + blockSize() - 1) / blockSize());
+	}
+
+	/**
+	 * Read plaintext starting at {@code position} into {@code dst}
+	 *
+	 * @return number of bytes read, or -1 at the end of the plaintext
+	 */
+	public int read(long position, ByteBuffer dst) throws Exception {
+		if (position >= size()) {
+			return -1;
+		}
+		int total = 0;
+		while (dst.hasRemaining() && position < size()) {
+			ByteBuffer source = block(position / blockSize());
+			int offset = (int) (position % blockSize());
+			int length = Math.min(dst.remaining(), source.limit() - offset);
+
+			dst.put(source.duplicate().position(offset).limit(offset + length));
+			position += length;
+			total += length;
+		}
+		return total;
+	}
+
+	/**
+	 * Decrypt the plaintext range {@code [offset, offset + length)}, clamped to
+	 * the end of the file
+	 */
+	public byte[] readRange(long offset, int length) throws Exception {
+		if (offset < 0 || length < 0) {
+			throw new IllegalArgumentException("Invalid range: " + offset + ":" + length);
+		}
+		ByteBuffer range = ByteBuffer.allocate((int) Math.max(0, Math.min(length, size() - offset)));
+		while (range.hasRemaining()) {
+			read(offset + range.position(), range);
+		}
+		return range.array();
+	}
+
+	private ByteBuffer block(long index) throws Exception {
+		ByteBuffer block = cache.get(index);
+		if (block != null) {
+			return block;
+		}
+
+		// Recycle the least recently used buffer once the cache is full
+		if (cache.size() >= cacheBlocks) {
+			Iterator<ByteBuffer> eldest = cache.values().iterator();
+			block = eldest.next();
+			eldest.remove();
+		} else {
+			block = ByteBuffer.allocate(blockSize());
+		}
+
+		block.clear();
+		readBlock(index, block);
+		block.flip();
+		cache.put(index, block);
+		return block;
+	}
+
+	@Override
+	public void close() throws IOException {
+		channel.close();
+	}
+
+	/**
+	 * Segmented AES-GCM container, one block per segment
+	 */
+	private static final class GcmFile extends RsLockedFile {
+		private final RsContainerHeader header;
+		private final long[] offsets;
+		private final SecretKey aesKey;
+		private final RsCodec codec;
+		private final byte[] noncePrefix;
+		private final byte[] aad;
+
+		GcmFile(FileChannel channel, RsKeySession session) throws Exception {
+			super(channel);
+			this.header = RsContainerHeader.read(channel);
+			if (header.isStream()) {
+				throw new IllegalArgumentException("Stream container without a segment index, read from start to end only");
+			}
+			this.offsets = header.segmentOffsets();
+			if (offsets[header.getSegmentCount()] != channel.size()) {
+				throw new IllegalArgumentException("Container size does not match its segment index");
+			}
+			this.aesKey = session.fileKey(header);
+			this.codec = RsCodecs.byId(header.getCodecId());
+			this.noncePrefix = RsSegmentedCipher.noncePrefix(aesKey);
+			this.aad = header.aad();
+		}
+
+		@Override
+		public long size() {
+			return header.getPlainSize();
+		}
+
+		@Override
+		public boolean isPack() {
+			return (header.getFlags() & RsContainerHeader.FLAG_PACK) != 0;
+		}
+
+		@Override
+		public int blockSize() {
+			return header.getSegmentSize();
+		}
+
+		@Override
+		public int readBlock(long index, ByteBuffer dst) throws Exception {
+			int segment = Math.toIntExact(index);
+			ByteBuffer plaintext = RsSegmentedCipher.openSegment(channel, offsets[segment], header, segment, codec,
+					aesKey, noncePrefix, aad);
+			int length = plaintext.remaining();
+			dst.put(plaintext);
+			return length;
+		}
+	}
+
+	/**
+	 * Legacy single-stream AES-CBC file. In CBC the plaintext of a cipher block
+	 * only depends on that block and the one in front of it, so any run of
+	 * blocks can be decrypted with the preceding ciphertext block as IV.
+	 */
+	private static final class CbcFile extends RsLockedFile {
+		private static final int AES_BLOCK = 16;
+
+		private final long payloadOffset;
+		private final long cipherSize;
+		private final long plainSize;
+		private final byte[] iv;
+		private final SecretKey aesKey;
+		private final Cipher cipher;
+
+		CbcFile(FileChannel channel, RsKeySession session) throws Exception {
+			super(channel);
+			byte[][] header = CypherUtility.readEncryptionHeader(Channels.newInputStream(channel.position(0)));
+			this.iv = header[0];
+			this.aesKey = session.unwrap(header[1]);
+			this.payloadOffset = channel.position();
+			this.cipherSize = channel.size() - payloadOffset;
+			if (cipherSize <= 0 || cipherSize % AES_BLOCK != 0) {
+				throw new IllegalArgumentException("Invalid ciphertext size: " + cipherSize);
+			}
+			this.cipher = RsProviders.cipher(RsConstraints.AES_CBC_NO_PADDING);
+
+			// Only the last block tells how much padding there is
+			long lastBlock = cipherSize / AES_BLOCK - 1;
+			byte[] lastIv = lastBlock == 0 ? iv : ciphertext(lastBlock - 1, 1).array();
+			Cipher padded = CypherUtility.createDecryptCipher(aesKey, new IvParameterSpec(lastIv));
+			this.plainSize = lastBlock * AES_BLOCK + padded.doFinal(ciphertext(lastBlock, 1).array()).length;
+		}
+
+		private ByteBuffer ciphertext(long firstBlock, int blocks) throws IOException {
+			return Utility.readFully(channel, payloadOffset + firstBlock * AES_BLOCK, blocks * AES_BLOCK);
+		}
+
+		@Override
+		public long size() {
+			return plainSize;
+		}
+
+		@Override
+		public int blockSize() {
+			return RsConstraints.CBC_BLOCK_RUN * AES_BLOCK;
+		}
+
+		@Override
+		public int readBlock(long index, ByteBuffer dst) throws Exception {
+			long firstBlock = index * RsConstraints.CBC_BLOCK_RUN;
+			int blocks = (int) Math.min(RsConstraints.CBC_BLOCK_RUN, cipherSize / AES_BLOCK - firstBlock);
+			int length = (int) Math.min((long) blocks * AES_BLOCK, plainSize - firstBlock * AES_BLOCK);
+
+			byte[] blockIv = firstBlock == 0 ? iv : ciphertext(firstBlock - 1, 1).array();
+			cipher.init(Cipher.DECRYPT_MODE, aesKey, new IvParameterSpec(blockIv));
+
+			ByteBuffer input = RsChannelCipher.threadBuffer(0, blocks * AES_BLOCK);
+			Utility.readFully(channel, payloadOffset + firstBlock * AES_BLOCK, input);
+			input.flip();
+
+			// Padding bytes of the last block are decrypted but not handed out
+			ByteBuffer output = RsChannelCipher.threadBuffer(1, blocks * AES_BLOCK);
+			long start = System.nanoTime();
+			RsMetrics.CIPHER_BYTES.add(input.remaining());
+			cipher.doFinal(input, output);
+			RsMetrics.CIPHER.stop(start);
+			output.flip().limit(length);
+			dst.put(output);
+			return length;
+		}
+	}
+
+}
@@ -1,40 +1,59 @@
 package com.rslock.common;
 
+import java.io.FileOutputStream;
 import java.io.IOException;
 import java.nio.file.Path;
-import java.util.logging.ConsoleHandler;
-import java.util.logging.FileHandler;
+import java.util.List;
+import java.util.function.LongConsumer;
 import java.util.logging.Formatter;
 import java.util.logging.Handler;
 import java.util.logging.Level;
 import java.util.logging.LogRecord;
 import java.util.logging.Logger;
 import java.util.logging.SimpleFormatter;
+import java.util.logging.StreamHandler;
 
 public class RsLogger {
 	private RsLogger() {}
 
 	public static void init(String logFileName, Level consoleLevel, Level fileLevel) {
+		init(logFileName, consoleLevel, fileLevel, RsAsyncHandler.OverflowPolicy.DROP);
+	}
+
+	/**
+	 * Log to the console and to a file through one {@link RsAsyncHandler}, so
+	 * workers never wait on formatting or disk I/O
+	 */
+	public static void init(String logFileName, Level consoleLevel, Level fileLevel,
+			RsAsyncHandler.OverflowPolicy policy) {
 		try {
 			Logger root = Logger.getLogger("");
 
 			// Removes all handlers attached directly
-			for (Handler h : root.getHandlers())
+			for (Handler h : root.getHandlers()) {
 				root.removeHandler(h);
+				h.close();
+			}
 
-			// Console
-			ConsoleHandler console = new ConsoleHandler();
+			// Console, on standard error like ConsoleHandler, which is never closed
+			StreamHandler console = new StreamHandler(System.err, new RsConsoleFormatter()) {
+				@Override
+				public void close() {
+					flush();
+				}
+			};
 			console.setLevel(consoleLevel);
-			console.setFormatter(new RsConsoleFormatter());
 
-			// File
+			// File, appended to like FileHandler(path, true)
 			Path logPath = Path.of(logFileName).toAbsolutePath();
-			FileHandler file = new FileHandler(logPath.toString(), true);
+			StreamHandler file = new StreamHandler(new FileOutputStream(logPath.toFile(), true), new SimpleFormatter());
 			file.setLevel(fileLevel);
-			file.setFormatter(new SimpleFormatter());
 
-			root.addHandler(file);
-			root.addHandler(console);
+			// Flushed once per batch by the writer thread, LogManager closes it on shutdown
+			RsAsyncHandler async = new RsAsyncHandler(List.of(file, console), RsConstraints.LOG_BUFFER_SIZE, policy);
+			async.setLevel(consoleLevel.intValue() < fileLevel.intValue() ? consoleLevel : fileLevel);
+
+			root.addHandler(async);
 			root.info("Logging initialized");
 			root.log(Level.INFO, "Log file: {0}", logPath);
 		} catch (IOException e) {
@@ -42,7 +61,55 @@ public class RsLogger {
 		}
 
 	}
-	
+
+	/**
+	 * Progress callback that logs every 10% at FINE, at most once per
+	 * {@link RsConstraints#PROGRESS_INTERVAL_NANOS} apart from the last step.
+	 * Between two lines it only compares numbers, and it is a no-op when FINE
+	 * is not logged.
+	 */
+	public static LongConsumer progress(Logger log, Path file, long totalBytes) {
+		if (!log.isLoggable(Level.FINE)) {
+			return NO_PROGRESS;
+		}
+		return new Progress(log, file, totalBytes);
+	}
+
+	private static final LongConsumer NO_PROGRESS = bytes -> {
+	};
+
+	private static final class Progress implements LongConsumer {
+		private final Logger log;
+		private final Path file;
+		private final long totalBytes;
+		private long nextStep; // bytes at which the next 10% step is reached
+		private long lastLogged = System.nanoTime();
+
+		Progress(Logger log, Path file, long totalBytes) {
+			this.log = log;
+			this.file = file;
+			this.totalBytes = totalBytes;
+			this.nextStep = totalBytes / 10;
+		}
+
+		@Override
+		public void accept(long bytes) {
+			if (bytes < nextStep || totalBytes == 0) {
+				return;
+			}
+			int percent = (int) (bytes * 100 / totalBytes);
+			percent -= percent % 10;
+			nextStep = (percent + 10) * totalBytes / 100;
+
+			long now = System.nanoTime();
+			if (bytes < totalBytes && now - lastLogged < RsConstraints.PROGRESS_INTERVAL_NANOS) {
+				return;
+			}
+			lastLogged = now;
+			log.log(Level.FINE, "{0} progress: {1}%", new Object[] { file.getFileName(), percent });
+		}
+	}
+
 	static class RsConsoleFormatter extends Formatter{
 		@Override
 		public String format(LogRecord log) {
@@ -0,0 +1,180 @@
+package com.rslock.common;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.zip.CRC32C;
+
+/**
+ * Record of the files encrypted into a destination, used by incremental runs
+ * to skip files that did not change.
+ *
+ * The manifest is a text file next to the destination directory, one
+ * {@code [SIZE]\t[MTIME_MILLIS]\t[CRC32C]\t[SOURCE_PATH]} line per file. A
+ * file is unchanged when its size and modification time match its entry and
+ * its output still exists; when only the modification time differs, the
+ * content hash decides. Hashing uses CRC32C, which the JVM runs on the CPU's
+ * CRC instructions, and happens on the worker that would otherwise encrypt
+ * the file, so candidates are hashed in parallel. Instances are thread-safe.
+ */
+public final class RsManifest {
+
+	private static final String SUFFIX = ".rslock-manifest";
+
+	/** State of one source file when it was last encrypted */
+	public record Entry(long size, long lastModified, long hash) {
+	}
+
+	private final Path file;
+	private final Map<Path, Entry> entries = new ConcurrentHashMap<>();
+	private final Set<Path> seen = ConcurrentHashMap.newKeySet();
+
+	private RsManifest(Path file) {
+		this.file = file;
+	}
+
+	/**
+	 * Manifest file kept next to a destination directory
+	 */
+	public static Path locate(Path destinationDir) {
+		Path dir = destinationDir.toAbsolutePath().normalize();
+		if (dir.getParent() == null) {
+			return dir.resolve(SUFFIX);
+		}
+		return dir.resolveSibling(dir.getFileName() + SUFFIX);
+	}
+
+	/**
+	 * Load the manifest of a destination, empty if none was written yet
+	 */
+	public static RsManifest load(Path destinationDir) throws IOException {
+		RsManifest manifest = new RsManifest(locate(destinationDir));
+		if (!Files.exists(manifest.file)) {
+			return manifest;
+		}
+		try (BufferedReader reader = Files.newBufferedReader(manifest.file, StandardCharsets.UTF_8)) {
+			String line;
+			while ((line = reader.readLine()) != null) {
+				String[] fields = line.split("\t", 4);
+				if (fields.length != 4) {
+					throw new IOException("Invalid manifest line in " + manifest.file + ": " + line);
+				}
+				manifest.entries.put(Path.of(fields[3]), new Entry(Long.parseLong(fields[0]),
+						Long.parseLong(fields[1]), Long.parseUnsignedLong(fields[2], 16)));
+			}
+		}
+		return manifest;
+	}
+
+	public Path getFile() {
+		return file;
+	}
+
+	public int size() {
+		return entries.size();
+	}
+
+	/**
+	 * Whether {@code source} is unchanged since its entry was written and its
+	 * output still exists. A matching hash refreshes the entry, so the next run
+	 * takes the quick size and time check again.
+	 */
+	public boolean isUnchanged(Path source, Path output) throws IOException {
+		Path key = key(source);
+		seen.add(key);
+		Entry entry = entries.get(key);
+		if (entry == null || !Files.exists(output)) {
+			return false;
+		}
+
+		BasicFileAttributes attrs = Files.readAttributes(source, BasicFileAttributes.class);
+		long lastModified = attrs.lastModifiedTime().toMillis();
+		if (attrs.size() != entry.size()) {
+			return false;
+		}
+		if (lastModified == entry.lastModified()) {
+			return true;
+		}
+
+		// Touched but maybe not modified, the content decides
+		if (hash(source) != entry.hash()) {
+			return false;
+		}
+		entries.put(key, new Entry(entry.size(), lastModified, entry.hash()));
+		return true;
+	}
+
+	/**
+	 * Record the state of a source that was just encrypted. The state is read
+	 * before encryption, so a file modified meanwhile is encrypted again on the
+	 * next run.
+	 */
+	public void update(Path source, Entry entry) {
+		Path key = key(source);
+		seen.add(key);
+		entries.put(key, entry);
+	}
+
+	/**
+	 * Current state of a source file, including its content hash
+	 */
+	public static Entry entry(Path source) throws IOException {
+		BasicFileAttributes attrs = Files.readAttributes(source, BasicFileAttributes.class);
+		return new Entry(attrs.size(), attrs.lastModifiedTime().toMillis(), hash(source));
+	}
+
+	/**
+	 * CRC32C of the file content
+	 */
+	public static long hash(Path source) throws IOException {
+		CRC32C crc = new CRC32C();
+		try (FileChannel channel = FileChannel.open(source, StandardOpenOption.READ)) {
+			ByteBuffer buffer = RsChannelCipher.threadBuffer(0, RsConstraints.MAX_BUFFER_SIZE);
+			long position = 0;
+			int read;
+			while ((read = channel.read(buffer.clear(), position)) > 0) {
+				position += read;
+				crc.update(buffer.flip());
+			}
+		}
+		return crc.getValue();
+	}
+
+	/**
+	 * Write the manifest through a temporary file, so an interrupted run
+	 * leaves the previous manifest intact. Entries of files that were not part
+	 * of this run are kept unless the file is gone.
+	 */
+	public void save() throws IOException {
+		Map<Path, Entry> sorted = new TreeMap<>(entries);
+		sorted.keySet().removeIf(path -> !seen.contains(path) && !Files.exists(path));
+
+		Path temp = file.resolveSibling(file.getFileName() + ".tmp");
+		try (BufferedWriter writer = Files.newBufferedWriter(temp, StandardCharsets.UTF_8)) {
+			for (Map.Entry<Path, Entry> e : sorted.entrySet()) {
+				Entry entry = e.getValue();
+				writer.write(entry.size() + "\t" + entry.lastModified() + "\t" + Long.toHexString(entry.hash())
+						+ "\t" + e.getKey());
+				writer.newLine();
+			}
+		}
+		Files.move(temp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+	}
+
+	private static Path key(Path source) {
+		return source.toAbsolutePath().normalize();
+	}
+
+}
@@ -0,0 +1,243 @@
+package com.rslock.common;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.logging.Logger;
+
+/**
+ * Process-wide ceiling on the memory held by the buffers of a run, heap and
+ * direct alike.
+ *
+ * The budget is split in two. Every worker keeps buffers of its own for the
+ * segment it works on ({@link RsChannelCipher#threadBuffer}), so
+ * {@link #configure} reserves them up front for the number of workers. The
+ * rest is shared by the files in flight: a file is admitted once its working
+ * set, estimated by {@link #workingSet}, fits next to those of the files
+ * already running, otherwise the scheduler waits and so does the walk behind
+ * it. A file larger than the whole budget still runs, alone. The number of
+ * files in flight is capped as well, for the descriptors and per-file state no
+ * estimate covers.
+ *
+ * Direct buffers of pipelines and segment windows come from {@link #allocate}
+ * and go back with {@link #release}. Free buffers are kept for the next file
+ * only while they fit in the budget next to the files in flight, and are
+ * dropped first when a file needs the room.
+ */
+public final class RsMemoryBudget {
+
+	private static final Logger LOG = Logger.getLogger(RsMemoryBudget.class.getName());
+
+	/** Buffers a worker keeps: ciphertext, plaintext and inflated segment */
+	static final long WORKER_BYTES = 3L * (1 + RsConstraints.SEGMENT_SIZE + RsConstraints.GCM_TAG_BITS / 8);
+
+	// Largest direct buffer of a pipeline, a CBC chunk with its padding
+	private static final int PIPELINE_BUFFER_SIZE = RsConstraints.MAX_BUFFER_SIZE + 32;
+
+	private static final Object LOCK = new Object();
+
+	// Free direct buffers by capacity, guarded by LOCK like the counters
+	private static final Map<Integer, ArrayDeque<ByteBuffer>> FREE = new HashMap<>();
+
+	private static long budget = RsConstraints.MEMORY_BUDGET;
+	private static long shared = Math.max(0, budget - RsConstraints.DEFAULT_PARALLELISM * WORKER_BYTES);
+	private static long inFlightBytes;
+	private static int inFlightFiles;
+	private static long pooledBytes;
+
+	/** Share of the budget held by files in flight, given back on close */
+	public static final class Permit implements AutoCloseable {
+
+		private final long bytes;
+		private final int files;
+		private boolean closed;
+
+		private Permit(long bytes, int files) {
+			this.bytes = bytes;
+			this.files = files;
+		}
+
+		@Override
+		public void close() {
+			synchronized (LOCK) {
+				if (closed)
+					return;
+				closed = true;
+				inFlightBytes -= bytes;
+				inFlightFiles -= files;
+				LOCK.notifyAll();
+			}
+		}
+	}
+
+	private RsMemoryBudget() {
+		throw new UnsupportedOperationException("This is a utility class and cannot be instantiated");
+	}
+
+	/**
+	 * Set the ceiling for the files admitted from now on
+	 *
+	 * @param workers number of threads of the pool the files run on
+	 */
+	public static void configure(long bytes, int workers) {
+		long reserved = workers * WORKER_BYTES + RsConstraints.MEMORY_FILE_OVERHEAD;
+		if (bytes < reserved) {
+			throw new IllegalArgumentException("Memory budget of " + Utility.formatBytes(bytes)
+					+ " cannot hold the buffers of " + workers + " worker(s), give at least "
+					+ Utility.formatBytes(reserved) + " or fewer workers with -p");
+		}
+		synchronized (LOCK) {
+			budget = bytes;
+			shared = bytes - workers * WORKER_BYTES;
+			trim();
+			LOCK.notifyAll();
+		}
+	}
+
+	/**
+	 * Set the budget of a run from its configuration. A --memory given on the
+	 * command line must hold the buffers of every worker, the default one
+	 * gives a small heap fewer workers instead.
+	 *
+	 * @return number of workers to run with
+	 */
+	public static int configure(RsLockConfig config) {
+		if (config.isMemoryBudgetSet()) {
+			configure(config.getMemoryBudget(), config.getParallelism());
+			return config.getParallelism();
+		}
+		return configureDefault(config.getMemoryBudget(), config.getParallelism());
+	}
+
+	/**
+	 * Set a budget nobody asked for, with as many of {@code workers} as it
+	 * holds. One worker always runs, the budget grows to its buffers when it
+	 * must, as a run had no ceiling at all before.
+	 *
+	 * @return number of workers the budget holds
+	 */
+	static int configureDefault(long bytes, int workers) {
+		long fit = (bytes - RsConstraints.MEMORY_FILE_OVERHEAD) / WORKER_BYTES;
+		int held = (int) Math.max(1, Math.min(workers, fit));
+		if (held < workers) {
+			LOG.warning("Memory budget of " + Utility.formatBytes(bytes) + " holds the buffers of " + held + " of "
+					+ workers + " worker(s), give a larger heap or --memory for more");
+		}
+		configure(Math.max(bytes, held * WORKER_BYTES + RsConstraints.MEMORY_FILE_OVERHEAD), held);
+		return held;
+	}
+
+	public static long getBudget() {
+		return budget;
+	}
+
+	/**
+	 * Estimated peak memory of decrypting a file of {@code size} bytes on a
+	 * pool of {@code parallelism} workers: a pipeline of buffers for a large
+	 * CBC file, a window of segments for a stream container, never more than
+	 * the file itself on top of a fixed overhead
+	 */
+	public static long workingSet(long size, int parallelism) {
+		long pipeline = (2L * RsConstraints.PIPELINE_DEPTH + 1) * PIPELINE_BUFFER_SIZE;
+		long window = 2L * RsSegmentedCipher.windowSize(parallelism)
+				* (1 + RsConstraints.SEGMENT_SIZE + RsConstraints.GCM_TAG_BITS / 8);
+		return RsConstraints.MEMORY_FILE_OVERHEAD + Math.min(size, Math.max(pipeline, window));
+	}
+
+	/**
+	 * Admit {@code files} files needing {@code bytes} if they fit right away
+	 *
+	 * @return null when they do not
+	 */
+	public static Permit tryAdmit(long bytes, int files) {
+		synchronized (LOCK) {
+			return fits(bytes, files) ? take(bytes, files) : null;
+		}
+	}
+
+	/**
+	 * Admit {@code files} files needing {@code bytes}, waiting for the files in
+	 * flight to give back enough of the budget
+	 */
+	public static Permit admit(long bytes, int files) throws InterruptedException {
+		synchronized (LOCK) {
+			while (!fits(bytes, files)) {
+				LOCK.wait();
+			}
+			return take(bytes, files);
+		}
+	}
+
+	// Anything fits when nothing is in flight, a file larger than the budget runs alone
+	private static boolean fits(long bytes, int files) {
+		return inFlightFiles == 0
+				|| (inFlightBytes + bytes <= shared && inFlightFiles + files <= RsConstraints.MEMORY_MAX_FILES);
+	}
+
+	private static Permit take(long bytes, int files) {
+		inFlightBytes += bytes;
+		inFlightFiles += files;
+		trim();
+		return new Permit(bytes, files);
+	}
+
+	/**
+	 * Direct buffer of exactly {@code capacity} bytes, a free one when there
+	 * is one, cleared
+	 */
+	static ByteBuffer allocate(int capacity) {
+		synchronized (LOCK) {
+			ArrayDeque<ByteBuffer> free = FREE.get(capacity);
+			ByteBuffer buffer = free != null ? free.poll() : null;
+			if (buffer != null) {
+				pooledBytes -= capacity;
+				return buffer.clear();
+			}
+		}
+		return ByteBuffer.allocateDirect(capacity);
+	}
+
+	/**
+	 * Give back a buffer of {@link #allocate}, its content is no longer used
+	 */
+	static void release(ByteBuffer buffer) {
+		int capacity = buffer.capacity();
+		synchronized (LOCK) {
+			ArrayDeque<ByteBuffer> free = FREE.computeIfAbsent(capacity, c -> new ArrayDeque<>());
+			// Buffers that do not fit are left to the garbage collector
+			if (free.size() < RsConstraints.PIPELINE_POOLED_BUFFERS
+					&& inFlightBytes + pooledBytes + capacity <= shared) {
+				free.add(buffer.clear());
+				pooledBytes += capacity;
+			}
+		}
+	}
+
+	// Drop free buffers until they fit next to the files in flight
+	private static void trim() {
+		Iterator<ArrayDeque<ByteBuffer>> buffers = FREE.values().iterator();
+		while (inFlightBytes + pooledBytes > shared && buffers.hasNext()) {
+			ArrayDeque<ByteBuffer> free = buffers.next();
+			while (!free.isEmpty() && inFlightBytes + pooledBytes > shared) {
+				pooledBytes -= free.poll().capacity();
+			}
+		}
+	}
+
+	/** Bytes held by the files in flight */
+	static long inFlightBytes() {
+		synchronized (LOCK) {
+			return inFlightBytes;
+		}
+	}
+
+	/** Bytes held by free buffers kept for reuse */
+	static long pooledBytes() {
+		synchronized (LOCK) {
+			return pooledBytes;
+		}
+	}
+
+}
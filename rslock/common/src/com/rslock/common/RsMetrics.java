@@ -0,0 +1,366 @@
+package com.rslock.common;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Process-wide counters, timers and histograms for the encryptor and
+ * decryptor, written as a JSON or Prometheus text report at the end of a run.
+ *
+ * Recording never allocates: counters are {@link LongAdder}s and histograms
+ * keep one bucket per power of two, so every metric can stay enabled on the
+ * per-segment hot path. Timers are histograms of nanoseconds, used as
+ * <pre>
+ * long start = System.nanoTime();
+ * ...
+ * RsMetrics.RSA_UNWRAP.stop(start);
+ * </pre>
+ * Percentiles are read from the buckets and are therefore upper bounds, at
+ * most twice the real value. Info metrics record choices made once per run,
+ * such as the security provider of each algorithm.
+ */
+public final class RsMetrics {
+
+	private static final List<Counter> COUNTERS = Collections.synchronizedList(new ArrayList<>());
+	private static final List<Histogram> HISTOGRAMS = Collections.synchronizedList(new ArrayList<>());
+	private static final List<Info> INFOS = Collections.synchronizedList(new ArrayList<>());
+	private static final long STARTED = System.nanoTime();
+
+	// Phases
+	public static final Timer KEYSTORE_LOAD = timer("keystore_load", "Loading the keystore and its key");
+	public static final Timer RSA_WRAP = timer("rsa_wrap", "Wrapping an AES key with the RSA public key");
+	public static final Timer RSA_UNWRAP = timer("rsa_unwrap", "Unwrapping an AES key with the RSA private key");
+	public static final Timer CIPHER = timer("cipher", "AES encryption or decryption of one buffer or segment");
+	public static final Timer COMPRESSION = timer("compression", "Compressing or decompressing one segment");
+	public static final Timer DISK_READ = timer("disk_read", "Waiting for one positional read");
+	public static final Timer DISK_WRITE = timer("disk_write", "Waiting for one positional write");
+	public static final Timer FILE = timer("file", "Processing one file, end to end");
+	public static final Timer FSYNC = timer("fsync", "Forcing one output file, or one batch of them, to disk");
+	public static final Timer PIPELINE_WAIT = timer("pipeline_wait", "Cipher stage waiting for the reader stage");
+	public static final Timer MEMORY_WAIT = timer("memory_wait", "Waiting for the memory budget to admit files");
+	public static final Timer PROVIDER_BENCHMARK = timer("provider_benchmark",
+			"Checking and timing one candidate security provider");
+
+	// Volumes
+	public static final Counter CIPHER_BYTES = counter("cipher_bytes", "Bytes passed through the cipher");
+	public static final Counter BYTES_IN = counter("bytes_in", "Bytes read from disk");
+	public static final Counter BYTES_OUT = counter("bytes_out", "Bytes written to disk");
+	public static final Counter FILES = counter("files", "Files processed");
+	public static final Counter FILES_FAILED = counter("files_failed", "Files that failed");
+	public static final Histogram FILE_SIZE = histogram("file_size_bytes", "Size of the processed files");
+
+	// Choices
+	public static final Info PROVIDER = info("provider", "algorithm", "Security provider selected per algorithm");
+
+	private RsMetrics() {
+		throw new UnsupportedOperationException("This is a utility class and cannot be instantiated");
+	}
+
+	/**
+	 * Monotonic count
+	 */
+	public static final class Counter {
+		private final String name;
+		private final String help;
+		private final LongAdder value = new LongAdder();
+
+		private Counter(String name, String help) {
+			this.name = name;
+			this.help = help;
+		}
+
+		public void add(long delta) {
+			value.add(delta);
+		}
+
+		public void increment() {
+			value.increment();
+		}
+
+		public long get() {
+			return value.sum();
+		}
+
+		public String getName() {
+			return name;
+		}
+	}
+
+	/**
+	 * Distribution of non-negative values in power of two buckets: bucket
+	 * {@code i} counts values below {@code 2^i}
+	 */
+	public static class Histogram {
+		private static final int BUCKETS = 64;
+
+		private final String name;
+		private final String help;
+		private final LongAdder count = new LongAdder();
+		private final LongAdder sum = new LongAdder();
+		private final AtomicLong max = new AtomicLong();
+		private final AtomicLongArray buckets = new AtomicLongArray(BUCKETS);
+
+		private Histogram(String name, String help) {
+			this.name = name;
+			this.help = help;
+		}
+
+		public void record(long value) {
+			long v = Math.max(0, value);
+			count.increment();
+			sum.add(v);
+			buckets.incrementAndGet(Math.min(BUCKETS - 1, 64 - Long.numberOfLeadingZeros(v)));
+			long current;
+			while (v > (current = max.get()) && !max.compareAndSet(current, v)) {
+				// Lost the race to a bigger or concurrent value, check again
+			}
+		}
+
+		public long getCount() {
+			return count.sum();
+		}
+
+		public long getSum() {
+			return sum.sum();
+		}
+
+		public long getMax() {
+			return max.get();
+		}
+
+		public String getName() {
+			return name;
+		}
+
+		/**
+		 * Upper bound of the value below which {@code quantile} of the recordings
+		 * fall
+		 */
+		public long percentile(double quantile) {
+			long total = getCount();
+			if (total == 0) {
+				return 0;
+			}
+			long rank = (long) Math.ceil(quantile * total);
+			long seen = 0;
+			for (int i = 0; i < BUCKETS; i++) {
+				seen += buckets.get(i);
+				if (seen >= rank) {
+					return Math.min(getMax(), upperBound(i));
+				}
+			}
+			return getMax();
+		}
+
+		private static long upperBound(int bucket) {
+			return bucket >= 63 ? Long.MAX_VALUE : 1L << bucket;
+		}
+
+		/** Unit the values are reported in, and the factor to get there */
+		String unit() {
+			return "bytes";
+		}
+
+		double scale() {
+			return 1;
+		}
+	}
+
+	/**
+	 * Histogram of durations in nanoseconds, reported in seconds
+	 */
+	public static final class Timer extends Histogram {
+
+		private Timer(String name, String help) {
+			super(name, help);
+		}
+
+		/** Record the time elapsed since {@code startNanos} */
+		public void stop(long startNanos) {
+			record(System.nanoTime() - startNanos);
+		}
+
+		@Override
+		String unit() {
+			return "seconds";
+		}
+
+		@Override
+		double scale() {
+			return 1e-9;
+		}
+	}
+
+	/**
+	 * Textual values by key, such as the provider chosen for each algorithm
+	 */
+	public static final class Info {
+		private final String name;
+		private final String key;
+		private final String help;
+		private final Map<String, String> values = new ConcurrentSkipListMap<>();
+
+		private Info(String name, String key, String help) {
+			this.name = name;
+			this.key = key;
+			this.help = help;
+		}
+
+		public void set(String key, String value) {
+			values.put(key, value);
+		}
+
+		public String get(String key) {
+			return values.get(key);
+		}
+
+		public String getName() {
+			return name;
+		}
+	}
+
+	public static Counter counter(String name, String help) {
+		Counter counter = new Counter(name, help);
+		COUNTERS.add(counter);
+		return counter;
+	}
+
+	public static Histogram histogram(String name, String help) {
+		Histogram histogram = new Histogram(name, help);
+		HISTOGRAMS.add(histogram);
+		return histogram;
+	}
+
+	public static Timer timer(String name, String help) {
+		Timer timer = new Timer(name, help);
+		HISTOGRAMS.add(timer);
+		return timer;
+	}
+
+	public static Info info(String name, String key, String help) {
+		Info info = new Info(name, key, help);
+		INFOS.add(info);
+		return info;
+	}
+
+	/**
+	 * Write the report, as Prometheus text exposition when the file name ends
+	 * with {@code .prom}, as JSON otherwise
+	 */
+	public static void writeReport(Path file, String run) throws IOException {
+		try (Writer writer = Files.newBufferedWriter(file, StandardCharsets.UTF_8)) {
+			if (file.getFileName().toString().endsWith(".prom")) {
+				writePrometheus(writer, run);
+			} else {
+				writeJson(writer, run);
+			}
+		}
+	}
+
+	static void writeJson(Writer out, String run) throws IOException {
+		out.write("{\n");
+		out.write("  \"run\": \"" + run + "\",\n");
+		out.write("  \"elapsed_seconds\": " + format((System.nanoTime() - STARTED) * 1e-9) + ",\n");
+
+		out.write("  \"counters\": {");
+		List<Counter> counters = snapshot(COUNTERS);
+		for (int i = 0; i < counters.size(); i++) {
+			Counter c = counters.get(i);
+			out.write((i == 0 ? "\n" : ",\n") + "    \"" + c.name + "\": " + c.get());
+		}
+		out.write("\n  },\n");
+
+		out.write("  \"histograms\": {");
+		List<Histogram> histograms = snapshot(HISTOGRAMS);
+		for (int i = 0; i < histograms.size(); i++) {
+			Histogram h = histograms.get(i);
+			double scale = h.scale();
+			out.write((i == 0 ? "\n" : ",\n") + "    \"" + h.name + "\": {"
+					+ "\"unit\": \"" + h.unit() + "\", "
+					+ "\"count\": " + h.getCount() + ", "
+					+ "\"sum\": " + format(h.getSum() * scale) + ", "
+					+ "\"mean\": " + format(h.getCount() == 0 ? 0 : h.getSum() * scale / h.getCount()) + ", "
+					+ "\"p50\": " + format(h.percentile(0.50) * scale) + ", "
+					+ "\"p90\": " + format(h.percentile(0.90) * scale) + ", "
+					+ "\"p99\": " + format(h.percentile(0.99) * scale) + ", "
+					+ "\"max\": " + format(h.getMax() * scale) + "}");
+		}
+		out.write("\n  },\n");
+
+		out.write("  \"info\": {");
+		List<Info> infos = snapshot(INFOS);
+		for (int i = 0; i < infos.size(); i++) {
+			Info info = infos.get(i);
+			out.write((i == 0 ? "\n" : ",\n") + "    \"" + info.name + "\": {");
+			int j = 0;
+			for (Map.Entry<String, String> e : info.values.entrySet()) {
+				out.write((j++ == 0 ? "" : ", ") + "\"" + e.getKey() + "\": \"" + e.getValue() + "\"");
+			}
+			out.write("}");
+		}
+		out.write("\n  }\n");
+		out.write("}\n");
+	}
+
+	static void writePrometheus(Writer out, String run) throws IOException {
+		String labels = "run=\"" + run + "\"";
+		for (Counter c : snapshot(COUNTERS)) {
+			String name = "rslock_" + c.name + "_total";
+			out.write("# HELP " + name + " " + c.help + "\n");
+			out.write("# TYPE " + name + " counter\n");
+			out.write(name + "{" + labels + "} " + c.get() + "\n");
+		}
+		for (Histogram h : snapshot(HISTOGRAMS)) {
+			String name = "rslock_" + h.name + (h instanceof Timer ? "_seconds" : "");
+			double scale = h.scale();
+			out.write("# HELP " + name + " " + h.help + "\n");
+			out.write("# TYPE " + name + " histogram\n");
+			long count = h.getCount();
+			long cumulative = 0;
+			for (int i = 0; i < Histogram.BUCKETS - 1 && cumulative < count; i++) {
+				cumulative += h.buckets.get(i);
+				// Buckets below the smallest value carry no information
+				if (cumulative == 0)
+					continue;
+				out.write(name + "_bucket{" + labels + ",le=\"" + format(Histogram.upperBound(i) * scale) + "\"} "
+						+ cumulative + "\n");
+			}
+			out.write(name + "_bucket{" + labels + ",le=\"+Inf\"} " + count + "\n");
+			out.write(name + "_sum{" + labels + "} " + format(h.getSum() * scale) + "\n");
+			out.write(name + "_count{" + labels + "} " + count + "\n");
+		}
+		for (Info info : snapshot(INFOS)) {
+			// Info metrics carry their values in labels, the sample is always 1
+			String name = "rslock_" + info.name + "_info";
+			out.write("# HELP " + name + " " + info.help + "\n");
+			out.write("# TYPE " + name + " gauge\n");
+			for (Map.Entry<String, String> e : info.values.entrySet()) {
+				out.write(name + "{" + labels + "," + info.key + "=\"" + e.getKey() + "\"," + info.name + "=\""
+						+ e.getValue() + "\"} 1\n");
+			}
+		}
+	}
+
+	private static <T> List<T> snapshot(List<T> metrics) {
+		synchronized (metrics) {
+			return new ArrayList<>(metrics);
+		}
+	}
+
+	private static String format(double value) {
+		return String.format(Locale.ROOT, "%.9g", value);
+	}
+
+}
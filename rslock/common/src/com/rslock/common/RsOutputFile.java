@@ -0,0 +1,285 @@
+package com.rslock.common;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.logging.Logger;
+
+/**
+ * Output file that only appears under its name once it is complete.
+ *
+ * Data goes to a hidden temporary file next to the target, grown to the
+ * expected size up front so the file system sees the final size at once, and
+ * is renamed over the target atomically on {@link #commit(long)}. A crash or a
+ * failure leaves the previous target untouched, never a truncated one; a
+ * failed file deletes its temporary file on {@link #close()}.
+ *
+ * How durable a commit is depends on the {@link Sync} policy, set once per run
+ * with {@link #configure(Sync)}:
+ * <ul>
+ * <li>{@link Sync#FILE}: every file is synced before its rename, and its
+ * directory after it</li>
+ * <li>{@link Sync#BATCH}: complete files wait, still under their temporary
+ * name, until {@link RsConstraints#FSYNC_BATCH_FILES} files or
+ * {@link RsConstraints#FSYNC_BATCH_BYTES} bytes are pending or
+ * {@link #flush()} is called, then they are synced, renamed and their
+ * directories synced together. A crash loses at most the pending batch.</li>
+ * <li>{@link Sync#NONE}: renamed right away and left to the page cache,
+ * atomic but not durable</li>
+ * </ul>
+ * The rename always comes after the sync, so a file that made it under its
+ * final name also made it to disk.
+ *
+ * A {@link #resumable} output has a fixed temporary name instead, kept when
+ * the file is not committed, so an {@link RsJournal} can continue it later.
+ * Its journal is deleted once it is committed, so it never waits for a batch:
+ * it is synced and published like {@link Sync#FILE} before commit returns.
+ */
+public final class RsOutputFile implements AutoCloseable {
+
+	private static final Logger LOG = Logger.getLogger(RsOutputFile.class.getName());
+
+	/** When outputs are forced to disk */
+	public enum Sync {
+		FILE, BATCH, NONE;
+
+		public static Sync parse(String value) {
+			for (Sync s : values())
+				if (s.name().equalsIgnoreCase(value.trim()))
+					return s;
+			throw new IllegalArgumentException("Unknown fsync policy: " + value + " (expected file, batch or none)");
+		}
+	}
+
+	// Temporary files keep the target name at the end, so walkers filtering on the extension skip them too
+	private static final String TEMP_PREFIX = ".rstmp-";
+
+	private static volatile Sync sync = Sync.parse(RsConstraints.FSYNC_POLICY);
+	private static final List<RsOutputFile> PENDING = new ArrayList<>();
+	private static long pendingBytes;
+
+	private static final String RESUME_PREFIX = TEMP_PREFIX + "resume-";
+
+	private final Path target;
+	private final Path temp;
+	private final FileChannel channel;
+	private final boolean keep;
+	private long size;
+	private boolean committed;
+
+	private RsOutputFile(Path target, Path temp, FileChannel channel, boolean keep) {
+		this.target = target;
+		this.temp = temp;
+		this.channel = channel;
+		this.keep = keep;
+	}
+
+	/**
+	 * Set the policy for the files committed from now on
+	 */
+	public static void configure(Sync policy) {
+		sync = policy;
+	}
+
+	public static Sync getSync() {
+		return sync;
+	}
+
+	/**
+	 * Start writing {@code target}
+	 *
+	 * @param expectedSize size the file will have, or an upper bound of it, 0
+	 *                     or less when unknown
+	 */
+	public static RsOutputFile create(Path target, long expectedSize) throws IOException {
+		String suffix = Long.toHexString(ThreadLocalRandom.current().nextLong()) + "-" + target.getFileName();
+		Path temp = target.resolveSibling(TEMP_PREFIX + suffix);
+		FileChannel channel = FileChannel.open(temp, StandardOpenOption.CREATE_NEW, StandardOpenOption.WRITE);
+		try {
+			if (expectedSize > 0) {
+				// No fallocate in Java: writing the last byte sets the final size in one metadata update
+				channel.write(ByteBuffer.allocate(1), expectedSize - 1);
+			}
+		} catch (IOException e) {
+			channel.close();
+			Files.deleteIfExists(temp);
+			throw e;
+		}
+		return new RsOutputFile(target, temp, channel, false);
+	}
+
+	/**
+	 * Start writing {@code target} under a temporary name of its own that
+	 * {@link #close()} leaves in place, or continue writing it
+	 *
+	 * @param resume keep what an earlier run wrote, otherwise start empty
+	 */
+	public static RsOutputFile resumable(Path target, long expectedSize, boolean resume) throws IOException {
+		Path temp = resumeFile(target);
+		if (resume) {
+			return new RsOutputFile(target, temp,
+					FileChannel.open(temp, StandardOpenOption.READ, StandardOpenOption.WRITE), true);
+		}
+		FileChannel channel = FileChannel.open(temp, StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING,
+				StandardOpenOption.READ, StandardOpenOption.WRITE);
+		try {
+			if (expectedSize > 0) {
+				channel.write(ByteBuffer.allocate(1), expectedSize - 1);
+			}
+		} catch (IOException e) {
+			channel.close();
+			throw e;
+		}
+		return new RsOutputFile(target, temp, channel, true);
+	}
+
+	/**
+	 * Temporary file a {@link #resumable} output of {@code target} is written to
+	 */
+	static Path resumeFile(Path target) {
+		return target.resolveSibling(RESUME_PREFIX + target.getFileName());
+	}
+
+	/**
+	 * Whether a file is the temporary file of an output, complete or not
+	 */
+	static boolean isTemporary(Path file) {
+		return file.getFileName().toString().startsWith(TEMP_PREFIX);
+	}
+
+	/**
+	 * Channel to write the content to, with positional writes
+	 */
+	public FileChannel channel() {
+		return channel;
+	}
+
+	/**
+	 * Cut the file to {@code size}, the final length when less than the
+	 * expected size, and publish it under the target name as the policy says
+	 */
+	public void commit(long size) throws IOException {
+		if (channel.size() > size) {
+			channel.truncate(size);
+		}
+		this.size = size;
+		committed = true;
+
+		// A resumable output waiting for a batch would outlive its journal unpublished
+		Sync policy = keep && sync == Sync.BATCH ? Sync.FILE : sync;
+		switch (policy) {
+			case FILE -> {
+				long start = System.nanoTime();
+				channel.force(false);
+				channel.close();
+				publish();
+				syncDirectory(target.toAbsolutePath().getParent());
+				RsMetrics.FSYNC.stop(start);
+			}
+			case BATCH -> {
+				// Stays open for its sync
+				boolean full;
+				synchronized (PENDING) {
+					PENDING.add(this);
+					pendingBytes += size;
+					full = PENDING.size() >= RsConstraints.FSYNC_BATCH_FILES
+							|| pendingBytes >= RsConstraints.FSYNC_BATCH_BYTES;
+				}
+				if (full) {
+					flush();
+				}
+			}
+			case NONE -> {
+				channel.close();
+				publish();
+			}
+		}
+	}
+
+	/**
+	 * Sync and publish the files waiting for a batch. Called at the end of
+	 * every run, a no-op for the other policies.
+	 */
+	public static void flush() throws IOException {
+		List<RsOutputFile> batch;
+		synchronized (PENDING) {
+			if (PENDING.isEmpty())
+				return;
+			batch = new ArrayList<>(PENDING);
+			PENDING.clear();
+			pendingBytes = 0;
+		}
+
+		long start = System.nanoTime();
+		IOException failure = null;
+		Set<Path> directories = new LinkedHashSet<>();
+		for (RsOutputFile file : batch) {
+			try (file.channel) {
+				file.channel.force(false);
+			} catch (IOException e) {
+				// Not on disk, so not published either
+				Files.deleteIfExists(file.temp);
+				failure = failure != null ? failure : e;
+				continue;
+			}
+			try {
+				file.publish();
+				directories.add(file.target.toAbsolutePath().getParent());
+			} catch (IOException e) {
+				failure = failure != null ? failure : e;
+			}
+		}
+		for (Path directory : directories) {
+			syncDirectory(directory);
+		}
+		RsMetrics.FSYNC.stop(start);
+		LOG.fine(() -> "Synced " + batch.size() + " file(s) in " + directories.size() + " directory(ies)");
+		if (failure != null) {
+			throw failure;
+		}
+	}
+
+	private void publish() throws IOException {
+		Files.move(temp, target, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+	}
+
+	// Makes the renames durable, not every platform can open a directory
+	private static void syncDirectory(Path directory) {
+		try (FileChannel channel = FileChannel.open(directory, StandardOpenOption.READ)) {
+			channel.force(true);
+		} catch (IOException e) {
+			LOG.fine(() -> "Cannot sync directory " + directory + ": " + e.getMessage());
+		}
+	}
+
+	/**
+	 * Final size given to {@link #commit(long)}
+	 */
+	public long size() {
+		return size;
+	}
+
+	/**
+	 * Discard the file unless it was committed, a resumable file is only closed
+	 */
+	@Override
+	public void close() throws IOException {
+		if (committed) {
+			return;
+		}
+		channel.close();
+		if (!keep) {
+			Files.deleteIfExists(temp);
+		}
+	}
+
+}
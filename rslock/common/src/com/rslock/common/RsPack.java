@@ -0,0 +1,218 @@
+package com.rslock.common;
+
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.PathMatcher;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ForkJoinPool;
+
+/**
+ * Many files in one encrypted container.
+ *
+ * The plaintext of a pack is the content of its members one after the other,
+ * then a file table and a fixed-size trailer:
+ * <pre>
+ * [MEMBER_0][MEMBER_1]...
+ * [MEMBER_COUNT:4] then per member [NAME_SIZE:2][NAME][OFFSET:8][SIZE:8]
+ * [TABLE_OFFSET:8][TABLE_SIZE:4][PACK_MAGIC:4]
+ * </pre>
+ * It is sealed like any container ({@link RsContainerHeader#FLAG_PACK} set),
+ * so a pack of many small files pays for one header, one RSA wrap, one inode
+ * and one tag per segment instead of per file. Segments are decrypted on their
+ * own: listing reads only the segments holding the table, extracting a member
+ * only those holding the member. The table sits at the end because the
+ * members are streamed in before it, names are encrypted like the data.
+ */
+public final class RsPack {
+
+	private static final int PACK_MAGIC = 0x5253504B; // "RSPK"
+	private static final int TRAILER_SIZE = 16;
+
+	/** One file of a pack, its name is the path relative to the packed tree with / separators */
+	public record Member(String name, long offset, long size) {
+	}
+
+	private RsPack() {
+		throw new UnsupportedOperationException("This is a utility class and cannot be instantiated");
+	}
+
+	/**
+	 * Whether a .rslocked file is a pack rather than a single file
+	 */
+	public static boolean isPack(Path file) throws Exception {
+		if (!RsContainerHeader.isContainer(file)) {
+			return false;
+		}
+		try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+			return (RsContainerHeader.read(channel).getFlags() & RsContainerHeader.FLAG_PACK) != 0;
+		}
+	}
+
+	/**
+	 * Encrypt {@code sources} into the single pack file {@code packFile}.
+	 * Members are read straight from their files into the segments that hold
+	 * them, nothing is staged on disk.
+	 *
+	 * @return number of member bytes packed
+	 */
+	public static long pack(List<RsFileWalker.Source> sources, Path packFile, RsKeySession.FileKey fileKey,
+			RsCodec codec, ForkJoinPool pool) throws Exception {
+		int count = sources.size();
+		long[] offsets = new long[count + 1];
+		List<byte[]> names = new ArrayList<>(count);
+		Set<String> unique = new HashSet<>();
+		long tableSize = 4;
+		for (int i = 0; i < count; i++) {
+			RsFileWalker.Source source = sources.get(i);
+			if (source.error() != null) {
+				// A member the walk could not read would leave a hole in the pack
+				throw source.error();
+			}
+			offsets[i + 1] = offsets[i] + source.size();
+			String memberName = memberName(source.relative());
+			if (!unique.add(memberName)) {
+				throw new IllegalArgumentException("Two sources would share the name " + memberName + " in the pack");
+			}
+			byte[] name = memberName.getBytes(StandardCharsets.UTF_8);
+			if (name.length > 0xFFFF) {
+				throw new IllegalArgumentException("Name too long for a pack: " + source.relative());
+			}
+			names.add(name);
+			tableSize += 2 + name.length + 16;
+		}
+		long dataSize = offsets[count];
+		if (tableSize + TRAILER_SIZE > Integer.MAX_VALUE) {
+			throw new IllegalArgumentException("Too many files for one pack: " + count);
+		}
+
+		ByteBuffer table = ByteBuffer.allocate((int) tableSize + TRAILER_SIZE);
+		table.putInt(count);
+		for (int i = 0; i < count; i++) {
+			table.putShort((short) names.get(i).length).put(names.get(i));
+			table.putLong(offsets[i]).putLong(offsets[i + 1] - offsets[i]);
+		}
+		table.putLong(dataSize).putInt((int) tableSize).putInt(PACK_MAGIC).flip();
+
+		RsSegmentedCipher.Plaintext plaintext = (position, buffer) -> {
+			while (buffer.hasRemaining()) {
+				if (position >= dataSize) {
+					int start = (int) (position - dataSize);
+					buffer.put(table.duplicate().position(start).limit(start + buffer.remaining()));
+					return;
+				}
+				int member = Arrays.binarySearch(offsets, position);
+				member = member >= 0 ? member : -member - 2;
+				// Empty members share their offset with the next one
+				while (offsets[member + 1] <= position) {
+					member++;
+				}
+				int length = (int) Math.min(buffer.remaining(), offsets[member + 1] - position);
+				readMember(sources.get(member), position - offsets[member], buffer.slice(buffer.position(), length));
+				buffer.position(buffer.position() + length);
+				position += length;
+			}
+		};
+		RsSegmentedCipher.encrypt(plaintext, dataSize + table.remaining(), RsContainerHeader.FLAG_PACK, packFile,
+				fileKey, codec, pool);
+		return dataSize;
+	}
+
+	private static void readMember(RsFileWalker.Source source, long position, ByteBuffer buffer) throws Exception {
+		try (FileChannel in = FileChannel.open(source.file(), StandardOpenOption.READ)) {
+			// The table was written for the size the walk saw
+			if (in.size() != source.size()) {
+				throw new IllegalStateException("File changed while it was packed: " + source.file());
+			}
+			Utility.readFully(in, position, buffer);
+		}
+	}
+
+	private static String memberName(Path relative) {
+		List<String> parts = new ArrayList<>();
+		for (Path part : relative) {
+			parts.add(part.toString());
+		}
+		return String.join("/", parts);
+	}
+
+	/**
+	 * Read the file table of an open pack, decrypting only its last segments
+	 */
+	public static List<Member> list(RsLockedFile pack) throws Exception {
+		if (!pack.isPack()) {
+			throw new IllegalArgumentException("Not a pack");
+		}
+		long size = pack.size();
+		if (size < TRAILER_SIZE) {
+			throw new IllegalArgumentException("Pack too short for its trailer");
+		}
+		ByteBuffer trailer = ByteBuffer.wrap(pack.readRange(size - TRAILER_SIZE, TRAILER_SIZE));
+		long tableOffset = trailer.getLong();
+		int tableSize = trailer.getInt();
+		if (trailer.getInt() != PACK_MAGIC || tableSize < 4 || tableOffset + tableSize != size - TRAILER_SIZE) {
+			throw new IllegalArgumentException("Invalid pack trailer");
+		}
+
+		ByteBuffer table = ByteBuffer.wrap(pack.readRange(tableOffset, tableSize));
+		int count = table.getInt();
+		List<Member> members = new ArrayList<>(Math.min(count, tableSize / 18));
+		for (int i = 0; i < count; i++) {
+			byte[] name = new byte[Short.toUnsignedInt(table.getShort())];
+			table.get(name);
+			Member member = new Member(new String(name, StandardCharsets.UTF_8), table.getLong(), table.getLong());
+			if (member.offset() < 0 || member.size() < 0 || member.offset() + member.size() > tableOffset) {
+				throw new IllegalArgumentException("Invalid pack member: " + member.name());
+			}
+			members.add(member);
+		}
+		return members;
+	}
+
+	/**
+	 * Decrypt the members of a pack matching {@code filter}, all of them when
+	 * it is null, into {@code destinationDir} under their own names
+	 *
+	 * @return number of member bytes extracted
+	 */
+	public static long extract(Path packFile, RsKeySession session, Path destinationDir, PathMatcher filter)
+			throws Exception {
+		Path root = destinationDir.toAbsolutePath().normalize();
+		long extracted = 0;
+		try (RsLockedFile pack = RsLockedFile.open(packFile, session)) {
+			ByteBuffer buffer = ByteBuffer.allocate(pack.blockSize());
+			for (Member member : list(pack)) {
+				Path name = Path.of(member.name());
+				if (filter != null && !filter.matches(name)) {
+					continue;
+				}
+				Path target = root.resolve(member.name()).normalize();
+				if (name.isAbsolute() || !target.startsWith(root) || target.equals(root)) {
+					throw new IllegalArgumentException("Unsafe member name in pack: " + member.name());
+				}
+				Files.createDirectories(target.getParent());
+
+				try (RsOutputFile output = RsOutputFile.create(target, member.size())) {
+					for (long done = 0; done < member.size();) {
+						buffer.clear().limit((int) Math.min(buffer.capacity(), member.size() - done));
+						pack.read(member.offset() + done, buffer);
+						buffer.flip();
+						Utility.writeFully(output.channel(), buffer, done);
+						done += buffer.limit();
+					}
+					output.commit(member.size());
+				}
+				extracted += member.size();
+			}
+		}
+		return extracted;
+	}
+
+}
@@ -0,0 +1,197 @@
+package com.rslock.common;
+
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayDeque;
+import java.util.Queue;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.Future;
+
+/**
+ * Three stage pipeline for one large file: a reader thread fills buffers from
+ * the input, the cipher stage transforms them and a writer thread writes the
+ * results, so disk latency and the cipher overlap instead of taking turns.
+ *
+ * The stages are linked by bounded queues of direct buffers that go round and
+ * round: the reader takes free input buffers, the cipher stage hands them back
+ * and takes free output buffers, the writer hands those back. At most
+ * {@code depth} chunks are read ahead, the reader waits when the cipher falls
+ * behind and the cipher waits when the writer does. Buffers come from the
+ * {@link RsMemoryBudget} and go back to it afterwards, for the next file.
+ *
+ * The cipher stage runs on the calling thread in chunk order, for streams such
+ * as CBC, or as tasks forked into a {@link ForkJoinPool} when chunks are
+ * independent, like GCM segments. Forked tasks are joined oldest first, so a
+ * pool worker calling this never waits on a task nobody runs.
+ */
+final class RsPipeline {
+
+	/** Fills {@code buffer} with chunk {@code chunk}, the pipeline flips it */
+	@FunctionalInterface
+	interface Reader {
+		void read(int chunk, ByteBuffer buffer) throws Exception;
+	}
+
+	/**
+	 * Transforms the flipped {@code input} into the cleared {@code output},
+	 * the pipeline flips it
+	 *
+	 * @return position the output is written at
+	 */
+	@FunctionalInterface
+	interface Stage {
+		long transform(int chunk, ByteBuffer input, ByteBuffer output) throws Exception;
+	}
+
+	private static final ExecutorService IO = Executors.newCachedThreadPool(RsBatch.threadFactory("rslock-io"));
+
+	// Handed from a stage to the next, END closes the stream
+	private record Chunk(int index, ByteBuffer buffer, long position, Exception error) {
+	}
+
+	private static final Chunk END = new Chunk(-1, null, 0, null);
+
+	private RsPipeline() {
+		throw new UnsupportedOperationException("This is a utility class and cannot be instantiated");
+	}
+
+	/**
+	 * Run {@code chunks} chunks through reader, stage and writer
+	 *
+	 * @param out  channel the outputs are written to, null to discard them
+	 * @param pool runs the stage for several chunks at once, null to run it on
+	 *             the calling thread in chunk order
+	 */
+	static void run(int chunks, int inputSize, int outputSize, int depth, Reader reader, Stage stage, FileChannel out,
+			ForkJoinPool pool) throws Exception {
+		BlockingQueue<ByteBuffer> freeInputs = new ArrayBlockingQueue<>(depth);
+		BlockingQueue<ByteBuffer> freeOutputs = new ArrayBlockingQueue<>(depth + 1);
+		BlockingQueue<Chunk> filled = new ArrayBlockingQueue<>(depth + 1);
+		BlockingQueue<Chunk> sealed = new ArrayBlockingQueue<>(depth + 2);
+		for (int i = 0; i < depth; i++) {
+			freeInputs.add(RsMemoryBudget.allocate(inputSize));
+			freeOutputs.add(RsMemoryBudget.allocate(outputSize));
+		}
+		freeOutputs.add(RsMemoryBudget.allocate(outputSize));
+
+		Future<?> readerTask = IO.submit(() -> read(chunks, reader, freeInputs, filled));
+		Future<Exception> writerTask = IO.submit(() -> write(out, sealed, freeOutputs));
+		boolean completed = false;
+		try {
+			Queue<ForkJoinTask<Chunk>> inFlight = new ArrayDeque<>(depth);
+			for (int i = 0; i < chunks; i++) {
+				long waitStart = System.nanoTime();
+				Chunk input = filled.take();
+				RsMetrics.PIPELINE_WAIT.stop(waitStart);
+				if (input.error() != null) {
+					throw input.error();
+				}
+				if (inFlight.size() >= depth) {
+					sealed.put(done(inFlight.remove()));
+				}
+				ByteBuffer output = freeOutputs.take();
+
+				ForkJoinTask<Chunk> task = ForkJoinTask.adapt(() -> {
+					try {
+						output.clear();
+						long position = stage.transform(input.index(), input.buffer(), output);
+						output.flip();
+						return new Chunk(input.index(), output, position, null);
+					} catch (Exception e) {
+						return new Chunk(input.index(), output, 0, e);
+					} finally {
+						freeInputs.put(input.buffer().clear());
+					}
+				});
+				if (pool != null) {
+					pool.execute(task);
+					inFlight.add(task);
+				} else {
+					task.invoke();
+					sealed.put(done(task));
+				}
+			}
+			while (!inFlight.isEmpty()) {
+				sealed.put(done(inFlight.remove()));
+			}
+			sealed.put(END);
+
+			Exception writeError = writerTask.get();
+			if (writeError != null) {
+				throw writeError;
+			}
+			completed = true;
+		} finally {
+			if (completed) {
+				// Every buffer is back in its free queue
+				recycle(freeInputs);
+				recycle(freeOutputs);
+			} else {
+				// Stages may still hold buffers, leave them all to the garbage collector
+				readerTask.cancel(true);
+				writerTask.cancel(true);
+			}
+		}
+	}
+
+	private static Chunk done(ForkJoinTask<Chunk> task) throws Exception {
+		Chunk chunk = task.join();
+		if (chunk.error() != null) {
+			throw chunk.error();
+		}
+		return chunk;
+	}
+
+	private static Void read(int chunks, Reader reader, BlockingQueue<ByteBuffer> free, BlockingQueue<Chunk> filled)
+			throws InterruptedException {
+		for (int i = 0; i < chunks; i++) {
+			ByteBuffer buffer = free.take();
+			try {
+				reader.read(i, buffer);
+				buffer.flip();
+				filled.put(new Chunk(i, buffer, 0, null));
+			} catch (InterruptedException e) {
+				throw e;
+			} catch (Exception e) {
+				free.put(buffer);
+				filled.put(new Chunk(i, null, 0, e));
+				return null;
+			}
+		}
+		return null;
+	}
+
+	/**
+	 * Write until the end marker, after a failure keep recycling so the cipher
+	 * stage never waits for a buffer
+	 *
+	 * @return the first write failure, null when everything was written
+	 */
+	private static Exception write(FileChannel out, BlockingQueue<Chunk> sealed, BlockingQueue<ByteBuffer> free)
+			throws InterruptedException {
+		Exception failure = null;
+		for (Chunk chunk = sealed.take(); chunk != END; chunk = sealed.take()) {
+			if (out != null && failure == null) {
+				try {
+					Utility.writeFully(out, chunk.buffer(), chunk.position());
+				} catch (Exception e) {
+					failure = e;
+				}
+			}
+			free.put(chunk.buffer().clear());
+		}
+		return failure;
+	}
+
+	private static void recycle(BlockingQueue<ByteBuffer> buffers) {
+		for (ByteBuffer buffer = buffers.poll(); buffer != null; buffer = buffers.poll()) {
+			RsMemoryBudget.release(buffer);
+		}
+	}
+
+}
@@ -0,0 +1,335 @@
+package com.rslock.common;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.security.GeneralSecurityException;
+import java.security.Provider;
+import java.security.Security;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.logging.Logger;
+
+import javax.crypto.Cipher;
+import javax.crypto.Mac;
+import javax.crypto.spec.GCMParameterSpec;
+import javax.crypto.spec.IvParameterSpec;
+import javax.crypto.spec.SecretKeySpec;
+
+/**
+ * Chooses the security provider behind each cipher and MAC algorithm.
+ *
+ * Left to itself JCA takes the first registered provider offering an
+ * algorithm, which is not always the fast one: Bouncy Castle's AES is plain
+ * Java, the JDK's SunJCE uses the AES-NI and CLMUL intrinsics. The policy,
+ * {@link RsConstraints#PROVIDER_POLICY} or {@code --provider}, is one of
+ * <ul>
+ * <li>{@value #FASTEST}: every provider of
+ * {@link RsConstraints#PROVIDER_CANDIDATES} offering an AES transformation or
+ * HMAC is checked against the others on the same key and input, the compliant
+ * ones are timed on {@link RsConstraints#PROVIDER_BENCHMARK_BYTES} and the
+ * fastest wins. RSA only wraps keys, it takes the first compliant candidate
+ * rather than generating a key pair to time it.</li>
+ * <li>{@value #DEFAULT}: whatever JCA picks.</li>
+ * <li>a provider name such as {@code SunJCE} or {@code BC}: that provider
+ * wherever it offers the algorithm.</li>
+ * </ul>
+ * An algorithm is resolved on first use and then reused by every thread.
+ * Choices are kept in {@code ~/.rslock/providers.properties} for the same JVM
+ * and candidates, so only the first run pays for the benchmark, and Bouncy
+ * Castle is not even loaded when it lost. The choices are logged and reported
+ * as the {@code provider} info metric.
+ */
+public final class RsProviders {
+
+	private static final Logger LOG = Logger.getLogger(RsProviders.class.getName());
+
+	/** Policy that benchmarks the candidates */
+	public static final String FASTEST = "fastest";
+	/** Policy that leaves the choice to JCA */
+	public static final String DEFAULT = "default";
+
+	private static final String BOUNCY_CASTLE = "BC";
+	private static final String CACHE_JVM = "jvm";
+	private static final String CACHE_CANDIDATES = "candidates";
+	private static final String CANDIDATES = String.join(",", RsConstraints.PROVIDER_CANDIDATES);
+
+	private static final Map<String, Provider> SELECTED = new ConcurrentHashMap<>();
+	private static volatile String policy = RsConstraints.PROVIDER_POLICY;
+	private static volatile Path cacheFile = defaultCacheFile();
+
+	private RsProviders() {
+		throw new UnsupportedOperationException("This is a utility class and cannot be instantiated");
+	}
+
+	/**
+	 * Set the policy and where benchmark results are cached, before the first
+	 * cipher is created
+	 *
+	 * @throws IllegalArgumentException for a provider that is not registered
+	 */
+	public static void configure(String policy, Path cacheFile) {
+		String value = policy.trim();
+		if (!value.equalsIgnoreCase(FASTEST) && !value.equalsIgnoreCase(DEFAULT) && provider(value) == null) {
+			throw new IllegalArgumentException(
+					"Unknown security provider: " + value + " (expected fastest, default or a provider name)");
+		}
+		RsProviders.policy = value;
+		RsProviders.cacheFile = cacheFile;
+		SELECTED.clear();
+	}
+
+	public static Path defaultCacheFile() {
+		return Path.of(System.getProperty("user.home"), ".rslock", RsConstraints.PROVIDER_CACHE_FILENAME);
+	}
+
+	/**
+	 * New cipher for {@code transformation} from the selected provider
+	 */
+	public static Cipher cipher(String transformation) throws GeneralSecurityException {
+		return Cipher.getInstance(transformation, selected(transformation));
+	}
+
+	/**
+	 * New MAC for {@code algorithm} from the selected provider
+	 */
+	public static Mac mac(String algorithm) throws GeneralSecurityException {
+		return Mac.getInstance(algorithm, selected(algorithm));
+	}
+
+	/**
+	 * Provider used for {@code algorithm}, selected on the first call
+	 */
+	public static Provider selected(String algorithm) throws GeneralSecurityException {
+		Provider provider = SELECTED.get(algorithm);
+		if (provider == null) {
+			// Concurrent first calls may both select, they agree on the result
+			provider = select(algorithm);
+			SELECTED.put(algorithm, provider);
+			RsMetrics.PROVIDER.set(algorithm, provider.getName());
+		}
+		return provider;
+	}
+
+	private static Provider select(String algorithm) throws GeneralSecurityException {
+		String current = policy;
+		if (current.equalsIgnoreCase(DEFAULT)) {
+			return log(algorithm, defaultProvider(algorithm), "default");
+		}
+		if (!current.equalsIgnoreCase(FASTEST)) {
+			Provider pinned = provider(current);
+			if (pinned != null && offers(pinned, algorithm)) {
+				return log(algorithm, pinned, "pinned");
+			}
+			LOG.warning("✗ " + current + " does not offer " + algorithm + ", using the default provider");
+			return log(algorithm, defaultProvider(algorithm), "default");
+		}
+
+		// Checked before listing the candidates, which would register Bouncy Castle
+		Provider cached = cached(algorithm);
+		if (cached != null) {
+			return log(algorithm, cached, "cached");
+		}
+		List<Provider> candidates = candidates(algorithm);
+		if (candidates.isEmpty()) {
+			return log(algorithm, defaultProvider(algorithm), "default, no candidate offers it");
+		}
+		if (candidates.size() == 1 || !isBenchmarked(algorithm)) {
+			store(algorithm, candidates.get(0));
+			return log(algorithm, candidates.get(0), "first candidate");
+		}
+
+		Map<Provider, Double> speeds = benchmark(algorithm, candidates);
+		Provider fastest = null;
+		for (Map.Entry<Provider, Double> e : speeds.entrySet()) {
+			if (fastest == null || e.getValue() > speeds.get(fastest)) {
+				fastest = e.getKey();
+			}
+		}
+		if (fastest == null) {
+			return log(algorithm, defaultProvider(algorithm), "default, no compliant candidate");
+		}
+		StringBuilder measured = new StringBuilder("benchmarked");
+		speeds.forEach((p, mbps) -> measured.append(String.format(", %s %.0f MB/s", p.getName(), mbps)));
+		store(algorithm, fastest);
+		return log(algorithm, fastest, measured.toString());
+	}
+
+	private static Provider log(String algorithm, Provider provider, String reason) {
+		LOG.info(() -> "✓ Provider for " + algorithm + ": " + provider.getName() + " (" + reason + ")");
+		return provider;
+	}
+
+	private static Provider provider(String name) {
+		Provider provider = Security.getProvider(name);
+		// Bouncy Castle is only registered when something asks for it
+		if (provider == null && name.equals(BOUNCY_CASTLE) && CypherUtility.registerBouncyCastle()) {
+			provider = Security.getProvider(name);
+		}
+		return provider;
+	}
+
+	private static Provider defaultProvider(String algorithm) throws GeneralSecurityException {
+		return isMac(algorithm) ? Mac.getInstance(algorithm).getProvider() : Cipher.getInstance(algorithm).getProvider();
+	}
+
+	private static List<Provider> candidates(String algorithm) {
+		List<Provider> candidates = new ArrayList<>();
+		for (String name : RsConstraints.PROVIDER_CANDIDATES) {
+			Provider provider = provider(name);
+			if (provider != null && offers(provider, algorithm)) {
+				candidates.add(provider);
+			}
+		}
+		return candidates;
+	}
+
+	private static boolean offers(Provider provider, String algorithm) {
+		try {
+			if (isMac(algorithm)) {
+				Mac.getInstance(algorithm, provider);
+			} else {
+				Cipher.getInstance(algorithm, provider);
+			}
+			return true;
+		} catch (GeneralSecurityException e) {
+			return false;
+		}
+	}
+
+	private static boolean isMac(String algorithm) {
+		return algorithm.startsWith("Hmac");
+	}
+
+	// Bulk algorithms, where the provider makes the difference
+	private static boolean isBenchmarked(String algorithm) {
+		return isMac(algorithm) || algorithm.startsWith(RsConstraints.AES_ALGORITHM + "/");
+	}
+
+	/**
+	 * MB/s of every candidate whose output matches the first candidate's
+	 */
+	private static Map<Provider, Double> benchmark(String algorithm, List<Provider> candidates) {
+		byte[] key = CypherUtility.randomBytes(RsConstraints.AES_KEY_SIZE / 8);
+		byte[] iv = CypherUtility.randomBytes(isGcm(algorithm) ? RsConstraints.GCM_NONCE_SIZE : RsConstraints.IV_SIZE);
+		byte[] input = CypherUtility.randomBytes(RsConstraints.PROVIDER_BENCHMARK_BYTES);
+
+		Map<Provider, Double> speeds = new LinkedHashMap<>();
+		byte[] reference = null;
+		for (Provider provider : candidates) {
+			long start = System.nanoTime();
+			try {
+				byte[] output = run(algorithm, provider, key, iv, input);
+				if (reference == null) {
+					reference = output;
+				} else if (!Arrays.equals(reference, output)) {
+					LOG.warning("✗ " + provider.getName() + " disagrees with " + candidates.get(0).getName()
+							+ " on " + algorithm + ", not used");
+					continue;
+				}
+
+				long best = Long.MAX_VALUE;
+				for (int round = 0; round < RsConstraints.PROVIDER_BENCHMARK_ROUNDS; round++) {
+					long roundStart = System.nanoTime();
+					run(algorithm, provider, key, iv, input);
+					best = Math.min(best, System.nanoTime() - roundStart);
+				}
+				speeds.put(provider, input.length / 1e6 / (Math.max(1, best) / 1e9));
+			} catch (GeneralSecurityException e) {
+				LOG.warning("✗ " + provider.getName() + " failed the " + algorithm + " benchmark: " + e.getMessage());
+			} finally {
+				RsMetrics.PROVIDER_BENCHMARK.stop(start);
+			}
+		}
+		return speeds;
+	}
+
+	private static byte[] run(String algorithm, Provider provider, byte[] key, byte[] iv, byte[] input)
+			throws GeneralSecurityException {
+		if (isMac(algorithm)) {
+			Mac mac = Mac.getInstance(algorithm, provider);
+			mac.init(new SecretKeySpec(key, algorithm));
+			return mac.doFinal(input);
+		}
+		// Encrypt only, with the fixed IV the outputs of the candidates can be compared
+		Cipher cipher = Cipher.getInstance(algorithm, provider);
+		SecretKeySpec aesKey = new SecretKeySpec(key, RsConstraints.AES_ALGORITHM);
+		if (isGcm(algorithm)) {
+			cipher.init(Cipher.ENCRYPT_MODE, aesKey, new GCMParameterSpec(RsConstraints.GCM_TAG_BITS, iv));
+		} else {
+			cipher.init(Cipher.ENCRYPT_MODE, aesKey, new IvParameterSpec(iv));
+		}
+		return cipher.doFinal(input);
+	}
+
+	private static boolean isGcm(String algorithm) {
+		return algorithm.contains("/GCM/");
+	}
+
+	// Benchmark results hold for one JVM build and one list of candidates
+	private static String jvm() {
+		return System.getProperty("java.vm.name") + " " + System.getProperty("java.vm.version") + " "
+				+ System.getProperty("os.arch");
+	}
+
+	private static Properties loadCache() {
+		Properties cache = new Properties();
+		Path file = cacheFile;
+		if (file != null && Files.isRegularFile(file)) {
+			try (InputStream in = Files.newInputStream(file)) {
+				cache.load(in);
+			} catch (IOException | IllegalArgumentException e) {
+				LOG.fine(() -> "Ignoring unreadable provider cache " + file + ": " + e.getMessage());
+				cache.clear();
+			}
+		}
+		return cache;
+	}
+
+	private static Provider cached(String algorithm) {
+		Properties cache = loadCache();
+		String name = cache.getProperty(algorithm);
+		if (name == null || !jvm().equals(cache.getProperty(CACHE_JVM))
+				|| !CANDIDATES.equals(cache.getProperty(CACHE_CANDIDATES))) {
+			return null;
+		}
+		// A provider gone from the module path is benchmarked away again
+		Provider provider = provider(name);
+		return provider != null && offers(provider, algorithm) ? provider : null;
+	}
+
+	private static synchronized void store(String algorithm, Provider provider) {
+		Path file = cacheFile;
+		if (file == null) {
+			return;
+		}
+		Properties cache = loadCache();
+		if (!jvm().equals(cache.getProperty(CACHE_JVM)) || !CANDIDATES.equals(cache.getProperty(CACHE_CANDIDATES))) {
+			cache.clear();
+			cache.setProperty(CACHE_JVM, jvm());
+			cache.setProperty(CACHE_CANDIDATES, CANDIDATES);
+		}
+		cache.setProperty(algorithm, provider.getName());
+		try {
+			Path dir = file.toAbsolutePath().getParent();
+			Files.createDirectories(dir);
+			// Written aside and moved, concurrent runs never read half a file
+			Path temp = Files.createTempFile(dir, RsConstraints.PROVIDER_CACHE_FILENAME, ".tmp");
+			try (OutputStream out = Files.newOutputStream(temp)) {
+				cache.store(out, "rslock provider benchmark results, delete to measure again");
+			}
+			Files.move(temp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+		} catch (IOException e) {
+			LOG.fine(() -> "Could not cache provider choice in " + file + ": " + e.getMessage());
+		}
+	}
+
+}
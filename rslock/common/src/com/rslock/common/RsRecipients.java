@@ -0,0 +1,238 @@
+package com.rslock.common;
+
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.security.GeneralSecurityException;
+import java.security.PublicKey;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import javax.crypto.SecretKey;
+import javax.crypto.spec.IvParameterSpec;
+
+/**
+ * Changes the recipients of existing containers without touching their
+ * encrypted payload.
+ *
+ * The data key is unwrapped once with a key of a current recipient and
+ * wrapped again for the new ones. The key area is outside the data segments
+ * authenticate, so as long as the new entries fit in its spare room only the
+ * key area is rewritten in place. When they do not fit, the header grows and
+ * the payload is copied behind it as it is, through an {@link RsOutputFile},
+ * still without decrypting anything.
+ *
+ * Key rotation works the same way on both formats: the key wrapped for the
+ * old key pair is replaced by the key wrapped for the new one. Legacy CBC
+ * files hold a single wrapped key, rewritten in place when the new key has
+ * the same size as the old one.
+ */
+public final class RsRecipients {
+
+	/**
+	 * Move from one key pair to others, shared by every file of a rotation.
+	 * Files that shared a wrapped key, such as one envelope-per-batch run,
+	 * still share one afterwards, it is unwrapped and wrapped again only once.
+	 */
+	public static final class Rotation {
+
+		private final RsKeySession opener;
+		private final String from;
+		private final Map<String, PublicKey> to;
+		private final Map<ByteBuffer, List<RsContainerHeader.Recipient>> rewrapped = new ConcurrentHashMap<>();
+
+		/**
+		 * @param opener decryption session holding the private key of {@code from}
+		 * @param to     recipients that replace {@code from}, by alias
+		 */
+		public Rotation(RsKeySession opener, String from, Map<String, PublicKey> to) {
+			if (to.isEmpty() || to.containsKey(from)) {
+				throw new IllegalArgumentException("Rotation needs new aliases other than " + from);
+			}
+			this.opener = opener;
+			this.from = from;
+			this.to = new LinkedHashMap<>(to);
+		}
+
+		List<RsContainerHeader.Recipient> rewrap(byte[] wrappedKey) throws Exception {
+			ByteBuffer cacheKey = ByteBuffer.wrap(wrappedKey.clone());
+			List<RsContainerHeader.Recipient> cached = rewrapped.get(cacheKey);
+			if (cached != null) {
+				return cached;
+			}
+
+			SecretKey key = opener.unwrap(wrappedKey);
+			List<RsContainerHeader.Recipient> recipients = new ArrayList<>(to.size());
+			for (Map.Entry<String, PublicKey> recipient : to.entrySet()) {
+				recipients.add(new RsContainerHeader.Recipient(recipient.getKey(),
+						CypherUtility.encryptAESKeyWithRSA(key, recipient.getValue())));
+			}
+			// Keys unique to one file would only grow the cache, start over once it is full
+			if (rewrapped.size() >= RsConstraints.KEY_CACHE_SIZE) {
+				rewrapped.clear();
+			}
+			rewrapped.put(cacheKey, List.copyOf(recipients));
+			return recipients;
+		}
+	}
+
+	private RsRecipients() {
+		throw new UnsupportedOperationException("This is a utility class and cannot be instantiated");
+	}
+
+	/**
+	 * Rewrap the key of one .rslocked file, container or legacy CBC, from the
+	 * old key pair of {@code rotation} to the new ones
+	 *
+	 * @return false when the container was rotated already
+	 */
+	public static boolean rotate(Path file, Rotation rotation) throws Exception {
+		try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+			if (channel.size() >= RsContainerHeader.FIXED_SIZE
+					&& Utility.readFully(channel, 0, 4).getInt() == RsConstraints.CONTAINER_MAGIC) {
+				return rotateContainer(file, channel, rotation);
+			}
+			rotateLegacy(file, channel, rotation);
+			return true;
+		}
+	}
+
+	private static boolean rotateContainer(Path file, FileChannel channel, Rotation rotation) throws Exception {
+		RsContainerHeader header = RsContainerHeader.read(channel);
+
+		List<RsContainerHeader.Recipient> recipients = new ArrayList<>();
+		List<RsContainerHeader.Recipient> replacement = null;
+		for (RsContainerHeader.Recipient recipient : header.getRecipients()) {
+			if (recipient.alias().equals(rotation.from)) {
+				replacement = rotation.rewrap(recipient.encryptedKey());
+			} else if (!rotation.to.containsKey(recipient.alias())) {
+				recipients.add(recipient);
+			}
+		}
+		if (replacement == null) {
+			boolean rotated = header.getRecipients().stream().anyMatch(r -> rotation.to.containsKey(r.alias()));
+			if (rotated) {
+				return false;
+			}
+			throw new IllegalArgumentException("No recipient " + rotation.from + " in the header");
+		}
+		recipients.addAll(replacement);
+		write(file, channel, header, header.withRecipients(recipients));
+		return true;
+	}
+
+	// [IV_SIZE:4][IV][KEY_SIZE:4][ENCRYPTED_AES_KEY] has no alias, the old private key has to open it
+	private static void rotateLegacy(Path file, FileChannel channel, Rotation rotation) throws Exception {
+		if (rotation.to.size() > 1) {
+			throw new IllegalArgumentException("Legacy CBC files hold the key of a single recipient");
+		}
+		byte[][] header = CypherUtility.readEncryptionHeader(Channels.newInputStream(channel.position(0)));
+		byte[] iv = header[0];
+		byte[] wrappedKey;
+		try {
+			wrappedKey = rotation.rewrap(header[1]).get(0).encryptedKey();
+		} catch (GeneralSecurityException e) {
+			throw new GeneralSecurityException("Key of " + rotation.from
+					+ " does not open it, rotated already or encrypted for another key pair", e);
+		}
+		long headerSize = 8L + iv.length + header[1].length;
+
+		if (wrappedKey.length == header[1].length) {
+			ByteBuffer key = ByteBuffer.allocate(4 + wrappedKey.length).putInt(wrappedKey.length).put(wrappedKey);
+			Utility.writeFully(channel, key.flip(), 4L + iv.length);
+			if (RsOutputFile.getSync() != RsOutputFile.Sync.NONE) {
+				channel.force(false);
+			}
+			return;
+		}
+
+		// A key pair of another size: the ciphertext moves behind the new header as it is
+		long payloadSize = channel.size() - headerSize;
+		long newHeaderSize = 8L + iv.length + wrappedKey.length;
+		try (RsOutputFile output = RsOutputFile.create(file, newHeaderSize + payloadSize)) {
+			FileChannel out = output.channel();
+			CypherUtility.writeEncryptionHeader(Channels.newOutputStream(out), new IvParameterSpec(iv), wrappedKey);
+			copy(channel, headerSize, payloadSize, out, newHeaderSize);
+			output.commit(newHeaderSize + payloadSize);
+		}
+	}
+
+	/**
+	 * Give the recipients of {@code added} access to a container, aliases
+	 * already in its header are left as they are
+	 *
+	 * @param session decryption session whose key opens the container
+	 * @return number of recipients added
+	 */
+	public static int add(Path file, RsKeySession session, Map<String, PublicKey> added) throws Exception {
+		try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+			RsContainerHeader header = RsContainerHeader.read(channel);
+
+			List<RsContainerHeader.Recipient> recipients = new ArrayList<>(header.getRecipients());
+			List<String> present = recipients.stream().map(RsContainerHeader.Recipient::alias).toList();
+			SecretKey dataKey = null;
+			int count = 0;
+			for (Map.Entry<String, PublicKey> recipient : added.entrySet()) {
+				if (present.contains(recipient.getKey())) {
+					continue;
+				}
+				if (dataKey == null) {
+					dataKey = session.dataKey(header);
+				}
+				recipients.add(new RsContainerHeader.Recipient(recipient.getKey(),
+						CypherUtility.encryptAESKeyWithRSA(dataKey, recipient.getValue())));
+				count++;
+			}
+			if (count > 0) {
+				write(file, channel, header, header.withRecipients(recipients));
+			}
+			return count;
+		}
+	}
+
+	/**
+	 * Store {@code updated} in place of {@code header}, moving the payload
+	 * only when the key area had to grow
+	 */
+	static void write(Path file, FileChannel channel, RsContainerHeader header, RsContainerHeader updated)
+			throws Exception {
+		if (updated.indexOffset() == header.indexOffset()) {
+			updated.writeKeyArea(channel);
+			if (RsOutputFile.getSync() != RsOutputFile.Sync.NONE) {
+				channel.force(false);
+			}
+			return;
+		}
+
+		// A stream container has no index, it ends with the file
+		long end = header.isStream() ? channel.size() : header.segmentOffsets()[header.getSegmentCount()];
+		if (end != channel.size()) {
+			throw new IllegalArgumentException("Container size does not match its segment index");
+		}
+		long payloadSize = end - header.payloadOffset();
+		try (RsOutputFile output = RsOutputFile.create(file, updated.payloadOffset() + payloadSize)) {
+			FileChannel out = output.channel();
+			updated.write(out);
+			copy(channel, header.payloadOffset(), payloadSize, out, updated.payloadOffset());
+			output.commit(updated.payloadOffset() + payloadSize);
+		}
+	}
+
+	private static void copy(FileChannel in, long position, long length, FileChannel out, long target)
+			throws Exception {
+		out.position(target);
+		for (long copied = 0; copied < length;) {
+			long count = in.transferTo(position + copied, length - copied, out);
+			if (count <= 0) {
+				throw new IllegalArgumentException("File ended before its payload did");
+			}
+			copied += count;
+		}
+	}
+
+}
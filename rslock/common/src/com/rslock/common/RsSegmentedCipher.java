@@ -0,0 +1,769 @@
+package com.rslock.common;
+
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.security.GeneralSecurityException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+
+import javax.crypto.Cipher;
+import javax.crypto.SecretKey;
+import javax.crypto.spec.GCMParameterSpec;
+
+/**
+ * Encrypts and decrypts the segmented AES-GCM container described in
+ * {@link RsContainerHeader}.
+ *
+ * Every segment is sealed independently, so segments are processed in
+ * parallel on a fork-join pool. The 12 byte nonce of a segment is an 8 byte
+ * prefix derived from the file key (HMAC-SHA256) followed by the segment
+ * number, which keeps nonces unique without storing them. Each segment also
+ * authenticates the fixed header fields and whether it is the last segment,
+ * so reordering, truncation or header tampering fails decryption.
+ *
+ * With a codec, segments are compressed before they are sealed, inside the
+ * same parallel tasks, so compression scales with the cipher.
+ *
+ * Input of unknown length, such as a pipe, is encrypted into a stream
+ * container ({@link RsContainerHeader#FLAG_STREAM}) one window of segments at
+ * a time, in constant memory, the header going out first.
+ *
+ * Large files can be processed resumably, checkpointed to an
+ * {@link RsJournal} between windows of segments so that a rerun after an
+ * interruption skips the segments already done.
+ */
+public final class RsSegmentedCipher {
+
+	// First plaintext byte of a segment when the container has a codec
+	private static final byte SEGMENT_STORED = 0;
+	private static final byte SEGMENT_COMPRESSED = 1;
+
+	private static final byte[] NONCE_LABEL = "rslock-gcm-nonce".getBytes(StandardCharsets.US_ASCII);
+
+	private static final ThreadLocal<Cipher> GCM_CIPHER = ThreadLocal.withInitial(() -> {
+		try {
+			return RsProviders.cipher(RsConstraints.GCM_TRANSFORMATION);
+		} catch (GeneralSecurityException e) {
+			throw new IllegalStateException("AES-GCM is not available", e);
+		}
+	});
+
+	/**
+	 * Plaintext being encrypted, read by position. A file, or the members of a
+	 * pack one after the other.
+	 */
+	@FunctionalInterface
+	interface Plaintext {
+		/** Fill the remaining space of {@code buffer} from {@code position} */
+		void read(long position, ByteBuffer buffer) throws Exception;
+	}
+
+	private RsSegmentedCipher() {
+		throw new UnsupportedOperationException("This is a utility class and cannot be instantiated");
+	}
+
+	/**
+	 * Encrypt a file into the segmented container format
+	 *
+	 * @return number of plaintext bytes encrypted
+	 */
+	public static long encrypt(Path sourceFile, Path outputFile, RsKeySession.FileKey fileKey, ForkJoinPool pool)
+			throws Exception {
+		return encrypt(sourceFile, outputFile, fileKey, null, pool);
+	}
+
+	/**
+	 * Encrypt a file into the segmented container format, compressing every
+	 * segment with {@code codec} first unless it is null
+	 *
+	 * @return number of plaintext bytes encrypted
+	 */
+	public static long encrypt(Path sourceFile, Path outputFile, RsKeySession.FileKey fileKey, RsCodec codec,
+			ForkJoinPool pool) throws Exception {
+		try (FileChannel in = FileChannel.open(sourceFile, StandardOpenOption.READ)) {
+			return encrypt((position, buffer) -> Utility.readFully(in, position, buffer), in.size(), 0, outputFile,
+					fileKey, codec, pool);
+		}
+	}
+
+	/**
+	 * Encrypt {@code plainSize} bytes of {@code plaintext} into a container
+	 * whose FLAGS also carry {@code flags}
+	 *
+	 * @return number of plaintext bytes encrypted
+	 */
+	static long encrypt(Plaintext plaintext, long plainSize, int flags, Path outputFile, RsKeySession.FileKey fileKey,
+			RsCodec codec, ForkJoinPool pool) throws Exception {
+		RsContainerHeader header = new RsContainerHeader(flags | (codec != null ? codec.id() : 0),
+				RsConstraints.SEGMENT_SIZE, plainSize, fileKey.recipients(), fileKey.keySalt());
+
+		try (RsOutputFile output = RsOutputFile.create(outputFile, expectedSize(header, codec))) {
+			FileChannel out = output.channel();
+			header.write(out);
+			sealAll(plaintext, out, header, codec, fileKey.aesKey(), pool, null);
+			header.writeIndex(out);
+			output.commit(header.segmentOffsets()[header.getSegmentCount()]);
+			return header.getPlainSize();
+		}
+	}
+
+	/**
+	 * Encrypt a file like {@link #encrypt(Path, Path, RsKeySession.FileKey, RsCodec, ForkJoinPool)},
+	 * resuming the run an interruption left behind for the same source. Files
+	 * below {@link RsConstraints#JOURNAL_THRESHOLD} are simply encrypted again.
+	 *
+	 * @param session hands out the key of a new file, and must be able to
+	 *                reopen a started one, see {@link RsKeySession#reopen}
+	 * @return number of plaintext bytes encrypted
+	 */
+	public static long encryptResumable(Path sourceFile, Path outputFile, RsKeySession session, RsCodec codec,
+			ForkJoinPool pool) throws Exception {
+		try (FileChannel in = FileChannel.open(sourceFile, StandardOpenOption.READ)) {
+			long plainSize = in.size();
+			Plaintext plaintext = (position, buffer) -> Utility.readFully(in, position, buffer);
+			if (plainSize < RsConstraints.JOURNAL_THRESHOLD) {
+				return encrypt(plaintext, plainSize, 0, outputFile, session.newFileKey(), codec, pool);
+			}
+
+			int flags = codec != null ? codec.id() : 0;
+			RsJournal journal = RsJournal.open(outputFile, RsJournal.ENCRYPT, sourceFile, flags,
+					RsContainerHeader.segmentCount(plainSize, RsConstraints.SEGMENT_SIZE));
+			try (journal) {
+				RsContainerHeader header;
+				RsKeySession.FileKey fileKey;
+				if (journal.isResumed()) {
+					// The partial output starts with the header, wrapped key included
+					try (FileChannel partial = FileChannel.open(RsOutputFile.resumeFile(outputFile),
+							StandardOpenOption.READ)) {
+						header = RsContainerHeader.read(partial);
+					}
+					if (header.getFlags() != flags || header.getPlainSize() != plainSize) {
+						throw new IllegalStateException("Partial output does not match its journal: " + outputFile);
+					}
+					fileKey = session.reopen(header);
+					for (int i = 0; i < journal.completed(); i++) {
+						header.setSegmentLength(i, journal.length(i));
+					}
+				} else {
+					fileKey = session.newFileKey();
+					header = new RsContainerHeader(flags, RsConstraints.SEGMENT_SIZE, plainSize, fileKey.recipients(),
+							fileKey.keySalt());
+				}
+
+				try (RsOutputFile output = RsOutputFile.resumable(outputFile, expectedSize(header, codec),
+						journal.isResumed())) {
+					FileChannel out = output.channel();
+					if (!journal.isResumed()) {
+						header.write(out);
+						journal.start(out);
+					}
+					sealAll(plaintext, out, header, codec, fileKey.aesKey(), pool, journal);
+					header.writeIndex(out);
+					output.commit(header.segmentOffsets()[header.getSegmentCount()]);
+				}
+			}
+			journal.delete();
+			return plainSize;
+		}
+	}
+
+	/**
+	 * Encrypt everything {@code in} delivers until it ends into a stream
+	 * container written to {@code out} as it goes. Memory stays at two
+	 * buffers per segment of a window, whatever the length of the input.
+	 *
+	 * @return number of plaintext bytes encrypted
+	 */
+	public static long encryptStream(ReadableByteChannel in, WritableByteChannel out, RsKeySession.FileKey fileKey,
+			RsCodec codec, ForkJoinPool pool) throws Exception {
+		RsContainerHeader header = RsContainerHeader.stream(codec != null ? codec.id() : 0, RsConstraints.SEGMENT_SIZE,
+				fileKey.recipients(), fileKey.keySalt());
+		header.write(out);
+
+		SecretKey aesKey = fileKey.aesKey();
+		byte[] noncePrefix = noncePrefix(aesKey);
+		byte[] aad = header.aad();
+		int window = windowSize(pool);
+		int segmentSize = header.getSegmentSize();
+		ByteBuffer[] plain = new ByteBuffer[window];
+		ByteBuffer[] sealed = new ByteBuffer[window];
+		ByteBuffer frame = ByteBuffer.allocate(8);
+		// One byte read past a full segment tells whether the input ended with it
+		ByteBuffer lookahead = ByteBuffer.allocate(1);
+
+		try {
+			long total = 0;
+			int first = 0;
+			boolean last = false;
+			while (!last) {
+				int count = 0;
+				while (count < window && !last) {
+					if (plain[count] == null) {
+						plain[count] = RsMemoryBudget.allocate(segmentSize);
+						sealed[count] = RsMemoryBudget.allocate(1 + segmentSize + RsConstraints.GCM_TAG_BITS / 8);
+					}
+					ByteBuffer buffer = plain[count++].clear();
+					buffer.put(lookahead.flip());
+					lookahead.clear();
+					last = !Utility.readFully(in, buffer) || !Utility.readFully(in, lookahead);
+					buffer.flip();
+				}
+				if (first + count < 0) {
+					throw new IllegalArgumentException("Stream too long for segment size " + segmentSize);
+				}
+
+				List<Callable<Integer>> tasks = new ArrayList<>(count);
+				for (int i = 0; i < count; i++) {
+					final int segment = first + i;
+					final ByteBuffer plaintext = plain[i];
+					final ByteBuffer target = sealed[i].clear();
+					final byte[] segmentAad = streamAad(aad, last && i == count - 1, plaintext.remaining());
+					tasks.add(() -> {
+						if (codec != null) {
+							return sealFramed(plaintext, target, segment, segmentAad, codec, aesKey, noncePrefix);
+						}
+						seal(plaintext, target, segment, segmentAad, aesKey, noncePrefix);
+						target.flip();
+						return target.remaining();
+					});
+				}
+				join(pool.invokeAll(tasks));
+
+				for (int i = 0; i < count; i++) {
+					boolean end = last && i == count - 1;
+					frame.clear().putInt(sealed[i].remaining() | (end ? 0x80000000 : 0)).putInt(plain[i].limit());
+					Utility.writeFully(out, frame.flip());
+					Utility.writeFully(out, sealed[i]);
+					total += plain[i].limit();
+				}
+				first += count;
+			}
+			return total;
+		} finally {
+			release(plain);
+			release(sealed);
+		}
+	}
+
+	// Exact without a codec, an upper bound with one: segments never grow by more than their marker
+	private static long expectedSize(RsContainerHeader header, RsCodec codec) {
+		return header.payloadOffset() + header.getPlainSize()
+				+ (long) header.getSegmentCount() * (RsConstraints.GCM_TAG_BITS / 8 + (codec != null ? 1 : 0));
+	}
+
+	/**
+	 * Seals every segment into out and records the segment lengths in the
+	 * header, starting after the segments {@code journal} has, if any
+	 */
+	private static void sealAll(Plaintext in, FileChannel out, RsContainerHeader header, RsCodec codec,
+			SecretKey aesKey, ForkJoinPool pool, RsJournal journal) throws Exception {
+		byte[] noncePrefix = noncePrefix(aesKey);
+		byte[] aad = header.aad();
+		int window = windowSize(pool);
+
+		if (codec != null) {
+			sealCompressed(in, out, header, codec, aesKey, noncePrefix, aad, window, pool, journal);
+			return;
+		}
+
+		// GCM adds a fixed-size tag, so every segment has a known place in the output
+		long stride = (long) header.getSegmentSize() + RsConstraints.GCM_TAG_BITS / 8;
+
+		// Journaled runs checkpoint between windows, the pipeline has none
+		if (RsConstraints.PIPELINE_ENABLED && header.getPlainSize() >= RsConstraints.PIPELINE_THRESHOLD
+				&& journal == null) {
+			// Reads, seals forked into the pool and writes overlap
+			RsPipeline.run(header.getSegmentCount(), header.getSegmentSize(), (int) stride,
+					Math.max(RsConstraints.PIPELINE_DEPTH, window),
+					(segment, buffer) -> {
+						buffer.limit(header.plainLength(segment));
+						in.read((long) segment * header.getSegmentSize(), buffer);
+					},
+					(segment, plaintext, ciphertext) -> {
+						header.setSegmentLength(segment, seal(plaintext, ciphertext, segment,
+								segmentAad(aad, header, segment), aesKey, noncePrefix));
+						return header.payloadOffset() + segment * stride;
+					},
+					out, pool);
+			return;
+		}
+
+		int start = journal != null ? journal.completed() : 0;
+		for (int first = start; first < header.getSegmentCount(); first += window) {
+			int end = Math.min(header.getSegmentCount(), first + window);
+
+			List<Callable<Integer>> tasks = new ArrayList<>(end - first);
+			for (int i = first; i < end; i++) {
+				final int segment = i;
+				tasks.add(() -> sealSegment(in, out, header.payloadOffset() + segment * stride, header, segment,
+						aesKey, noncePrefix, aad));
+			}
+
+			List<Integer> lengths = join(pool.invokeAll(tasks));
+			for (int i = first; i < end; i++) {
+				header.setSegmentLength(i, lengths.get(i - first));
+			}
+			if (journal != null) {
+				journal.completed(out, end, header);
+			}
+		}
+	}
+
+	/**
+	 * Compressed segments have unknown sizes, so each window is compressed and
+	 * sealed in parallel into buffers of its own, then written in order
+	 */
+	private static void sealCompressed(Plaintext in, FileChannel out, RsContainerHeader header, RsCodec codec,
+			SecretKey aesKey, byte[] noncePrefix, byte[] aad, int window, ForkJoinPool pool, RsJournal journal)
+			throws Exception {
+		int capacity = 1 + header.getSegmentSize() + RsConstraints.GCM_TAG_BITS / 8;
+		ByteBuffer[] sealed = new ByteBuffer[Math.min(window, header.getSegmentCount())];
+		int start = journal != null ? journal.completed() : 0;
+		long position = header.segmentOffsets()[start];
+
+		try {
+			for (int first = start; first < header.getSegmentCount(); first += window) {
+				int end = Math.min(header.getSegmentCount(), first + window);
+
+				List<Callable<Integer>> tasks = new ArrayList<>(end - first);
+				for (int i = first; i < end; i++) {
+					final int segment = i;
+					if (sealed[i - first] == null) {
+						sealed[i - first] = RsMemoryBudget.allocate(capacity);
+					}
+					ByteBuffer target = sealed[i - first].clear();
+					tasks.add(() -> sealSegment(in, target, header, segment, codec, aesKey, noncePrefix, aad));
+				}
+				join(pool.invokeAll(tasks));
+
+				for (int i = first; i < end; i++) {
+					ByteBuffer segment = sealed[i - first];
+					header.setSegmentLength(i, segment.remaining());
+					position += segment.remaining();
+					Utility.writeFully(out, segment, position - segment.remaining());
+				}
+				if (journal != null) {
+					journal.completed(out, end, header);
+				}
+			}
+		} finally {
+			// Tasks of a failed window are done too, invokeAll waits for all of them
+			release(sealed);
+		}
+	}
+
+	/**
+	 * Decrypt a segmented container file
+	 *
+	 * @return number of plaintext bytes written
+	 */
+	public static long decrypt(Path sourceFile, Path outputFile, RsKeySession session, ForkJoinPool pool)
+			throws Exception {
+
+		try (FileChannel in = FileChannel.open(sourceFile, StandardOpenOption.READ)) {
+			// 0 for a stream container, whose size is only known at its end
+			long plainSize = RsContainerHeader.read(in).getPlainSize();
+			try (RsOutputFile output = RsOutputFile.create(outputFile, plainSize)) {
+				plainSize = open(in, output.channel(), session, pool, null);
+				output.commit(plainSize);
+				return plainSize;
+			}
+		}
+	}
+
+	/**
+	 * Decrypt a container like {@link #decrypt}, resuming the run an
+	 * interruption left behind for the same container. Containers below
+	 * {@link RsConstraints#JOURNAL_THRESHOLD} are simply decrypted again.
+	 *
+	 * @return number of plaintext bytes written
+	 */
+	public static long decryptResumable(Path sourceFile, Path outputFile, RsKeySession session, ForkJoinPool pool)
+			throws Exception {
+		try (FileChannel in = FileChannel.open(sourceFile, StandardOpenOption.READ)) {
+			if (in.size() < RsConstraints.JOURNAL_THRESHOLD) {
+				return decrypt(sourceFile, outputFile, session, pool);
+			}
+			RsContainerHeader header = RsContainerHeader.read(in);
+			if (header.isStream()) {
+				// No index to find the segments again
+				return decrypt(sourceFile, outputFile, session, pool);
+			}
+			long plainSize = header.getPlainSize();
+
+			RsJournal journal = RsJournal.open(outputFile, RsJournal.DECRYPT, sourceFile, header.getFlags(),
+					header.getSegmentCount());
+			try (journal; RsOutputFile output = RsOutputFile.resumable(outputFile, plainSize, journal.isResumed())) {
+				for (int i = 0; i < journal.completed(); i++) {
+					if (journal.length(i) != header.segmentLength(i)) {
+						throw new IllegalStateException("Container does not match its journal: " + sourceFile);
+					}
+				}
+				if (!journal.isResumed()) {
+					journal.start(output.channel());
+				}
+				open(in, output.channel(), session, pool, journal);
+				output.commit(plainSize);
+			}
+			journal.delete();
+			return plainSize;
+		}
+	}
+
+	/**
+	 * Authenticate and decrypt every segment of a container without writing
+	 * the plaintext anywhere. Tampering, truncation, reordering or a wrong key
+	 * fail with the same exceptions {@link #decrypt} throws.
+	 *
+	 * @return number of plaintext bytes the container holds
+	 */
+	public static long verify(Path sourceFile, RsKeySession session, ForkJoinPool pool) throws Exception {
+		try (FileChannel in = FileChannel.open(sourceFile, StandardOpenOption.READ)) {
+			return open(in, null, session, pool, null);
+		}
+	}
+
+	/**
+	 * Decrypt a container read from {@code in} from start to end, such as
+	 * standard input, and write its plaintext to {@code out} in order. Stream
+	 * containers and file containers both work.
+	 *
+	 * @return number of plaintext bytes written
+	 */
+	public static long decryptStream(ReadableByteChannel in, WritableByteChannel out, RsKeySession session,
+			ForkJoinPool pool) throws Exception {
+		return openStream(in, RsContainerHeader.read(in), out, session, pool);
+	}
+
+	/**
+	 * Open the segments following {@code header} in order, a window at a time,
+	 * writing the plaintext to {@code out} unless it is null
+	 */
+	private static long openStream(ReadableByteChannel in, RsContainerHeader header, WritableByteChannel out,
+			RsKeySession session, ForkJoinPool pool) throws Exception {
+		SecretKey aesKey = session.fileKey(header);
+		RsCodec codec = RsCodecs.byId(header.getCodecId());
+		byte[] noncePrefix = noncePrefix(aesKey);
+		byte[] aad = header.aad();
+		int window = windowSize(pool);
+		int segmentSize = header.getSegmentSize();
+		int capacity = 1 + segmentSize + RsConstraints.GCM_TAG_BITS / 8;
+		ByteBuffer[] sealed = new ByteBuffer[window];
+		ByteBuffer[] plain = new ByteBuffer[window];
+		byte[][] segmentAads = new byte[window][];
+		int[] plainLengths = new int[window];
+		ByteBuffer frame = ByteBuffer.allocate(8);
+
+		try {
+			long total = 0;
+			int first = 0;
+			boolean last = false;
+			while (!last) {
+				int count = 0;
+				for (; count < window && !last; count++) {
+					int segment = first + count;
+					int length;
+					if (header.isStream()) {
+						if (!Utility.readFully(in, frame.clear())) {
+							throw new GeneralSecurityException("Stream ended before its last segment");
+						}
+						frame.flip();
+						length = frame.getInt();
+						last = length < 0;
+						length &= 0x7FFFFFFF;
+						plainLengths[count] = frame.getInt();
+						if (length > capacity || plainLengths[count] < 0 || plainLengths[count] > segmentSize
+								|| (!last && plainLengths[count] != segmentSize)) {
+							throw new GeneralSecurityException("Invalid frame for segment " + segment);
+						}
+						segmentAads[count] = streamAad(aad, last, plainLengths[count]);
+					} else {
+						last = segment == header.getSegmentCount() - 1;
+						length = header.segmentLength(segment);
+						plainLengths[count] = header.plainLength(segment);
+						segmentAads[count] = segmentAad(aad, header, segment);
+					}
+					if (sealed[count] == null) {
+						sealed[count] = RsMemoryBudget.allocate(capacity);
+						plain[count] = RsMemoryBudget.allocate(segmentSize);
+					}
+					if (!Utility.readFully(in, sealed[count].clear().limit(length))) {
+						throw new GeneralSecurityException("Stream ended within segment " + segment);
+					}
+				}
+
+				List<Callable<Integer>> tasks = new ArrayList<>(count);
+				for (int i = 0; i < count; i++) {
+					final int slot = i;
+					final int segment = first + i;
+					tasks.add(() -> {
+						// Copied out of the thread buffer, a worker may open several segments of the window
+						ByteBuffer plaintext = openSealed(sealed[slot].flip(), segment, segmentAads[slot],
+								plainLengths[slot], codec, aesKey, noncePrefix);
+						plain[slot].clear().put(plaintext).flip();
+						return plainLengths[slot];
+					});
+				}
+				join(pool.invokeAll(tasks));
+
+				for (int i = 0; i < count; i++) {
+					total += plain[i].remaining();
+					if (out != null) {
+						Utility.writeFully(out, plain[i]);
+					}
+				}
+				first += count;
+			}
+
+			if (header.isStream() && Utility.readFully(in, frame.clear().limit(1))) {
+				throw new GeneralSecurityException("Unexpected data after the last segment");
+			}
+			return total;
+		} finally {
+			release(plain);
+			release(sealed);
+		}
+	}
+
+	// Plaintext goes to out, or nowhere when it is null, from the first segment journal does not have
+	private static long open(FileChannel in, FileChannel out, RsKeySession session, ForkJoinPool pool,
+			RsJournal journal) throws Exception {
+		RsContainerHeader header = RsContainerHeader.read(in);
+		if (header.isStream()) {
+			return openStream(in.position(header.payloadOffset()), header, out, session, pool);
+		}
+		SecretKey aesKey = session.fileKey(header);
+		RsCodec codec = RsCodecs.byId(header.getCodecId());
+
+		long[] offsets = header.segmentOffsets();
+		if (offsets[header.getSegmentCount()] != in.size()) {
+			throw new IllegalArgumentException("Container size does not match its segment index");
+		}
+
+		byte[] noncePrefix = noncePrefix(aesKey);
+		byte[] aad = header.aad();
+		int window = windowSize(pool);
+
+		int start = journal != null ? journal.completed() : 0;
+		for (int first = start; first < header.getSegmentCount(); first += window) {
+			int end = Math.min(header.getSegmentCount(), first + window);
+
+			// Plaintext segments have a fixed size, so each task writes at its own offset
+			List<Callable<Integer>> tasks = new ArrayList<>(end - first);
+			for (int i = first; i < end; i++) {
+				final int segment = i;
+				tasks.add(() -> {
+					ByteBuffer plaintext = openSegment(in, offsets[segment], header, segment, codec, aesKey,
+							noncePrefix, aad);
+					int length = plaintext.remaining();
+					if (out != null)
+						Utility.writeFully(out, plaintext, (long) segment * header.getSegmentSize());
+					return length;
+				});
+			}
+			join(pool.invokeAll(tasks));
+			if (journal != null) {
+				journal.completed(out, end, header);
+			}
+		}
+
+		return header.getPlainSize();
+	}
+
+	/**
+	 * Seal one segment and write it at {@code position}
+	 *
+	 * @return ciphertext length of the segment
+	 */
+	static int sealSegment(Plaintext in, FileChannel out, long position, RsContainerHeader header, int segment,
+			SecretKey aesKey, byte[] noncePrefix, byte[] aad) throws Exception {
+		int plainLength = header.plainLength(segment);
+		ByteBuffer plaintext = RsChannelCipher.threadBuffer(0, plainLength);
+		in.read((long) segment * header.getSegmentSize(), plaintext);
+		plaintext.flip();
+
+		ByteBuffer ciphertext = RsChannelCipher.threadBuffer(1, plainLength + RsConstraints.GCM_TAG_BITS / 8);
+		int length = seal(plaintext, ciphertext, segment, segmentAad(aad, header, segment), aesKey, noncePrefix);
+		ciphertext.flip();
+		Utility.writeFully(out, ciphertext, position);
+		return length;
+	}
+
+	/**
+	 * Seal one plaintext segment into {@code ciphertext}, left unflipped
+	 *
+	 * @return ciphertext length of the segment
+	 */
+	private static int seal(ByteBuffer plaintext, ByteBuffer ciphertext, int segment, byte[] segmentAad,
+			SecretKey aesKey, byte[] noncePrefix) throws Exception {
+		long start = System.nanoTime();
+		Cipher cipher = GCM_CIPHER.get();
+		cipher.init(Cipher.ENCRYPT_MODE, aesKey, nonce(noncePrefix, segment));
+		cipher.updateAAD(segmentAad);
+		RsMetrics.CIPHER_BYTES.add(plaintext.remaining());
+		int length = cipher.doFinal(plaintext, ciphertext);
+		RsMetrics.CIPHER.stop(start);
+		return length;
+	}
+
+	/**
+	 * Compress one segment, falling back to storing it when it does not shrink,
+	 * and seal it into {@code target}, flipped for writing
+	 *
+	 * @return ciphertext length of the segment
+	 */
+	static int sealSegment(Plaintext in, ByteBuffer target, RsContainerHeader header, int segment, RsCodec codec,
+			SecretKey aesKey, byte[] noncePrefix, byte[] aad) throws Exception {
+		ByteBuffer plaintext = RsChannelCipher.threadBuffer(0, header.plainLength(segment));
+		in.read((long) segment * header.getSegmentSize(), plaintext);
+		plaintext.flip();
+		return sealFramed(plaintext, target, segment, segmentAad(aad, header, segment), codec, aesKey, noncePrefix);
+	}
+
+	// [MODE:1][DATA], compressed data is only kept when it saves at least one byte
+	private static int sealFramed(ByteBuffer plaintext, ByteBuffer target, int segment, byte[] segmentAad,
+			RsCodec codec, SecretKey aesKey, byte[] noncePrefix) throws Exception {
+		int plainLength = plaintext.remaining();
+		ByteBuffer framed = RsChannelCipher.threadBuffer(2, 1 + plainLength);
+		ByteBuffer compressed = framed.duplicate().position(1).limit(Math.max(1, plainLength)).slice();
+		long start = System.nanoTime();
+		if (codec.compress(plaintext.duplicate(), compressed)) {
+			framed.put(SEGMENT_COMPRESSED).limit(1 + compressed.position());
+		} else {
+			framed.put(SEGMENT_STORED).put(plaintext).flip();
+		}
+		framed.position(0);
+		RsMetrics.COMPRESSION.stop(start);
+
+		seal(framed, target, segment, segmentAad, aesKey, noncePrefix);
+		target.flip();
+		return target.remaining();
+	}
+
+	/**
+	 * Authenticate and decrypt one segment into a buffer owned by the calling
+	 * thread, valid until the thread opens its next segment
+	 */
+	static ByteBuffer openSegment(FileChannel in, long offset, RsContainerHeader header, int segment, RsCodec codec,
+			SecretKey aesKey, byte[] noncePrefix, byte[] aad) throws Exception {
+		ByteBuffer ciphertext = RsChannelCipher.threadBuffer(0, header.segmentLength(segment));
+		Utility.readFully(in, offset, ciphertext);
+		ciphertext.flip();
+		return openSealed(ciphertext, segment, segmentAad(aad, header, segment), header.plainLength(segment), codec,
+				aesKey, noncePrefix);
+	}
+
+	/**
+	 * Authenticate and decrypt the sealed segment in {@code ciphertext}, which
+	 * must hold exactly {@code plainLength} bytes of plaintext
+	 */
+	private static ByteBuffer openSealed(ByteBuffer ciphertext, int segment, byte[] segmentAad, int plainLength,
+			RsCodec codec, SecretKey aesKey, byte[] noncePrefix) throws Exception {
+		ByteBuffer plaintext = RsChannelCipher.threadBuffer(1, Math.max(ciphertext.remaining(), 1));
+		long start = System.nanoTime();
+		Cipher cipher = GCM_CIPHER.get();
+		cipher.init(Cipher.DECRYPT_MODE, aesKey, nonce(noncePrefix, segment));
+		cipher.updateAAD(segmentAad);
+		RsMetrics.CIPHER_BYTES.add(ciphertext.remaining());
+		cipher.doFinal(ciphertext, plaintext);
+		RsMetrics.CIPHER.stop(start);
+		plaintext.flip();
+
+		if (codec != null) {
+			if (!plaintext.hasRemaining()) {
+				throw new GeneralSecurityException("Missing compression mode in segment " + segment);
+			}
+			byte mode = plaintext.get();
+			if (mode == SEGMENT_COMPRESSED) {
+				ByteBuffer inflated = RsChannelCipher.threadBuffer(2, plainLength);
+				start = System.nanoTime();
+				codec.decompress(plaintext, inflated);
+				RsMetrics.COMPRESSION.stop(start);
+				return inflated.flip();
+			}
+			if (mode != SEGMENT_STORED) {
+				throw new GeneralSecurityException("Unknown compression mode in segment " + segment);
+			}
+		}
+
+		if (plaintext.remaining() != plainLength) {
+			throw new GeneralSecurityException("Unexpected plaintext length in segment " + segment);
+		}
+		return plaintext;
+	}
+
+	/**
+	 * First 8 bytes of HMAC-SHA256(file key, label), shared by all segments of a file
+	 */
+	static byte[] noncePrefix(SecretKey aesKey) throws GeneralSecurityException {
+		return Arrays.copyOf(CypherUtility.hmac(aesKey, NONCE_LABEL), RsConstraints.GCM_NONCE_SIZE - 4);
+	}
+
+	static GCMParameterSpec nonce(byte[] noncePrefix, int segment) {
+		byte[] nonce = ByteBuffer.allocate(RsConstraints.GCM_NONCE_SIZE)
+				.put(noncePrefix)
+				.putInt(segment)
+				.array();
+		return new GCMParameterSpec(RsConstraints.GCM_TAG_BITS, nonce);
+	}
+
+	private static byte[] segmentAad(byte[] aad, RsContainerHeader header, int segment) {
+		byte[] segmentAad = Arrays.copyOf(aad, aad.length + 1);
+		segmentAad[aad.length] = (byte) (segment == header.getSegmentCount() - 1 ? 1 : 0);
+		return segmentAad;
+	}
+
+	// Stream segments also authenticate their plaintext length, nothing else records it
+	private static byte[] streamAad(byte[] aad, boolean last, int plainLength) {
+		return ByteBuffer.allocate(aad.length + 5).put(aad).put((byte) (last ? 1 : 0)).putInt(plainLength).array();
+	}
+
+	private static int windowSize(ForkJoinPool pool) {
+		return windowSize(pool.getParallelism());
+	}
+
+	// Segments handled at once by a file, two per worker
+	static int windowSize(int parallelism) {
+		return Math.max(2, parallelism * 2);
+	}
+
+	// Give back the buffers a file took from the memory budget
+	private static void release(ByteBuffer[] buffers) {
+		for (ByteBuffer buffer : buffers) {
+			if (buffer != null)
+				RsMemoryBudget.release(buffer);
+		}
+	}
+
+	private static <T> List<T> join(List<Future<T>> futures) throws Exception {
+		List<T> results = new ArrayList<>(futures.size());
+		for (Future<T> future : futures) {
+			try {
+				results.add(future.get());
+			} catch (ExecutionException e) {
+				Throwable cause = e.getCause();
+				// ForkJoinPool.invokeAll wraps the checked exceptions of a task in a plain RuntimeException,
+				// wrapped once more when the task failed on another thread
+				while (cause != null && cause.getClass() == RuntimeException.class && cause.getCause() != null) {
+					cause = cause.getCause();
+				}
+				if (cause instanceof Exception failure) {
+					throw failure;
+				}
+				throw e;
+			}
+		}
+		return results;
+	}
+
+}
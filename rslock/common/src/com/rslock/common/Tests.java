@@ -1,5 +1,7 @@
 package com.rslock.common;
 
+import java.nio.file.Path;
+
 public final class Tests {
 
     public static void main(String[] args) {
@@ -9,6 +11,38 @@ public final class Tests {
         testCase4();
         testCase5();
         testCase6();
+        testCase7();
+        testCase8();
+        testCase9();
+        testCase10();
+        testCase11();
+        testCase12();
+        testCase13();
+        testCase14();
+        testCase15();
+        testCase16();
+        testCase17();
+        testCase18();
+        testCase19();
+        testCase20();
+        testCase21();
+        testCase22();
+        testCase23();
+        testCase24();
+        testCase25();
+        testCase26();
+        testCase27();
+        testCase28();
+        testCase29();
+        testCase30();
+        testCase31();
+        testCase32();
+        testCase33();
+        testCase34();
+        testCase35();
+        testCase36();
+        testCase37();
+        testCase38();
     }
 
     // 1. Multiple source files
@@ -89,4 +123,1299 @@ public final class Tests {
         }
     }
 
+    // 7. Parallelism flag
+    static void testCase7() {
+        System.out.println("Test Case 7: Parallelism flag");
+        String[] args = { "-s", "file1.txt, file2.txt", "-p", "4" };
+        try {
+            RsLockConfig parsed = RsLockConfig.fromArgs(args);
+            System.out.println("  " + parsed);
+            System.out.println(parsed.getParallelism() == 4 ? "  PASS\n" : "  FAIL\n");
+        } catch (Exception e) {
+            System.out.println("  ERROR: " + e.getMessage() + "\n");
+        }
+    }
+
+    // 8. Container format flag
+    static void testCase8() {
+        System.out.println("Test Case 8: Container format flag");
+        String[] args = { "-s", "file.txt", "-f", "cbc" };
+        try {
+            RsLockConfig parsed = RsLockConfig.fromArgs(args);
+            System.out.println("  " + parsed);
+            System.out.println(parsed.getFormat() == RsLockConfig.Format.CBC ? "  PASS\n" : "  FAIL\n");
+        } catch (Exception e) {
+            System.out.println("  ERROR: " + e.getMessage() + "\n");
+        }
+    }
+
+    // 9. Range flag, negative offset counts from the end
+    static void testCase9() {
+        System.out.println("Test Case 9: Range flag");
+        String[] args = { "-s", "file.txt.rslocked", "--range", "-4096:" };
+        try {
+            RsLockConfig parsed = RsLockConfig.fromArgs(args);
+            long[] bounds = parsed.getRange().resolve(10_000);
+            System.out.println("  " + parsed);
+            System.out.println(bounds[0] == 5904 && bounds[1] == 10_000 ? "  PASS\n" : "  FAIL\n");
+        } catch (Exception e) {
+            System.out.println("  ERROR: " + e.getMessage() + "\n");
+        }
+    }
+
+    // 10. Envelope switch takes no value
+    static void testCase10() {
+        System.out.println("Test Case 10: Envelope per batch switch");
+        String[] args = { "-s", "file1.txt", "--envelope", "-a", "mykey" };
+        try {
+            RsLockConfig parsed = RsLockConfig.fromArgs(args);
+            System.out.println("  " + parsed);
+            System.out.println(parsed.isEnvelopePerBatch() && "mykey".equals(parsed.getAlias()) ? "  PASS\n" : "  FAIL\n");
+        } catch (Exception e) {
+            System.out.println("  ERROR: " + e.getMessage() + "\n");
+        }
+    }
+
+    // 11. Glob source, matched below its literal parent directory
+    static void testCase11() {
+        System.out.println("Test Case 11: Glob source");
+        String[] args = { "-s", "photos/2024/**/*.jpg" };
+        try {
+            RsLockConfig parsed = RsLockConfig.fromArgs(args);
+            Path source = parsed.getSourceFiles().get(0);
+            System.out.println("  " + parsed);
+            System.out.println(RsFileWalker.isGlob(source)
+                    && RsFileWalker.globBase(source).equals(Path.of("photos", "2024")) ? "  PASS\n" : "  FAIL\n");
+        } catch (Exception e) {
+            System.out.println("  ERROR: " + e.getMessage() + "\n");
+        }
+    }
+
+    // 12. Compression flag
+    static void testCase12() {
+        System.out.println("Test Case 12: Compression flag");
+        String[] args = { "-s", "app.log", "-c", "fast" };
+        try {
+            RsLockConfig parsed = RsLockConfig.fromArgs(args);
+            System.out.println("  " + parsed);
+            System.out.println(parsed.getCodec() == RsCodecs.FAST ? "  PASS\n" : "  FAIL\n");
+        } catch (Exception e) {
+            System.out.println("  ERROR: " + e.getMessage() + "\n");
+        }
+    }
+
+    // 13. Incremental switch, the manifest sits next to the destination
+    static void testCase13() {
+        System.out.println("Test Case 13: Incremental switch");
+        String[] args = { "-s", "docs", "-d", "backup/docs", "--incremental" };
+        try {
+            RsLockConfig parsed = RsLockConfig.fromArgs(args);
+            Path manifest = RsManifest.locate(parsed.getDestinationDir());
+            System.out.println("  " + parsed);
+            System.out.println("  Manifest: " + manifest);
+            System.out.println(parsed.isIncremental() && manifest.getFileName().toString().equals("docs.rslock-manifest")
+                    && manifest.getParent().endsWith("backup") ? "  PASS\n" : "  FAIL\n");
+        } catch (Exception e) {
+            System.out.println("  ERROR: " + e.getMessage() + "\n");
+        }
+    }
+
+    // 14. Metrics flag, the report format follows the file extension
+    static void testCase14() {
+        System.out.println("Test Case 14: Metrics flag");
+        String[] args = { "-s", "app.log", "--metrics", "rslock.prom" };
+        try {
+            RsLockConfig parsed = RsLockConfig.fromArgs(args);
+            RsMetrics.RSA_WRAP.record(1_500_000);
+            java.io.StringWriter report = new java.io.StringWriter();
+            RsMetrics.writePrometheus(report, "test");
+            System.out.println("  " + parsed);
+            System.out.println(parsed.getMetricsFile().equals(Path.of("rslock.prom"))
+                    && report.toString().contains("rslock_rsa_wrap_seconds_count{run=\"test\"} 1") ? "  PASS\n" : "  FAIL\n");
+        } catch (Exception e) {
+            System.out.println("  ERROR: " + e.getMessage() + "\n");
+        }
+    }
+
+    // 15. Async logging drops routine records when the buffer is full, never warnings
+    static void testCase15() {
+        System.out.println("Test Case 15: Async log handler overflow");
+        java.util.concurrent.CountDownLatch release = new java.util.concurrent.CountDownLatch(1);
+        java.util.List<String> written = java.util.Collections.synchronizedList(new java.util.ArrayList<>());
+        java.util.logging.Handler slow = new java.util.logging.Handler() {
+            @Override
+            public void publish(java.util.logging.LogRecord record) {
+                try {
+                    release.await();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+                written.add(record.getMessage());
+            }
+
+            @Override
+            public void flush() {
+            }
+
+            @Override
+            public void close() {
+            }
+        };
+        RsAsyncHandler handler = new RsAsyncHandler(java.util.List.of(slow), 4, RsAsyncHandler.OverflowPolicy.DROP);
+        for (int i = 0; i < 100; i++) {
+            handler.publish(new java.util.logging.LogRecord(java.util.logging.Level.FINE, "fine " + i));
+        }
+        release.countDown();
+        handler.publish(new java.util.logging.LogRecord(java.util.logging.Level.WARNING, "warning"));
+        handler.close();
+        System.out.println("  Dropped: " + handler.getDropped() + ", written: " + written.size());
+        System.out.println(handler.getDropped() > 0 && written.contains("warning")
+                && written.size() + handler.getDropped() >= 101 ? "  PASS\n" : "  FAIL\n");
+    }
+
+    // 16. Key agent switch, keys then come from the agent rather than the keystore
+    static void testCase16() {
+        System.out.println("Test Case 16: Key agent switch");
+        String[] args = { "-s", "app.log", "-k", "missing.p12", "--agent" };
+        try {
+            RsLockConfig parsed = RsLockConfig.fromArgs(args);
+            System.out.println("  " + parsed);
+            System.out.println("  Socket: " + RsKeyAgent.defaultSocket());
+            System.out.println(parsed.isKeyAgent() && parsed.getKeystorePath().equals(Path.of("missing.p12"))
+                    ? "  PASS\n" : "  FAIL\n");
+        } catch (Exception e) {
+            System.out.println("  ERROR: " + e.getMessage() + "\n");
+        }
+    }
+
+    // 17. Provider policy, the benchmarked choice is cached and reused
+    static void testCase17() {
+        System.out.println("Test Case 17: Provider selection");
+        String[] args = { "-s", "app.log", "--provider", "SunJCE" };
+        try {
+            RsLockConfig parsed = RsLockConfig.fromArgs(args);
+            System.out.println("  " + parsed);
+            Path cache = java.nio.file.Files.createTempDirectory("rslock-providers").resolve("providers.properties");
+            RsProviders.configure(RsProviders.FASTEST, cache);
+            String fastest = RsProviders.selected(RsConstraints.GCM_TRANSFORMATION).getName();
+            RsProviders.configure(RsProviders.FASTEST, cache);
+            String cached = RsProviders.selected(RsConstraints.GCM_TRANSFORMATION).getName();
+            RsProviders.configure(parsed.getProviderPolicy(), cache);
+            String pinned = RsProviders.cipher(RsConstraints.AES_TRANSFORMATION).getProvider().getName();
+            boolean unknown = false;
+            try {
+                RsProviders.configure("NoSuchProvider", cache);
+            } catch (IllegalArgumentException e) {
+                unknown = true;
+            }
+            RsProviders.configure(RsConstraints.PROVIDER_POLICY, RsProviders.defaultCacheFile());
+            System.out.println("  Fastest: " + fastest + ", cached: " + cached + ", pinned: " + pinned);
+            System.out.println(fastest.equals(cached) && java.nio.file.Files.exists(cache) && pinned.equals("SunJCE")
+                    && unknown && fastest.equals(RsMetrics.PROVIDER.get(RsConstraints.GCM_TRANSFORMATION))
+                    ? "  PASS\n" : "  FAIL\n");
+        } catch (Exception e) {
+            System.out.println("  ERROR: " + e.getMessage() + "\n");
+        }
+    }
+
+    // 18. Verify switch, whole files only
+    static void testCase18() {
+        System.out.println("Test Case 18: Verify switch");
+        String[] args = { "-s", "archive", "--verify" };
+        try {
+            String archive = java.nio.file.Files.createTempDirectory("rslock-verify").toString();
+            String[] withRange = { "-s", archive, "--verify", "--range", "0:10" };
+            RsLockConfig parsed = RsLockConfig.fromArgs(args);
+            System.out.println("  " + parsed);
+            boolean rejected = false;
+            try {
+                RsLockConfig.fromArgs(withRange).validate();
+            } catch (IllegalArgumentException e) {
+                rejected = e.getMessage().contains("--range");
+            }
+            System.out.println(parsed.isVerify() && rejected ? "  PASS\n" : "  FAIL\n");
+        } catch (Exception e) {
+            System.out.println("  ERROR: " + e.getMessage() + "\n");
+        }
+    }
+
+    // 19. Pipeline stages overlap: slow reads and a slow cipher take about as long as the slower of the two
+    static void testCase19() {
+        System.out.println("Test Case 19: Read/cipher/write pipeline");
+        int chunks = 20;
+        try {
+            Path file = java.nio.file.Files.createTempFile("rslock-pipeline", ".bin");
+            long start = System.nanoTime();
+            try (java.nio.channels.FileChannel out = java.nio.channels.FileChannel.open(file,
+                    java.nio.file.StandardOpenOption.WRITE)) {
+                RsPipeline.run(chunks, 16, 16, RsConstraints.PIPELINE_DEPTH,
+                        (chunk, buffer) -> {
+                            Thread.sleep(10);
+                            buffer.put((byte) chunk);
+                        },
+                        (chunk, input, output) -> {
+                            Thread.sleep(10);
+                            output.put((byte) (input.get() + 1));
+                            return chunk;
+                        },
+                        out, null);
+            }
+            long millis = (System.nanoTime() - start) / 1_000_000;
+            byte[] written = java.nio.file.Files.readAllBytes(file);
+            java.nio.file.Files.delete(file);
+            boolean ordered = written.length == chunks;
+            for (int i = 0; ordered && i < chunks; i++) {
+                ordered = written[i] == i + 1;
+            }
+            System.out.println("  " + chunks + " chunks in " + millis + " ms, lock-step would take " + chunks * 20 + " ms");
+            System.out.println(ordered && millis < chunks * 20 * 3 / 4 ? "  PASS\n" : "  FAIL\n");
+        } catch (Exception e) {
+            System.out.println("  ERROR: " + e.getMessage() + "\n");
+        }
+    }
+
+    // 20. Atomic outputs: nothing appears before commit, a batch appears on flush, failures leave no trace
+    static void testCase20() {
+        System.out.println("Test Case 20: Atomic output files");
+        String[] args = { "-s", "archive", "--fsync", "file" };
+        try {
+            RsLockConfig parsed = RsLockConfig.fromArgs(args);
+            System.out.println("  " + parsed);
+            Path dir = java.nio.file.Files.createTempDirectory("rslock-output");
+            Path target = dir.resolve("out.bin");
+            java.nio.file.Files.writeString(target, "previous");
+
+            RsOutputFile.configure(RsOutputFile.Sync.BATCH);
+            try (RsOutputFile output = RsOutputFile.create(target, 64)) {
+                output.channel().write(java.nio.ByteBuffer.wrap("complete".getBytes()), 0);
+                output.commit(8);
+            }
+            boolean hidden = java.nio.file.Files.readString(target).equals("previous");
+            RsOutputFile.flush();
+            boolean published = java.nio.file.Files.readString(target).equals("complete");
+
+            try (RsOutputFile output = RsOutputFile.create(dir.resolve("failed.bin"), 64)) {
+                output.channel().write(java.nio.ByteBuffer.wrap("partial".getBytes()), 0);
+            }
+            long files;
+            try (java.util.stream.Stream<Path> listing = java.nio.file.Files.list(dir)) {
+                files = listing.count();
+            }
+            RsOutputFile.configure(RsOutputFile.Sync.parse(RsConstraints.FSYNC_POLICY));
+            java.nio.file.Files.delete(target);
+            java.nio.file.Files.delete(dir);
+
+            System.out.println(parsed.getFsync() == RsOutputFile.Sync.FILE && hidden && published && files == 1
+                    ? "  PASS\n" : "  FAIL\n");
+        } catch (Exception e) {
+            System.out.println("  ERROR: " + e.getMessage() + "\n");
+        }
+    }
+
+    // 21. Several recipients: -a takes a list, adding recipients rewrites the header and keeps the payload
+    static void testCase21() {
+        System.out.println("Test Case 21: Multi-recipient containers");
+        String[] args = { "-s", "archive", "-a", "ops,audit", "backup", "--add-recipient" };
+        try {
+            RsLockConfig parsed = RsLockConfig.fromArgs(args);
+            System.out.println("  " + parsed);
+            java.security.KeyPairGenerator generator = java.security.KeyPairGenerator.getInstance("RSA");
+            generator.initialize(2048);
+            java.util.Map<String, java.security.KeyPair> keys = new java.util.LinkedHashMap<>();
+            for (String alias : java.util.List.of("ops", "audit", "backup", "legal", "finance")) {
+                keys.put(alias, generator.generateKeyPair());
+            }
+
+            Path dir = java.nio.file.Files.createTempDirectory("rslock-recipients");
+            Path plain = dir.resolve("plain.bin");
+            Path locked = dir.resolve("plain.bin.rslocked");
+            byte[] data = new byte[100_000];
+            new java.util.Random(21).nextBytes(data);
+            java.nio.file.Files.write(plain, data);
+            RsOutputFile.configure(RsOutputFile.Sync.NONE);
+            RsSegmentedCipher.encrypt(plain, locked, RsKeySession.forEncryption(java.util.Map.of(
+                    "ops", keys.get("ops").getPublic(), "audit", keys.get("audit").getPublic()), false).newFileKey(),
+                    java.util.concurrent.ForkJoinPool.commonPool());
+            long size = java.nio.file.Files.size(locked);
+
+            // Fits in the spare key area: same size, payload untouched
+            RsKeySession ops = RsKeySession.forDecryption(keys.get("ops").getPrivate(), "ops");
+            int added = RsRecipients.add(locked, ops, java.util.Map.of("backup", keys.get("backup").getPublic()));
+            boolean inPlace = added == 1 && java.nio.file.Files.size(locked) == size;
+            // Outgrows it: the header grows and the payload moves, still without re-encryption
+            java.util.Map<String, java.security.PublicKey> more = new java.util.LinkedHashMap<>();
+            more.put("legal", keys.get("legal").getPublic());
+            more.put("finance", keys.get("finance").getPublic());
+            added += RsRecipients.add(locked, ops, more);
+            boolean moved = added == 3 && java.nio.file.Files.size(locked) > size;
+
+            boolean readable = true;
+            for (java.util.Map.Entry<String, java.security.KeyPair> key : keys.entrySet()) {
+                Path out = dir.resolve("plain." + key.getKey());
+                RsSegmentedCipher.decrypt(locked, out,
+                        RsKeySession.forDecryption(key.getValue().getPrivate(), key.getKey()),
+                        java.util.concurrent.ForkJoinPool.commonPool());
+                readable &= java.util.Arrays.equals(data, java.nio.file.Files.readAllBytes(out));
+                java.nio.file.Files.delete(out);
+            }
+            RsOutputFile.configure(RsOutputFile.Sync.parse(RsConstraints.FSYNC_POLICY));
+            java.nio.file.Files.delete(plain);
+            java.nio.file.Files.delete(locked);
+            java.nio.file.Files.delete(dir);
+
+            System.out.println("  in place: " + inPlace + ", payload moved: " + moved + ", readable by all: " + readable);
+            System.out.println(parsed.getAliases().equals(java.util.List.of("ops", "audit", "backup"))
+                    && parsed.isAddRecipient() && inPlace && moved && readable ? "  PASS\n" : "  FAIL\n");
+        } catch (Exception e) {
+            System.out.println("  ERROR: " + e.getMessage() + "\n");
+        }
+    }
+
+    // 22. Key rotation: headers rewrapped in place, files sharing a data key keep sharing one
+    static void testCase22() {
+        System.out.println("Test Case 22: Key rotation");
+        String[] args = { "-s", "archive", "-a", "old,new", "--rotate" };
+        try {
+            RsLockConfig parsed = RsLockConfig.fromArgs(args);
+            System.out.println("  " + parsed);
+            java.security.KeyPairGenerator generator = java.security.KeyPairGenerator.getInstance("RSA");
+            generator.initialize(2048);
+            java.security.KeyPair oldKeys = generator.generateKeyPair();
+            java.security.KeyPair newKeys = generator.generateKeyPair();
+
+            Path dir = java.nio.file.Files.createTempDirectory("rslock-rotate");
+            Path plain = dir.resolve("plain.bin");
+            java.nio.file.Files.write(plain, new byte[50_000]);
+            RsOutputFile.configure(RsOutputFile.Sync.NONE);
+            RsKeySession batch = RsKeySession.forEncryption(oldKeys.getPublic(), "old", true);
+            Path first = dir.resolve("first.rslocked");
+            Path second = dir.resolve("second.rslocked");
+            RsSegmentedCipher.encrypt(plain, first, batch.newFileKey(), java.util.concurrent.ForkJoinPool.commonPool());
+            RsSegmentedCipher.encrypt(plain, second, batch.newFileKey(), java.util.concurrent.ForkJoinPool.commonPool());
+            long size = java.nio.file.Files.size(first);
+
+            RsRecipients.Rotation rotation = new RsRecipients.Rotation(
+                    RsKeySession.forDecryption(oldKeys.getPrivate(), "old"), "old",
+                    java.util.Map.of("new", newKeys.getPublic()));
+            boolean rotated = RsRecipients.rotate(first, rotation) && RsRecipients.rotate(second, rotation);
+            boolean again = RsRecipients.rotate(first, rotation);
+
+            RsContainerHeader header1;
+            RsContainerHeader header2;
+            try (java.nio.channels.FileChannel in = java.nio.channels.FileChannel.open(first)) {
+                header1 = RsContainerHeader.read(in);
+            }
+            try (java.nio.channels.FileChannel in = java.nio.channels.FileChannel.open(second)) {
+                header2 = RsContainerHeader.read(in);
+            }
+            boolean shared = header1.getRecipients().size() == 1
+                    && "new".equals(header1.getRecipients().get(0).alias())
+                    && java.util.Arrays.equals(header1.getRecipients().get(0).encryptedKey(),
+                            header2.getRecipients().get(0).encryptedKey());
+
+            Path out = dir.resolve("plain.out");
+            RsSegmentedCipher.decrypt(second, out, RsKeySession.forDecryption(newKeys.getPrivate(), "new"),
+                    java.util.concurrent.ForkJoinPool.commonPool());
+            boolean readable = java.util.Arrays.equals(java.nio.file.Files.readAllBytes(plain),
+                    java.nio.file.Files.readAllBytes(out));
+            boolean inPlace = java.nio.file.Files.size(first) == size;
+
+            RsOutputFile.configure(RsOutputFile.Sync.parse(RsConstraints.FSYNC_POLICY));
+            for (Path file : java.util.List.of(plain, first, second, out, dir)) {
+                java.nio.file.Files.delete(file);
+            }
+
+            System.out.println("  rotated: " + rotated + ", rerun skipped: " + !again + ", in place: " + inPlace
+                    + ", shared key: " + shared + ", readable: " + readable);
+            System.out.println(parsed.isRotate() && rotated && !again && inPlace && shared && readable
+                    ? "  PASS\n" : "  FAIL\n");
+        } catch (Exception e) {
+            System.out.println("  ERROR: " + e.getMessage() + "\n");
+        }
+    }
+
+    // 23. Pack: many files in one container, listed and extracted member by member
+    static void testCase23() {
+        System.out.println("Test Case 23: Pack of many files");
+        String[] args = { "-s", "docs", "--pack", "docs.rslocked", "--member", "*.txt,sub/*" };
+        try {
+            RsLockConfig parsed = RsLockConfig.fromArgs(args);
+            System.out.println("  " + parsed);
+            java.security.KeyPairGenerator generator = java.security.KeyPairGenerator.getInstance("RSA");
+            generator.initialize(2048);
+            java.security.KeyPair keys = generator.generateKeyPair();
+
+            Path dir = java.nio.file.Files.createTempDirectory("rslock-pack");
+            Path tree = java.nio.file.Files.createDirectories(dir.resolve("tree/sub"));
+            java.util.Map<String, byte[]> files = new java.util.TreeMap<>();
+            java.util.Random random = new java.util.Random(23);
+            files.put("a.txt", "small".getBytes());
+            files.put("empty.bin", new byte[0]);
+            files.put("large.bin", new byte[3 * RsConstraints.SEGMENT_SIZE + 17]);
+            files.put("sub/b.txt", new byte[1000]);
+            for (java.util.Map.Entry<String, byte[]> file : files.entrySet()) {
+                random.nextBytes(file.getValue());
+                java.nio.file.Files.write(tree.getParent().resolve(file.getKey()), file.getValue());
+            }
+
+            RsOutputFile.configure(RsOutputFile.Sync.NONE);
+            Path pack = dir.resolve("tree.rslocked");
+            java.util.List<RsFileWalker.Source> sources;
+            try (java.util.stream.Stream<RsFileWalker.Source> walk = RsFileWalker.walk(
+                    java.util.List.of(tree.getParent()), file -> true)) {
+                sources = walk.toList();
+            }
+            RsPack.pack(sources, pack, RsKeySession.forEncryption(keys.getPublic(), "pack", false).newFileKey(),
+                    null, java.util.concurrent.ForkJoinPool.commonPool());
+            RsKeySession session = RsKeySession.forDecryption(keys.getPrivate(), "pack");
+            boolean isPack = RsPack.isPack(pack);
+
+            java.util.List<RsPack.Member> members;
+            try (RsLockedFile locked = RsLockedFile.open(pack, session)) {
+                members = RsPack.list(locked);
+            }
+            boolean listed = members.stream().map(RsPack.Member::name).sorted().toList()
+                    .equals(java.util.List.copyOf(files.keySet()));
+
+            Path some = dir.resolve("some");
+            RsPack.extract(pack, session, some, parsed.getMemberFilter());
+            boolean filtered = java.util.Arrays.equals(files.get("a.txt"),
+                    java.nio.file.Files.readAllBytes(some.resolve("a.txt")))
+                    && java.util.Arrays.equals(files.get("sub/b.txt"),
+                            java.nio.file.Files.readAllBytes(some.resolve("sub/b.txt")))
+                    && !java.nio.file.Files.exists(some.resolve("large.bin"));
+
+            Path all = dir.resolve("all");
+            RsPack.extract(pack, session, all, null);
+            boolean extracted = true;
+            for (java.util.Map.Entry<String, byte[]> file : files.entrySet()) {
+                extracted &= java.util.Arrays.equals(file.getValue(),
+                        java.nio.file.Files.readAllBytes(all.resolve(file.getKey())));
+            }
+            RsOutputFile.configure(RsOutputFile.Sync.parse(RsConstraints.FSYNC_POLICY));
+            try (java.util.stream.Stream<Path> walk = java.nio.file.Files.walk(dir)) {
+                for (Path file : walk.sorted(java.util.Comparator.reverseOrder()).toList()) {
+                    java.nio.file.Files.delete(file);
+                }
+            }
+
+            System.out.println("  pack: " + isPack + ", members: " + members.size() + ", listed: " + listed
+                    + ", filtered: " + filtered
+                    + ", extracted: " + extracted);
+            System.out.println(isPack && listed && filtered && extracted
+                    ? "  PASS\n" : "  FAIL\n");
+        } catch (Exception e) {
+            System.out.println("  ERROR: " + e.getMessage() + "\n");
+        }
+    }
+
+    // 24. Resume journal: checkpoints read back, a torn record dropped, a changed source starts over
+    static void testCase24() {
+        System.out.println("Test Case 24: Resume journal");
+        String[] args = { "-s", "huge.bin", "--resume" };
+        try {
+            RsLockConfig parsed = RsLockConfig.fromArgs(args);
+            System.out.println("  " + parsed);
+            Path dir = java.nio.file.Files.createTempDirectory("rslock-journal");
+            Path source = dir.resolve("huge.bin");
+            java.nio.file.Files.write(source, new byte[1000]);
+            Path target = dir.resolve("huge.bin.rslocked");
+
+            // Segment lengths only, no payload is needed to checkpoint them
+            RsContainerHeader header = new RsContainerHeader(0, RsConstraints.SEGMENT_SIZE,
+                    200L * RsConstraints.SEGMENT_SIZE,
+                    java.util.List.of(new RsContainerHeader.Recipient("a", new byte[8])));
+            for (int i = 0; i < header.getSegmentCount(); i++) {
+                header.setSegmentLength(i, RsConstraints.SEGMENT_SIZE + 16 + i);
+            }
+            int done = (int) (RsConstraints.JOURNAL_INTERVAL / RsConstraints.SEGMENT_SIZE) + 6;
+            int segments = header.getSegmentCount();
+            try (RsOutputFile output = RsOutputFile.resumable(target, 0, false);
+                    RsJournal journal = RsJournal.open(target, RsJournal.ENCRYPT, source, 0, segments)) {
+                journal.start(output.channel());
+                journal.completed(output.channel(), done, header);
+                // Never checkpointed, lost with the interruption
+                journal.completed(output.channel(), done + 3, header);
+            }
+            java.nio.file.Files.write(RsJournal.journalFile(target), new byte[] { 0, 0, 0, 1, 0 },
+                    java.nio.file.StandardOpenOption.APPEND);
+
+            boolean resumed;
+            try (RsJournal journal = RsJournal.open(target, RsJournal.ENCRYPT, source, 0, segments)) {
+                resumed = journal.isResumed() && journal.completed() == done
+                        && journal.length(done - 1) == header.segmentLength(done - 1);
+            }
+            // Same size and modification time, other content: its segments must not be sealed again
+            java.nio.file.attribute.FileTime modified = java.nio.file.Files.getLastModifiedTime(source);
+            byte[] edited = new byte[1000];
+            edited[999] = 1;
+            java.nio.file.Files.write(source, edited);
+            java.nio.file.Files.setLastModifiedTime(source, modified);
+            boolean restarted;
+            try (RsJournal journal = RsJournal.open(target, RsJournal.ENCRYPT, source, 0, segments)) {
+                restarted = !journal.isResumed() && journal.completed() == 0;
+            }
+            java.nio.file.Files.setLastModifiedTime(source, java.nio.file.attribute.FileTime.fromMillis(0));
+            try (RsJournal journal = RsJournal.open(target, RsJournal.ENCRYPT, source, 0, segments)) {
+                restarted &= !journal.isResumed() && journal.completed() == 0;
+            }
+            boolean hidden;
+            try (java.util.stream.Stream<RsFileWalker.Source> walk = RsFileWalker.walk(java.util.List.of(dir),
+                    file -> true)) {
+                hidden = walk.count() == 1;
+            }
+
+            for (Path file : java.util.List.of(RsJournal.journalFile(target), RsOutputFile.resumeFile(target), source,
+                    dir)) {
+                java.nio.file.Files.delete(file);
+            }
+
+            System.out.println("  resumed at " + done + ": " + resumed + ", changed source restarts: " + restarted
+                    + ", hidden from walks: " + hidden);
+            System.out.println(parsed.isResume() && resumed && restarted && hidden ? "  PASS\n" : "  FAIL\n");
+        } catch (Exception e) {
+            System.out.println("  ERROR: " + e.getMessage() + "\n");
+        }
+    }
+
+    // 25. Pipe mode: stream containers of unknown length, sealed and opened in order from channels
+    static void testCase25() {
+        System.out.println("Test Case 25: Stream containers");
+        String[] args = { "--pipe", "-c", "fast" };
+        try {
+            RsLockConfig parsed = RsLockConfig.fromArgs(args);
+            System.out.println("  " + parsed);
+            java.security.KeyPairGenerator generator = java.security.KeyPairGenerator.getInstance("RSA");
+            generator.initialize(2048);
+            java.security.KeyPair pair = generator.generateKeyPair();
+            RsKeySession encryption = RsKeySession.forEncryption(java.util.Map.of("a", pair.getPublic()), false);
+            RsKeySession decryption = RsKeySession.forDecryption(pair.getPrivate(), "a");
+            java.util.concurrent.ForkJoinPool pool = java.util.concurrent.ForkJoinPool.commonPool();
+
+            // Empty, exactly two segments and a partial last one, with and without a codec
+            boolean roundtrip = true;
+            byte[] sealed = null;
+            for (int size : new int[] { 0, 2 * RsConstraints.SEGMENT_SIZE, RsConstraints.SEGMENT_SIZE + 12_345 }) {
+                for (RsCodec codec : java.util.Arrays.asList(null, parsed.getCodec())) {
+                    byte[] data = new byte[size];
+                    new java.util.Random(size).nextBytes(data);
+                    java.util.Arrays.fill(data, 0, size / 2, (byte) 7);
+                    java.io.ByteArrayOutputStream out = new java.io.ByteArrayOutputStream();
+                    long written = RsSegmentedCipher.encryptStream(
+                            java.nio.channels.Channels.newChannel(new java.io.ByteArrayInputStream(data)),
+                            java.nio.channels.Channels.newChannel(out), encryption.newFileKey(), codec, pool);
+                    sealed = out.toByteArray();
+                    java.io.ByteArrayOutputStream plain = new java.io.ByteArrayOutputStream();
+                    long read = RsSegmentedCipher.decryptStream(
+                            java.nio.channels.Channels.newChannel(new java.io.ByteArrayInputStream(sealed)),
+                            java.nio.channels.Channels.newChannel(plain), decryption, pool);
+                    roundtrip &= written == size && read == size && java.util.Arrays.equals(data, plain.toByteArray());
+                }
+            }
+
+            // Cut before the segment marked last: refused, never taken for a shorter stream
+            boolean truncated;
+            try {
+                RsSegmentedCipher.decryptStream(java.nio.channels.Channels.newChannel(
+                        new java.io.ByteArrayInputStream(java.util.Arrays.copyOf(sealed, sealed.length - 100))),
+                        null, decryption, pool);
+                truncated = false;
+            } catch (java.security.GeneralSecurityException e) {
+                truncated = true;
+            }
+
+            // A stream container saved to a file decrypts like any other
+            Path dir = java.nio.file.Files.createTempDirectory("rslock-stream");
+            Path locked = dir.resolve("stream.rslocked");
+            Path out = dir.resolve("stream");
+            java.nio.file.Files.write(locked, sealed);
+            RsOutputFile.configure(RsOutputFile.Sync.NONE);
+            long size = RsSegmentedCipher.decrypt(locked, out, decryption, pool);
+            RsOutputFile.configure(RsOutputFile.Sync.parse(RsConstraints.FSYNC_POLICY));
+            boolean fromFile = size == RsConstraints.SEGMENT_SIZE + 12_345 && java.nio.file.Files.size(out) == size;
+            java.nio.file.Files.delete(out);
+            java.nio.file.Files.delete(locked);
+            java.nio.file.Files.delete(dir);
+
+            System.out.println("  roundtrip: " + roundtrip + ", truncation detected: " + truncated
+                    + ", file decrypt: " + fromFile);
+            System.out.println(parsed.isPipe() && roundtrip && truncated && fromFile ? "  PASS\n" : "  FAIL\n");
+        } catch (Exception e) {
+            System.out.println("  ERROR: " + e.getMessage() + "\n");
+        }
+    }
+
+    // 26. Memory budget: files admitted while they fit, an oversized one alone, free buffers reused
+    static void testCase26() {
+        System.out.println("Test Case 26: Memory budget");
+        String[] args = { "-s", "archive", "--memory", "64m", "-p", "2" };
+        try {
+            RsLockConfig parsed = RsLockConfig.fromArgs(args);
+            System.out.println("  " + parsed);
+            RsMemoryBudget.configure(parsed.getMemoryBudget(), parsed.getParallelism());
+            long shared = parsed.getMemoryBudget() - 2 * RsMemoryBudget.WORKER_BYTES;
+
+            boolean admission;
+            try (RsMemoryBudget.Permit first = RsMemoryBudget.tryAdmit(shared / 2, 1)) {
+                RsMemoryBudget.Permit second = RsMemoryBudget.tryAdmit(shared / 2, 1);
+                RsMemoryBudget.Permit third = RsMemoryBudget.tryAdmit(1, 1);
+                admission = first != null && second != null && third == null;
+                second.close();
+                second.close();
+                admission &= RsMemoryBudget.inFlightBytes() == shared / 2;
+            }
+            // Larger than the whole budget, but nothing else is in flight
+            boolean alone;
+            try (RsMemoryBudget.Permit huge = RsMemoryBudget.admit(2 * parsed.getMemoryBudget(), 1)) {
+                alone = huge != null && RsMemoryBudget.tryAdmit(1, 1) == null;
+            }
+
+            java.nio.ByteBuffer buffer = RsMemoryBudget.allocate(4096);
+            RsMemoryBudget.release(buffer);
+            boolean reused = RsMemoryBudget.pooledBytes() == 4096 && RsMemoryBudget.allocate(4096) == buffer;
+            // Free buffers give way to files
+            RsMemoryBudget.release(buffer);
+            try (RsMemoryBudget.Permit full = RsMemoryBudget.admit(shared, 1)) {
+                reused &= full != null && RsMemoryBudget.pooledBytes() == 0;
+            }
+            RsMemoryBudget.configure(RsConstraints.MEMORY_BUDGET, RsConstraints.DEFAULT_PARALLELISM);
+
+            System.out.println("  admission: " + admission + ", oversized alone: " + alone + ", buffers reused: "
+                    + reused);
+            System.out.println(parsed.getMemoryBudget() == 64L << 20 && admission && alone && reused
+                    ? "  PASS\n" : "  FAIL\n");
+        } catch (Exception e) {
+            System.out.println("  ERROR: " + e.getMessage() + "\n");
+        }
+    }
+
+    // 27. Default memory budget on a small heap: fewer workers instead of an error, --memory still strict
+    static void testCase27() {
+        System.out.println("Test Case 27: Default memory budget below the worker reserve");
+        String[] args = { "-s", "archive", "-p", "8" };
+        try {
+            RsLockConfig parsed = RsLockConfig.fromArgs(args);
+            System.out.println("  " + parsed);
+            long reserve = RsMemoryBudget.WORKER_BYTES + RsConstraints.MEMORY_FILE_OVERHEAD;
+
+            // Less than a single worker: one runs anyway, the budget grows to its buffers
+            int one = RsMemoryBudget.configureDefault(RsMemoryBudget.WORKER_BYTES / 2, parsed.getParallelism());
+            boolean single = one == 1 && RsMemoryBudget.getBudget() >= reserve;
+            int three = RsMemoryBudget.configureDefault(3 * RsMemoryBudget.WORKER_BYTES
+                    + RsConstraints.MEMORY_FILE_OVERHEAD, parsed.getParallelism());
+            boolean reduced = three == 3;
+            int all = RsMemoryBudget.configureDefault(64L << 30, parsed.getParallelism());
+            boolean untouched = all == 8;
+
+            boolean strict;
+            RsLockConfig explicit = RsLockConfig.fromArgs(new String[] { "-s", "archive", "-p", "8", "--memory", "4m" });
+            try {
+                RsMemoryBudget.configure(explicit);
+                strict = false;
+            } catch (IllegalArgumentException e) {
+                strict = true;
+            }
+            RsMemoryBudget.configure(RsConstraints.MEMORY_BUDGET, RsConstraints.DEFAULT_PARALLELISM);
+
+            System.out.println("  below one worker: " + one + ", three fit: " + three + ", large: " + all
+                    + ", --memory strict: " + strict);
+            System.out.println(!parsed.isMemoryBudgetSet() && explicit.isMemoryBudgetSet() && single && reduced
+                    && untouched && strict ? "  PASS\n" : "  FAIL\n");
+        } catch (Exception e) {
+            System.out.println("  ERROR: " + e.getMessage() + "\n");
+        }
+    }
+
+    // 28. Resumable output under batched fsync: published before its journal goes, not left for flush()
+    static void testCase28() {
+        System.out.println("Test Case 28: Resumable output under batch fsync");
+        String[] args = { "-s", "huge.bin", "--resume", "--fsync", "batch" };
+        try {
+            RsLockConfig parsed = RsLockConfig.fromArgs(args);
+            System.out.println("  " + parsed);
+            java.security.KeyPairGenerator generator = java.security.KeyPairGenerator.getInstance("RSA");
+            generator.initialize(2048);
+            java.security.KeyPair pair = generator.generateKeyPair();
+
+            Path dir = java.nio.file.Files.createTempDirectory("rslock-resume-batch");
+            Path source = dir.resolve("huge.bin");
+            Path target = dir.resolve("huge.bin.rslocked");
+            byte[] data = new byte[(int) RsConstraints.JOURNAL_THRESHOLD + 12_345];
+            new java.util.Random(28).nextBytes(data);
+            java.nio.file.Files.write(source, data);
+
+            RsOutputFile.configure(parsed.getFsync());
+            RsSegmentedCipher.encryptResumable(source, target, RsKeySession.forEncryption(java.util.Map.of(
+                    "a", pair.getPublic()), false), null, java.util.concurrent.ForkJoinPool.commonPool());
+            // What a crash right now would leave: the output under its name and nothing to resume
+            boolean published = java.nio.file.Files.isRegularFile(target)
+                    && !java.nio.file.Files.exists(RsOutputFile.resumeFile(target))
+                    && !java.nio.file.Files.exists(RsJournal.journalFile(target));
+            Path plain = dir.resolve("huge.out");
+            RsSegmentedCipher.decryptResumable(target, plain, RsKeySession.forDecryption(pair.getPrivate(), "a"),
+                    java.util.concurrent.ForkJoinPool.commonPool());
+            published &= java.nio.file.Files.isRegularFile(plain)
+                    && !java.nio.file.Files.exists(RsOutputFile.resumeFile(plain))
+                    && !java.nio.file.Files.exists(RsJournal.journalFile(plain));
+            boolean readable = java.util.Arrays.equals(data, java.nio.file.Files.readAllBytes(plain));
+            RsOutputFile.flush();
+            RsOutputFile.configure(RsOutputFile.Sync.parse(RsConstraints.FSYNC_POLICY));
+            for (Path file : java.util.List.of(source, target, plain, dir)) {
+                java.nio.file.Files.delete(file);
+            }
+
+            System.out.println("  published before flush: " + published + ", readable: " + readable);
+            System.out.println(parsed.getFsync() == RsOutputFile.Sync.BATCH && published && readable
+                    ? "  PASS\n" : "  FAIL\n");
+        } catch (Exception e) {
+            System.out.println("  ERROR: " + e.getMessage() + "\n");
+        }
+    }
+
+    // 29. GCM containers: round trip at segment boundaries, a flipped byte and a cut file refused
+    static void testCase29() {
+        System.out.println("Test Case 29: GCM container round trip and tampering");
+        String[] args = { "-s", "file.bin", "-f", "gcm" };
+        try {
+            RsLockConfig parsed = RsLockConfig.fromArgs(args);
+            System.out.println("  " + parsed);
+            java.security.KeyPairGenerator generator = java.security.KeyPairGenerator.getInstance("RSA");
+            generator.initialize(2048);
+            java.security.KeyPair pair = generator.generateKeyPair();
+            RsKeySession encryption = RsKeySession.forEncryption(pair.getPublic(), "a", false);
+            RsKeySession decryption = RsKeySession.forDecryption(pair.getPrivate(), "a");
+            java.util.concurrent.ForkJoinPool pool = java.util.concurrent.ForkJoinPool.commonPool();
+
+            Path dir = java.nio.file.Files.createTempDirectory("rslock-gcm");
+            Path plain = dir.resolve("plain.bin");
+            Path locked = dir.resolve("plain.bin.rslocked");
+            Path out = dir.resolve("plain.out");
+            RsOutputFile.configure(RsOutputFile.Sync.NONE);
+
+            // Empty, one byte, exactly one segment and a partial last segment
+            boolean roundtrip = true;
+            byte[] data = null;
+            for (int size : new int[] { 0, 1, RsConstraints.SEGMENT_SIZE, 2 * RsConstraints.SEGMENT_SIZE + 7 }) {
+                data = new byte[size];
+                new java.util.Random(size).nextBytes(data);
+                java.nio.file.Files.write(plain, data);
+                long encrypted = RsSegmentedCipher.encrypt(plain, locked, encryption.newFileKey(), pool);
+                long decrypted = RsSegmentedCipher.decrypt(locked, out, decryption, pool);
+                roundtrip &= encrypted == size && decrypted == size
+                        && java.util.Arrays.equals(data, java.nio.file.Files.readAllBytes(out))
+                        && RsSegmentedCipher.verify(locked, decryption, pool) == size;
+                java.nio.file.Files.delete(out);
+            }
+            byte[] sealed = java.nio.file.Files.readAllBytes(locked);
+
+            // One bit flipped in the last segment: its tag no longer matches
+            boolean tampered;
+            byte[] flipped = sealed.clone();
+            flipped[flipped.length - 40] ^= 1;
+            java.nio.file.Files.write(locked, flipped);
+            try {
+                RsSegmentedCipher.decrypt(locked, out, decryption, pool);
+                tampered = false;
+            } catch (javax.crypto.AEADBadTagException e) {
+                tampered = !java.nio.file.Files.exists(out);
+            }
+
+            // Cut inside the last segment: the index no longer matches, refused rather than read short
+            boolean truncated;
+            java.nio.file.Files.write(locked, java.util.Arrays.copyOf(sealed, sealed.length - 100));
+            try {
+                RsSegmentedCipher.verify(locked, decryption, pool);
+                truncated = false;
+            } catch (IllegalArgumentException e) {
+                truncated = e.getMessage().contains("segment index");
+            }
+
+            RsOutputFile.configure(RsOutputFile.Sync.parse(RsConstraints.FSYNC_POLICY));
+            for (Path file : java.util.List.of(plain, locked, dir)) {
+                java.nio.file.Files.delete(file);
+            }
+
+            System.out.println("  roundtrip: " + roundtrip + ", tampering detected: " + tampered
+                    + ", truncation detected: " + truncated);
+            System.out.println(parsed.getFormat() == RsLockConfig.Format.GCM && roundtrip && tampered && truncated
+                    ? "  PASS\n" : "  FAIL\n");
+        } catch (Exception e) {
+            System.out.println("  ERROR: " + e.getMessage() + "\n");
+        }
+    }
+
+    // 30. Range reads: across a segment boundary, the last segment, zero length and past the end
+    static void testCase30() {
+        System.out.println("Test Case 30: Range reads");
+        try {
+            java.security.KeyPairGenerator generator = java.security.KeyPairGenerator.getInstance("RSA");
+            generator.initialize(2048);
+            java.security.KeyPair pair = generator.generateKeyPair();
+            RsKeySession decryption = RsKeySession.forDecryption(pair.getPrivate(), "a");
+
+            Path dir = java.nio.file.Files.createTempDirectory("rslock-range");
+            Path plain = dir.resolve("plain.bin");
+            Path locked = dir.resolve("plain.bin.rslocked");
+            int size = 3 * RsConstraints.SEGMENT_SIZE + 100;
+            byte[] data = new byte[size];
+            new java.util.Random(30).nextBytes(data);
+            java.nio.file.Files.write(plain, data);
+            RsOutputFile.configure(RsOutputFile.Sync.NONE);
+            RsSegmentedCipher.encrypt(plain, locked, RsKeySession.forEncryption(pair.getPublic(), "a", false)
+                    .newFileKey(), java.util.concurrent.ForkJoinPool.commonPool());
+            RsOutputFile.configure(RsOutputFile.Sync.parse(RsConstraints.FSYNC_POLICY));
+
+            // Range as given on the command line, and the plaintext bytes it should return
+            String boundary = (RsConstraints.SEGMENT_SIZE - 5) + ":10";
+            java.util.Map<String, int[]> ranges = new java.util.LinkedHashMap<>();
+            ranges.put("0:10", new int[] { 0, 10 });
+            ranges.put(boundary, new int[] { RsConstraints.SEGMENT_SIZE - 5, RsConstraints.SEGMENT_SIZE + 5 });
+            ranges.put("-150:", new int[] { size - 150, size });
+            ranges.put("1000:0", new int[] { 1000, 1000 });
+            ranges.put((size + 10) + ":", new int[] { size, size });
+            ranges.put((size - 5) + ":100", new int[] { size - 5, size });
+
+            boolean correct = true;
+            boolean eof;
+            try (RsLockedFile lockedFile = RsLockedFile.open(locked, decryption)) {
+                for (java.util.Map.Entry<String, int[]> range : ranges.entrySet()) {
+                    RsLockConfig parsed = RsLockConfig.fromArgs(new String[] { "-s", "plain.bin.rslocked",
+                            "--range", range.getKey() });
+                    long[] bounds = parsed.getRange().resolve(lockedFile.size());
+                    // Read the way the decryptor does, one buffer at a time
+                    java.io.ByteArrayOutputStream out = new java.io.ByteArrayOutputStream();
+                    java.nio.ByteBuffer buffer = java.nio.ByteBuffer.allocate(lockedFile.blockSize());
+                    long position = bounds[0];
+                    while (position < bounds[1]) {
+                        buffer.clear().limit((int) Math.min(buffer.capacity(), bounds[1] - position));
+                        position += lockedFile.read(position, buffer);
+                        out.write(buffer.array(), 0, buffer.position());
+                    }
+                    boolean match = java.util.Arrays.equals(out.toByteArray(),
+                            java.util.Arrays.copyOfRange(data, range.getValue()[0], range.getValue()[1]));
+                    if (!match) {
+                        System.out.println("  wrong bytes for --range " + range.getKey());
+                    }
+                    correct &= match;
+                }
+                eof = lockedFile.read(size, java.nio.ByteBuffer.allocate(1)) == -1
+                        && lockedFile.readRange(size + 10L, 10).length == 0;
+            }
+
+            for (Path file : java.util.List.of(plain, locked, dir)) {
+                java.nio.file.Files.delete(file);
+            }
+
+            System.out.println("  ranges: " + ranges.keySet() + ", correct: " + correct + ", end of file: " + eof);
+            System.out.println(correct && eof ? "  PASS\n" : "  FAIL\n");
+        } catch (Exception e) {
+            System.out.println("  ERROR: " + e.getMessage() + "\n");
+        }
+    }
+
+    // 31. Channel and stream views: seeking, reads across segments, end of file and close
+    static void testCase31() {
+        System.out.println("Test Case 31: Seekable channel and input stream views");
+        try {
+            java.security.KeyPairGenerator generator = java.security.KeyPairGenerator.getInstance("RSA");
+            generator.initialize(2048);
+            java.security.KeyPair pair = generator.generateKeyPair();
+
+            Path dir = java.nio.file.Files.createTempDirectory("rslock-views");
+            Path plain = dir.resolve("plain.bin");
+            Path locked = dir.resolve("plain.bin.rslocked");
+            int size = 2 * RsConstraints.SEGMENT_SIZE + 300;
+            byte[] data = new byte[size];
+            new java.util.Random(31).nextBytes(data);
+            java.nio.file.Files.write(plain, data);
+            RsOutputFile.configure(RsOutputFile.Sync.NONE);
+            RsSegmentedCipher.encrypt(plain, locked, RsKeySession.forEncryption(pair.getPublic(), "a", false)
+                    .newFileKey(), java.util.concurrent.ForkJoinPool.commonPool());
+            RsOutputFile.configure(RsOutputFile.Sync.parse(RsConstraints.FSYNC_POLICY));
+
+            boolean seek;
+            boolean eof;
+            boolean closed;
+            RsLockedChannel channel = RsLockedFile.openChannel(locked, pair.getPrivate(), "a");
+            try {
+                // 100 bytes straddling the first segment boundary
+                java.nio.ByteBuffer buffer = java.nio.ByteBuffer.allocate(100);
+                channel.position(RsConstraints.SEGMENT_SIZE - 50);
+                seek = channel.read(buffer) == 100 && channel.size() == size
+                        && channel.position() == RsConstraints.SEGMENT_SIZE + 50
+                        && java.util.Arrays.equals(buffer.array(), java.util.Arrays.copyOfRange(data,
+                                RsConstraints.SEGMENT_SIZE - 50, RsConstraints.SEGMENT_SIZE + 50));
+
+                // Back to the start, then a short read at the end and nothing after it
+                channel.position(0);
+                seek &= channel.read(buffer.clear()) == 100
+                        && java.util.Arrays.equals(buffer.array(), java.util.Arrays.copyOf(data, 100));
+                java.nio.ByteBuffer tail = java.nio.ByteBuffer.allocate(1000);
+                channel.position(size - 10);
+                eof = channel.read(tail) == 10 && channel.position() == size && channel.read(tail.clear()) == -1
+                        && channel.position(size + 500).read(tail.clear()) == -1;
+                try {
+                    channel.position(-1);
+                    eof = false;
+                } catch (IllegalArgumentException e) {
+                    // Negative positions are refused
+                }
+            } finally {
+                channel.close();
+            }
+            try {
+                channel.read(java.nio.ByteBuffer.allocate(1));
+                closed = false;
+            } catch (java.nio.channels.ClosedChannelException e) {
+                closed = !channel.isOpen();
+            }
+
+            boolean stream;
+            try (java.io.InputStream in = RsLockedFile.openInputStream(locked, pair.getPrivate(), "a")) {
+                byte[] head = new byte[7];
+                stream = in.read(head) == 7 && java.util.Arrays.equals(head, java.util.Arrays.copyOf(data, 7));
+                byte[] rest = in.readAllBytes();
+                stream &= java.util.Arrays.equals(rest, java.util.Arrays.copyOfRange(data, 7, size))
+                        && in.read() == -1;
+            }
+
+            for (Path file : java.util.List.of(plain, locked, dir)) {
+                java.nio.file.Files.delete(file);
+            }
+
+            System.out.println("  seek and read across segments: " + seek + ", end of file: " + eof + ", closed: "
+                    + closed + ", input stream: " + stream);
+            System.out.println(seek && eof && closed && stream ? "  PASS\n" : "  FAIL\n");
+        } catch (Exception e) {
+            System.out.println("  ERROR: " + e.getMessage() + "\n");
+        }
+    }
+
+    // 32. Envelope per batch: derived file keys decrypt, one unwrap per wrapped key, none shared by mistake
+    static void testCase32() {
+        System.out.println("Test Case 32: Envelope keys and unwrap cache");
+        String[] args = { "-s", "batch", "--envelope", "-a", "a" };
+        try {
+            RsLockConfig parsed = RsLockConfig.fromArgs(args);
+            System.out.println("  " + parsed);
+            java.security.KeyPairGenerator generator = java.security.KeyPairGenerator.getInstance("RSA");
+            generator.initialize(2048);
+            java.security.KeyPair pair = generator.generateKeyPair();
+            java.util.concurrent.ForkJoinPool pool = java.util.concurrent.ForkJoinPool.commonPool();
+
+            RsKeySession batch = RsKeySession.forEncryption(pair.getPublic(), "a", parsed.isEnvelopePerBatch());
+            RsKeySession.FileKey first = batch.newFileKey();
+            RsKeySession.FileKey second = batch.newFileKey();
+            // One wrapped data key for the batch, a key of its own per file
+            boolean derived = first.recipients().equals(second.recipients())
+                    && !java.util.Arrays.equals(first.keySalt(), second.keySalt())
+                    && !java.util.Arrays.equals(first.aesKey().getEncoded(), second.aesKey().getEncoded());
+
+            Path dir = java.nio.file.Files.createTempDirectory("rslock-envelope");
+            Path plain = dir.resolve("plain.bin");
+            byte[] data = new byte[RsConstraints.SEGMENT_SIZE + 99];
+            new java.util.Random(32).nextBytes(data);
+            java.nio.file.Files.write(plain, data);
+            RsOutputFile.configure(RsOutputFile.Sync.NONE);
+            java.util.List<Path> locked = new java.util.ArrayList<>();
+            java.util.List<RsKeySession.FileKey> keys = java.util.List.of(first, second, batch.newFileKey(),
+                    RsKeySession.forEncryption(pair.getPublic(), "a", false).newFileKey(),
+                    RsKeySession.forEncryption(pair.getPublic(), "a", true).newFileKey());
+            for (int i = 0; i < keys.size(); i++) {
+                locked.add(dir.resolve("file" + i + ".rslocked"));
+                RsSegmentedCipher.encrypt(plain, locked.get(i), keys.get(i), pool);
+            }
+
+            // Count the RSA operations behind the session cache
+            java.util.concurrent.atomic.AtomicInteger unwraps = new java.util.concurrent.atomic.AtomicInteger();
+            RsKeySession decryption = RsKeySession.forDecryption(wrapped -> {
+                unwraps.incrementAndGet();
+                return CypherUtility.decryptAESKeyWithRSA(wrapped, pair.getPrivate());
+            }, "a");
+            boolean readable = true;
+            int[] expected = { 1, 1, 1, 2, 3 };
+            boolean cached = true;
+            for (int i = 0; i < locked.size(); i++) {
+                Path out = dir.resolve("file" + i);
+                RsSegmentedCipher.decrypt(locked.get(i), out, decryption, pool);
+                readable &= java.util.Arrays.equals(data, java.nio.file.Files.readAllBytes(out));
+                cached &= unwraps.get() == expected[i];
+                java.nio.file.Files.delete(out);
+                java.nio.file.Files.delete(locked.get(i));
+            }
+            RsOutputFile.configure(RsOutputFile.Sync.parse(RsConstraints.FSYNC_POLICY));
+            java.nio.file.Files.delete(plain);
+            java.nio.file.Files.delete(dir);
+
+            System.out.println("  keys derived per file: " + derived + ", readable: " + readable + ", unwraps: "
+                    + unwraps.get() + " for " + keys.size() + " files");
+            System.out.println(parsed.isEnvelopePerBatch() && derived && readable && cached
+                    ? "  PASS\n" : "  FAIL\n");
+        } catch (Exception e) {
+            System.out.println("  ERROR: " + e.getMessage() + "\n");
+        }
+    }
+
+    // 33. Compression codecs: round trips, smaller containers for text, random data stored as it is
+    static void testCase33() {
+        System.out.println("Test Case 33: Codec round trips and incompressible data");
+        try {
+            java.security.KeyPairGenerator generator = java.security.KeyPairGenerator.getInstance("RSA");
+            generator.initialize(2048);
+            java.security.KeyPair pair = generator.generateKeyPair();
+            RsKeySession encryption = RsKeySession.forEncryption(pair.getPublic(), "a", false);
+            RsKeySession decryption = RsKeySession.forDecryption(pair.getPrivate(), "a");
+            java.util.concurrent.ForkJoinPool pool = java.util.concurrent.ForkJoinPool.commonPool();
+
+            int size = 2 * RsConstraints.SEGMENT_SIZE + 4321;
+            StringBuilder log = new StringBuilder();
+            for (int i = 0; log.length() < size; i++) {
+                log.append("2024-05-01T12:00:").append(i % 60).append(" INFO request ").append(i).append(" served\n");
+            }
+            byte[] text = java.util.Arrays.copyOf(log.toString().getBytes(), size);
+            byte[] random = new byte[size];
+            new java.util.Random(33).nextBytes(random);
+
+            Path dir = java.nio.file.Files.createTempDirectory("rslock-codecs");
+            Path plain = dir.resolve("plain.bin");
+            Path locked = dir.resolve("plain.bin.rslocked");
+            Path out = dir.resolve("plain.out");
+            RsOutputFile.configure(RsOutputFile.Sync.NONE);
+
+            boolean roundtrip = true;
+            boolean smaller = true;
+            boolean stored = true;
+            for (String name : java.util.List.of("deflate", "gzip", "fast")) {
+                RsCodec codec = RsLockConfig.fromArgs(new String[] { "-s", "plain.bin", "-c", name }).getCodec();
+                roundtrip &= RsCodecs.byId(codec.id()) == codec;
+                for (byte[] data : java.util.List.of(text, random)) {
+                    java.nio.file.Files.write(plain, data);
+                    RsSegmentedCipher.encrypt(plain, locked, encryption.newFileKey(), codec, pool);
+                    RsSegmentedCipher.decrypt(locked, out, decryption, pool);
+                    roundtrip &= java.util.Arrays.equals(data, java.nio.file.Files.readAllBytes(out));
+                    long sealed = java.nio.file.Files.size(locked);
+                    if (data == text) {
+                        smaller &= sealed < size / 4;
+                    } else {
+                        // Segments that do not shrink are kept uncompressed, never grown by the codec
+                        stored &= sealed < size + 4096;
+                    }
+                    java.nio.file.Files.delete(out);
+                }
+
+                java.nio.ByteBuffer dst = java.nio.ByteBuffer.allocate(RsConstraints.SEGMENT_SIZE);
+                stored &= !codec.compress(java.nio.ByteBuffer.wrap(random, 0, RsConstraints.SEGMENT_SIZE), dst);
+            }
+
+            RsOutputFile.configure(RsOutputFile.Sync.parse(RsConstraints.FSYNC_POLICY));
+            for (Path file : java.util.List.of(plain, locked, dir)) {
+                java.nio.file.Files.delete(file);
+            }
+
+            System.out.println("  roundtrip: " + roundtrip + ", text compressed: " + smaller
+                    + ", random data stored: " + stored);
+            System.out.println(roundtrip && smaller && stored ? "  PASS\n" : "  FAIL\n");
+        } catch (Exception e) {
+            System.out.println("  ERROR: " + e.getMessage() + "\n");
+        }
+    }
+
+    // 34. Batch: a task throwing an Error fails its files instead of hanging the batch
+    static void testCase34() {
+        System.out.println("Test Case 34: Errors thrown by batch tasks");
+        try {
+            java.util.List<RsFileWalker.Source> sources = new java.util.ArrayList<>();
+            for (int i = 0; i < 10; i++) {
+                sources.add(new RsFileWalker.Source(Path.of("small" + i), Path.of("small" + i), 10));
+            }
+            long big = RsConstraints.SMALL_FILE_SIZE + 1;
+            sources.add(new RsFileWalker.Source(Path.of("big"), Path.of("big"), big));
+            java.util.concurrent.ForkJoinPool pool = RsBatch.workStealingPool(2);
+            java.util.concurrent.Future<RsBatch.Summary> batch = java.util.concurrent.Executors
+                    .newSingleThreadExecutor(RsBatch.threadFactory("rslock-test"))
+                    .submit(() -> RsBatch.schedule(sources.stream(), pool, source -> {
+                        if (source.file().toString().equals("small3") || source.size() == big) {
+                            throw new OutOfMemoryError("Direct buffer memory");
+                        }
+                        return source.size();
+                    }, null));
+            RsBatch.Summary summary = batch.get(30, java.util.concurrent.TimeUnit.SECONDS);
+            pool.shutdown();
+
+            java.util.Set<Path> failed = new java.util.HashSet<>();
+            summary.failures().forEach(result -> failed.add(result.file()));
+            boolean reported = summary.total() == sources.size();
+            boolean recorded = failed.contains(Path.of("small3")) && failed.contains(Path.of("big"))
+                    && !failed.contains(Path.of("small2"))
+                    && summary.failures().stream().allMatch(result -> result.error().getMessage() != null);
+
+            System.out.println("  reported: " + summary.total() + "/" + sources.size() + ", succeeded: "
+                    + summary.succeeded() + ", errors recorded: " + recorded);
+            System.out.println(reported && recorded ? "  PASS\n" : "  FAIL\n");
+        } catch (Exception e) {
+            System.out.println("  ERROR: " + e.getMessage() + "\n");
+        }
+    }
+
+    // 35. Walk: a path that cannot be read fails on its own, the rest of the batch still runs
+    static void testCase35() {
+        System.out.println("Test Case 35: Walk failures");
+        try {
+            Path dir = java.nio.file.Files.createTempDirectory("rslock-walk");
+            Path tree = java.nio.file.Files.createDirectories(dir.resolve("tree/sub"));
+            for (Path file : java.util.List.of(tree.resolve("a.bin"), tree.resolve("b.bin"),
+                    tree.getParent().resolve("c.bin"))) {
+                java.nio.file.Files.write(file, new byte[100]);
+            }
+            Path missing = dir.resolve("missing.bin");
+
+            java.util.concurrent.ForkJoinPool pool = RsBatch.workStealingPool(2);
+            RsBatch.Summary summary;
+            try (java.util.stream.Stream<RsFileWalker.Source> walk = RsFileWalker.walk(
+                    java.util.List.of(missing, tree.getParent(), dir.resolve("tree/**/*.bin")), file -> true)) {
+                summary = RsBatch.schedule(walk, pool, RsFileWalker.Source::size, null);
+            } finally {
+                pool.shutdown();
+            }
+            boolean reported = summary.total() == 6 && summary.succeeded() == 5;
+            boolean failed = summary.failures().size() == 1 && summary.failures().get(0).file().equals(missing)
+                    && summary.failures().get(0).error() instanceof java.nio.file.NoSuchFileException;
+
+            for (Path file : java.util.List.of(tree.resolve("a.bin"), tree.resolve("b.bin"), tree,
+                    tree.getParent().resolve("c.bin"), tree.getParent(), dir)) {
+                java.nio.file.Files.delete(file);
+            }
+
+            System.out.println("  reported: " + summary.total() + ", succeeded: " + summary.succeeded()
+                    + ", missing source failed alone: " + failed);
+            System.out.println(reported && failed ? "  PASS\n" : "  FAIL\n");
+        } catch (Exception e) {
+            System.out.println("  ERROR: " + e.getMessage() + "\n");
+        }
+    }
+
+    // 36. Container header: corrupt lengths in the key area are rejected as invalid headers
+    static void testCase36() {
+        System.out.println("Test Case 36: Corrupt key area");
+        try {
+            RsContainerHeader header = RsContainerHeader.stream(0, RsConstraints.SEGMENT_SIZE,
+                    java.util.List.of(new RsContainerHeader.Recipient("a", new byte[8])), new byte[16]);
+            java.io.ByteArrayOutputStream written = new java.io.ByteArrayOutputStream();
+            header.write(java.nio.channels.Channels.newChannel(written));
+            byte[] valid = written.toByteArray();
+
+            int keyArea = RsContainerHeader.FIXED_SIZE;
+            // Negative as signed shorts: alias length, then salt length
+            int[][] corruptions = { { keyArea + 2, 0xff, 0xff }, { keyArea + 17, 0xff, 0xff },
+                    // Alias running past the end of the key area
+                    { keyArea + 2, 0x7f, 0xff } };
+            boolean rejected = true;
+            for (int[] corruption : corruptions) {
+                byte[] corrupt = valid.clone();
+                corrupt[corruption[0]] = (byte) corruption[1];
+                corrupt[corruption[0] + 1] = (byte) corruption[2];
+                try {
+                    RsContainerHeader.read(java.nio.channels.Channels
+                            .newChannel(new java.io.ByteArrayInputStream(corrupt)));
+                    rejected = false;
+                } catch (IllegalArgumentException e) {
+                    rejected &= e.getMessage().equals("Invalid key area");
+                }
+            }
+            RsContainerHeader read = RsContainerHeader.read(java.nio.channels.Channels
+                    .newChannel(new java.io.ByteArrayInputStream(valid)));
+            boolean intact = read.getRecipients().get(0).alias().equals("a") && read.getKeySalt().length == 16;
+
+            System.out.println("  corrupt lengths rejected: " + rejected + ", valid header read: " + intact);
+            System.out.println(rejected && intact ? "  PASS\n" : "  FAIL\n");
+        } catch (Exception e) {
+            System.out.println("  ERROR: " + e.getMessage() + "\n");
+        }
+    }
+
+    // 37. Keystore generation: a version 3 self-signed certificate, no temporary file left behind
+    static void testCase37() {
+        System.out.println("Test Case 37: Generated keystore certificate");
+        try {
+            Path dir = java.nio.file.Files.createTempDirectory("rslock-keystore");
+            Path keystore = dir.resolve("rskeystore.p12");
+            char[] password = "changeit".toCharArray();
+            boolean generated = CypherUtility.generateKeyStore(keystore, password, "alice");
+
+            java.security.KeyStore loaded = java.security.KeyStore.getInstance(RsConstraints.KEYSTORE_TYPE);
+            try (java.io.InputStream in = java.nio.file.Files.newInputStream(keystore)) {
+                loaded.load(in, password);
+            }
+            java.security.cert.X509Certificate certificate = (java.security.cert.X509Certificate) loaded
+                    .getCertificate("alice");
+            certificate.verify(certificate.getPublicKey());
+            boolean v3 = certificate.getVersion() == 3 && certificate.getExtensionValue("2.5.29.14") != null
+                    && certificate.getSubjectX500Principal().getName().equals("CN=alice,O=RSLock,C=US");
+
+            // A failed move into place leaves no temporary file behind
+            java.nio.file.Files.delete(keystore);
+            java.nio.file.Files.createDirectories(keystore.resolve("taken"));
+            boolean failed = !CypherUtility.generateKeyStore(keystore, password, "alice");
+            boolean clean;
+            try (java.util.stream.Stream<Path> files = java.nio.file.Files.list(dir)) {
+                clean = files.count() == 1;
+            }
+
+            for (Path file : java.util.List.of(keystore.resolve("taken"), keystore, dir)) {
+                java.nio.file.Files.delete(file);
+            }
+
+            System.out.println("  generated: " + generated + ", version 3: " + v3 + ", failure cleaned up: "
+                    + (failed && clean));
+            System.out.println(generated && v3 && failed && clean ? "  PASS\n" : "  FAIL\n");
+        } catch (Exception e) {
+            System.out.println("  ERROR: " + e.getMessage() + "\n");
+        }
+    }
+
+    // 38. Owner-only sockets: a stale socket is replaced, a live one is left to the process serving it
+    static void testCase38() {
+        System.out.println("Test Case 38: Socket of a running process");
+        try {
+            Path dir = java.nio.file.Files.createTempDirectory("rslock-socket");
+            Path socket = dir.resolve("agent.sock");
+
+            // Left behind by a process that exited without removing it
+            java.nio.channels.ServerSocketChannel crashed = java.nio.channels.ServerSocketChannel
+                    .open(java.net.StandardProtocolFamily.UNIX);
+            crashed.bind(java.net.UnixDomainSocketAddress.of(socket));
+            crashed.close();
+            boolean stale = java.nio.file.Files.exists(socket);
+
+            boolean refused = false;
+            boolean reachable;
+            try (java.nio.channels.ServerSocketChannel running = Utility.bindOwnerOnly(socket)) {
+                try {
+                    // Would leave the running one unreachable
+                    Utility.bindOwnerOnly(socket).close();
+                } catch (java.io.IOException e) {
+                    refused = true;
+                }
+                try (java.nio.channels.SocketChannel client = java.nio.channels.SocketChannel
+                        .open(java.net.UnixDomainSocketAddress.of(socket))) {
+                    reachable = client.isConnected() && running.accept() != null;
+                }
+            }
+            boolean clean;
+            try (java.util.stream.Stream<Path> files = java.nio.file.Files.list(dir)) {
+                clean = files.count() == 1;
+            }
+
+            for (Path file : java.util.List.of(socket, dir)) {
+                java.nio.file.Files.delete(file);
+            }
+
+            System.out.println("  stale socket replaced: " + stale + ", second bind refused: " + refused
+                    + ", first still reachable: " + reachable);
+            System.out.println(stale && refused && reachable && clean ? "  PASS\n" : "  FAIL\n");
+        } catch (Exception e) {
+            System.out.println("  ERROR: " + e.getMessage() + "\n");
+        }
+    }
+
 }
@@ -1,5 +1,21 @@
 package com.rslock.common;
 
+import java.io.EOFException;
+import java.io.IOException;
+import java.net.StandardProtocolFamily;
+import java.net.UnixDomainSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.PosixFilePermissions;
+
 public class Utility {
 	private Utility() {}
 	
@@ -14,4 +30,144 @@ public class Utility {
 		return String.format("%.2f %s", bytes / Math.pow(1024, digitGroups), units[digitGroups]);
 	}
 
+	/**
+	 * Read exactly {@code length} bytes at {@code position} into a new heap buffer
+	 */
+	public static ByteBuffer readFully(FileChannel channel, long position, int length) throws IOException {
+		ByteBuffer buffer = ByteBuffer.allocate(length);
+		readFully(channel, position, buffer);
+		return buffer.flip();
+	}
+
+	/**
+	 * Fill the remaining space of {@code buffer} from {@code position}, without
+	 * moving the channel position
+	 *
+	 * @return number of bytes read
+	 */
+	public static int readFully(FileChannel channel, long position, ByteBuffer buffer) throws IOException {
+		long start = System.nanoTime();
+		int total = 0;
+		while (buffer.hasRemaining()) {
+			int read = channel.read(buffer, position + total);
+			if (read < 0) {
+				throw new EOFException("Unexpected end of file at " + (position + total));
+			}
+			total += read;
+		}
+		RsMetrics.DISK_READ.stop(start);
+		RsMetrics.BYTES_IN.add(total);
+		return total;
+	}
+
+	/**
+	 * Fill the remaining space of {@code buffer} from a stream such as a pipe
+	 *
+	 * @return false when the stream ended before the buffer was full
+	 */
+	public static boolean readFully(ReadableByteChannel channel, ByteBuffer buffer) throws IOException {
+		long start = System.nanoTime();
+		int total = 0;
+		boolean full = true;
+		while (buffer.hasRemaining()) {
+			int read = channel.read(buffer);
+			if (read < 0) {
+				full = false;
+				break;
+			}
+			total += read;
+		}
+		RsMetrics.DISK_READ.stop(start);
+		RsMetrics.BYTES_IN.add(total);
+		return full;
+	}
+
+	/**
+	 * Write the remaining bytes of {@code buffer} to a stream such as a pipe
+	 */
+	public static void writeFully(WritableByteChannel channel, ByteBuffer buffer) throws IOException {
+		long start = System.nanoTime();
+		int length = buffer.remaining();
+		while (buffer.hasRemaining()) {
+			channel.write(buffer);
+		}
+		RsMetrics.DISK_WRITE.stop(start);
+		RsMetrics.BYTES_OUT.add(length);
+	}
+
+	/**
+	 * Write the remaining bytes of {@code buffer} at {@code position}, without
+	 * moving the channel position
+	 */
+	public static void writeFully(FileChannel channel, ByteBuffer buffer, long position) throws IOException {
+		long start = System.nanoTime();
+		int length = buffer.remaining();
+		while (buffer.hasRemaining()) {
+			position += channel.write(buffer, position);
+		}
+		RsMetrics.DISK_WRITE.stop(start);
+		RsMetrics.BYTES_OUT.add(length);
+	}
+
+	/**
+	 * Listen on a Unix domain socket only its owner can connect to, replacing
+	 * the socket a previous run left behind. Whoever can connect to the key
+	 * agent or the daemon can use its keys, so the socket is bound in a
+	 * private directory next to {@code socket} and renamed into place once
+	 * restricted: it never shows up under its name with the default
+	 * permissions, whatever the umask.
+	 *
+	 * @throws IOException when a running process still accepts connections on
+	 *                     {@code socket}, only a stale socket is replaced
+	 */
+	public static ServerSocketChannel bindOwnerOnly(Path socket) throws IOException {
+		if (Files.exists(socket, LinkOption.NOFOLLOW_LINKS) && isListening(socket)) {
+			throw new IOException("Another process is already listening on " + socket);
+		}
+		Path dir = socket.toAbsolutePath().getParent();
+		if (!Files.isDirectory(dir)) {
+			Files.createDirectories(dir);
+			restrict(dir, "rwx------");
+		}
+		Path staging;
+		try {
+			staging = Files.createTempDirectory(dir, ".rsbind",
+					PosixFilePermissions.asFileAttribute(PosixFilePermissions.fromString("rwx------")));
+		} catch (UnsupportedOperationException e) {
+			// Not a POSIX file system, the platform defaults apply
+			staging = Files.createTempDirectory(dir, ".rsbind");
+		}
+		Path bound = staging.resolve(socket.getFileName());
+		ServerSocketChannel server = ServerSocketChannel.open(StandardProtocolFamily.UNIX);
+		try {
+			server.bind(UnixDomainSocketAddress.of(bound));
+			restrict(bound, "rw-------");
+			Files.move(bound, socket, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+			return server;
+		} catch (IOException | RuntimeException e) {
+			server.close();
+			Files.deleteIfExists(bound);
+			throw e;
+		} finally {
+			Files.deleteIfExists(staging);
+		}
+	}
+
+	// Whether a process accepts connections on the socket, refused once the process that bound it is gone
+	private static boolean isListening(Path socket) {
+		try (SocketChannel client = SocketChannel.open(UnixDomainSocketAddress.of(socket))) {
+			return client.isConnected();
+		} catch (IOException e) {
+			return false;
+		}
+	}
+
+	private static void restrict(Path path, String permissions) throws IOException {
+		try {
+			Files.setPosixFilePermissions(path, PosixFilePermissions.fromString(permissions));
+		} catch (UnsupportedOperationException e) {
+			// Not a POSIX file system, the platform defaults apply
+		}
+	}
+
 }
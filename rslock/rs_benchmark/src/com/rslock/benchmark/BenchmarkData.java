@@ -0,0 +1,96 @@
+package com.rslock.benchmark;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.security.KeyPair;
+import java.security.KeyPairGenerator;
+import java.security.NoSuchAlgorithmException;
+import java.util.Random;
+
+import org.openjdk.jmh.annotations.AuxCounters;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+/**
+ * Inputs shared by the benchmarks: deterministic random data, RSA key pairs
+ * and scratch directories
+ */
+public final class BenchmarkData {
+
+	private BenchmarkData() {
+		throw new UnsupportedOperationException("This is a utility class and cannot be instantiated");
+	}
+
+	/**
+	 * Processed bytes per benchmark, JMH reports them as a rate next to the
+	 * score: {@code megabytes} is the throughput in MB/s
+	 */
+	@AuxCounters(AuxCounters.Type.OPERATIONS)
+	@State(Scope.Thread)
+	public static class Throughput {
+		public long bytes;
+
+		@Setup(Level.Iteration)
+		public void reset() {
+			bytes = 0;
+		}
+
+		public double megabytes() {
+			return bytes / (1024.0 * 1024.0);
+		}
+	}
+
+	/**
+	 * Random bytes from a fixed seed, random data does not compress and keeps
+	 * runs comparable
+	 */
+	public static byte[] randomBytes(int size) {
+		byte[] data = new byte[size];
+		new Random(42).nextBytes(data);
+		return data;
+	}
+
+	public static Path randomFile(Path dir, String name, int size) throws IOException {
+		return Files.write(dir.resolve(name), randomBytes(size));
+	}
+
+	public static KeyPair rsaKeyPair() throws NoSuchAlgorithmException {
+		KeyPairGenerator generator = KeyPairGenerator.getInstance("RSA");
+		generator.initialize(2048);
+		return generator.generateKeyPair();
+	}
+
+	public static Path tempDir() throws IOException {
+		return Files.createTempDirectory("rslock-bench");
+	}
+
+	public static void deleteTree(Path dir) {
+		if (dir == null)
+			return;
+		try {
+			Files.walkFileTree(dir, new SimpleFileVisitor<>() {
+				@Override
+				public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) throws IOException {
+					Files.delete(file);
+					return FileVisitResult.CONTINUE;
+				}
+
+				@Override
+				public FileVisitResult postVisitDirectory(Path d, IOException e) throws IOException {
+					Files.delete(d);
+					return FileVisitResult.CONTINUE;
+				}
+			});
+		} catch (IOException e) {
+			throw new UncheckedIOException("Failed to delete: " + dir, e);
+		}
+	}
+
+}
@@ -0,0 +1,90 @@
+package com.rslock.benchmark;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import javax.crypto.spec.IvParameterSpec;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+import com.rslock.common.CypherUtility;
+import com.rslock.common.RsConstraints;
+import com.rslock.common.RsContainerHeader;
+
+/**
+ * Header encoding: the legacy CBC stream header and the segmented container
+ * header, read back from and written to a file channel
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@State(Scope.Thread)
+public class HeaderBenchmark {
+
+	private IvParameterSpec iv;
+	private byte[] wrappedKey;
+	private byte[] streamHeader;
+
+	private Path dir;
+	private FileChannel channel;
+	private RsContainerHeader containerHeader;
+
+	@Setup
+	public void setup() throws Exception {
+		iv = CypherUtility.generateIV();
+		wrappedKey = BenchmarkData.randomBytes(256); // size of an RSA-2048 wrapped key
+
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		CypherUtility.writeEncryptionHeader(out, iv, wrappedKey);
+		streamHeader = out.toByteArray();
+
+		// 64 MiB of plaintext, 64 entries in the segment index
+		containerHeader = new RsContainerHeader(0, RsConstraints.SEGMENT_SIZE, 64L * RsConstraints.SEGMENT_SIZE,
+				List.of(new RsContainerHeader.Recipient("bench", wrappedKey)));
+		dir = BenchmarkData.tempDir();
+		channel = FileChannel.open(dir.resolve("header.rslocked"), StandardOpenOption.CREATE,
+				StandardOpenOption.READ, StandardOpenOption.WRITE);
+		containerHeader.write(channel);
+	}
+
+	@TearDown
+	public void tearDown() throws Exception {
+		channel.close();
+		BenchmarkData.deleteTree(dir);
+	}
+
+	@Benchmark
+	public byte[] writeStreamHeader() throws Exception {
+		ByteArrayOutputStream out = new ByteArrayOutputStream(streamHeader.length);
+		CypherUtility.writeEncryptionHeader(out, iv, wrappedKey);
+		return out.toByteArray();
+	}
+
+	@Benchmark
+	public byte[][] readStreamHeader() throws Exception {
+		return CypherUtility.readEncryptionHeader(new ByteArrayInputStream(streamHeader));
+	}
+
+	@Benchmark
+	public FileChannel writeContainerHeader() throws Exception {
+		containerHeader.write(channel);
+		return channel;
+	}
+
+	@Benchmark
+	public RsContainerHeader readContainerHeader() throws Exception {
+		return RsContainerHeader.read(channel);
+	}
+
+}
@@ -0,0 +1,70 @@
+package com.rslock.benchmark;
+
+import java.security.KeyPair;
+import java.util.concurrent.TimeUnit;
+
+import javax.crypto.SecretKey;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import com.rslock.common.CypherUtility;
+import com.rslock.common.RsKeySession;
+
+/**
+ * Cost of the RSA key envelope per file: wrapping with the public key,
+ * unwrapping with the private key, and the session paths that avoid them
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@State(Scope.Thread)
+public class KeyWrapBenchmark {
+
+	private KeyPair keyPair;
+	private SecretKey aesKey;
+	private byte[] wrappedKey;
+	private RsKeySession perFileSession;
+	private RsKeySession envelopeSession;
+	private RsKeySession decryptSession;
+
+	@Setup
+	public void setup() throws Exception {
+		keyPair = BenchmarkData.rsaKeyPair();
+		aesKey = CypherUtility.generateAESKey();
+		wrappedKey = CypherUtility.encryptAESKeyWithRSA(aesKey, keyPair.getPublic());
+		perFileSession = RsKeySession.forEncryption(keyPair.getPublic(), "bench", false);
+		envelopeSession = RsKeySession.forEncryption(keyPair.getPublic(), "bench", true);
+		decryptSession = RsKeySession.forDecryption(keyPair.getPrivate(), "bench");
+	}
+
+	@Benchmark
+	public byte[] wrap() throws Exception {
+		return CypherUtility.encryptAESKeyWithRSA(aesKey, keyPair.getPublic());
+	}
+
+	@Benchmark
+	public SecretKey unwrap() throws Exception {
+		return CypherUtility.decryptAESKeyWithRSA(wrappedKey, keyPair.getPrivate());
+	}
+
+	@Benchmark
+	public RsKeySession.FileKey newFileKey() throws Exception {
+		return perFileSession.newFileKey();
+	}
+
+	@Benchmark
+	public RsKeySession.FileKey newFileKeyEnvelope() throws Exception {
+		return envelopeSession.newFileKey();
+	}
+
+	@Benchmark
+	public SecretKey unwrapCached() throws Exception {
+		return decryptSession.unwrap(wrappedKey);
+	}
+
+}
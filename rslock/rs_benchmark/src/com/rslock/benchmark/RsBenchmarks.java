@@ -0,0 +1,45 @@
+package com.rslock.benchmark;
+
+import org.openjdk.jmh.profile.GCProfiler;
+import org.openjdk.jmh.results.format.ResultFormatType;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+/**
+ * Runs the benchmark suite with the GC profiler, so every result comes with
+ * its allocation rate ({@code gc.alloc.rate.norm} is bytes per operation).
+ *
+ * Arguments are benchmark name patterns, all benchmarks run when none is
+ * given. Results are also written to {@code rslock-benchmarks.json} to
+ * compare runs.
+ */
+public final class RsBenchmarks {
+
+	private RsBenchmarks() {
+		throw new UnsupportedOperationException("This is a utility class and cannot be instantiated");
+	}
+
+	public static void main(String[] args) throws Exception {
+		OptionsBuilder builder = new OptionsBuilder();
+		if (args.length == 0) {
+			builder.include("com\\.rslock\\..*Benchmark");
+		}
+		for (String pattern : args) {
+			builder.include(pattern);
+		}
+
+		Options options = builder
+				.addProfiler(GCProfiler.class)
+				.forks(1)
+				.warmupIterations(3)
+				.measurementIterations(5)
+				.jvmArgsAppend("-Xms1g", "-Xmx1g")
+				.resultFormat(ResultFormatType.JSON)
+				.result("rslock-benchmarks.json")
+				.build();
+
+		new Runner(options).run();
+	}
+
+}
@@ -0,0 +1,89 @@
+package com.rslock.benchmark;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.concurrent.TimeUnit;
+
+import javax.crypto.SecretKey;
+import javax.crypto.spec.IvParameterSpec;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import com.rslock.common.CypherUtility;
+
+/**
+ * AES-CBC through {@link CypherUtility#createEncryptStream} and
+ * {@link CypherUtility#createDecryptStream}, copied with a plain read/write
+ * loop like the legacy stream path. Data stays in memory, so only the cipher
+ * and the copy buffer are measured.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@State(Scope.Thread)
+public class StreamCipherBenchmark {
+
+	@Param({ "4096", "8192", "65536", "1048576" })
+	public int bufferSize;
+
+	@Param({ "1024", "1048576", "67108864" })
+	public int fileSize;
+
+	private byte[] plaintext;
+	private byte[] ciphertext;
+	private byte[] buffer;
+	private SecretKey aesKey;
+	private IvParameterSpec iv;
+
+	@Setup
+	public void setup() throws Exception {
+		plaintext = BenchmarkData.randomBytes(fileSize);
+		buffer = new byte[bufferSize];
+		aesKey = CypherUtility.generateAESKey();
+		iv = CypherUtility.generateIV();
+
+		ByteArrayOutputStream encrypted = new ByteArrayOutputStream(fileSize + 16);
+		try (OutputStream out = CypherUtility.createEncryptStream(encrypted, aesKey, iv)) {
+			out.write(plaintext);
+		}
+		ciphertext = encrypted.toByteArray();
+	}
+
+	@Benchmark
+	public long encryptStream(BenchmarkData.Throughput throughput) throws Exception {
+		try (InputStream in = new ByteArrayInputStream(plaintext);
+				OutputStream out = CypherUtility.createEncryptStream(OutputStream.nullOutputStream(), aesKey, iv)) {
+			long copied = copy(in, out);
+			throughput.bytes += copied;
+			return copied;
+		}
+	}
+
+	@Benchmark
+	public long decryptStream(BenchmarkData.Throughput throughput) throws Exception {
+		try (InputStream in = CypherUtility.createDecryptStream(new ByteArrayInputStream(ciphertext), aesKey, iv)) {
+			long copied = copy(in, OutputStream.nullOutputStream());
+			throughput.bytes += copied;
+			return copied;
+		}
+	}
+
+	private long copy(InputStream in, OutputStream out) throws Exception {
+		long total = 0;
+		int read;
+		while ((read = in.read(buffer)) != -1) {
+			out.write(buffer, 0, read);
+			total += read;
+		}
+		return total;
+	}
+
+}
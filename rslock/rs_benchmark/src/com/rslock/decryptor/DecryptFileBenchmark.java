@@ -0,0 +1,96 @@
+package com.rslock.decryptor;
+
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.security.KeyPair;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import javax.crypto.SecretKey;
+import javax.crypto.spec.IvParameterSpec;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+import com.rslock.benchmark.BenchmarkData;
+import com.rslock.common.CypherUtility;
+import com.rslock.common.RsContainerHeader;
+import com.rslock.common.RsKeySession;
+import com.rslock.common.RsLockConfig;
+import com.rslock.common.RsOutputFile;
+import com.rslock.common.RsSegmentedCipher;
+
+/**
+ * The whole per-file path of the decryptor: header, key unwrap, cipher and
+ * file I/O. A fresh session per call keeps the RSA unwrap in the measurement,
+ * as for a batch where every file has its own key.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@State(Scope.Benchmark)
+public class DecryptFileBenchmark {
+
+	@Param({ "GCM", "CBC" })
+	public RsLockConfig.Format format;
+
+	@Param({ "1048576", "67108864" })
+	public int fileSize;
+
+	private Path dir;
+	private Path encrypted;
+	private KeyPair keyPair;
+
+	@Setup
+	public void setup() throws Exception {
+		// Per-file progress logging would end up in the benchmark output
+		Logger.getLogger(RsfileDecryptor.class.getName()).setLevel(Level.WARNING);
+		dir = BenchmarkData.tempDir();
+		keyPair = BenchmarkData.rsaKeyPair();
+		Path plain = BenchmarkData.randomFile(dir, "plain.bin", fileSize);
+		encrypted = dir.resolve("plain.bin.rslocked");
+
+		SecretKey aesKey = CypherUtility.generateAESKey();
+		byte[] wrappedKey = CypherUtility.encryptAESKeyWithRSA(aesKey, keyPair.getPublic());
+		if (format == RsLockConfig.Format.GCM) {
+			RsSegmentedCipher.encrypt(plain, encrypted, new RsKeySession.FileKey(aesKey,
+					List.of(new RsContainerHeader.Recipient("bench", wrappedKey)), new byte[0]),
+					ForkJoinPool.commonPool());
+			RsOutputFile.flush();
+		} else {
+			IvParameterSpec iv = CypherUtility.generateIV();
+			try (OutputStream out = Files.newOutputStream(encrypted)) {
+				CypherUtility.writeEncryptionHeader(out, iv, wrappedKey);
+				try (OutputStream cipherOut = CypherUtility.createEncryptStream(out, aesKey, iv)) {
+					cipherOut.write(Files.readAllBytes(plain));
+				}
+			}
+		}
+		Files.createDirectories(dir.resolve("out"));
+	}
+
+	@TearDown
+	public void tearDown() throws Exception {
+		// Outputs waiting for a batch sync are part of the measured cost
+		RsOutputFile.flush();
+		BenchmarkData.deleteTree(dir);
+	}
+
+	@Benchmark
+	public void decryptFile(BenchmarkData.Throughput throughput) throws Exception {
+		RsfileDecryptor.decryptFile(encrypted, dir.resolve("out"),
+				RsKeySession.forDecryption(keyPair.getPrivate(), "bench"));
+		throughput.bytes += fileSize;
+	}
+
+}
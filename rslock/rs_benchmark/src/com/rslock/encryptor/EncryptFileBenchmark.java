@@ -0,0 +1,74 @@
+package com.rslock.encryptor;
+
+import java.nio.file.Path;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+import com.rslock.benchmark.BenchmarkData;
+import com.rslock.common.RsBatch;
+import com.rslock.common.RsConstraints;
+import com.rslock.common.RsFileWalker;
+import com.rslock.common.RsKeySession;
+import com.rslock.common.RsLockConfig;
+import com.rslock.common.RsOutputFile;
+
+/**
+ * The whole per-file path of the encryptor: key generation and wrapping,
+ * header, cipher and file I/O. Lives in the encryptor package to reach
+ * {@link RsfileEncryptor#encryptFile} without going through main.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@State(Scope.Benchmark)
+public class EncryptFileBenchmark {
+
+	@Param({ "GCM", "CBC" })
+	public RsLockConfig.Format format;
+
+	@Param({ "1048576", "67108864" })
+	public int fileSize;
+
+	private Path dir;
+	private RsFileWalker.Source source;
+	private RsKeySession session;
+	private ForkJoinPool pool;
+
+	@Setup
+	public void setup() throws Exception {
+		// Per-file progress logging would end up in the benchmark output
+		Logger.getLogger(RsfileEncryptor.class.getName()).setLevel(Level.WARNING);
+		dir = BenchmarkData.tempDir();
+		Path file = BenchmarkData.randomFile(dir, "plain.bin", fileSize);
+		source = new RsFileWalker.Source(file, file.getFileName(), fileSize);
+		session = RsKeySession.forEncryption(BenchmarkData.rsaKeyPair().getPublic(), "bench", false);
+		pool = RsBatch.workStealingPool(RsConstraints.DEFAULT_PARALLELISM);
+	}
+
+	@TearDown
+	public void tearDown() throws Exception {
+		// Outputs waiting for a batch sync are part of the measured cost
+		RsOutputFile.flush();
+		pool.shutdownNow();
+		BenchmarkData.deleteTree(dir);
+	}
+
+	@Benchmark
+	public long encryptFile(BenchmarkData.Throughput throughput) throws Exception {
+		long bytes = RsfileEncryptor.encryptFile(source, dir.resolve("out"), session, format, null, pool);
+		throughput.bytes += bytes;
+		return bytes;
+	}
+
+}
@@ -0,0 +1,476 @@
+package com.rslock.daemon;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.security.KeyStore;
+import java.security.PrivateKey;
+import java.security.PublicKey;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.PriorityBlockingQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import com.rslock.common.*;
+import com.rslock.decryptor.RsfileDecryptor;
+import com.rslock.encryptor.RsfileEncryptor;
+
+/**
+ * Resident rslock service that runs encrypt and decrypt jobs sent over a Unix
+ * domain socket, so batches no longer pay for a JVM start, a keystore load and
+ * cold crypto code every time.
+ *
+ * The daemon loads its keystore once and keeps one key session per alias, the
+ * worker pool and its thread-local ciphers stay warm across jobs. Jobs wait in
+ * a priority queue, {@link RsConstraints#DAEMON_JOB_RUNNERS} of them run at a
+ * time and their files share the worker pool.
+ *
+ * Requests are lines of UTF-8 text, the operation followed by the flags of the
+ * encryptor or decryptor command line, double quotes around paths with spaces:
+ * <pre>
+ * ENCRYPT [priority=N] -s /data/in -d /data/out [-a alias] [-f gcm] [-c fast] [--envelope] [--incremental]
+ * DECRYPT [priority=N] -s /data/out -d /data/restored [-a alias]
+ * VERIFY [priority=N] -s /data/out [-a alias]
+ * STATUS
+ * </pre>
+ * Paths are resolved against the daemon's working directory, keys always come
+ * from the daemon's keystore and {@code -p} is the daemon's. Each job is
+ * answered with
+ * <pre>
+ * QUEUED id
+ * STARTED id
+ * FILE id completed/total OK|SKIPPED|FAILED path [error]
+ * DONE id files=N failed=N skipped=N bytes=N seconds=S
+ * </pre>
+ * or {@code ERROR message} when the request is refused, {@code FAILED id message}
+ * when the job as a whole fails. A connection may submit any number of jobs
+ * without waiting, their lines are told apart by id. A client that shuts down
+ * its sending side still gets the answers of its jobs, the daemon closes the
+ * connection after the last one. Jobs keep running when their client
+ * disconnects.
+ */
+public final class RsDaemon implements AutoCloseable {
+
+	private static final Logger LOG = Logger.getLogger(RsDaemon.class.getName());
+
+	private static final String LOG_FILENAME = "rslock-daemon.log";
+	private static final String SOCKET_ENV = "RSLOCK_DAEMON_SOCK";
+
+	enum Operation {
+		ENCRYPT, DECRYPT, VERIFY
+	}
+
+	/**
+	 * Submitted job, higher priority first and then in submission order
+	 */
+	private record Job(long id, Operation operation, int priority, RsLockConfig config, Client client)
+			implements Comparable<Job> {
+
+		@Override
+		public int compareTo(Job other) {
+			if (priority != other.priority) {
+				return Integer.compare(other.priority, priority);
+			}
+			return Long.compare(id, other.id);
+		}
+	}
+
+	private final Path keystorePath;
+	private final KeyStore keyStore;
+	private final char[] password;
+	private final Map<String, RsKeySession> encryptionSessions = new ConcurrentHashMap<>();
+	private final Map<String, RsKeySession> decryptionSessions = new ConcurrentHashMap<>();
+
+	private final ForkJoinPool pool;
+	private final PriorityBlockingQueue<Job> queue = new PriorityBlockingQueue<>();
+	private final ExecutorService runners = Executors.newFixedThreadPool(RsConstraints.DAEMON_JOB_RUNNERS,
+			RsBatch.threadFactory("rslock-job"));
+	private final ExecutorService connections = Executors.newCachedThreadPool(RsBatch.threadFactory("rslock-client"));
+	private final AtomicLong nextId = new AtomicLong();
+	private final AtomicInteger running = new AtomicInteger();
+	private final AtomicLong completed = new AtomicLong();
+
+	private final Path socket;
+	private final ServerSocketChannel server;
+
+	private RsDaemon(Path keystorePath, KeyStore keyStore, char[] password, int parallelism, Path socket)
+			throws IOException {
+		this.keystorePath = keystorePath;
+		this.keyStore = keyStore;
+		this.password = password;
+		this.pool = RsBatch.workStealingPool(parallelism);
+		this.socket = socket;
+
+		this.server = Utility.bindOwnerOnly(socket);
+
+		for (int i = 0; i < RsConstraints.DAEMON_JOB_RUNNERS; i++) {
+			runners.execute(this::runJobs);
+		}
+	}
+
+	/**
+	 * Load the keystore and start listening on {@code socket}
+	 */
+	public static RsDaemon start(Path keystorePath, char[] password, int parallelism, Path socket) throws Exception {
+		KeyStore keyStore = KeyStore.getInstance(RsConstraints.KEYSTORE_TYPE);
+		try (InputStream in = Files.newInputStream(keystorePath)) {
+			keyStore.load(in, password);
+		}
+		return new RsDaemon(keystorePath, keyStore, password, parallelism, socket);
+	}
+
+	/**
+	 * Socket the daemon listens on and clients connect to
+	 */
+	public static Path defaultSocket() {
+		String configured = System.getenv(SOCKET_ENV);
+		if (configured != null && !configured.isBlank()) {
+			return Path.of(configured);
+		}
+		return Path.of(System.getProperty("user.home"), ".rslock", "daemon.sock");
+	}
+
+	public static void main(String[] args) throws Exception {
+		RsLogger.init(LOG_FILENAME, Level.INFO, Level.FINE);
+		LOG.info(() -> "=== RSLock Daemon ===\n");
+
+		RsLockConfig config = RsLockConfig.fromArgs(args);
+		if (!config.isKeystoreExists()) {
+			throw new IllegalArgumentException("Keystore file does not exist: " + config.getKeystorePath());
+		}
+		RsProviders.configure(config.getProviderPolicy(), RsProviders.defaultCacheFile());
+		RsOutputFile.configure(config.getFsync());
+		// Shared by the decryptions of every job, a small heap gets fewer workers
+		int workers = RsMemoryBudget.configure(config);
+
+		Path socket = defaultSocket();
+		RsDaemon daemon = start(config.getKeystorePath(), RsConstraints.DEFAULT_KEYSTORE_PASSWORD, workers, socket);
+		// Fail now rather than on the first job if the alias is missing
+		daemon.privateKey(config.getAlias());
+
+		Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+			try {
+				daemon.close();
+				if (config.getMetricsFile() != null) {
+					RsMetrics.writeReport(config.getMetricsFile(), "daemon");
+				}
+			} catch (IOException e) {
+				LOG.warning("✗ Failed to shut down cleanly: " + e.getMessage());
+			}
+		}, "rslock-daemon-shutdown"));
+
+		LOG.info(() -> "✓ Listening on " + socket + " with " + workers + " worker(s)");
+		daemon.serve();
+	}
+
+	/**
+	 * Accept connections until the daemon is closed
+	 */
+	public void serve() throws IOException {
+		while (server.isOpen()) {
+			SocketChannel channel;
+			try {
+				channel = server.accept();
+			} catch (IOException e) {
+				if (!server.isOpen())
+					return;
+				throw e;
+			}
+			connections.execute(() -> handle(new Client(channel)));
+		}
+	}
+
+	private void handle(Client client) {
+		try {
+			BufferedReader in = new BufferedReader(Channels.newReader(client.channel, StandardCharsets.UTF_8));
+			String line;
+			while ((line = in.readLine()) != null) {
+				if (!line.isBlank()) {
+					client.send(request(line.trim(), client));
+				}
+			}
+		} catch (IOException e) {
+			LOG.log(Level.FINE, "Client connection closed", e);
+		} finally {
+			client.inputDone();
+		}
+	}
+
+	/**
+	 * Queue the job a request line describes
+	 *
+	 * @return the line to answer with
+	 */
+	String request(String line, Client client) {
+		List<String> tokens = tokenize(line);
+		String command = tokens.remove(0).toUpperCase();
+		if (command.equals("STATUS")) {
+			return "STATUS queued=" + queue.size() + " running=" + running.get() + " completed=" + completed.get();
+		}
+
+		try {
+			if (!command.equals("ENCRYPT") && !command.equals("DECRYPT") && !command.equals("VERIFY")) {
+				return "ERROR Unknown request: " + command + " (expected ENCRYPT, DECRYPT, VERIFY or STATUS)";
+			}
+			Operation operation = Operation.valueOf(command);
+			int priority = 0;
+			if (!tokens.isEmpty() && tokens.get(0).startsWith("priority=")) {
+				priority = Integer.parseInt(tokens.remove(0).substring("priority=".length()));
+			}
+
+			// Keys come from the daemon's keystore, the job may only name it again
+			tokens.addAll(0, List.of("-k", keystorePath.toString()));
+			RsLockConfig config = RsLockConfig.fromArgs(tokens.toArray(String[]::new));
+			if (!config.getKeystorePath().equals(keystorePath)) {
+				throw new IllegalArgumentException("Jobs use the daemon keystore: " + keystorePath);
+			}
+			// Providers and the fsync policy are chosen once for the whole daemon
+			if (config.getRange() != null || config.getMetricsFile() != null
+					|| !config.getProviderPolicy().equals(RsConstraints.PROVIDER_POLICY)
+					|| config.getFsync() != RsOutputFile.Sync.parse(RsConstraints.FSYNC_POLICY)
+					|| config.isMemoryBudgetSet()) {
+				throw new IllegalArgumentException(
+						"--range, --metrics, --provider, --fsync and --memory are not available for daemon jobs");
+			}
+			if (config.isAddRecipient() || config.isRotate()) {
+				throw new IllegalArgumentException("--add-recipient and --rotate run from the encryptor, not as daemon jobs");
+			}
+			if (config.isList()) {
+				throw new IllegalArgumentException("--list prints to the console, it runs from the decryptor");
+			}
+			if (config.isResume()) {
+				throw new IllegalArgumentException(
+						"--resume runs from the encryptor and decryptor, not as daemon jobs");
+			}
+			if (config.isPipe()) {
+				throw new IllegalArgumentException("--pipe needs the standard streams of the encryptor or decryptor");
+			}
+			config.validate();
+
+			if (queue.size() >= RsConstraints.DAEMON_MAX_QUEUED_JOBS) {
+				return "ERROR Busy: " + queue.size() + " jobs queued";
+			}
+			Job job = new Job(nextId.incrementAndGet(), operation, priority, config, client);
+			client.jobQueued();
+			queue.add(job);
+			LOG.fine(() -> "Queued job " + job.id() + ": " + line);
+			return "QUEUED " + job.id();
+		} catch (IllegalArgumentException e) {
+			// Unknown operations, bad numbers and invalid configurations
+			return "ERROR " + e.getMessage();
+		}
+	}
+
+	private void runJobs() {
+		try {
+			while (!Thread.currentThread().isInterrupted()) {
+				run(queue.take());
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	private void run(Job job) {
+		running.incrementAndGet();
+		job.client().send("STARTED " + job.id());
+		LOG.info(() -> "Job " + job.id() + ": " + job.operation() + " " + job.config().getSourceFiles());
+		try {
+			RsBatch.Listener listener = (result, done, total) -> job.client().send("FILE " + job.id() + " " + done
+					+ "/" + total + " " + status(result) + " " + result.file()
+					+ (result.isSuccess() ? "" : " " + result.error().getMessage()));
+
+			// DECRYPT --verify is the same as VERIFY, like on the decryptor command line
+			Operation operation = job.operation() == Operation.DECRYPT && job.config().isVerify() ? Operation.VERIFY
+					: job.operation();
+			RsBatch.Summary summary = switch (operation) {
+				case ENCRYPT -> RsfileEncryptor.encrypt(job.config(), encryptionSession(job.config()), pool, listener);
+				case DECRYPT -> RsfileDecryptor.decrypt(job.config(), decryptionSession(job.config().getAlias()), pool,
+						listener);
+				case VERIFY -> RsfileDecryptor.verify(job.config(), decryptionSession(job.config().getAlias()), pool,
+						listener);
+			};
+
+			job.client().send(String.format("DONE %d files=%d failed=%d skipped=%d bytes=%d seconds=%.3f", job.id(),
+					summary.total(), summary.failures().size(), summary.skipped(), summary.totalBytes(),
+					summary.elapsedNanos() / 1e9));
+			LOG.info(() -> "✓ Job " + job.id() + ": " + summary.succeeded() + "/" + summary.total() + " file(s)");
+		} catch (Exception e) {
+			job.client().send("FAILED " + job.id() + " " + e.getMessage());
+			LOG.log(Level.WARNING, "✗ Job " + job.id() + " failed", e);
+		} finally {
+			running.decrementAndGet();
+			completed.incrementAndGet();
+			job.client().jobDone();
+		}
+	}
+
+	private static String status(RsBatch.Result result) {
+		if (result.isSkipped())
+			return "SKIPPED";
+		return result.isSuccess() ? "OK" : "FAILED";
+	}
+
+	/**
+	 * Envelope per batch needs a data key per job, plain sessions are shared
+	 * by every job of an alias
+	 */
+	private RsKeySession encryptionSession(RsLockConfig config) throws Exception {
+		Map<String, PublicKey> recipients = new LinkedHashMap<>();
+		for (String alias : config.getAliases()) {
+			recipients.put(alias, publicKey(alias));
+		}
+		if (config.isEnvelopePerBatch()) {
+			return RsKeySession.forEncryption(recipients, true);
+		}
+		String key = String.join(",", config.getAliases());
+		RsKeySession session = encryptionSessions.get(key);
+		if (session == null) {
+			session = RsKeySession.forEncryption(recipients, false);
+			encryptionSessions.put(key, session);
+		}
+		return session;
+	}
+
+	// Keeps its cache of unwrapped keys for the daemon's lifetime
+	private RsKeySession decryptionSession(String alias) throws Exception {
+		RsKeySession session = decryptionSessions.get(alias);
+		if (session == null) {
+			session = RsKeySession.forDecryption(privateKey(alias), alias);
+			decryptionSessions.put(alias, session);
+		}
+		return session;
+	}
+
+	private PrivateKey privateKey(String alias) throws Exception {
+		synchronized (keyStore) {
+			return CypherUtility.loadPrivateKey(keyStore, alias, password);
+		}
+	}
+
+	private PublicKey publicKey(String alias) throws Exception {
+		synchronized (keyStore) {
+			return CypherUtility.loadPublicKey(keyStore, alias);
+		}
+	}
+
+	/**
+	 * Split a request on whitespace, double quotes keep spaces inside a token
+	 */
+	static List<String> tokenize(String line) {
+		List<String> tokens = new ArrayList<>();
+		StringBuilder token = new StringBuilder();
+		boolean quoted = false;
+		boolean pending = false;
+		for (int i = 0; i < line.length(); i++) {
+			char c = line.charAt(i);
+			if (c == '"') {
+				quoted = !quoted;
+				pending = true;
+			} else if (Character.isWhitespace(c) && !quoted) {
+				if (pending) {
+					tokens.add(token.toString());
+					token.setLength(0);
+					pending = false;
+				}
+			} else {
+				token.append(c);
+				pending = true;
+			}
+		}
+		if (quoted) {
+			throw new IllegalArgumentException("Unterminated quote in: " + line);
+		}
+		if (pending) {
+			tokens.add(token.toString());
+		}
+		return tokens;
+	}
+
+	@Override
+	public void close() throws IOException {
+		server.close();
+		Files.deleteIfExists(socket);
+		runners.shutdownNow();
+		connections.shutdownNow();
+		pool.shutdownNow();
+	}
+
+	/**
+	 * One connected client, lines of concurrent jobs are written whole. The
+	 * connection is closed once the client stopped sending and its last job
+	 * is answered.
+	 */
+	static final class Client implements AutoCloseable {
+		private final SocketChannel channel;
+		private volatile boolean connected = true;
+		private int pendingJobs;
+		private boolean inputDone;
+
+		Client(SocketChannel channel) {
+			this.channel = channel;
+		}
+
+		synchronized void send(String line) {
+			if (!connected)
+				return;
+			// Straight to the channel, a channel stream would wait for the blocked reader's lock
+			ByteBuffer bytes = StandardCharsets.UTF_8.encode(line + "\n");
+			try {
+				while (bytes.hasRemaining()) {
+					channel.write(bytes);
+				}
+			} catch (IOException e) {
+				// Gone, its jobs still run to completion
+				connected = false;
+			}
+		}
+
+		synchronized void jobQueued() {
+			pendingJobs++;
+		}
+
+		synchronized void jobDone() {
+			pendingJobs--;
+			closeIfFinished();
+		}
+
+		synchronized void inputDone() {
+			inputDone = true;
+			closeIfFinished();
+		}
+
+		private void closeIfFinished() {
+			if (inputDone && pendingJobs == 0) {
+				try {
+					close();
+				} catch (IOException e) {
+					LOG.log(Level.FINE, "Failed to close client connection", e);
+				}
+			}
+		}
+
+		@Override
+		public void close() throws IOException {
+			connected = false;
+			channel.close();
+		}
+	}
+
+}
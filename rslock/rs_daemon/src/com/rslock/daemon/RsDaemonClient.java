@@ -0,0 +1,66 @@
+package com.rslock.daemon;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.Writer;
+import java.net.UnixDomainSocketAddress;
+import java.nio.channels.Channels;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+/**
+ * Command line client for {@link RsDaemon}: sends its arguments as one request
+ * and prints the answers until the job is done.
+ * <pre>
+ * java -m rslock.daemon/com.rslock.daemon.RsDaemonClient ENCRYPT -s in -d out
+ * java -m rslock.daemon/com.rslock.daemon.RsDaemonClient STATUS
+ * </pre>
+ * Exits with 0 when every file of the job succeeded, 1 otherwise.
+ */
+public final class RsDaemonClient {
+
+	private RsDaemonClient() {
+		throw new UnsupportedOperationException("This is a utility class and cannot be instantiated");
+	}
+
+	public static void main(String[] args) throws IOException {
+		if (args.length == 0) {
+			System.err.println("Usage: RsDaemonClient ENCRYPT|DECRYPT [priority=N] <options> | STATUS");
+			System.exit(2);
+		}
+		Path socket = RsDaemon.defaultSocket();
+		if (!Files.exists(socket)) {
+			System.err.println("No rslock daemon socket at " + socket);
+			System.exit(2);
+		}
+
+		StringBuilder request = new StringBuilder();
+		for (String arg : args) {
+			if (request.length() > 0)
+				request.append(' ');
+			request.append(arg.isEmpty() || arg.chars().anyMatch(Character::isWhitespace) ? '"' + arg + '"' : arg);
+		}
+
+		boolean ok = false;
+		try (SocketChannel channel = SocketChannel.open(UnixDomainSocketAddress.of(socket))) {
+			Writer out = Channels.newWriter(channel, StandardCharsets.UTF_8);
+			out.write(request + "\n");
+			out.flush();
+			// The daemon closes the connection after the answer of the last job
+			channel.shutdownOutput();
+
+			BufferedReader in = new BufferedReader(Channels.newReader(channel, StandardCharsets.UTF_8));
+			String line;
+			while ((line = in.readLine()) != null) {
+				System.out.println(line);
+				if (line.startsWith("STATUS ") || line.startsWith("DONE ") && line.contains(" failed=0 ")) {
+					ok = true;
+				}
+			}
+		}
+		System.exit(ok ? 0 : 1);
+	}
+
+}
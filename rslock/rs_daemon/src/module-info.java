@@ -0,0 +1,6 @@
+module rslock.daemon {
+    requires rslock.common;
+    requires rslock.encryptor;
+    requires rslock.decryptor;
+    requires java.logging;
+}
@@ -1,17 +1,32 @@
 package com.rslock.decryptor;
 
+import java.io.FileDescriptor;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
+import java.io.PrintStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
 import java.nio.file.Files;
 import java.nio.file.Path;
+import java.nio.file.PathMatcher;
+import java.nio.file.StandardOpenOption;
 import java.security.KeyStore;
 import java.security.PrivateKey;
 import java.util.Collections;
+import java.util.Iterator;
 import java.util.List;
+import java.util.concurrent.ForkJoinPool;
 import java.util.logging.Level;
 import java.util.logging.Logger;
+import java.util.stream.Stream;
 
-import javax.crypto.CipherInputStream;
+import javax.crypto.Cipher;
 import javax.crypto.SecretKey;
 import javax.crypto.spec.IvParameterSpec;
 
@@ -19,8 +34,6 @@ import com.rslock.common.*;
 
 public class RsfileDecryptor {
 
-    private static final int BUFFER_SIZE = 8192;
-
     private static final String LOG_FILENAME = "rslock-decryptor.log";
 
     private static final Logger LOG = Logger.getLogger(RsfileDecryptor.class.getName());
@@ -34,67 +47,265 @@ public class RsfileDecryptor {
         RsLockConfig config = RsLockConfig.fromArgs(args);
 
         config.validate();
+        RsProviders.configure(config.getProviderPolicy(), RsProviders.defaultCacheFile());
+        RsOutputFile.configure(config.getFsync());
+        // A small heap gets fewer workers, unless --memory asks for more than it holds
+        final int parallelism = RsMemoryBudget.configure(config);
 
         List<Path> sourceFiles = config.getSourceFiles();
         Path keystorePath = config.getKeystorePath();
 
         final Path finalKeystorePath2 = keystorePath;
 
-        LOG.info(() -> "Source files: " + sourceFiles.size());
+        LOG.info(() -> "Sources: " + sourceFiles.size());
         for (Path src : sourceFiles) {
-            LOG.info(() -> "  - " + src.getFileName());
+            LOG.info(() -> "  - " + src);
         }
  
         LOG.info(() -> "Keystore: " + finalKeystorePath2.toString());
 
-        // Load keystore and keys
-        LOG.info(() -> "Loading keystore...");
-        KeyStore keystore = KeyStore.getInstance(RsConstraints.KEYSTORE_TYPE);
+        // A running key agent spares loading the keystore, the private key stays in the agent
+        RsKeyAgent.Client agent = config.isKeyAgent() ? RsKeyAgent.Client.connectIfRunning() : null;
 
-        try (InputStream keystoreInput = Files.newInputStream(finalKeystorePath2)) {
-            keystore.load(keystoreInput, RsConstraints.DEFAULT_KEYSTORE_PASSWORD);
-        }
+        // Unwrapped keys are cached, files sharing a data key need a single RSA operation
+        RsKeySession session;
+        if (agent != null) {
+            session = RsKeySession.forDecryption(agent.unwrapper(config.getAlias()), config.getAlias());
+        } else {
+            if (!config.isKeystoreExists()) {
+                throw new IllegalArgumentException("Keystore file does not exist: " + finalKeystorePath2);
+            }
 
-        LOG.info(() -> "✓ Keystore loaded");
+            // Load keystore and keys
+            LOG.info(() -> "Loading keystore...");
+            long keystoreStart = System.nanoTime();
+            KeyStore keystore = KeyStore.getInstance(RsConstraints.KEYSTORE_TYPE);
 
-        PrivateKey privateKey = CypherUtility.loadPrivateKey(keystore, config.getAlias(),
-                RsConstraints.DEFAULT_KEYSTORE_PASSWORD);
+            try (InputStream keystoreInput = Files.newInputStream(finalKeystorePath2)) {
+                keystore.load(keystoreInput, RsConstraints.DEFAULT_KEYSTORE_PASSWORD);
+            }
+
+            LOG.info(() -> "✓ Keystore loaded");
 
+            PrivateKey privateKey = CypherUtility.loadPrivateKey(keystore, config.getAlias(),
+                    RsConstraints.DEFAULT_KEYSTORE_PASSWORD);
+            RsMetrics.KEYSTORE_LOAD.stop(keystoreStart);
 
-        LOG.info(() -> "✓ Private key loaded\n");
 
-        // Process each source file sequentially
-        int totalFiles = sourceFiles.size();
-        int processedFiles = 0; // for logging only
+            LOG.info(() -> "✓ Private key loaded\n");
 
-        for (Path sourceFile : sourceFiles) {
-            processedFiles++;
-            final int currentFile = processedFiles; // for logging only
-            LOG.info(() -> "[" + currentFile + "/" + totalFiles + "] Processing: " + sourceFile.getFileName());
+            session = RsKeySession.forDecryption(privateKey, config.getAlias());
+        }
 
+        // Directories and globs only pick up .rslocked files, the tree is mirrored under the destination
+        try (Stream<RsFileWalker.Source> sources = RsFileWalker.walk(sourceFiles,
+                file -> file.getFileName().toString().endsWith(".rslocked"))) {
+            if (config.isPipe()) {
+                // Pipe mode: a container on standard input, its plaintext on standard output
+                decryptPipe(session, parallelism);
+                return;
+            }
+
+            if (config.isVerify()) {
+                // Verify mode: a pass/fail report on standard output, no plaintext written
+                verifyReport(sources, parallelism, session, System.out);
+                return;
+            }
+
+            if (config.isList()) {
+                // List mode: the file table of each pack on standard output, nothing decrypted
+                Iterator<RsFileWalker.Source> walker = sources.iterator();
+                while (walker.hasNext()) {
+                    RsFileWalker.Source source = walker.next();
+                    if (source.error() != null) {
+                        throw source.error();
+                    }
+                    listPack(source.file(), session, System.out);
+                }
+                System.out.flush();
+                return;
+            }
+
+            if (config.getRange() != null) {
+                // Range mode: plaintext goes to standard output, logs stay on standard error
+                Iterator<RsFileWalker.Source> walker = sources.iterator();
+                while (walker.hasNext()) {
+                    RsFileWalker.Source source = walker.next();
+                    if (source.error() != null) {
+                        throw source.error();
+                    }
+                    decryptRange(source.file(), config.getRange(), session, System.out);
+                }
+                System.out.flush();
+                return;
+            }
+
+            // Files are decrypted in parallel, as many at once as the memory budget admits
+            LOG.info(() -> "Decrypting with " + parallelism + " worker(s), memory budget: "
+                    + Utility.formatBytes(RsMemoryBudget.getBudget()));
+
+            ForkJoinPool pool = RsBatch.workStealingPool(parallelism);
+            RsBatch.Summary summary;
             try {
-                decryptFile(sourceFile, config.generateDestinationDir(sourceFile), privateKey);
-                LOG.info(() -> "     ✓ Decrypted successfully\n");
-            } catch (Exception e) {
-                LOG.warning("     ✗ Error: " + e.getMessage());
-                throw new RuntimeException("Failed to decrypt: " + sourceFile, e);
+                summary = decrypt(sources, config, session, pool, (result, completed, total) -> {
+                    if (result.isSuccess()) {
+                        LOG.info(() -> "[" + completed + "/" + total + "] ✓ Decrypted: " + result.file());
+                    } else {
+                        LOG.warning("[" + completed + "/" + total + "] ✗ Failed: " + result.file()
+                                + " - " + result.error().getMessage());
+                        LOG.log(Level.FINE, "Failed to decrypt: " + result.file(), result.error());
+                    }
+                });
+            } finally {
+                pool.shutdownNow();
             }
+
+            LOG.info(() -> "=== Decryption Complete ===");
+            LOG.info(() -> "Total files decrypted: " + summary.succeeded() + "/" + summary.total());
+            LOG.info(() -> String.format("Data decrypted: %s in %.2f s (%.2f MB/s)",
+                    Utility.formatBytes(summary.totalBytes()), summary.elapsedNanos() / 1e9,
+                    summary.throughputMBps()));
+
+            if (!summary.failures().isEmpty()) {
+                LOG.warning("Failed files: " + summary.failures().size());
+                for (RsBatch.Result failure : summary.failures()) {
+                    LOG.warning("  - " + failure.file() + ": " + failure.error().getMessage());
+                }
+                throw new RuntimeException(summary.failures().size() + " of " + summary.total()
+                        + " files failed to decrypt");
+            }
+        } finally {
+            // Files decrypted before a failure are still published
+            RsOutputFile.flush();
+            if (agent != null) {
+                agent.close();
+            }
+            writeMetrics(config.getMetricsFile());
+        }
+    }
+
+    /**
+     * Decrypt every .rslocked source of {@code config} on {@code pool}, a
+     * failing file does not stop the batch. Used by the daemon for its jobs.
+     */
+    public static RsBatch.Summary decrypt(RsLockConfig config, RsKeySession session, ForkJoinPool pool,
+            RsBatch.Listener listener) throws Exception {
+        try (Stream<RsFileWalker.Source> sources = RsFileWalker.walk(config.getSourceFiles(),
+                file -> file.getFileName().toString().endsWith(".rslocked"))) {
+            return decrypt(sources, config, session, pool, listener);
+        } finally {
+            RsOutputFile.flush();
+        }
+    }
+
+    /**
+     * Decrypt walked sources on {@code pool}, each file admitted by the
+     * {@link RsMemoryBudget} for its working set, its segments opened on the
+     * same pool
+     */
+    private static RsBatch.Summary decrypt(Stream<RsFileWalker.Source> sources, RsLockConfig config,
+            RsKeySession session, ForkJoinPool pool, RsBatch.Listener listener) throws Exception {
+        PathMatcher members = config.getMemberFilter();
+        int parallelism = pool.getParallelism();
+        return RsBatch.schedule(sources, pool, source -> {
+            Path destinationDir = Files.createDirectories(source.outputDir(config.getDestinationDir()));
+            decryptFile(source.file(), destinationDir, session, members, config.isResume(), pool);
+            return source.size();
+        }, source -> RsMemoryBudget.workingSet(source.size(), parallelism), listener);
+    }
+
+    /**
+     * Verify every .rslocked source of {@code config} on {@code pool} without
+     * writing plaintext. Used by the daemon for its jobs.
+     */
+    public static RsBatch.Summary verify(RsLockConfig config, RsKeySession session, ForkJoinPool pool,
+            RsBatch.Listener listener) throws Exception {
+        try (Stream<RsFileWalker.Source> sources = RsFileWalker.walk(config.getSourceFiles(),
+                file -> file.getFileName().toString().endsWith(".rslocked"))) {
+            return RsBatch.schedule(sources, pool, source -> verifyFile(source.file(), session, pool),
+                    source -> RsMemoryBudget.workingSet(source.size(), pool.getParallelism()), listener);
+        }
+    }
+
+    /**
+     * Verify the files in parallel and print one PASS or FAIL line per file,
+     * then a summary line
+     *
+     * @throws RuntimeException when a file failed, after the report is printed
+     */
+    private static void verifyReport(Stream<RsFileWalker.Source> sources, int parallelism, RsKeySession session,
+            PrintStream out) throws Exception {
+        LOG.info(() -> "Verifying with " + parallelism + " worker(s)...");
+        ForkJoinPool pool = RsBatch.workStealingPool(parallelism);
+        RsBatch.Summary summary;
+        try {
+            summary = RsBatch.schedule(sources, pool, source -> verifyFile(source.file(), session, pool),
+                    source -> RsMemoryBudget.workingSet(source.size(), parallelism),
+                    (result, completed, total) -> out.println(result.isSuccess()
+                            ? "PASS " + result.file()
+                            : "FAIL " + result.file() + ": " + result.error().getMessage()));
+        } finally {
+            pool.shutdownNow();
         }
+        out.println(String.format("Verified %d file(s): %d passed, %d failed, %s read in %.2f s (%.2f MB/s)",
+                summary.total(), summary.succeeded(), summary.failures().size(),
+                Utility.formatBytes(summary.totalBytes()), summary.elapsedNanos() / 1e9, summary.throughputMBps()));
+        out.flush();
 
-        final int finalProcessedFiles = processedFiles;
-        LOG.info(() -> "=== Decryption Complete ===");
-        LOG.info(() -> "Total files decrypted: " + finalProcessedFiles);
+        if (!summary.failures().isEmpty()) {
+            throw new RuntimeException(summary.failures().size() + " of " + summary.total() + " files failed verification");
+        }
+    }
+
+    /**
+     * Check one file end to end without writing its plaintext: the header, the
+     * key unwrap and every byte through the cipher. Containers are
+     * authenticated segment by segment, legacy CBC files only have their
+     * padding to check, so they catch a wrong key or truncation but not every
+     * modification.
+     *
+     * @return number of encrypted bytes read
+     */
+    static long verifyFile(Path sourceFile, RsKeySession session, ForkJoinPool pool) throws Exception {
+        long fileSize = Files.size(sourceFile);
+        if (RsContainerHeader.isContainer(sourceFile)) {
+            RsSegmentedCipher.verify(sourceFile, session, pool);
+            return fileSize;
+        }
+
+        try (FileChannel fileInput = FileChannel.open(sourceFile, StandardOpenOption.READ)) {
+            byte[][] header = CypherUtility.readEncryptionHeader(Channels.newInputStream(fileInput));
+            SecretKey aesKey = session.unwrap(header[1]);
+            long headerSize = fileInput.position();
+            Cipher cipher = CypherUtility.createDecryptCipher(aesKey, new IvParameterSpec(header[0]));
+            RsChannelCipher.transform(fileInput, headerSize, fileSize - headerSize, cipher, null, 0,
+                    RsLogger.progress(LOG, sourceFile, fileSize - headerSize));
+        }
+        return fileSize;
     }
 
     /**
      * Decrypts a single file using hybrid decryption:
      * - Reads encrypted AES key and IV from file header
      * - Decrypts AES key with RSA private key
-     * - Decrypts file data with AES-CBC
+     * - Decrypts file data with AES-CBC, or AES-GCM segments for containers
      * - Restores original file without .rslocked extension
      */
-    private static void decryptFile(Path sourceFile, Path destinationDir, PrivateKey privateKey)
-            throws Exception {
+    static void decryptFile(Path sourceFile, Path destinationDir, RsKeySession session) throws Exception {
+        decryptFile(sourceFile, destinationDir, session, null, false, ForkJoinPool.commonPool());
+    }
+
+    /**
+     * Decrypts a single file, packs are extracted member by member into
+     * {@code destinationDir}
+     *
+     * @param members selects the pack members to extract, null for all of them
+     * @param resume  checkpoint large containers to a journal and continue
+     *                where an interrupted run stopped
+     * @param pool    opens the segments of containers
+     */
+    static void decryptFile(Path sourceFile, Path destinationDir, RsKeySession session, PathMatcher members,
+            boolean resume, ForkJoinPool pool) throws Exception {
 
         // Validate input file has .rslocked extension
         String fileName = sourceFile.getFileName().toString();
@@ -107,53 +318,129 @@ public class RsfileDecryptor {
         Path outputFile = destinationDir.resolve(outputFileName);
 
         long fileSize = Files.size(sourceFile);
-        LOG.info(() -> "     Encrypted size: " + Utility.formatBytes(fileSize));
+        LOG.fine(() -> "     Encrypted size: " + Utility.formatBytes(fileSize));
+
+        if (RsPack.isPack(sourceFile)) {
+            // Pack of several files, each member is written under its own name
+            LOG.fine(() -> "     Extracting pack members...");
+            long extractedSize = RsPack.extract(sourceFile, session, destinationDir, members);
+            LOG.fine(() -> "     Extracted size: " + Utility.formatBytes(extractedSize));
+            return;
+        }
+
+        if (RsContainerHeader.isContainer(sourceFile)) {
+            // Segmented AES-GCM container, segments are opened in parallel
+            LOG.fine(() -> "     Decrypting AES-GCM segments...");
+            long decryptedSize = resume
+                    ? RsSegmentedCipher.decryptResumable(sourceFile, outputFile, session, pool)
+                    : RsSegmentedCipher.decrypt(sourceFile, outputFile, session, pool);
+            LOG.fine(() -> "     Output size: " + Utility.formatBytes(decryptedSize));
+            LOG.fine(() -> "     Output file: " + outputFile.getFileName());
+            return;
+        }
 
+        // Legacy format: one AES-CBC stream, without segments to resume from
         // Decrypt the file
-        try (InputStream fileInput = Files.newInputStream(sourceFile)) {
+        // The plaintext is shorter than the ciphertext, the padding is cut on commit
+        long decryptedSize;
+        try (FileChannel fileInput = FileChannel.open(sourceFile, StandardOpenOption.READ);
+                RsOutputFile output = RsOutputFile.create(outputFile, fileSize)) {
+            FileChannel fileOutput = output.channel();
 
             // Read header: IV and encrypted AES key
-            LOG.info(() -> "     Reading encryption header...");
-            byte[][] header = CypherUtility.readEncryptionHeader(fileInput);
+            LOG.fine(() -> "     Reading encryption header...");
+            byte[][] header = CypherUtility.readEncryptionHeader(Channels.newInputStream(fileInput));
             byte[] ivBytes = header[0];
             byte[] encryptedAESKey = header[1];
 
             IvParameterSpec iv = new IvParameterSpec(ivBytes);
 
             // Decrypt the AES key with RSA private key
-            LOG.info(() -> "     Decrypting AES key with RSA...");
-            SecretKey aesKey = CypherUtility.decryptAESKeyWithRSA(encryptedAESKey, privateKey);
-
-            // Decrypt the file data
-            LOG.info(() -> "     Decrypting file data...");
-            try (CipherInputStream cipherInput = CypherUtility.createDecryptStream(fileInput, aesKey, iv);
-                    OutputStream fileOutput = Files.newOutputStream(outputFile)) {
-
-                long bytesCopied = 0;
-                byte[] buffer = new byte[BUFFER_SIZE];
-                int bytesRead;
-                int lastProgressPercent = 0;
-
-                while ((bytesRead = cipherInput.read(buffer)) != -1) {
-                    fileOutput.write(buffer, 0, bytesRead);
-                    bytesCopied += bytesRead;
-
-                    // Show progress percentage (approximate since we don't know decrypted size)
-                    int progressPercent = (int) ((bytesCopied * 100) / fileSize);
-                    if (progressPercent > lastProgressPercent && progressPercent % 10 == 0) {
-                        LOG.fine("     Progress: " + progressPercent + "%");
-                        lastProgressPercent = progressPercent;
-                    }
-                }
+            LOG.fine(() -> "     Decrypting AES key with RSA...");
+            SecretKey aesKey = session.unwrap(encryptedAESKey);
+
+            // Decrypt the file data that follows the header
+            LOG.fine(() -> "     Decrypting file data...");
+            long headerSize = fileInput.position();
+            Cipher cipher = CypherUtility.createDecryptCipher(aesKey, iv);
+            decryptedSize = RsChannelCipher.transform(fileInput, headerSize, fileSize - headerSize, cipher,
+                    fileOutput, 0, RsLogger.progress(LOG, sourceFile, fileSize - headerSize));
+            output.commit(decryptedSize);
+        }
+
+        LOG.fine(() -> "     Output size: " + Utility.formatBytes(decryptedSize));
+        LOG.fine(() -> "     Output file: " + outputFile.getFileName());
+    }
+
+    /**
+     * Write the metrics report if one was asked for, a failure here never fails the run
+     */
+    private static void writeMetrics(Path metricsFile) {
+        if (metricsFile == null)
+            return;
+        try {
+            RsMetrics.writeReport(metricsFile, "decrypt");
+            LOG.info(() -> "Metrics written to " + metricsFile);
+        } catch (IOException e) {
+            LOG.warning("✗ Failed to write metrics to " + metricsFile + ": " + e.getMessage());
+        }
+    }
 
-                fileOutput.flush();
+    /**
+     * Print the size and name of every member of a pack, only the segments
+     * holding its file table are decrypted
+     */
+    private static void listPack(Path sourceFile, RsKeySession session, PrintStream out) throws Exception {
+        try (RsLockedFile lockedFile = RsLockedFile.open(sourceFile, session)) {
+            if (!lockedFile.isPack()) {
+                throw new IllegalArgumentException("Not a pack: " + sourceFile);
+            }
+            List<RsPack.Member> members = RsPack.list(lockedFile);
+            out.println(sourceFile + ": " + members.size() + " member(s)");
+            for (RsPack.Member member : members) {
+                out.println(String.format("%12d  %s", member.size(), member.name()));
             }
         }
+    }
 
-        long decryptedSize = Files.size(outputFile);
+    /**
+     * Decrypt a container arriving on standard input, segments are opened a
+     * window at a time on {@code parallelism} workers and written out in order
+     */
+    private static void decryptPipe(RsKeySession session, int parallelism) throws Exception {
+        ForkJoinPool pool = RsBatch.workStealingPool(parallelism);
+        long start = System.nanoTime();
+        try (FileInputStream stdin = new FileInputStream(FileDescriptor.in);
+                FileOutputStream stdout = new FileOutputStream(FileDescriptor.out)) {
+            // Typed as plain channels, standard streams have no positions
+            ReadableByteChannel in = stdin.getChannel();
+            WritableByteChannel out = stdout.getChannel();
+            long size = RsSegmentedCipher.decryptStream(in, out, session, pool);
+            LOG.info(() -> "✓ Decrypted " + Utility.formatBytes(size) + " from standard input in "
+                    + String.format("%.2f s", (System.nanoTime() - start) / 1e9));
+        } finally {
+            pool.shutdownNow();
+        }
+    }
 
-        LOG.info(() -> "     Output size: " + Utility.formatBytes(decryptedSize));
-        LOG.info(() -> "     Output file: " + outputFile.getFileName());
+    /**
+     * Decrypts only part of a file, without streaming the ciphertext in front of it
+     */
+    private static void decryptRange(Path sourceFile, RsLockConfig.Range range, RsKeySession session,
+            OutputStream out) throws Exception {
+        try (RsLockedFile lockedFile = RsLockedFile.open(sourceFile, session)) {
+            long[] bounds = range.resolve(lockedFile.size());
+            LOG.info(() -> sourceFile.getFileName() + ": bytes " + bounds[0] + "-" + bounds[1] + " of "
+                    + lockedFile.size());
+
+            ByteBuffer buffer = ByteBuffer.allocate(lockedFile.blockSize());
+            long position = bounds[0];
+            while (position < bounds[1]) {
+                buffer.clear().limit((int) Math.min(buffer.capacity(), bounds[1] - position));
+                position += lockedFile.read(position, buffer);
+                out.write(buffer.array(), 0, buffer.position());
+            }
+        }
     }
 
 }
@@ -3,6 +3,7 @@
 
 module rslock.decryptor {
     requires rslock.common;
+    exports com.rslock.decryptor;
     requires java.base;
 	requires java.logging;
 }
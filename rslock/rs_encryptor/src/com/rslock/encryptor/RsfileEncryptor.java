@@ -1,16 +1,29 @@
 package com.rslock.encryptor;
 
+import java.io.FileDescriptor;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
 import java.io.InputStream;
-import java.io.OutputStream;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
 import java.nio.file.Files;
 import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
 import java.security.KeyStore;
+import java.security.PrivateKey;
 import java.security.PublicKey;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ForkJoinPool;
 import java.util.logging.Level;
 import java.util.logging.Logger;
+import java.util.stream.Stream;
 
-import javax.crypto.CipherOutputStream;
+import javax.crypto.Cipher;
 import javax.crypto.SecretKey;
 import javax.crypto.spec.IvParameterSpec;
 
@@ -30,7 +43,10 @@ public class RsfileEncryptor {
 		// Parse command line arguments
 		RsLockConfig config = RsLockConfig.fromArgs(args);
 
-		if (!config.isKeystoreExists()) {
+		// A running key agent spares loading, or generating, the keystore
+		RsKeyAgent.Client agent = config.isKeyAgent() ? RsKeyAgent.Client.connectIfRunning() : null;
+
+		if (agent == null && !config.isKeystoreExists()) {
 			LOG.info(() -> "Keystore not found, generating new keystore...");
 			final Path finalKeystorePathForGen = config.getKeystorePath();
 
@@ -48,129 +64,428 @@ public class RsfileEncryptor {
 		}
 
 		config.validate();
+		RsProviders.configure(config.getProviderPolicy(), RsProviders.defaultCacheFile());
+		RsOutputFile.configure(config.getFsync());
 
 		List<Path> sourceFiles = config.getSourceFiles();
 		Path destinationDir = config.getDestinationDir();
 		Path keystorePath = config.getKeystorePath();
 
-		// Default destination to source file's directory if not provided
-		if (destinationDir == null && !sourceFiles.isEmpty()) {
-			destinationDir = sourceFiles.get(0).toAbsolutePath().getParent();
-			final Path finalDestDir = destinationDir;
-			LOG.info(() -> "Using default destination: " + finalDestDir);
-		}
-
 		final Path finalDestinationDir = destinationDir;
 		final Path finalKeystorePath2 = keystorePath;
 
-		LOG.info(() -> "Source files: " + sourceFiles.size());
+		LOG.info(() -> "Sources: " + sourceFiles.size());
 		for (Path src : sourceFiles) {
-			LOG.info(() -> "  - " + src.getFileName());
+			LOG.info(() -> "  - " + src);
 		}
 
-		LOG.info(() -> "Destination: " + finalDestinationDir.toString());
+		// Without a destination every file is encrypted next to its source
+		LOG.info(() -> "Destination: " + (finalDestinationDir != null ? finalDestinationDir.toString()
+				: "next to each source file"));
 		LOG.info(() -> "Keystore: " + finalKeystorePath2.toString());
 
-		// Load keystore and keys
-		LOG.info(() -> "Loading keystore...");
-		KeyStore keystore = KeyStore.getInstance(RsConstraints.KEYSTORE_TYPE);
+		// Load keystore and keys, one public key per recipient
+		long keystoreStart = System.nanoTime();
+		Map<String, PublicKey> publicKeys = new LinkedHashMap<>();
+		RsKeySession.Unwrapper opener = null;
+		if (agent != null) {
+			for (String alias : config.getAliases()) {
+				publicKeys.put(alias, agent.publicKey(alias));
+			}
+			if (needsPrivateKey(config)) {
+				opener = agent.unwrapper(config.getAlias());
+			} else {
+				agent.close();
+			}
+		} else {
+			LOG.info(() -> "Loading keystore...");
+			KeyStore keystore = KeyStore.getInstance(RsConstraints.KEYSTORE_TYPE);
 
-		try (InputStream keystoreInput = Files.newInputStream(finalKeystorePath2)) {
-			keystore.load(keystoreInput, RsConstraints.DEFAULT_KEYSTORE_PASSWORD);
-		}
+			try (InputStream keystoreInput = Files.newInputStream(finalKeystorePath2)) {
+				keystore.load(keystoreInput, RsConstraints.DEFAULT_KEYSTORE_PASSWORD);
+			}
+
+			LOG.info(() -> "✓ Keystore loaded");
 
-		LOG.info(() -> "✓ Keystore loaded");
+			for (String alias : config.getAliases()) {
+				publicKeys.put(alias, CypherUtility.loadPublicKey(keystore, alias));
+			}
+			if (needsPrivateKey(config)) {
+				PrivateKey privateKey = CypherUtility.loadPrivateKey(keystore, config.getAlias(),
+						RsConstraints.DEFAULT_KEYSTORE_PASSWORD);
+				opener = wrappedKey -> CypherUtility.decryptAESKeyWithRSA(wrappedKey, privateKey);
+			}
+		}
+		RsMetrics.KEYSTORE_LOAD.stop(keystoreStart);
+		LOG.info(() -> "✓ Public key(s) loaded for " + publicKeys.keySet() + "\n");
 
-		PublicKey publicKey = CypherUtility.loadPublicKey(keystore, config.getAlias());
-		LOG.info(() -> "✓ Public key loaded\n");
+		if (rewritesHeaders(config)) {
+			// The first alias opens the files
+			RsKeySession session = RsKeySession.forDecryption(opener, config.getAlias());
+			try {
+				if (config.isRotate()) {
+					Map<String, PublicKey> newKeys = new LinkedHashMap<>(publicKeys);
+					newKeys.remove(config.getAlias());
+					RsRecipients.Rotation rotation = new RsRecipients.Rotation(session, config.getAlias(), newKeys);
+					rewriteHeaders(config, "Rotating keys from " + config.getAlias() + " to " + newKeys.keySet(),
+							file -> RsRecipients.rotate(file, rotation));
+				} else {
+					// Every alias the files lack is wrapped for
+					rewriteHeaders(config, "Adding recipients " + publicKeys.keySet(),
+							file -> RsRecipients.add(file, session, publicKeys) > 0);
+				}
+			} finally {
+				if (agent != null) {
+					agent.close();
+				}
+			}
+			return;
+		}
 
-		// Process each source file sequentially
-		int totalFiles = sourceFiles.size();
-		int processedFiles = 0; // for logging only
+		// One key session for the whole batch, with envelope per batch RSA runs only once
+		// Resumed files are reopened with the private key of the first alias
+		RsKeySession session = RsKeySession.forEncryption(publicKeys, config.isEnvelopePerBatch(), opener);
+		if (session.isEnvelopePerBatch()) {
+			LOG.info(() -> "Envelope per batch: file keys derived from one wrapped data key");
+		}
 
-		for (Path sourceFile : sourceFiles) {
-			processedFiles++;
-			final int currentFile = processedFiles; // for logging only
-			LOG.info(() -> "[" + currentFile + "/" + totalFiles + "] Processing: " + sourceFile.getFileName());
+		if (config.isPipe()) {
+			encryptPipe(config, session);
+			return;
+		}
 
-			try {
-				encryptFile(sourceFile, finalDestinationDir, publicKey);
-				LOG.info(() -> "     ✓ Encrypted successfully\n");
-			} catch (Exception e) {
-				LOG.warning("     ✗ Error: " + e.getMessage());
-				throw new RuntimeException("Failed to encrypt: " + sourceFile, e);
+		// Process source files concurrently, a failing file does not stop the batch
+		final int parallelism = config.getParallelism();
+		final RsLockConfig.Format format = config.getFormat();
+		final RsCodec codec = config.getCodec();
+		LOG.info(() -> "Encrypting with " + parallelism + " worker(s), format: " + format
+				+ (codec != null ? ", compression: " + codec.name() : ""));
+
+		ForkJoinPool pool = RsBatch.workStealingPool(parallelism);
+		RsBatch.Summary summary;
+		try {
+			summary = encrypt(config, session, pool,
+					(result, completed, total) -> {
+						if (result.isSkipped()) {
+							LOG.fine(() -> "[" + completed + "/" + total + "] ○ Unchanged: " + result.file());
+						} else if (result.isSuccess()) {
+							LOG.info(() -> "[" + completed + "/" + total + "] ✓ Encrypted: " + result.file());
+						} else {
+							LOG.warning("[" + completed + "/" + total + "] ✗ Failed: " + result.file()
+									+ " - " + result.error().getMessage());
+							LOG.log(Level.FINE, "Failed to encrypt: " + result.file(), result.error());
+						}
+					});
+		} finally {
+			pool.shutdownNow();
+			// Kept open for resumed files only
+			if (agent != null && opener != null) {
+				agent.close();
 			}
+			writeMetrics(config.getMetricsFile());
 		}
 
-		final int finalProcessedFiles = processedFiles;
 		LOG.info(() -> "=== Encryption Complete ===");
-		LOG.info(() -> "Total files encrypted: " + finalProcessedFiles);
+		LOG.info(() -> "Total files encrypted: " + (summary.succeeded() - summary.skipped()) + "/" + summary.total());
+		if (config.isIncremental()) {
+			LOG.info(() -> "Unchanged files skipped: " + summary.skipped());
+		}
+		LOG.info(() -> String.format("Data encrypted: %s in %.2f s (%.2f MB/s)",
+				Utility.formatBytes(summary.totalBytes()), summary.elapsedNanos() / 1e9, summary.throughputMBps()));
+
+		if (!summary.failures().isEmpty()) {
+			LOG.warning("Failed files: " + summary.failures().size());
+			for (RsBatch.Result failure : summary.failures()) {
+				LOG.warning("  - " + failure.file() + ": " + failure.error().getMessage());
+			}
+			throw new RuntimeException(summary.failures().size() + " of " + summary.total() + " files failed to encrypt");
+		}
+	}
+
+	/**
+	 * Encrypt standard input into a stream container on standard output, the
+	 * header goes out before the first byte is read and memory stays at one
+	 * window of segments however long the input is
+	 */
+	private static void encryptPipe(RsLockConfig config, RsKeySession session) throws Exception {
+		ForkJoinPool pool = RsBatch.workStealingPool(config.getParallelism());
+		long start = System.nanoTime();
+		try (FileInputStream stdin = new FileInputStream(FileDescriptor.in);
+				FileOutputStream stdout = new FileOutputStream(FileDescriptor.out)) {
+			// Typed as plain channels, standard streams have no positions
+			ReadableByteChannel in = stdin.getChannel();
+			WritableByteChannel out = stdout.getChannel();
+			long size = RsSegmentedCipher.encryptStream(in, out, session.newFileKey(), config.getCodec(), pool);
+			LOG.info(() -> "✓ Encrypted " + Utility.formatBytes(size) + " from standard input in "
+					+ String.format("%.2f s", (System.nanoTime() - start) / 1e9));
+		} finally {
+			pool.shutdownNow();
+			writeMetrics(config.getMetricsFile());
+		}
+	}
+
+	// Header rewrites: adding recipients or rotating keys, both need a private key to open the files
+	private static boolean rewritesHeaders(RsLockConfig config) {
+		return config.isAddRecipient() || config.isRotate();
+	}
+
+	// Resuming reopens the partial outputs as well
+	private static boolean needsPrivateKey(RsLockConfig config) {
+		return rewritesHeaders(config) || config.isResume();
+	}
+
+	/**
+	 * Rewrite the headers of the .rslocked files among the sources, in place
+	 * and in parallel. Payloads stay encrypted as they are, so the run costs a
+	 * few kilobytes of IO per file whatever its size.
+	 *
+	 * @param rewrite returns false when the file needs no change
+	 */
+	private static void rewriteHeaders(RsLockConfig config, String action, HeaderRewrite rewrite) throws Exception {
+		LOG.info(() -> action + " with " + config.getParallelism() + " worker(s)");
+		ForkJoinPool pool = RsBatch.workStealingPool(config.getParallelism());
+		RsBatch.Summary summary;
+		try (Stream<RsFileWalker.Source> sources = RsFileWalker.walk(config.getSourceFiles(),
+				file -> file.getFileName().toString().endsWith(".rslocked"))) {
+			summary = RsBatch.schedule(sources, pool,
+					source -> rewrite.apply(source.file()) ? source.size() : RsBatch.SKIPPED,
+					(result, completed, total) -> {
+						if (result.isSkipped()) {
+							LOG.fine(() -> "[" + completed + "/" + total + "] ○ Up to date: " + result.file());
+						} else if (result.isSuccess()) {
+							LOG.info(() -> "[" + completed + "/" + total + "] ✓ Header rewritten: " + result.file());
+						} else {
+							LOG.warning("[" + completed + "/" + total + "] ✗ Failed: " + result.file()
+									+ " - " + result.error().getMessage());
+						}
+					});
+		} finally {
+			RsOutputFile.flush();
+			pool.shutdownNow();
+			writeMetrics(config.getMetricsFile());
+		}
+
+		LOG.info(() -> String.format("Headers rewritten: %d/%d, up to date: %d, in %.2f s",
+				summary.succeeded() - summary.skipped(), summary.total(), summary.skipped(),
+				summary.elapsedNanos() / 1e9));
+		if (!summary.failures().isEmpty()) {
+			for (RsBatch.Result failure : summary.failures()) {
+				LOG.warning("  - " + failure.file() + ": " + failure.error().getMessage());
+			}
+			throw new RuntimeException(summary.failures().size() + " of " + summary.total()
+					+ " headers failed to be rewritten");
+		}
+	}
+
+	@FunctionalInterface
+	private interface HeaderRewrite {
+		boolean apply(Path file) throws Exception;
+	}
+
+	/**
+	 * Encrypt every source of {@code config} into its destination on
+	 * {@code pool}, a failing file does not stop the batch. This is the batch
+	 * behind main, also run by the daemon for each of its jobs.
+	 */
+	public static RsBatch.Summary encrypt(RsLockConfig config, RsKeySession session, ForkJoinPool pool,
+			RsBatch.Listener listener) throws Exception {
+		final Path destinationDir = config.getDestinationDir();
+		final RsLockConfig.Format format = config.getFormat();
+		final RsCodec codec = config.getCodec();
+		final boolean resume = config.isResume();
+
+		if (config.getPackFile() != null) {
+			return pack(config, session, pool, listener);
+		}
+
+		// Incremental runs skip files whose manifest entry still matches
+		final RsManifest manifest = config.isIncremental() ? RsManifest.load(destinationDir) : null;
+		if (manifest != null) {
+			LOG.info(() -> "Incremental: " + manifest.size() + " file(s) in " + manifest.getFile());
+		}
+
+		// Directories and globs are walked lazily, the source tree is mirrored under the destination
+		try (Stream<RsFileWalker.Source> sources = RsFileWalker.walk(config.getSourceFiles(),
+				file -> !file.getFileName().toString().endsWith(".rslocked"))) {
+			return RsBatch.schedule(sources, pool,
+					source -> manifest != null
+							? encryptIfChanged(source, destinationDir, session, format, codec, pool, manifest, resume)
+							: encryptFile(source, destinationDir, session, format, codec, pool, resume),
+					listener);
+		} finally {
+			// Files encrypted before a failure are still recorded, once published: a manifest naming an
+			// output still waiting for its fsync batch would skip it on the next run if it got lost
+			RsOutputFile.flush();
+			if (manifest != null) {
+				manifest.save();
+			}
+		}
+	}
+
+	/**
+	 * Encrypt every source into one pack: one header, one wrapped key and one
+	 * output file for the whole tree. The pack is a single result of the batch.
+	 */
+	private static RsBatch.Summary pack(RsLockConfig config, RsKeySession session, ForkJoinPool pool,
+			RsBatch.Listener listener) throws Exception {
+		Path packFile = config.getPackFile();
+		if (!packFile.isAbsolute() && config.getDestinationDir() != null) {
+			packFile = config.getDestinationDir().resolve(packFile);
+		}
+		if (!packFile.getFileName().toString().endsWith(".rslocked")) {
+			packFile = packFile.resolveSibling(packFile.getFileName() + ".rslocked");
+		}
+
+		long start = System.nanoTime();
+		List<RsFileWalker.Source> members;
+		try (Stream<RsFileWalker.Source> sources = RsFileWalker.walk(config.getSourceFiles(),
+				file -> !file.getFileName().toString().endsWith(".rslocked"))) {
+			members = sources.toList();
+		}
+		Path finalPackFile = packFile;
+		LOG.info(() -> "Packing " + members.size() + " file(s) into " + finalPackFile);
+
+		RsBatch.Result result;
+		try {
+			Files.createDirectories(packFile.toAbsolutePath().getParent());
+			long bytes = RsPack.pack(members, packFile, session.newFileKey(), config.getCodec(), pool);
+			RsOutputFile.flush();
+			RsMetrics.FILE.stop(start);
+			RsMetrics.FILES.increment();
+			RsMetrics.FILE_SIZE.record(bytes);
+			result = new RsBatch.Result(packFile, bytes, System.nanoTime() - start, null);
+		} catch (Exception e) {
+			RsMetrics.FILES_FAILED.increment();
+			result = new RsBatch.Result(packFile, 0, System.nanoTime() - start, e);
+		}
+		if (listener != null) {
+			listener.onComplete(result, 1, 1);
+		}
+		return new RsBatch.Summary(List.of(result), System.nanoTime() - start);
 	}
 
 	/**
 	 * Encrypts a single file using hybrid encryption:
-	 * - Generates random AES key for this file
-	 * - Encrypts file data with AES-CBC
-	 * - Encrypts AES key with RSA public key
+	 * - Gets the AES key for this file from the session, random or derived
+	 * - Encrypts file data with AES-CBC, or with AES-GCM in parallel segments,
+	 *   compressed first when a codec is given
+	 * - Stores the AES key wrapped with the RSA public key
 	 * - Stores encrypted key + IV + encrypted data in .rslocked file
+	 *
+	 * Runs on a worker thread, so per-step details are logged at FINE level.
+	 * Segments of big files are forked into {@code pool}, where idle workers
+	 * steal them.
+	 *
+	 * @return number of source bytes encrypted
 	 */
-	private static void encryptFile(Path sourceFile, Path destinationDir, PublicKey publicKey)
-			throws Exception {
-
-		// Generate output file path with .rslocked extension
-		String outputFileName = sourceFile.getFileName().toString() + ".rslocked";
-		Path outputFile = destinationDir.resolve(outputFileName);
+	static long encryptFile(RsFileWalker.Source source, Path destinationDir, RsKeySession session,
+			RsLockConfig.Format format, RsCodec codec, ForkJoinPool pool) throws Exception {
+		return encryptFile(source, destinationDir, session, format, codec, pool, false);
+	}
 
-		long fileSize = Files.size(sourceFile);
-		LOG.info(() -> "     Source size: " + Utility.formatBytes(fileSize));
+	/**
+	 * Encrypts a single file, with {@code resume} large GCM files are
+	 * checkpointed to a journal and continued where an interrupted run stopped
+	 *
+	 * @return number of source bytes encrypted
+	 */
+	static long encryptFile(RsFileWalker.Source source, Path destinationDir, RsKeySession session,
+			RsLockConfig.Format format, RsCodec codec, ForkJoinPool pool, boolean resume) throws Exception {
+		Path sourceFile = source.file();
+
+		// Generate output file path with .rslocked extension, mirroring the source tree
+		Path outputFile = outputFile(source, destinationDir);
+		Files.createDirectories(outputFile.getParent());
+
+		long fileSize = source.size();
+		LOG.fine(() -> "     Source size: " + Utility.formatBytes(fileSize));
+
+		if (resume && format == RsLockConfig.Format.GCM) {
+			// The key comes from the session, or from the partial output of an interrupted run
+			LOG.fine(() -> "     Encrypting file data in AES-GCM segments, resumable...");
+			RsSegmentedCipher.encryptResumable(sourceFile, outputFile, session, codec, pool);
+			LOG.fine(() -> "     Output file: " + outputFile.getFileName());
+			return fileSize;
+		}
 
-		// Generate unique AES key for this file
-		LOG.info(() -> "     Generating AES key...");
-		SecretKey aesKey = CypherUtility.generateAESKey();
+		// Unique AES key for this file, wrapped with the RSA public key
+		LOG.fine(() -> "     Generating AES key...");
+		RsKeySession.FileKey fileKey = session.newFileKey();
+		SecretKey aesKey = fileKey.aesKey();
+		byte[] encryptedAESKey = fileKey.recipients().get(0).encryptedKey();
+
+		if (format == RsLockConfig.Format.GCM) {
+			// Segmented container, segments are sealed in parallel
+			LOG.fine(() -> "     Encrypting file data in AES-GCM segments...");
+			RsSegmentedCipher.encrypt(sourceFile, outputFile, fileKey, codec, pool);
+			LOG.fine(() -> "     Output file: " + outputFile.getFileName());
+			return fileSize;
+		}
 
 		// Generate unique IV for this file
-		LOG.info(() -> "     Generating IV...");
+		LOG.fine(() -> "     Generating IV...");
 		IvParameterSpec iv = CypherUtility.generateIV();
 
-		// Encrypt the AES key with RSA public key
-		LOG.info(() -> "     Encrypting AES key with RSA...");
-		byte[] encryptedAESKey = CypherUtility.encryptAESKeyWithRSA(aesKey, publicKey);
-
 		// Encrypt the file
-		LOG.info(() -> "     Encrypting file data...");
-		try (InputStream fileInput = Files.newInputStream(sourceFile);
-				OutputStream fileOutput = Files.newOutputStream(outputFile)) {
+		LOG.fine(() -> "     Encrypting file data...");
+		// Header, then the data padded to the next full block
+		long headerSize = 8 + iv.getIV().length + encryptedAESKey.length;
+		long expectedSize = headerSize + (fileSize / 16 + 1) * 16;
+		long encryptedSize;
+		try (FileChannel fileInput = FileChannel.open(sourceFile, StandardOpenOption.READ);
+				RsOutputFile output = RsOutputFile.create(outputFile, expectedSize)) {
+			FileChannel fileOutput = output.channel();
 
 			// Write header: IV and encrypted AES key
-			CypherUtility.writeEncryptionHeader(fileOutput, iv, encryptedAESKey);
-
-			// Write encrypted file data
-			try (CipherOutputStream cipherOutput = CypherUtility.createEncryptStream(fileOutput, aesKey, iv)) {
-				long bytesCopied = 0;
-				byte[] buffer = new byte[RsConstraints.DEFAULT_BUFFER_SIZE];
-				int bytesRead;
-				int lastProgressPercent = 0;
-
-				while ((bytesRead = fileInput.read(buffer)) != -1) {
-					cipherOutput.write(buffer, 0, bytesRead);
-					bytesCopied += bytesRead;
-
-					// Show progress percentage
-					int progressPercent = (int) ((bytesCopied * 100) / fileSize);
-					if (progressPercent > lastProgressPercent && progressPercent % 10 == 0) {
-						LOG.fine("     Progress: " + progressPercent + "%");
-						lastProgressPercent = progressPercent;
-					}
-				}
+			CypherUtility.writeEncryptionHeader(Channels.newOutputStream(fileOutput), iv, encryptedAESKey);
 
-				cipherOutput.flush();
-			}
+			// Write encrypted file data right after the header
+			Cipher cipher = CypherUtility.createEncryptCipher(aesKey, iv);
+			encryptedSize = fileOutput.position() + RsChannelCipher.transform(fileInput, 0, fileSize, cipher,
+					fileOutput, fileOutput.position(), RsLogger.progress(LOG, sourceFile, fileSize));
+			output.commit(encryptedSize);
 		}
 
-		long encryptedSize = Files.size(outputFile);
+		LOG.fine(() -> "     Output size: " + Utility.formatBytes(encryptedSize));
+		LOG.fine(() -> "     Output file: " + outputFile.getFileName());
+		return fileSize;
+	}
 
-		LOG.info(() -> "     Output size: " + Utility.formatBytes(encryptedSize));
-		LOG.info(() -> "     Output file: " + outputFile.getFileName());
+	/**
+	 * Encrypts a file unless the manifest shows it unchanged since the last run
+	 *
+	 * @return number of source bytes encrypted, or {@link RsBatch#SKIPPED}
+	 */
+	private static long encryptIfChanged(RsFileWalker.Source source, Path destinationDir, RsKeySession session,
+			RsLockConfig.Format format, RsCodec codec, ForkJoinPool pool, RsManifest manifest, boolean resume)
+			throws Exception {
+		if (manifest.isUnchanged(source.file(), outputFile(source, destinationDir))) {
+			return RsBatch.SKIPPED;
+		}
+
+		// Hash before encrypting, a file changing meanwhile then differs next time
+		RsManifest.Entry entry = RsManifest.entry(source.file());
+		long bytes = encryptFile(source, destinationDir, session, format, codec, pool, resume);
+		manifest.update(source.file(), entry);
+		return bytes;
+	}
+
+	private static Path outputFile(RsFileWalker.Source source, Path destinationDir) {
+		return source.outputDir(destinationDir).resolve(source.file().getFileName().toString() + ".rslocked");
+	}
+
+	/**
+	 * Write the metrics report if one was asked for, a failure here never fails the run
+	 */
+	private static void writeMetrics(Path metricsFile) {
+		if (metricsFile == null)
+			return;
+		try {
+			RsMetrics.writeReport(metricsFile, "encrypt");
+			LOG.info(() -> "Metrics written to " + metricsFile);
+		} catch (IOException e) {
+			LOG.warning("✗ Failed to write metrics to " + metricsFile + ": " + e.getMessage());
+		}
 	}
 
 }
@@ -3,6 +3,7 @@
 
 module rslock.encryptor {
     requires rslock.common;
+    exports com.rslock.encryptor;
     requires java.base;
 	requires java.logging;
 }